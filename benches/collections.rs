@@ -0,0 +1,144 @@
+use std::hint::black_box;
+use std::time::{Duration, Instant};
+
+use vex::hir;
+use vex::interpreter::Interpreter;
+use vex::persistent::{PMap, PVec};
+use vex::source::SourceMap;
+use vex::{lexer, macro_expand, parser, typechecker};
+
+const SIZE: usize = 100_000;
+
+const READS: &str = "
+(defn touch [xs : (List Int) n : Int] : Int
+  (if (= n 0) 0 (touch xs (- n 1))))
+(let [xs (range 0 100000)] (touch xs 1000))
+";
+
+fn check(name: &str, source: &str) -> hir::Module {
+    let mut source_map = SourceMap::new();
+    let file_id = source_map.add_file(name.to_string(), source.to_string());
+    let (tokens, _) = lexer::lex(source, file_id);
+    let (ast, _) = parser::parse(&tokens);
+    let (ast, _) = macro_expand::expand(ast);
+    let (module, diags) = typechecker::check(&ast);
+    assert!(diags.is_empty(), "{}: {:?}", name, diags);
+    module
+}
+
+fn measure(iterations: u32, mut run: impl FnMut()) -> Duration {
+    run();
+    let start = Instant::now();
+    for _ in 0..iterations {
+        run();
+    }
+    start.elapsed() / iterations
+}
+
+fn report(name: &str, baseline: Duration, persistent: Duration) {
+    println!(
+        "{:<14} vec {:>10.3?}  persistent {:>10.3?}  ratio {:.2}x",
+        name,
+        baseline,
+        persistent,
+        baseline.as_secs_f64() / persistent.as_secs_f64()
+    );
+}
+
+fn bench_list() {
+    let vec: Vec<i64> = (0..SIZE as i64).collect();
+    let pvec: PVec<i64> = (0..SIZE as i64).collect();
+
+    let build = (
+        measure(10, || {
+            black_box((0..SIZE as i64).collect::<Vec<_>>());
+        }),
+        measure(10, || {
+            black_box((0..SIZE as i64).collect::<PVec<_>>());
+        }),
+    );
+    report("list build", build.0, build.1);
+
+    let index = (
+        measure(10, || {
+            let sum: i64 = (0..SIZE).map(|i| vec[(i * 7919) % SIZE]).sum();
+            black_box(sum);
+        }),
+        measure(10, || {
+            let sum: i64 = (0..SIZE).filter_map(|i| pvec.get((i * 7919) % SIZE)).sum();
+            black_box(sum);
+        }),
+    );
+    report("list index", index.0, index.1);
+
+    let update = (
+        measure(100, || {
+            let mut copy = vec.clone();
+            copy[SIZE / 2] = -1;
+            black_box(copy);
+        }),
+        measure(100, || {
+            let mut copy = pvec.clone();
+            copy.set(SIZE / 2, -1);
+            black_box(copy);
+        }),
+    );
+    report("list update", update.0, update.1);
+}
+
+fn bench_map() {
+    let pairs: Vec<(i64, i64)> = (0..SIZE as i64).map(|n| (n, n * 2)).collect();
+    let pmap: PMap<i64, i64> = pairs.iter().copied().collect();
+
+    let build = (
+        measure(10, || {
+            black_box(pairs.clone());
+        }),
+        measure(10, || {
+            black_box(pairs.iter().copied().collect::<PMap<_, _>>());
+        }),
+    );
+    report("map build", build.0, build.1);
+
+    let sampled = 1000;
+    let lookup = (
+        measure(1, || {
+            let hits = (0..sampled).filter(|k| pairs.iter().any(|(key, _)| key == k));
+            black_box(hits.count());
+        }) * (SIZE / sampled as usize) as u32,
+        measure(10, || {
+            let hits = (0..SIZE as i64).filter(|k| pmap.contains_key(k)).count();
+            black_box(hits);
+        }),
+    );
+    report("map lookup", lookup.0, lookup.1);
+
+    let update = (
+        measure(100, || {
+            let mut copy = pairs.clone();
+            copy.push((-1, -1));
+            black_box(copy);
+        }),
+        measure(100, || {
+            let mut copy = pmap.clone();
+            copy.insert(-1, -1);
+            black_box(copy);
+        }),
+    );
+    report("map update", update.0, update.1);
+}
+
+fn bench_interpreter() {
+    let module = check("reads", READS);
+    let elapsed = measure(10, || {
+        let result = Interpreter::new().eval_module(&module);
+        black_box(result.expect("interpreter failed"));
+    });
+    println!("{:<14} 1000 reads of a 100k list {:>10.3?}", "list reads", elapsed);
+}
+
+fn main() {
+    bench_list();
+    bench_map();
+    bench_interpreter();
+}
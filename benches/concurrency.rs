@@ -0,0 +1,68 @@
+use std::hint::black_box;
+use std::thread;
+use std::time::{Duration, Instant};
+
+use vex::hir;
+use vex::interpreter::Interpreter;
+use vex::source::SourceMap;
+use vex::{lexer, macro_expand, parser, typechecker};
+
+const SEQUENTIAL: &str = "
+(defn fib [n : Int] : Int
+  (if (<= n 1) n (+ (fib (- n 1)) (fib (- n 2)))))
+(defn run [n : Int acc : Int] : Int
+  (if (= n 0) acc (run (- n 1) (+ acc (fib 20)))))
+(run 64 0)
+";
+
+const FAN_OUT: &str = "
+(defn fib [n : Int] : Int
+  (if (<= n 1) n (+ (fib (- n 1)) (fib (- n 2)))))
+(defn collect [ch : (Channel Int) n : Int acc : Int] : Int
+  (if (= n 0) acc (collect ch (- n 1) (+ acc (recv ch)))))
+(let [ch (channel Int 64)]
+  (each (range 0 64) (fn [x : Int] (spawn (send ch (fib 20)))))
+  (collect ch 64 0))
+";
+
+fn check(name: &str, source: &str) -> hir::Module {
+    let mut source_map = SourceMap::new();
+    let file_id = source_map.add_file(name.to_string(), source.to_string());
+    let (tokens, _) = lexer::lex(source, file_id);
+    let (ast, _) = parser::parse(&tokens);
+    let (ast, _) = macro_expand::expand(ast);
+    let (module, diags) = typechecker::check(&ast);
+    assert!(diags.is_empty(), "{}: {:?}", name, diags);
+    module
+}
+
+fn measure(iterations: u32, mut run: impl FnMut()) -> Duration {
+    run();
+    let start = Instant::now();
+    for _ in 0..iterations {
+        run();
+    }
+    start.elapsed() / iterations
+}
+
+fn main() {
+    let sequential = check("sequential", SEQUENTIAL);
+    let fan_out = check("fan-out", FAN_OUT);
+    let one_task = measure(5, || {
+        let result = Interpreter::new().eval_module(&sequential);
+        black_box(result.expect("sequential run failed"));
+    });
+    let spawned = measure(5, || {
+        let result = Interpreter::new().eval_module(&fan_out);
+        black_box(result.expect("fan-out run failed"));
+    });
+    let threads = thread::available_parallelism().map_or(1, |n| n.get());
+    println!(
+        "{:<8} sequential {:>10.3?}  spawned {:>10.3?}  speedup {:.2}x on {} threads",
+        "fan-out",
+        one_task,
+        spawned,
+        one_task.as_secs_f64() / spawned.as_secs_f64(),
+        threads
+    );
+}
@@ -0,0 +1,75 @@
+use std::hint::black_box;
+use std::time::{Duration, Instant};
+
+use vex::hir;
+use vex::interpreter::Interpreter;
+use vex::source::SourceMap;
+use vex::vm::Vm;
+use vex::{lexer, macro_expand, parser, typechecker};
+
+const FIB: &str = "
+(defn fib [n : Int] : Int
+  (if (<= n 1) n (+ (fib (- n 1)) (fib (- n 2)))))
+(fib 22)
+";
+
+const LOOP: &str = "
+(defn count-up [i : Int acc : Int] : Int
+  (if (= i 0) acc (count-up (- i 1) (+ acc (mod i 7)))))
+(defn repeat [n : Int total : Int] : Int
+  (if (= n 0) total (repeat (- n 1) (+ total (count-up 500 0)))))
+(repeat 200 0)
+";
+
+const RECURSE: &str = "
+(defn sum-down [i : Int] : Int
+  (if (= i 0) 0 (+ (mod i 7) (sum-down (- i 1)))))
+(defn repeat [n : Int total : Int] : Int
+  (if (= n 0) total (repeat (- n 1) (+ total (sum-down 500)))))
+(repeat 200 0)
+";
+
+fn check(name: &str, source: &str) -> hir::Module {
+    let mut source_map = SourceMap::new();
+    let file_id = source_map.add_file(name.to_string(), source.to_string());
+    let (tokens, _) = lexer::lex(source, file_id);
+    let (ast, _) = parser::parse(&tokens);
+    let (ast, _) = macro_expand::expand(ast);
+    let (module, diags) = typechecker::check(&ast);
+    assert!(diags.is_empty(), "{}: {:?}", name, diags);
+    module
+}
+
+fn measure(iterations: u32, mut run: impl FnMut()) -> Duration {
+    run();
+    let start = Instant::now();
+    for _ in 0..iterations {
+        run();
+    }
+    start.elapsed() / iterations
+}
+
+fn bench(name: &str, source: &str, iterations: u32) {
+    let module = check(name, source);
+    let tree_walker = measure(iterations, || {
+        let result = Interpreter::new().eval_module(&module);
+        black_box(result.expect("tree-walker failed"));
+    });
+    let vm = measure(iterations, || {
+        let result = Vm::new().eval_module(&module);
+        black_box(result.expect("vm failed"));
+    });
+    println!(
+        "{:<8} tree-walker {:>10.3?}  vm {:>10.3?}  speedup {:.2}x",
+        name,
+        tree_walker,
+        vm,
+        tree_walker.as_secs_f64() / vm.as_secs_f64()
+    );
+}
+
+fn main() {
+    bench("fib", FIB, 10);
+    bench("loop", LOOP, 10);
+    bench("recurse", RECURSE, 10);
+}
@@ -0,0 +1,75 @@
+use std::fmt::Write;
+use std::fs;
+use std::hint::black_box;
+use std::path::{Path, PathBuf};
+use std::thread;
+use std::time::{Duration, Instant};
+
+const MODULES: usize = 50;
+const FUNCTIONS: usize = 40;
+
+fn module_source(index: usize) -> String {
+    let mut source = format!("(module m{index})\n(export [entry{index}])\n");
+    for f in 0..FUNCTIONS {
+        writeln!(
+            source,
+            "(defn f{f} [n : Int] : Int
+  (let [a (* n {f}) b (+ a {index})]
+    (cond (> a b) (- a b) (= a b) 0 :else (+ (mod b 7) a))))"
+        )
+        .unwrap();
+    }
+    writeln!(source, "(defn entry{index} [n : Int] : Int (+ (f0 n) (f1 n)))").unwrap();
+    source
+}
+
+fn write_project(dir: &Path) -> String {
+    fs::create_dir_all(dir).expect("bench dir should be writable");
+    let mut main = String::from("(module app)\n");
+    for index in 0..MODULES {
+        fs::write(dir.join(format!("m{}.vx", index)), module_source(index))
+            .expect("module should be writable");
+        writeln!(main, "(import m{index} [entry{index}])").unwrap();
+    }
+    main.push_str("(defn main [] (println (str \"ok\")))\n");
+    main
+}
+
+fn measure(iterations: u32, mut run: impl FnMut()) -> Duration {
+    run();
+    let start = Instant::now();
+    for _ in 0..iterations {
+        run();
+    }
+    start.elapsed() / iterations
+}
+
+fn main() {
+    let dir: PathBuf = std::env::temp_dir().join(format!("vex-bench-{}", std::process::id()));
+    let main_source = write_project(&dir);
+    let main_path = dir.join("main.vx").display().to_string();
+    let modules: Vec<String> = (0..MODULES).map(module_source).collect();
+
+    let serial = measure(5, || {
+        for (index, source) in modules.iter().enumerate() {
+            black_box(vex::compile(source, &format!("m{}.vx", index)));
+        }
+    });
+    let project = measure(5, || {
+        let result = vex::compile(&main_source, &main_path);
+        assert!(result.diagnostics.is_empty(), "{:?}", result.diagnostics);
+        black_box(result);
+    });
+    fs::remove_dir_all(&dir).ok();
+
+    let threads = thread::available_parallelism().map_or(1, |n| n.get());
+    println!(
+        "{:<8} {} modules one by one {:>10.3?}  project {:>10.3?}  speedup {:.2}x on {} threads",
+        "modules",
+        MODULES,
+        serial,
+        project,
+        serial.as_secs_f64() / project.as_secs_f64(),
+        threads
+    );
+}
@@ -0,0 +1,327 @@
+use std::collections::HashMap;
+use std::env;
+use std::fmt::Write;
+use std::fs;
+use std::hint::black_box;
+use std::path::{Path, PathBuf};
+use std::process;
+use std::time::{Duration, Instant};
+
+use vex::CompileOptions;
+use vex::instrument::{Phase, Record, Timings};
+use vex::source::FileId;
+
+const ITERATIONS: usize = 5;
+const TOLERANCE: f64 = 0.15;
+const DEPTH: usize = 24;
+const RAW_LEX_BYTES: usize = 8 << 20;
+
+struct Corpus {
+    name: &'static str,
+    main: String,
+    modules: Vec<(String, String)>,
+}
+
+const PICK_MACRO: &str = "(defmacro pick [test a b]
+  (list (quote if) test a b))
+";
+
+fn plain_defns(out: &mut String, prefix: &str, count: usize) {
+    for i in 0..count {
+        writeln!(
+            out,
+            "(defn {prefix}plain{i} [n : Int, m : Int] : Int (+ (* n {i}) (- m n)))"
+        )
+        .unwrap();
+    }
+}
+
+fn nested_let(depth: usize) -> String {
+    let mut expr = format!("a{depth}");
+    for d in (0..depth).rev() {
+        expr = format!("(let [a{} (+ a{d} {d})] {expr})", d + 1);
+    }
+    expr
+}
+
+fn nested_match(depth: usize) -> String {
+    let mut expr = format!("v{depth}");
+    for d in (0..depth).rev() {
+        expr = format!("(match (Some (+ v{d} 1)) (Some v{}) {expr} None 0)", d + 1);
+    }
+    expr
+}
+
+fn deep_defns(out: &mut String, prefix: &str, count: usize) {
+    let body = format!("(+ {} {})", nested_let(DEPTH), nested_match(DEPTH));
+    for i in 0..count {
+        writeln!(out, "(defn {prefix}deep{i} [a0 : Int, v0 : Int] : Int\n  {body})").unwrap();
+    }
+}
+
+fn macro_defns(out: &mut String, prefix: &str, count: usize) {
+    for i in 0..count {
+        writeln!(
+            out,
+            "(defn {prefix}choose{i} [n : Int] : Int
+  (cond (and (> n {i}) (< n 100)) (pick (= n 50) 1 2)
+        (or (= n 0) (= n 1)) (pick (> n 0) n 0)
+        :else (pick (< n 0) (- 0 n) {i})))"
+        )
+        .unwrap();
+    }
+}
+
+fn type_defns(out: &mut String, prefix: &str, count: usize) {
+    for i in 0..count {
+        writeln!(
+            out,
+            "(deftype {prefix}Rec{i} (a Int) (b Int))
+(defunion {prefix}Shape{i} ({prefix}Lit{i} Int) ({prefix}Pair{i} Int Int))
+(defn {prefix}use{i} [n : Int] : Int
+  (let [r ({prefix}Rec{i} n (+ n {i}))
+        s ({prefix}Pair{i} (. r a) (. r b))]
+    (match s
+      ({prefix}Lit{i} v) v
+      ({prefix}Pair{i} x y) (+ x y))))"
+        )
+        .unwrap();
+    }
+}
+
+fn single_file(name: &'static str, build: impl FnOnce(&mut String)) -> Corpus {
+    let mut main = String::new();
+    build(&mut main);
+    main.push_str("(defn main [] (println \"ok\"))\n");
+    Corpus {
+        name,
+        main,
+        modules: Vec::new(),
+    }
+}
+
+fn project(modules: usize) -> Corpus {
+    let mut main = String::from("(module app)\n");
+    let sources = (0..modules)
+        .map(|index| {
+            let prefix = format!("m{index}");
+            let mut source = format!("(module {prefix})\n(export [entry{index}])\n");
+            source.push_str(PICK_MACRO);
+            plain_defns(&mut source, &prefix, 25);
+            deep_defns(&mut source, &prefix, 5);
+            macro_defns(&mut source, &prefix, 10);
+            type_defns(&mut source, &prefix, 5);
+            writeln!(
+                source,
+                "(defn entry{index} [n : Int] : Int (+ ({prefix}choose0 n) ({prefix}use0 n)))"
+            )
+            .unwrap();
+            writeln!(main, "(import {prefix} [entry{index}])").unwrap();
+            (prefix, source)
+        })
+        .collect();
+    main.push_str("(defn main [] (println (str (entry0 1))))\n");
+    Corpus {
+        name: "project",
+        main,
+        modules: sources,
+    }
+}
+
+fn corpora(scale: usize) -> Vec<Corpus> {
+    vec![
+        single_file("defns", |out| plain_defns(out, "", 2000 * scale)),
+        single_file("nesting", |out| deep_defns(out, "", 200 * scale)),
+        single_file("macros", |out| {
+            out.push_str(PICK_MACRO);
+            macro_defns(out, "", 1000 * scale);
+        }),
+        single_file("types", |out| type_defns(out, "", 300 * scale)),
+        project(40 * scale),
+    ]
+}
+
+fn best_totals(corpus: &Corpus, dir: &Path) -> Vec<Record> {
+    fs::create_dir_all(dir).expect("bench dir should be writable");
+    for (name, source) in &corpus.modules {
+        fs::write(dir.join(format!("{}.vx", name)), source).expect("module should be writable");
+    }
+    let main_path = dir.join("main.vx").display().to_string();
+
+    let mut best: Vec<Record> = Vec::new();
+    for _ in 0..=ITERATIONS {
+        let timings = Timings::new();
+        let options = CompileOptions {
+            cache: None,
+            timings: Some(&timings),
+        };
+        let result = vex::compile_with(&corpus.main, &main_path, options);
+        let shown = result.diagnostics.len().min(3);
+        assert!(
+            result.diagnostics.is_empty(),
+            "{}: {:?}",
+            corpus.name,
+            &result.diagnostics[..shown]
+        );
+        black_box(result);
+        for total in timings.totals() {
+            match best.iter_mut().find(|record| record.phase == total.phase) {
+                Some(record) if record.elapsed <= total.elapsed => {}
+                Some(record) => *record = total,
+                None => best.push(total),
+            }
+        }
+    }
+    fs::remove_dir_all(dir).ok();
+    best
+}
+
+fn throughput(record: &Record) -> (f64, &'static str) {
+    let (count, unit) = match record.phase {
+        Phase::Parse => (record.counts.tokens, "tokens/s"),
+        Phase::Codegen | Phase::GoBuild => (record.counts.output_bytes, "bytes/s"),
+        Phase::Expand | Phase::Summarize | Phase::Check => (record.counts.forms, "forms/s"),
+    };
+    let seconds = record.elapsed.as_secs_f64().max(f64::MIN_POSITIVE);
+    (count as f64 / seconds, unit)
+}
+
+fn raw_source(corpora: &[Corpus], scale: usize) -> String {
+    let mut source = String::new();
+    while source.len() < RAW_LEX_BYTES * scale {
+        for corpus in corpora {
+            source.push_str(&corpus.main);
+            for (_, module) in &corpus.modules {
+                source.push_str(module);
+            }
+        }
+    }
+    source
+}
+
+fn best_raw_lex(source: &str) -> Duration {
+    (0..=ITERATIONS)
+        .map(|_| {
+            let start = Instant::now();
+            let (tokens, diagnostics) = vex::lexer::lex(source, FileId::new(0));
+            assert!(diagnostics.is_empty(), "raw lex: {:?}", &diagnostics[..1]);
+            black_box(tokens);
+            start.elapsed()
+        })
+        .min()
+        .unwrap_or_default()
+}
+
+fn verdict(change: Option<f64>, regressions: &mut usize) -> String {
+    match change {
+        Some(change) if change < -TOLERANCE => {
+            *regressions += 1;
+            format!("{:+.1}% REGRESSION", change * 100.0)
+        }
+        Some(change) => format!("{:+.1}%", change * 100.0),
+        None => "-".to_string(),
+    }
+}
+
+fn fail(message: String) -> ! {
+    eprintln!("{}", message);
+    process::exit(2);
+}
+
+fn baseline_path() -> PathBuf {
+    match env::var_os("VEX_BENCH_BASELINE") {
+        Some(path) => PathBuf::from(path),
+        None => fail(
+            "VEX_BENCH_BASELINE is not set: point it at a baseline file, and add \
+             --save-baseline to record one"
+                .to_string(),
+        ),
+    }
+}
+
+fn load_baseline(path: &Path) -> HashMap<(String, String), f64> {
+    let contents = fs::read_to_string(path).unwrap_or_else(|e| {
+        fail(format!(
+            "no baseline at {} ({}); record one with --save-baseline",
+            path.display(),
+            e
+        ))
+    });
+    let baseline: HashMap<(String, String), f64> = contents
+        .lines()
+        .filter_map(|line| {
+            let mut fields = line.split('\t');
+            let corpus = fields.next()?.to_string();
+            let phase = fields.next()?.to_string();
+            let value = fields.next()?.parse().ok()?;
+            Some(((corpus, phase), value))
+        })
+        .collect();
+    if baseline.is_empty() {
+        fail(format!("baseline {} has no entries", path.display()));
+    }
+    baseline
+}
+
+fn main() {
+    let scale = env::var("VEX_BENCH_SCALE")
+        .ok()
+        .and_then(|value| value.parse().ok())
+        .unwrap_or(1usize)
+        .max(1);
+    let path = baseline_path();
+    let save = env::args().any(|arg| arg == "--save-baseline");
+    let baseline = if save {
+        HashMap::new()
+    } else {
+        load_baseline(&path)
+    };
+
+    let mut saved = String::new();
+    let mut regressions = 0;
+    let mut row = |corpus: &str, phase: &str, elapsed: Duration, rate: f64, unit: &str| {
+        let change = baseline
+            .get(&(corpus.to_string(), phase.to_string()))
+            .map(|base| rate / base - 1.0);
+        println!(
+            "{:<8} {:<10} {:>10.3} {:>16.0} {:<9} {:>9}",
+            corpus,
+            phase,
+            elapsed.as_secs_f64() * 1000.0,
+            rate,
+            unit,
+            verdict(change, &mut regressions)
+        );
+        writeln!(saved, "{}\t{}\t{}", corpus, phase, rate).unwrap();
+    };
+    println!(
+        "{:<8} {:<10} {:>10} {:>16} {:<9} {:>9}",
+        "corpus", "phase", "wall ms", "throughput", "", "baseline"
+    );
+    let corpora = corpora(scale);
+    for corpus in &corpora {
+        let dir = env::temp_dir().join(format!("vex-bench-{}-{}", corpus.name, process::id()));
+        for record in best_totals(corpus, &dir) {
+            let (rate, unit) = throughput(&record);
+            row(corpus.name, record.phase.name(), record.elapsed, rate, unit);
+        }
+    }
+    let source = raw_source(&corpora, scale);
+    let elapsed = best_raw_lex(&source);
+    let megabytes = source.len() as f64 / (1024.0 * 1024.0);
+    let rate = megabytes / elapsed.as_secs_f64().max(f64::MIN_POSITIVE);
+    row("raw", "lex", elapsed, rate, "MB/s");
+
+    if save {
+        fs::write(&path, saved).expect("baseline should be writable");
+        println!("baseline saved to {}", path.display());
+    } else if regressions > 0 {
+        eprintln!(
+            "{} phase(s) lost more than {:.0}% throughput against {}",
+            regressions,
+            TOLERANCE * 100.0,
+            path.display()
+        );
+        process::exit(1);
+    }
+}
@@ -0,0 +1,229 @@
+use std::alloc::{GlobalAlloc, Layout, System};
+use std::cell::Cell;
+use std::sync::atomic::{AtomicBool, AtomicIsize, Ordering};
+
+static ENABLED: AtomicBool = AtomicBool::new(false);
+static LIVE: AtomicIsize = AtomicIsize::new(0);
+static PEAK: AtomicIsize = AtomicIsize::new(0);
+
+#[derive(Clone, Copy)]
+struct ThreadCounters {
+    allocations: u64,
+    bytes: u64,
+    live: i64,
+    peak: i64,
+}
+
+thread_local! {
+    static THREAD: Cell<ThreadCounters> = const {
+        Cell::new(ThreadCounters {
+            allocations: 0,
+            bytes: 0,
+            live: 0,
+            peak: 0,
+        })
+    };
+}
+
+pub struct CountingAllocator;
+
+unsafe impl GlobalAlloc for CountingAllocator {
+    unsafe fn alloc(&self, layout: Layout) -> *mut u8 {
+        let ptr = unsafe { System.alloc(layout) };
+        if !ptr.is_null() {
+            record_alloc(layout.size());
+        }
+        ptr
+    }
+
+    unsafe fn alloc_zeroed(&self, layout: Layout) -> *mut u8 {
+        let ptr = unsafe { System.alloc_zeroed(layout) };
+        if !ptr.is_null() {
+            record_alloc(layout.size());
+        }
+        ptr
+    }
+
+    unsafe fn dealloc(&self, ptr: *mut u8, layout: Layout) {
+        unsafe { System.dealloc(ptr, layout) };
+        record_free(layout.size());
+    }
+
+    unsafe fn realloc(&self, ptr: *mut u8, layout: Layout, new_size: usize) -> *mut u8 {
+        let new_ptr = unsafe { System.realloc(ptr, layout, new_size) };
+        if !new_ptr.is_null() {
+            record_free(layout.size());
+            record_alloc(new_size);
+        }
+        new_ptr
+    }
+}
+
+fn record_alloc(size: usize) {
+    if !ENABLED.load(Ordering::Relaxed) {
+        return;
+    }
+    let live = LIVE.fetch_add(size as isize, Ordering::Relaxed) + size as isize;
+    PEAK.fetch_max(live, Ordering::Relaxed);
+    let _ = THREAD.try_with(|thread| {
+        let mut counters = thread.get();
+        counters.allocations += 1;
+        counters.bytes += size as u64;
+        counters.live += size as i64;
+        counters.peak = counters.peak.max(counters.live);
+        thread.set(counters);
+    });
+}
+
+fn record_free(size: usize) {
+    if !ENABLED.load(Ordering::Relaxed) {
+        return;
+    }
+    LIVE.fetch_sub(size as isize, Ordering::Relaxed);
+    let _ = THREAD.try_with(|thread| {
+        let mut counters = thread.get();
+        counters.live -= size as i64;
+        thread.set(counters);
+    });
+}
+
+pub fn enable() {
+    ENABLED.store(true, Ordering::Relaxed);
+}
+
+pub fn is_enabled() -> bool {
+    ENABLED.load(Ordering::Relaxed)
+}
+
+pub fn process_peak_bytes() -> u64 {
+    PEAK.load(Ordering::Relaxed).max(0) as u64
+}
+
+#[derive(Debug, Default, Clone, Copy, PartialEq, Eq)]
+pub struct AllocStats {
+    pub allocations: u64,
+    pub bytes: u64,
+    pub peak_bytes: u64,
+}
+
+impl AllocStats {
+    pub fn add(&mut self, other: AllocStats) {
+        self.allocations += other.allocations;
+        self.bytes += other.bytes;
+        self.peak_bytes = self.peak_bytes.max(other.peak_bytes);
+    }
+}
+
+pub struct PhaseStart(Option<ThreadCounters>);
+
+pub fn start() -> PhaseStart {
+    if !is_enabled() {
+        return PhaseStart(None);
+    }
+    let saved = THREAD.try_with(|thread| {
+        let saved = thread.get();
+        thread.set(ThreadCounters {
+            peak: saved.live,
+            ..saved
+        });
+        saved
+    });
+    PhaseStart(saved.ok())
+}
+
+pub fn finish(start: PhaseStart) -> AllocStats {
+    let Some(saved) = start.0 else {
+        return AllocStats::default();
+    };
+    THREAD
+        .try_with(|thread| {
+            let now = thread.get();
+            thread.set(ThreadCounters {
+                peak: now.peak.max(saved.peak),
+                ..now
+            });
+            AllocStats {
+                allocations: now.allocations - saved.allocations,
+                bytes: now.bytes - saved.bytes,
+                peak_bytes: (now.peak - saved.live).max(0) as u64,
+            }
+        })
+        .unwrap_or_default()
+}
+
+pub fn charge(stats: AllocStats) {
+    if !is_enabled() {
+        return;
+    }
+    let _ = THREAD.try_with(|thread| {
+        let mut counters = thread.get();
+        counters.allocations += stats.allocations;
+        counters.bytes += stats.bytes;
+        counters.peak = counters.peak.max(counters.live + stats.peak_bytes as i64);
+        thread.set(counters);
+    });
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn phases_without_counting_report_nothing() {
+        let phase = PhaseStart(None);
+        assert_eq!(finish(phase), AllocStats::default());
+    }
+
+    #[test]
+    fn phase_counters_track_allocations_on_this_thread() {
+        enable();
+        let phase = start();
+        record_alloc(64);
+        record_alloc(32);
+        record_free(64);
+        record_free(32);
+        let stats = finish(phase);
+        assert_eq!(stats.allocations, 2);
+        assert_eq!(stats.bytes, 96);
+        assert_eq!(stats.peak_bytes, 96);
+    }
+
+    #[test]
+    fn charged_worker_stats_land_in_the_current_phase() {
+        enable();
+        let phase = start();
+        record_alloc(16);
+        charge(AllocStats {
+            allocations: 3,
+            bytes: 300,
+            peak_bytes: 200,
+        });
+        record_free(16);
+        let stats = finish(phase);
+        assert_eq!(stats.allocations, 4);
+        assert_eq!(stats.bytes, 316);
+        assert_eq!(stats.peak_bytes, 216);
+    }
+
+    #[test]
+    fn totals_sum_counts_and_keep_the_highest_peak() {
+        let mut total = AllocStats {
+            allocations: 2,
+            bytes: 100,
+            peak_bytes: 80,
+        };
+        total.add(AllocStats {
+            allocations: 1,
+            bytes: 10,
+            peak_bytes: 40,
+        });
+        assert_eq!(
+            total,
+            AllocStats {
+                allocations: 3,
+                bytes: 110,
+                peak_bytes: 80,
+            }
+        );
+    }
+}
@@ -0,0 +1,182 @@
+use std::env;
+use std::fs;
+use std::io;
+use std::path::{Path, PathBuf};
+use std::process::Command;
+use std::sync::OnceLock;
+use std::time::UNIX_EPOCH;
+
+use crate::cache;
+use crate::content_hash::{ContentHash, ContentHasher};
+
+const BUILD_FLAGS: &[&str] = &["build"];
+const MAX_BINARY_BYTES: u64 = 1024 * 1024 * 1024;
+const TOOLCHAIN_ENV: &[&str] = &[
+    "GOTOOLCHAIN",
+    "GOOS",
+    "GOARCH",
+    "GOAMD64",
+    "GOARM",
+    "GOFLAGS",
+    "GOROOT",
+    "CGO_ENABLED",
+];
+
+pub fn key(files: &[(PathBuf, &str)], toolchain: &str) -> ContentHash {
+    let mut hasher = ContentHasher::new();
+    hasher.write_str(toolchain);
+    for flag in BUILD_FLAGS {
+        hasher.write_str(flag);
+    }
+    for (path, contents) in files {
+        hasher.write_str(&path.display().to_string());
+        hasher.write_str(contents);
+    }
+    hasher.finish()
+}
+
+pub fn toolchain_id() -> &'static str {
+    static TOOLCHAIN_ID: OnceLock<String> = OnceLock::new();
+    TOOLCHAIN_ID.get_or_init(detect_toolchain)
+}
+
+fn detect_toolchain() -> String {
+    let mut id = String::new();
+    if let Ok(output) = Command::new("go").args(["env", "GOVERSION"]).output()
+        && output.status.success()
+    {
+        id.push_str(String::from_utf8_lossy(&output.stdout).trim());
+        id.push(';');
+    }
+    let go = env::var_os("PATH").and_then(|path| {
+        env::split_paths(&path)
+            .map(|dir| dir.join(format!("go{}", env::consts::EXE_SUFFIX)))
+            .find(|candidate| candidate.is_file())
+    });
+    if let Some(go) = go
+        && let Ok(metadata) = fs::metadata(&go)
+    {
+        let modified = metadata
+            .modified()
+            .ok()
+            .and_then(|time| time.duration_since(UNIX_EPOCH).ok())
+            .map_or(0, |elapsed| elapsed.as_nanos());
+        id.push_str(&format!("{}:{}:{}", go.display(), metadata.len(), modified));
+    }
+    for name in TOOLCHAIN_ENV {
+        if let Some(value) = env::var_os(name) {
+            id.push_str(&format!(";{}={}", name, value.to_string_lossy()));
+        }
+    }
+    id
+}
+
+pub struct BinaryCache {
+    dir: PathBuf,
+}
+
+impl BinaryCache {
+    pub fn open(dir: impl Into<PathBuf>) -> io::Result<Self> {
+        let dir = dir.into();
+        fs::create_dir_all(&dir)?;
+        cache::prune(&dir, MAX_BINARY_BYTES).ok();
+        Ok(Self { dir })
+    }
+
+    pub fn clean(&self) -> io::Result<usize> {
+        cache::prune(&self.dir, 0)
+    }
+
+    pub fn default_dir() -> Option<PathBuf> {
+        Some(cache::default_root()?.join("bin"))
+    }
+
+    fn path(&self, key: ContentHash) -> PathBuf {
+        self.dir.join(format!("{}{}", key, env::consts::EXE_SUFFIX))
+    }
+
+    pub fn lookup(&self, key: ContentHash) -> Option<PathBuf> {
+        let path = self.path(key);
+        if !path.is_file() {
+            return None;
+        }
+        cache::touch(&path);
+        Some(path)
+    }
+
+    pub fn staging_path(&self, key: ContentHash) -> PathBuf {
+        self.dir.join(format!(
+            "{}.{}{}",
+            key,
+            std::process::id(),
+            env::consts::EXE_SUFFIX
+        ))
+    }
+
+    pub fn insert(&self, key: ContentHash, built: &Path) -> io::Result<PathBuf> {
+        let path = self.path(key);
+        fs::rename(built, &path)?;
+        Ok(path)
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn files<'a>(main: &'a str) -> Vec<(PathBuf, &'a str)> {
+        vec![
+            (PathBuf::from("go.mod"), "module vex_out\n"),
+            (PathBuf::from("main.go"), main),
+        ]
+    }
+
+    #[test]
+    fn keys_cover_sources_and_toolchain() {
+        let base = key(&files("package main"), "go1.22");
+        assert_eq!(base, key(&files("package main"), "go1.22"));
+        assert_ne!(base, key(&files("package main // edited"), "go1.22"));
+        assert_ne!(base, key(&files("package main"), "go1.23"));
+    }
+
+    #[test]
+    fn inserted_binaries_are_found_by_key() {
+        let dir = std::env::temp_dir().join(format!("vex-binaries-{}", std::process::id()));
+        let cache = BinaryCache::open(&dir).expect("cache should open");
+        let key = key(&files("package main"), "go1.22");
+
+        let before = cache.lookup(key);
+        let staged = cache.staging_path(key);
+        fs::write(&staged, b"binary").expect("staging should be writable");
+        let inserted = cache.insert(key, &staged).expect("insert should succeed");
+        let after = cache.lookup(key);
+        let staged_left = staged.exists();
+        fs::remove_dir_all(&dir).ok();
+
+        assert_eq!(before, None);
+        assert_eq!(after, Some(inserted));
+        assert!(!staged_left);
+    }
+
+    #[test]
+    fn clean_removes_every_binary() {
+        let dir = std::env::temp_dir().join(format!("vex-binaries-clean-{}", std::process::id()));
+        let cache = BinaryCache::open(&dir).expect("cache should open");
+        let key = key(&files("package main"), "go1.22");
+        let staged = cache.staging_path(key);
+        fs::write(&staged, b"binary").expect("staging should be writable");
+        cache.insert(key, &staged).expect("insert should succeed");
+
+        let removed = cache.clean();
+        let after = cache.lookup(key);
+        fs::remove_dir_all(&dir).ok();
+
+        assert_eq!(removed.ok(), Some(1));
+        assert_eq!(after, None);
+    }
+
+    #[test]
+    fn toolchain_is_detected_once_per_process() {
+        assert!(std::ptr::eq(toolchain_id(), toolchain_id()));
+    }
+}
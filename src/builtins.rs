@@ -10,16 +10,60 @@ pub enum GoTranslation {
     },
 }
 
+#[derive(Debug, Clone, Copy, PartialEq, Eq, Hash)]
+pub enum BuiltinId {
+    Add,
+    Sub,
+    Mul,
+    Div,
+    Mod,
+    Lt,
+    Gt,
+    Le,
+    Ge,
+    Eq,
+    Ne,
+    Not,
+    Println,
+    Str,
+    Range,
+}
+
+impl BuiltinId {
+    pub fn index(self) -> usize {
+        self as usize
+    }
+
+    pub fn is_numeric(self) -> bool {
+        matches!(
+            self,
+            BuiltinId::Add
+                | BuiltinId::Sub
+                | BuiltinId::Mul
+                | BuiltinId::Div
+                | BuiltinId::Mod
+                | BuiltinId::Lt
+                | BuiltinId::Gt
+                | BuiltinId::Le
+                | BuiltinId::Ge
+                | BuiltinId::Eq
+                | BuiltinId::Ne
+        )
+    }
+}
+
 #[derive(Debug, Clone, PartialEq)]
 pub struct Builtin {
+    pub id: BuiltinId,
     pub name: &'static str,
     pub ty: VexType,
     pub go: GoTranslation,
     pub variadic: bool,
 }
 
-fn int_bin_op(name: &'static str, ret: VexType, go_op: &'static str) -> Builtin {
+fn int_bin_op(id: BuiltinId, name: &'static str, ret: VexType, go_op: &'static str) -> Builtin {
     Builtin {
+        id,
         name,
         ty: VexType::Fn {
             params: vec![VexType::Int, VexType::Int],
@@ -32,18 +76,19 @@ fn int_bin_op(name: &'static str, ret: VexType, go_op: &'static str) -> Builtin
 
 pub fn all_builtins() -> Vec<Builtin> {
     vec![
-        int_bin_op("+", VexType::Int, "+"),
-        int_bin_op("-", VexType::Int, "-"),
-        int_bin_op("*", VexType::Int, "*"),
-        int_bin_op("/", VexType::Int, "/"),
-        int_bin_op("mod", VexType::Int, "%"),
-        int_bin_op("<", VexType::Bool, "<"),
-        int_bin_op(">", VexType::Bool, ">"),
-        int_bin_op("<=", VexType::Bool, "<="),
-        int_bin_op(">=", VexType::Bool, ">="),
-        int_bin_op("=", VexType::Bool, "=="),
-        int_bin_op("!=", VexType::Bool, "!="),
+        int_bin_op(BuiltinId::Add, "+", VexType::Int, "+"),
+        int_bin_op(BuiltinId::Sub, "-", VexType::Int, "-"),
+        int_bin_op(BuiltinId::Mul, "*", VexType::Int, "*"),
+        int_bin_op(BuiltinId::Div, "/", VexType::Int, "/"),
+        int_bin_op(BuiltinId::Mod, "mod", VexType::Int, "%"),
+        int_bin_op(BuiltinId::Lt, "<", VexType::Bool, "<"),
+        int_bin_op(BuiltinId::Gt, ">", VexType::Bool, ">"),
+        int_bin_op(BuiltinId::Le, "<=", VexType::Bool, "<="),
+        int_bin_op(BuiltinId::Ge, ">=", VexType::Bool, ">="),
+        int_bin_op(BuiltinId::Eq, "=", VexType::Bool, "=="),
+        int_bin_op(BuiltinId::Ne, "!=", VexType::Bool, "!="),
         Builtin {
+            id: BuiltinId::Not,
             name: "not",
             ty: VexType::Fn {
                 params: vec![VexType::Bool],
@@ -53,6 +98,7 @@ pub fn all_builtins() -> Vec<Builtin> {
             variadic: false,
         },
         Builtin {
+            id: BuiltinId::Println,
             name: "println",
             ty: VexType::Fn {
                 params: vec![VexType::String],
@@ -65,6 +111,7 @@ pub fn all_builtins() -> Vec<Builtin> {
             variadic: false,
         },
         Builtin {
+            id: BuiltinId::Str,
             name: "str",
             ty: VexType::Fn {
                 params: vec![],
@@ -77,6 +124,7 @@ pub fn all_builtins() -> Vec<Builtin> {
             variadic: true,
         },
         Builtin {
+            id: BuiltinId::Range,
             name: "range",
             ty: VexType::Fn {
                 params: vec![VexType::Int, VexType::Int],
@@ -91,26 +139,36 @@ pub fn all_builtins() -> Vec<Builtin> {
     ]
 }
 
-pub fn lookup(name: &str) -> Option<&'static Builtin> {
+fn table() -> &'static [Builtin] {
     use std::sync::LazyLock;
 
     static BUILTINS: LazyLock<Vec<Builtin>> = LazyLock::new(all_builtins);
 
-    BUILTINS.iter().find(|b| b.name == name)
+    &BUILTINS
+}
+
+pub fn get(id: BuiltinId) -> &'static Builtin {
+    &table()[id.index()]
+}
+
+pub fn id_of(name: &str) -> Option<BuiltinId> {
+    table().iter().find(|b| b.name == name).map(|b| b.id)
+}
+
+pub fn lookup(name: &str) -> Option<&'static Builtin> {
+    id_of(name).map(get)
 }
 
 pub fn is_builtin(name: &str) -> bool {
     lookup(name).is_some()
 }
 
-pub fn go_imports(names: &[&str]) -> Vec<&'static str> {
+pub fn go_imports(ids: &[BuiltinId]) -> Vec<&'static str> {
     use std::collections::BTreeSet;
 
     let mut imports = BTreeSet::new();
-    for name in names {
-        if let Some(builtin) = lookup(name)
-            && let GoTranslation::FuncCall { go_import, .. } = &builtin.go
-        {
+    for id in ids {
+        if let GoTranslation::FuncCall { go_import, .. } = &get(*id).go {
             imports.insert(*go_import);
         }
     }
@@ -232,6 +290,23 @@ mod tests {
         assert!(lookup("nonexistent").is_none());
     }
 
+    #[test]
+    fn table_is_indexed_by_id() {
+        for (index, builtin) in all_builtins().iter().enumerate() {
+            assert_eq!(builtin.id.index(), index, "{}", builtin.name);
+        }
+    }
+
+    #[test]
+    fn id_of_round_trips_through_get() {
+        let id = id_of("<=").unwrap();
+        assert_eq!(id, BuiltinId::Le);
+        assert_eq!(get(id).name, "<=");
+        assert!(id.is_numeric());
+        assert!(!id_of("str").unwrap().is_numeric());
+        assert!(id_of("each").is_none());
+    }
+
     #[test]
     fn is_builtin_check() {
         assert!(is_builtin("+"));
@@ -241,19 +316,19 @@ mod tests {
 
     #[test]
     fn go_imports_deduplicates() {
-        let imports = go_imports(&["println", "str"]);
+        let imports = go_imports(&[BuiltinId::Println, BuiltinId::Str]);
         assert_eq!(imports, vec!["fmt"]);
     }
 
     #[test]
     fn go_imports_skips_operators() {
-        let imports = go_imports(&["+", "-", "println"]);
+        let imports = go_imports(&[BuiltinId::Add, BuiltinId::Sub, BuiltinId::Println]);
         assert_eq!(imports, vec!["fmt"]);
     }
 
     #[test]
     fn go_imports_empty() {
-        let imports = go_imports(&["+", "<=", "not"]);
+        let imports = go_imports(&[BuiltinId::Add, BuiltinId::Le, BuiltinId::Not]);
         assert!(imports.is_empty());
     }
 }
@@ -0,0 +1,468 @@
+use std::collections::HashMap;
+use std::sync::Arc;
+
+use crate::builtins::BuiltinId;
+use crate::resolve::{self, Address, Capture, IterKind};
+
+#[derive(Debug, Clone, Copy, PartialEq)]
+pub enum Op {
+    Unit,
+    Int(i64),
+    Float(f64),
+    Bool(bool),
+    Str(u32),
+    LoadLocal(u32),
+    LoadCaptured(u32),
+    LoadGlobal { slot: u32, name: u32 },
+    Builtin(BuiltinId),
+    StoreLocal(u32),
+    Pop,
+    Jump(u32),
+    JumpIfFalse(u32),
+    Call(u32),
+    TailCall(u32),
+    CallBuiltin { id: BuiltinId, argc: u32 },
+    Iterate(IterKind),
+    Return,
+    Closure(u32),
+    GetField(u32),
+    Record(u32),
+    Variant(u32),
+    Match { pattern: u32, fail: u32 },
+    NoMatch,
+    Unsupported,
+}
+
+#[derive(Debug, Clone, PartialEq)]
+pub struct Chunk {
+    pub code: Vec<Op>,
+    pub frame_size: usize,
+}
+
+pub struct RecordShape {
+    pub name: String,
+    pub fields: Vec<String>,
+    pub arity: usize,
+}
+
+pub struct VariantShape {
+    pub union_name: String,
+    pub variant_name: String,
+    pub arity: usize,
+}
+
+pub struct CompiledFunction {
+    pub function: Arc<resolve::Function>,
+    pub chunk: Arc<Chunk>,
+}
+
+pub enum Entry {
+    Declaration,
+    Defn { slot: usize, function: usize },
+    Def { slot: usize, chunk: Arc<Chunk> },
+    Expr(Arc<Chunk>),
+}
+
+#[derive(Default)]
+pub struct Program {
+    strings: Vec<String>,
+    string_ids: HashMap<String, u32>,
+    records: Vec<RecordShape>,
+    variants: Vec<VariantShape>,
+    patterns: Vec<resolve::Pattern>,
+    functions: Vec<Option<CompiledFunction>>,
+}
+
+impl Program {
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    pub fn string(&self, index: u32) -> &str {
+        &self.strings[index as usize]
+    }
+
+    pub fn record(&self, index: u32) -> &RecordShape {
+        &self.records[index as usize]
+    }
+
+    pub fn variant(&self, index: u32) -> &VariantShape {
+        &self.variants[index as usize]
+    }
+
+    pub fn pattern(&self, index: u32) -> &resolve::Pattern {
+        &self.patterns[index as usize]
+    }
+
+    pub fn function(&self, id: usize) -> Option<&CompiledFunction> {
+        self.functions.get(id).and_then(|f| f.as_ref())
+    }
+
+    pub fn compile_top_form(&mut self, form: &resolve::TopForm) -> Entry {
+        match form {
+            resolve::TopForm::Declaration => Entry::Declaration,
+            resolve::TopForm::Defn { slot, function } => {
+                self.compile_function(function);
+                Entry::Defn {
+                    slot: *slot,
+                    function: function.id,
+                }
+            }
+            resolve::TopForm::Def {
+                slot,
+                frame_size,
+                value,
+            } => Entry::Def {
+                slot: *slot,
+                chunk: Arc::new(self.compile_chunk(*frame_size, std::slice::from_ref(value))),
+            },
+            resolve::TopForm::Expr { frame_size, expr } => Entry::Expr(Arc::new(
+                self.compile_chunk(*frame_size, std::slice::from_ref(expr)),
+            )),
+        }
+    }
+
+    fn intern(&mut self, s: &str) -> u32 {
+        if let Some(&id) = self.string_ids.get(s) {
+            return id;
+        }
+        let id = self.strings.len() as u32;
+        self.strings.push(s.to_string());
+        self.string_ids.insert(s.to_string(), id);
+        id
+    }
+
+    fn compile_function(&mut self, function: &Arc<resolve::Function>) {
+        let chunk = self.compile_chunk(function.frame_size, &function.body);
+        if self.functions.len() <= function.id {
+            self.functions.resize_with(function.id + 1, || None);
+        }
+        self.functions[function.id] = Some(CompiledFunction {
+            function: Arc::clone(function),
+            chunk: Arc::new(chunk),
+        });
+    }
+
+    fn compile_chunk(&mut self, frame_size: usize, body: &[resolve::Expr]) -> Chunk {
+        let mut code = Vec::new();
+        self.compile_body(&mut code, body);
+        code.push(Op::Return);
+        Chunk { code, frame_size }
+    }
+
+    fn compile_body(&mut self, code: &mut Vec<Op>, body: &[resolve::Expr]) {
+        if body.is_empty() {
+            code.push(Op::Unit);
+            return;
+        }
+        for (i, expr) in body.iter().enumerate() {
+            if i > 0 {
+                code.push(Op::Pop);
+            }
+            self.compile_expr(code, expr);
+        }
+    }
+
+    fn compile_expr(&mut self, code: &mut Vec<Op>, expr: &resolve::Expr) {
+        match expr {
+            resolve::Expr::Int(n) => code.push(Op::Int(*n)),
+            resolve::Expr::Float(n) => code.push(Op::Float(*n)),
+            resolve::Expr::Bool(b) => code.push(Op::Bool(*b)),
+            resolve::Expr::Nil => code.push(Op::Unit),
+            resolve::Expr::String(s) => {
+                let id = self.intern(s);
+                code.push(Op::Str(id));
+            }
+
+            resolve::Expr::Var { name, address } => match *address {
+                Address::Local(slot) => code.push(Op::LoadLocal(slot as u32)),
+                Address::Captured(index) => code.push(Op::LoadCaptured(index as u32)),
+                Address::Global(slot) => {
+                    let name = self.intern(name);
+                    code.push(Op::LoadGlobal {
+                        slot: slot as u32,
+                        name,
+                    });
+                }
+            },
+
+            resolve::Expr::Builtin(id) => code.push(Op::Builtin(*id)),
+
+            resolve::Expr::If {
+                test,
+                then_branch,
+                else_branch,
+            } => {
+                self.compile_expr(code, test);
+                let jump_to_else = code.len();
+                code.push(Op::JumpIfFalse(0));
+                self.compile_expr(code, then_branch);
+                let jump_to_end = code.len();
+                code.push(Op::Jump(0));
+                code[jump_to_else] = Op::JumpIfFalse(code.len() as u32);
+                self.compile_expr(code, else_branch);
+                code[jump_to_end] = Op::Jump(code.len() as u32);
+            }
+
+            resolve::Expr::Let { bindings, body } => {
+                for binding in bindings {
+                    self.compile_expr(code, &binding.value);
+                    code.push(Op::StoreLocal(binding.slot as u32));
+                }
+                self.compile_body(code, body);
+            }
+
+            resolve::Expr::Lambda(function) => {
+                self.compile_function(function);
+                for capture in &function.captures {
+                    code.push(match *capture {
+                        Capture::Local(slot) => Op::LoadLocal(slot as u32),
+                        Capture::Captured(index) => Op::LoadCaptured(index as u32),
+                    });
+                }
+                code.push(Op::Closure(function.id as u32));
+            }
+
+            resolve::Expr::Call { func, args } => {
+                self.compile_expr(code, func);
+                for arg in args {
+                    self.compile_expr(code, arg);
+                }
+                code.push(Op::Call(args.len() as u32));
+            }
+
+            resolve::Expr::SelfTailCall { args } => {
+                for arg in args {
+                    self.compile_expr(code, arg);
+                }
+                code.push(Op::TailCall(args.len() as u32));
+            }
+
+            resolve::Expr::CallBuiltin { id, args } => {
+                for arg in args {
+                    self.compile_expr(code, arg);
+                }
+                code.push(Op::CallBuiltin {
+                    id: *id,
+                    argc: args.len() as u32,
+                });
+            }
+
+            resolve::Expr::Iterate {
+                kind,
+                list,
+                callback,
+            } => {
+                self.compile_expr(code, list);
+                self.compile_expr(code, callback);
+                code.push(Op::Iterate(*kind));
+            }
+
+            resolve::Expr::FieldAccess { object, field } => {
+                self.compile_expr(code, object);
+                let id = self.intern(field);
+                code.push(Op::GetField(id));
+            }
+
+            resolve::Expr::RecordConstructor { name, fields, args } => {
+                for arg in args {
+                    self.compile_expr(code, arg);
+                }
+                let id = self.records.len() as u32;
+                self.records.push(RecordShape {
+                    name: name.clone(),
+                    fields: fields.clone(),
+                    arity: args.len(),
+                });
+                code.push(Op::Record(id));
+            }
+
+            resolve::Expr::Match { scrutinee, clauses } => {
+                self.compile_expr(code, scrutinee);
+                let mut jumps_to_end = Vec::new();
+                for clause in clauses {
+                    let pattern = self.patterns.len() as u32;
+                    self.patterns.push(clause.pattern.clone());
+                    let test = code.len();
+                    code.push(Op::Match { pattern, fail: 0 });
+                    code.push(Op::Pop);
+                    self.compile_expr(code, &clause.body);
+                    jumps_to_end.push(code.len());
+                    code.push(Op::Jump(0));
+                    code[test] = Op::Match {
+                        pattern,
+                        fail: code.len() as u32,
+                    };
+                }
+                code.push(Op::NoMatch);
+                let end = code.len() as u32;
+                for jump in jumps_to_end {
+                    code[jump] = Op::Jump(end);
+                }
+            }
+
+            resolve::Expr::VariantConstructor {
+                union_name,
+                variant_name,
+                args,
+            } => {
+                for arg in args {
+                    self.compile_expr(code, arg);
+                }
+                let id = self.variants.len() as u32;
+                self.variants.push(VariantShape {
+                    union_name: union_name.clone(),
+                    variant_name: variant_name.clone(),
+                    arity: args.len(),
+                });
+                code.push(Op::Variant(id));
+            }
+
+            resolve::Expr::Spawn(_)
+            | resolve::Expr::Channel { .. }
+            | resolve::Expr::Send { .. }
+            | resolve::Expr::Recv { .. } => code.push(Op::Unsupported),
+        }
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::lexer;
+    use crate::macro_expand;
+    use crate::parser;
+    use crate::source::FileId;
+    use crate::typechecker;
+
+    fn compile_source(source: &str) -> (Program, Vec<Entry>) {
+        let (tokens, _) = lexer::lex(source, FileId::new(0));
+        let (ast, _) = parser::parse(&tokens);
+        let (ast, _) = macro_expand::expand(ast);
+        let (module, diags) = typechecker::check(&ast);
+        assert!(diags.is_empty(), "{:?}", diags);
+        let mut program = Program::new();
+        let entries = resolve::resolve(&module)
+            .iter()
+            .map(|form| program.compile_top_form(form))
+            .collect();
+        (program, entries)
+    }
+
+    fn expr_code(entry: &Entry) -> &[Op] {
+        match entry {
+            Entry::Expr(chunk) => &chunk.code,
+            _ => panic!("expected expression entry"),
+        }
+    }
+
+    #[test]
+    fn arithmetic_compiles_to_builtin_call() {
+        let (_, entries) = compile_source("(+ 1 2)");
+        assert_eq!(
+            expr_code(&entries[0]),
+            &[
+                Op::Int(1),
+                Op::Int(2),
+                Op::CallBuiltin {
+                    id: BuiltinId::Add,
+                    argc: 2,
+                },
+                Op::Return,
+            ]
+        );
+    }
+
+    #[test]
+    fn builtin_values_load_without_a_global() {
+        let (_, entries) = compile_source("(let [f not] (f true))");
+        assert_eq!(expr_code(&entries[0])[0], Op::Builtin(BuiltinId::Not));
+    }
+
+    #[test]
+    fn higher_order_builtins_compile_to_iterate() {
+        let (_, entries) = compile_source("(each (range 0 3) (fn [x : Int] (println (str x))))");
+        let code = expr_code(&entries[0]);
+        assert_eq!(code[code.len() - 2], Op::Iterate(IterKind::Each));
+    }
+
+    #[test]
+    fn if_patches_jump_targets() {
+        let (_, entries) = compile_source("(if true 1 2)");
+        assert_eq!(
+            expr_code(&entries[0]),
+            &[
+                Op::Bool(true),
+                Op::JumpIfFalse(4),
+                Op::Int(1),
+                Op::Jump(5),
+                Op::Int(2),
+                Op::Return,
+            ]
+        );
+    }
+
+    #[test]
+    fn let_stores_into_slots() {
+        let (_, entries) = compile_source("(let [x 1 y 2] y)");
+        assert_eq!(
+            expr_code(&entries[0]),
+            &[
+                Op::Int(1),
+                Op::StoreLocal(0),
+                Op::Int(2),
+                Op::StoreLocal(1),
+                Op::LoadLocal(1),
+                Op::Return,
+            ]
+        );
+    }
+
+    #[test]
+    fn defn_registers_function_chunk() {
+        let (program, entries) = compile_source("(defn id [x : Int] : Int x)");
+        let Entry::Defn { function, .. } = entries[0] else {
+            panic!("expected defn entry");
+        };
+        let compiled = program.function(function).expect("compiled function");
+        assert_eq!(compiled.chunk.code, vec![Op::LoadLocal(0), Op::Return]);
+        assert_eq!(compiled.chunk.frame_size, 1);
+    }
+
+    #[test]
+    fn lambda_loads_captures_before_closure() {
+        let (program, entries) = compile_source("(let [a 1] (fn [b : Int] : Int (+ a b)))");
+        let code = expr_code(&entries[0]);
+        let Op::Closure(id) = code[3] else {
+            panic!("expected closure op, got {:?}", code[3]);
+        };
+        assert_eq!(&code[..3], &[Op::Int(1), Op::StoreLocal(0), Op::LoadLocal(0)]);
+        let compiled = program.function(id as usize).expect("compiled lambda");
+        assert_eq!(compiled.chunk.code[0], Op::LoadCaptured(0));
+    }
+
+    #[test]
+    fn self_tail_call_compiles_to_tail_call() {
+        let (program, entries) =
+            compile_source("(defn spin [n : Int] : Int (if (= n 0) 0 (spin (- n 1))))");
+        let Entry::Defn { function, .. } = entries[0] else {
+            panic!("expected defn entry");
+        };
+        let code = &program.function(function).expect("compiled function").chunk.code;
+        assert_eq!(code[code.len() - 2], Op::TailCall(1));
+        assert!(!code.contains(&Op::Call(1)));
+    }
+
+    #[test]
+    fn match_clauses_fall_through_to_no_match() {
+        let (_, entries) = compile_source(
+            "(defunion Color (Red) (Green))
+             (match (Red) (Red) 1 (Green) 2)",
+        );
+        let code = expr_code(&entries[1]);
+        assert!(matches!(code[1], Op::Match { fail: 5, .. }));
+        assert!(matches!(code[5], Op::Match { fail: 9, .. }));
+        assert_eq!(code[9], Op::NoMatch);
+        assert_eq!(code[4], Op::Jump(10));
+    }
+}
@@ -0,0 +1,358 @@
+use std::collections::HashMap;
+use std::fs;
+use std::io;
+use std::path::{Path, PathBuf};
+use std::sync::{Mutex, OnceLock};
+use std::time::{SystemTime, UNIX_EPOCH};
+
+use crate::content_hash::{ContentHash, ContentHasher};
+use crate::summary::Summary;
+
+#[derive(Debug, Clone, PartialEq)]
+pub struct CompiledModule {
+    pub summary: Summary,
+    pub go_source: String,
+}
+
+pub fn build_id() -> &'static str {
+    static BUILD_ID: OnceLock<String> = OnceLock::new();
+    BUILD_ID.get_or_init(|| {
+        let mut hasher = ContentHasher::new();
+        if let Ok(exe) = std::env::current_exe()
+            && let Ok(metadata) = fs::metadata(exe)
+        {
+            hasher.write(&metadata.len().to_le_bytes());
+            if let Ok(modified) = metadata.modified()
+                && let Ok(since_epoch) = modified.duration_since(UNIX_EPOCH)
+            {
+                hasher.write(&since_epoch.as_nanos().to_le_bytes());
+            }
+        }
+        format!("{}+{}", env!("CARGO_PKG_VERSION"), hasher.finish())
+    })
+}
+
+pub fn module_key(
+    module_name: &str,
+    source: &str,
+    imports: &[(&str, &[String], ContentHash)],
+) -> ContentHash {
+    let mut hasher = ContentHasher::new();
+    hasher.write_str(build_id());
+    hasher.write_str(module_name);
+    hasher.write_str(source);
+    for (dep, symbols, signature) in imports {
+        hasher.write_str(dep);
+        for sym in *symbols {
+            hasher.write_str(sym);
+        }
+        hasher.write_hash(*signature);
+    }
+    hasher.finish()
+}
+
+const MAX_MODULE_BYTES: u64 = 256 * 1024 * 1024;
+
+pub fn prune(dir: &Path, max_bytes: u64) -> io::Result<usize> {
+    let mut entries = Vec::new();
+    for entry in fs::read_dir(dir)?.flatten() {
+        if let Ok(metadata) = entry.metadata()
+            && metadata.is_file()
+            && let Ok(modified) = metadata.modified()
+        {
+            entries.push((modified, metadata.len(), entry.path()));
+        }
+    }
+    entries.sort();
+    let mut total: u64 = entries.iter().map(|(_, size, _)| size).sum();
+    let mut removed = 0;
+    for (_, size, path) in entries {
+        if total <= max_bytes {
+            break;
+        }
+        if fs::remove_file(&path).is_ok() {
+            total -= size;
+            removed += 1;
+        }
+    }
+    Ok(removed)
+}
+
+pub fn touch(path: &Path) {
+    if let Ok(file) = fs::File::options().append(true).open(path) {
+        file.set_modified(SystemTime::now()).ok();
+    }
+}
+
+pub fn default_root() -> Option<PathBuf> {
+    match std::env::var_os("VEX_CACHE") {
+        Some(root) => Some(PathBuf::from(root)),
+        None => Some(PathBuf::from(std::env::var_os("HOME")?).join(".vex").join("cache")),
+    }
+}
+
+const MAX_RESIDENT: usize = 4096;
+
+#[derive(Default)]
+struct Resident {
+    modules: HashMap<ContentHash, CompiledModule>,
+    interfaces: HashMap<ContentHash, Summary>,
+}
+
+fn remember<T>(entries: &mut HashMap<ContentHash, T>, key: ContentHash, value: T) {
+    if entries.len() >= MAX_RESIDENT
+        && !entries.contains_key(&key)
+        && let Some(&victim) = entries.keys().next()
+    {
+        entries.remove(&victim);
+    }
+    entries.insert(key, value);
+}
+
+pub struct ModuleCache {
+    dir: PathBuf,
+    resident: Option<Mutex<Resident>>,
+}
+
+impl ModuleCache {
+    pub fn open(dir: impl Into<PathBuf>) -> io::Result<Self> {
+        let dir = dir.into();
+        fs::create_dir_all(&dir)?;
+        prune(&dir, MAX_MODULE_BYTES).ok();
+        Ok(Self {
+            dir,
+            resident: None,
+        })
+    }
+
+    pub fn prune(&self) -> io::Result<usize> {
+        prune(&self.dir, MAX_MODULE_BYTES)
+    }
+
+    pub fn clean(&self) -> io::Result<usize> {
+        self.with_resident(|resident| *resident = Resident::default());
+        prune(&self.dir, 0)
+    }
+
+    pub fn keep_in_memory(self) -> Self {
+        Self {
+            resident: Some(Mutex::default()),
+            ..self
+        }
+    }
+
+    fn with_resident<R>(&self, f: impl FnOnce(&mut Resident) -> R) -> Option<R> {
+        let resident = self.resident.as_ref()?;
+        Some(f(&mut resident.lock().unwrap_or_else(|poisoned| poisoned.into_inner())))
+    }
+
+    pub fn default_dir() -> Option<PathBuf> {
+        Some(default_root()?.join("build"))
+    }
+
+    pub fn dir(&self) -> &Path {
+        &self.dir
+    }
+
+    fn entry_path(&self, key: ContentHash, extension: &str) -> PathBuf {
+        self.dir.join(format!("{}.{}", key, extension))
+    }
+
+    fn read(&self, key: ContentHash, extension: &str) -> Option<String> {
+        let path = self.entry_path(key, extension);
+        let contents = fs::read_to_string(&path).ok()?;
+        touch(&path);
+        Some(contents)
+    }
+
+    fn write(&self, key: ContentHash, extension: &str, contents: &str) -> io::Result<()> {
+        let path = self.entry_path(key, extension);
+        let partial = path.with_extension(format!("{}.{}", extension, std::process::id()));
+        fs::write(&partial, contents)?;
+        fs::rename(&partial, &path)
+    }
+
+    pub fn load(&self, key: ContentHash) -> Option<CompiledModule> {
+        if let Some(module) = self
+            .with_resident(|resident| resident.modules.get(&key).cloned())
+            .flatten()
+        {
+            return Some(module);
+        }
+        let contents = self.read(key, "vxm")?;
+        let (summary, rest) = Summary::parse_interface(&contents)?;
+        let go_source = rest.strip_prefix("go\n")?.to_string();
+        let module = CompiledModule { summary, go_source };
+        self.with_resident(|resident| remember(&mut resident.modules, key, module.clone()));
+        Some(module)
+    }
+
+    pub fn store(&self, key: ContentHash, module: &CompiledModule) -> io::Result<()> {
+        self.with_resident(|resident| remember(&mut resident.modules, key, module.clone()));
+        let contents = format!("{}go\n{}", module.summary.to_interface(), module.go_source);
+        self.write(key, "vxm", &contents)
+    }
+
+    pub fn load_interface(&self, key: ContentHash) -> Option<Summary> {
+        if let Some(summary) = self
+            .with_resident(|resident| resident.interfaces.get(&key).cloned())
+            .flatten()
+        {
+            return Some(summary);
+        }
+        let summary = Summary::from_interface(&self.read(key, "vxi")?)?;
+        self.with_resident(|resident| remember(&mut resident.interfaces, key, summary.clone()));
+        Some(summary)
+    }
+
+    pub fn store_interface(&self, key: ContentHash, summary: &Summary) -> io::Result<()> {
+        self.with_resident(|resident| remember(&mut resident.interfaces, key, summary.clone()));
+        self.write(key, "vxi", &summary.to_interface())
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::types::{RecordField, VexType};
+
+    fn sample_module() -> CompiledModule {
+        CompiledModule {
+            summary: Summary {
+                exports: vec!["area".into(), "origin".into()],
+                types: vec![
+                    (
+                        "area".into(),
+                        VexType::Fn {
+                            params: vec![VexType::Int, VexType::List(Box::new(VexType::Float))],
+                            ret: Box::new(VexType::Result {
+                                ok: Box::new(VexType::Int),
+                                err: Box::new(VexType::String),
+                            }),
+                        },
+                    ),
+                    (
+                        "origin".into(),
+                        VexType::Record {
+                            name: "Point".into(),
+                            fields: vec![
+                                RecordField {
+                                    name: "x".into(),
+                                    ty: VexType::Int,
+                                },
+                                RecordField {
+                                    name: "y".into(),
+                                    ty: VexType::Int,
+                                },
+                            ],
+                        },
+                    ),
+                ],
+            },
+            go_source: "package geometry\n\nfunc Area() {}\n".into(),
+        }
+    }
+
+    fn temp_cache(name: &str) -> ModuleCache {
+        let dir = std::env::temp_dir().join(format!("vex-cache-{}-{}", name, std::process::id()));
+        ModuleCache::open(dir).expect("cache dir should be writable")
+    }
+
+    #[test]
+    fn stored_modules_load_back() {
+        let cache = temp_cache("round-trip");
+        let key = ContentHash::of(b"geometry");
+        cache.store(key, &sample_module()).expect("store should succeed");
+        cache
+            .store_interface(key, &sample_module().summary)
+            .expect("store should succeed");
+        let loaded = cache.load(key);
+        let interface = cache.load_interface(key);
+        fs::remove_dir_all(cache.dir()).ok();
+        assert_eq!(loaded, Some(sample_module()));
+        assert_eq!(interface, Some(sample_module().summary));
+    }
+
+    #[test]
+    fn missing_and_corrupt_entries_miss() {
+        let cache = temp_cache("corrupt");
+        let key = ContentHash::of(b"broken");
+        let missing = cache.load(key);
+        let header = "vex-interface 1\nexports f\n";
+        fs::write(cache.entry_path(key, "vxm"), format!("{}type f Fn 2 Int\ngo\n", header)).ok();
+        let truncated = cache.load(key);
+        fs::write(cache.entry_path(key, "vxm"), format!("{}type f Fn 0 Int\n", header)).ok();
+        let no_source = cache.load(key);
+        fs::remove_dir_all(cache.dir()).ok();
+        assert_eq!(missing, None);
+        assert_eq!(truncated, None);
+        assert_eq!(no_source, None);
+    }
+
+    #[test]
+    fn resident_entries_survive_removal_from_disk() {
+        let cache = temp_cache("resident").keep_in_memory();
+        let key = ContentHash::of(b"geometry");
+        cache.store(key, &sample_module()).expect("store should succeed");
+        fs::remove_dir_all(cache.dir()).ok();
+        assert_eq!(cache.load(key), Some(sample_module()));
+    }
+
+    #[test]
+    fn resident_entries_are_bounded() {
+        let mut entries = HashMap::new();
+        for n in 0..MAX_RESIDENT + 10 {
+            remember(&mut entries, ContentHash::of(&n.to_le_bytes()), n);
+        }
+        assert_eq!(entries.len(), MAX_RESIDENT);
+    }
+
+    #[test]
+    fn keys_depend_on_dependency_signatures() {
+        let symbols = vec!["square".to_string()];
+        let key = |dep: &Summary| {
+            module_key("geo", "(module geo)", &[("math", &symbols, dep.signature())])
+        };
+        let mut changed = sample_module().summary;
+        assert_eq!(key(&sample_module().summary), key(&changed));
+        changed.exports.push("extra".into());
+        assert_ne!(key(&sample_module().summary), key(&changed));
+    }
+
+    #[test]
+    fn build_id_identifies_the_running_executable() {
+        let id = build_id();
+        let (version, executable) = id.split_once('+').expect("build id has two parts");
+        assert_eq!(version, env!("CARGO_PKG_VERSION"));
+        assert_ne!(executable, ContentHasher::new().finish().to_string());
+        assert_eq!(build_id(), id);
+    }
+
+    #[test]
+    fn pruning_removes_the_least_recently_used_entries_first() {
+        let cache = temp_cache("prune");
+        let old = ContentHash::of(b"old");
+        let new = ContentHash::of(b"new");
+        cache.store(old, &sample_module()).expect("store should succeed");
+        cache.store(new, &sample_module()).expect("store should succeed");
+        let past = SystemTime::now() - std::time::Duration::from_secs(60);
+        fs::File::options()
+            .append(true)
+            .open(cache.entry_path(old, "vxm"))
+            .and_then(|file| file.set_modified(past))
+            .expect("mtime should be settable");
+        let size = fs::metadata(cache.entry_path(new, "vxm")).map_or(0, |m| m.len());
+
+        let removed = prune(cache.dir(), size);
+        let (old_left, new_left) = (cache.load(old), cache.load(new));
+        let cleaned = cache.clean();
+        let empty = fs::read_dir(cache.dir()).map(|entries| entries.count());
+        fs::remove_dir_all(cache.dir()).ok();
+
+        assert_eq!(removed.ok(), Some(1));
+        assert_eq!(old_left, None);
+        assert_eq!(new_left, Some(sample_module()));
+        assert_eq!(cleaned.ok(), Some(1));
+        assert_eq!(empty.ok(), Some(0));
+    }
+}
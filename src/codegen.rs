@@ -2,8 +2,9 @@ use std::collections::BTreeSet;
 use std::fmt::Write;
 
 use crate::builtins;
-use crate::builtins::GoTranslation;
+use crate::builtins::{BuiltinId, GoTranslation};
 use crate::hir;
+use crate::tailcall::{self, SelfCall};
 use crate::types::{RecordField, UnionVariant, VexType};
 
 pub fn generate(module: &hir::Module) -> String {
@@ -29,6 +30,18 @@ pub fn generate_package(module: &hir::Module, package_name: &str) -> String {
     cg.output
 }
 
+pub fn generate_package_with_imports(
+    module: &hir::Module,
+    package_name: &str,
+    import_map: &std::collections::HashMap<String, String>,
+) -> String {
+    let mut cg = Generator::new();
+    cg.package_name = Some(package_name.to_string());
+    cg.import_map = import_map.clone();
+    cg.emit_module(module);
+    cg.output
+}
+
 struct Generator {
     output: String,
     indent: usize,
@@ -198,19 +211,130 @@ impl Generator {
         self.write(" {\n");
         self.indent += 1;
 
-        for (i, expr) in body.iter().enumerate() {
-            self.write_indent();
-            if i == body.len() - 1 && return_type != &VexType::Unit {
-                self.write("return ");
+        if tailcall::has_self_tail_call(name, params, body) && !body.iter().any(contains_lambda) {
+            let target = SelfCall {
+                name,
+                arity: params.len(),
+            };
+            let returns_unit = return_type == &VexType::Unit;
+            self.writeln("for {");
+            self.indent += 1;
+            self.emit_tail_body(body, params, returns_unit, Some(&target));
+            self.indent -= 1;
+            self.writeln("}");
+        } else {
+            for (i, expr) in body.iter().enumerate() {
+                self.write_indent();
+                if i == body.len() - 1 && return_type != &VexType::Unit {
+                    self.write("return ");
+                }
+                self.emit_expr(expr);
+                self.newline();
             }
-            self.emit_expr(expr);
-            self.newline();
         }
 
         self.indent -= 1;
         self.writeln("}");
     }
 
+    fn emit_tail_body(
+        &mut self,
+        body: &[hir::Expr],
+        params: &[hir::Param],
+        returns_unit: bool,
+        target: Option<&SelfCall>,
+    ) {
+        let Some((last, init)) = body.split_last() else {
+            self.writeln("return");
+            return;
+        };
+        for expr in init {
+            self.write_indent();
+            self.emit_expr(expr);
+            self.newline();
+        }
+        self.emit_tail(last, params, returns_unit, target);
+    }
+
+    fn emit_tail(
+        &mut self,
+        expr: &hir::Expr,
+        params: &[hir::Param],
+        returns_unit: bool,
+        target: Option<&SelfCall>,
+    ) {
+        match expr {
+            hir::Expr::If {
+                test,
+                then_branch,
+                else_branch,
+                ..
+            } => {
+                self.write_indent();
+                self.write("if ");
+                self.emit_expr(test);
+                self.write(" {\n");
+                self.indent += 1;
+                self.emit_tail(then_branch, params, returns_unit, target);
+                self.indent -= 1;
+                self.writeln("} else {");
+                self.indent += 1;
+                self.emit_tail(else_branch, params, returns_unit, target);
+                self.indent -= 1;
+                self.writeln("}");
+            }
+            hir::Expr::Let { bindings, body, .. } => {
+                let target = target.filter(|t| !tailcall::shadows(bindings, params, t));
+                self.writeln("{");
+                self.indent += 1;
+                for binding in bindings {
+                    self.write_indent();
+                    self.write(&vex_to_go_name(&binding.name));
+                    self.write(" := ");
+                    self.emit_expr(&binding.value);
+                    self.newline();
+                }
+                self.emit_tail_body(body, params, returns_unit, target);
+                self.indent -= 1;
+                self.writeln("}");
+            }
+            hir::Expr::Call { func, args, .. } if target.is_some_and(|t| t.matches(func, args)) => {
+                if !params.is_empty() {
+                    self.write_indent();
+                    for (i, param) in params.iter().enumerate() {
+                        if i > 0 {
+                            self.write(", ");
+                        }
+                        self.write(&vex_to_go_name(&param.name));
+                    }
+                    self.write(" = ");
+                    for (i, arg) in args.iter().enumerate() {
+                        if i > 0 {
+                            self.write(", ");
+                        }
+                        self.emit_expr(arg);
+                    }
+                    self.newline();
+                }
+                self.writeln("continue");
+            }
+            _ if returns_unit => {
+                if !matches!(expr, hir::Expr::Nil(_)) {
+                    self.write_indent();
+                    self.emit_expr(expr);
+                    self.newline();
+                }
+                self.writeln("return");
+            }
+            _ => {
+                self.write_indent();
+                self.write("return ");
+                self.emit_expr(expr);
+                self.newline();
+            }
+        }
+    }
+
     fn emit_def(&mut self, name: &str, ty: &VexType, value: &hir::Expr) {
         self.write("var ");
         self.write(&self.go_defn_name(name));
@@ -295,12 +419,8 @@ impl Generator {
             hir::Expr::String(s, _) => write!(self.output, "\"{}\"", s).unwrap(),
             hir::Expr::Bool(b, _) => write!(self.output, "{}", b).unwrap(),
             hir::Expr::Nil(_) => {}
-            hir::Expr::Var { name, .. } => {
-                if builtins::is_builtin(name) {
-                    return;
-                }
-                self.write(&vex_to_go_name(name));
-            }
+            hir::Expr::Var { name, .. } => self.write(&vex_to_go_name(name)),
+            hir::Expr::Builtin { .. } => {}
             hir::Expr::If {
                 test,
                 then_branch,
@@ -458,10 +578,8 @@ impl Generator {
             return;
         }
 
-        if let Some(name) = func_name
-            && let Some(builtin) = builtins::lookup(name)
-        {
-            match &builtin.go {
+        if let hir::Expr::Builtin { id, .. } = func {
+            match &builtins::get(*id).go {
                 GoTranslation::Infix(op) => {
                     self.write("(");
                     self.emit_expr(&args[0]);
@@ -1089,12 +1207,11 @@ impl Generator {
 }
 
 fn collect_go_imports(module: &hir::Module) -> BTreeSet<String> {
-    let mut names = Vec::new();
+    let mut ids = Vec::new();
     for form in &module.top_forms {
-        collect_builtin_calls_top_form(form, &mut names);
+        collect_builtin_calls_top_form(form, &mut ids);
     }
-    let name_refs: Vec<&str> = names.iter().map(|s| s.as_str()).collect();
-    let mut imports: BTreeSet<String> = builtins::go_imports(&name_refs)
+    let mut imports: BTreeSet<String> = builtins::go_imports(&ids)
         .into_iter()
         .map(|s| s.to_string())
         .collect();
@@ -1104,7 +1221,7 @@ fn collect_go_imports(module: &hir::Module) -> BTreeSet<String> {
     imports
 }
 
-fn collect_builtin_calls_expr(expr: &hir::Expr, names: &mut Vec<String>) {
+fn collect_builtin_calls_expr(expr: &hir::Expr, names: &mut Vec<BuiltinId>) {
     match expr {
         hir::Expr::Int(..)
         | hir::Expr::Float(..)
@@ -1112,6 +1229,7 @@ fn collect_builtin_calls_expr(expr: &hir::Expr, names: &mut Vec<String>) {
         | hir::Expr::Bool(..)
         | hir::Expr::Nil(..) => {}
         hir::Expr::Var { .. } => {}
+        hir::Expr::Builtin { id, .. } => names.push(*id),
         hir::Expr::If {
             test,
             then_branch,
@@ -1131,11 +1249,6 @@ fn collect_builtin_calls_expr(expr: &hir::Expr, names: &mut Vec<String>) {
             }
         }
         hir::Expr::Call { func, args, .. } => {
-            if let hir::Expr::Var { name, .. } = func.as_ref()
-                && builtins::is_builtin(name)
-            {
-                names.push(name.clone());
-            }
             collect_builtin_calls_expr(func, names);
             for arg in args {
                 collect_builtin_calls_expr(arg, names);
@@ -1185,7 +1298,7 @@ fn collect_builtin_calls_expr(expr: &hir::Expr, names: &mut Vec<String>) {
     }
 }
 
-fn collect_builtin_calls_top_form(form: &hir::TopForm, names: &mut Vec<String>) {
+fn collect_builtin_calls_top_form(form: &hir::TopForm, names: &mut Vec<BuiltinId>) {
     match form {
         hir::TopForm::Module { .. }
         | hir::TopForm::Export { .. }
@@ -1207,6 +1320,44 @@ fn collect_builtin_calls_top_form(form: &hir::TopForm, names: &mut Vec<String>)
     }
 }
 
+fn contains_lambda(expr: &hir::Expr) -> bool {
+    match expr {
+        hir::Expr::Lambda { .. } => true,
+        hir::Expr::If {
+            test,
+            then_branch,
+            else_branch,
+            ..
+        } => contains_lambda(test) || contains_lambda(then_branch) || contains_lambda(else_branch),
+        hir::Expr::Let { bindings, body, .. } => {
+            bindings.iter().any(|b| contains_lambda(&b.value)) || body.iter().any(contains_lambda)
+        }
+        hir::Expr::Call { func, args, .. } => {
+            contains_lambda(func) || args.iter().any(contains_lambda)
+        }
+        hir::Expr::FieldAccess { object, .. } => contains_lambda(object),
+        hir::Expr::RecordConstructor { args, .. } | hir::Expr::VariantConstructor { args, .. } => {
+            args.iter().any(contains_lambda)
+        }
+        hir::Expr::Match {
+            scrutinee, clauses, ..
+        } => contains_lambda(scrutinee) || clauses.iter().any(|c| contains_lambda(&c.body)),
+        hir::Expr::Spawn { body, .. } => contains_lambda(body),
+        hir::Expr::Channel { size, .. } => size.as_deref().is_some_and(contains_lambda),
+        hir::Expr::Send { channel, value, .. } => {
+            contains_lambda(channel) || contains_lambda(value)
+        }
+        hir::Expr::Recv { channel, .. } => contains_lambda(channel),
+        hir::Expr::Int(..)
+        | hir::Expr::Float(..)
+        | hir::Expr::String(..)
+        | hir::Expr::Bool(..)
+        | hir::Expr::Nil(..)
+        | hir::Expr::Var { .. }
+        | hir::Expr::Builtin { .. } => false,
+    }
+}
+
 pub fn generate_go_mod() -> String {
     "module vex_out\n\ngo 1.21\n".to_string()
 }
@@ -1232,8 +1383,8 @@ pub fn needs_vexrt(module: &hir::Module) -> bool {
                 )
             }),
             hir::Expr::Call { func, args, .. } => {
-                if let hir::Expr::Var { name, .. } = func.as_ref()
-                    && name == "range"
+                if let hir::Expr::Builtin { id, .. } = func.as_ref()
+                    && *id == BuiltinId::Range
                 {
                     return true;
                 }
@@ -1411,7 +1562,11 @@ pub fn vex_to_go_public_name(name: &str) -> String {
 #[cfg(test)]
 mod tests {
     use super::*;
+    use crate::lexer;
+    use crate::macro_expand;
+    use crate::parser;
     use crate::source::{FileId, Span};
+    use crate::typechecker;
 
     fn span(start: u32, end: u32) -> Span {
         Span::new(FileId::new(0), start, end)
@@ -1595,8 +1750,8 @@ mod tests {
     fn expr_call_infix() {
         let mut cg = Generator::new();
         cg.emit_expr(&hir::Expr::Call {
-            func: Box::new(hir::Expr::Var {
-                name: "+".into(),
+            func: Box::new(hir::Expr::Builtin {
+                id: BuiltinId::Add,
                 span: span(1, 2),
                 ty: VexType::Fn {
                     params: vec![VexType::Int, VexType::Int],
@@ -1614,8 +1769,8 @@ mod tests {
     fn expr_call_prefix() {
         let mut cg = Generator::new();
         cg.emit_expr(&hir::Expr::Call {
-            func: Box::new(hir::Expr::Var {
-                name: "not".into(),
+            func: Box::new(hir::Expr::Builtin {
+                id: BuiltinId::Not,
                 span: span(1, 4),
                 ty: VexType::Fn {
                     params: vec![VexType::Bool],
@@ -1633,8 +1788,8 @@ mod tests {
     fn expr_call_func() {
         let mut cg = Generator::new();
         cg.emit_expr(&hir::Expr::Call {
-            func: Box::new(hir::Expr::Var {
-                name: "println".into(),
+            func: Box::new(hir::Expr::Builtin {
+                id: BuiltinId::Println,
                 span: span(1, 8),
                 ty: VexType::Fn {
                     params: vec![VexType::String],
@@ -1671,8 +1826,8 @@ mod tests {
     fn expr_call_nested() {
         let mut cg = Generator::new();
         cg.emit_expr(&hir::Expr::Call {
-            func: Box::new(hir::Expr::Var {
-                name: "+".into(),
+            func: Box::new(hir::Expr::Builtin {
+                id: BuiltinId::Add,
                 span: span(1, 2),
                 ty: VexType::Fn {
                     params: vec![VexType::Int, VexType::Int],
@@ -1681,8 +1836,8 @@ mod tests {
             }),
             args: vec![
                 hir::Expr::Call {
-                    func: Box::new(hir::Expr::Var {
-                        name: "*".into(),
+                    func: Box::new(hir::Expr::Builtin {
+                        id: BuiltinId::Mul,
                         span: span(4, 5),
                         ty: VexType::Fn {
                             params: vec![VexType::Int, VexType::Int],
@@ -1735,8 +1890,8 @@ mod tests {
             }],
             return_type: VexType::Int,
             body: vec![hir::Expr::Call {
-                func: Box::new(hir::Expr::Var {
-                    name: "+".into(),
+                func: Box::new(hir::Expr::Builtin {
+                    id: BuiltinId::Add,
                     span: span(8, 9),
                     ty: VexType::Fn {
                         params: vec![VexType::Int, VexType::Int],
@@ -1767,8 +1922,8 @@ mod tests {
     #[test]
     fn expr_var_builtin_skipped() {
         let mut cg = Generator::new();
-        cg.emit_expr(&hir::Expr::Var {
-            name: "+".into(),
+        cg.emit_expr(&hir::Expr::Builtin {
+            id: BuiltinId::Add,
             span: span(0, 1),
             ty: VexType::Fn {
                 params: vec![VexType::Int, VexType::Int],
@@ -1797,8 +1952,8 @@ mod tests {
                 ],
                 return_type: VexType::Int,
                 body: vec![hir::Expr::Call {
-                    func: Box::new(hir::Expr::Var {
-                        name: "+".into(),
+                    func: Box::new(hir::Expr::Builtin {
+                        id: BuiltinId::Add,
                         span: span(28, 29),
                         ty: VexType::Fn {
                             params: vec![VexType::Int, VexType::Int],
@@ -1836,8 +1991,8 @@ mod tests {
                 params: vec![],
                 return_type: VexType::Unit,
                 body: vec![hir::Expr::Call {
-                    func: Box::new(hir::Expr::Var {
-                        name: "println".into(),
+                    func: Box::new(hir::Expr::Builtin {
+                        id: BuiltinId::Println,
                         span: span(16, 23),
                         ty: VexType::Fn {
                             params: vec![VexType::String],
@@ -1874,8 +2029,8 @@ mod tests {
     fn imports_single() {
         let module = hir::Module {
             top_forms: vec![hir::TopForm::Expr(hir::Expr::Call {
-                func: Box::new(hir::Expr::Var {
-                    name: "println".into(),
+                func: Box::new(hir::Expr::Builtin {
+                    id: BuiltinId::Println,
                     span: span(1, 8),
                     ty: VexType::Fn {
                         params: vec![VexType::String],
@@ -1895,8 +2050,8 @@ mod tests {
     fn imports_none() {
         let module = hir::Module {
             top_forms: vec![hir::TopForm::Expr(hir::Expr::Call {
-                func: Box::new(hir::Expr::Var {
-                    name: "+".into(),
+                func: Box::new(hir::Expr::Builtin {
+                    id: BuiltinId::Add,
                     span: span(1, 2),
                     ty: VexType::Fn {
                         params: vec![VexType::Int, VexType::Int],
@@ -2050,8 +2205,8 @@ mod tests {
                 params: vec![],
                 return_type: VexType::Unit,
                 body: vec![hir::Expr::Call {
-                    func: Box::new(hir::Expr::Var {
-                        name: "println".into(),
+                    func: Box::new(hir::Expr::Builtin {
+                        id: BuiltinId::Println,
                         span: span(16, 23),
                         ty: VexType::Fn {
                             params: vec![VexType::String],
@@ -2464,8 +2619,8 @@ mod tests {
     fn expr_range_call() {
         let module = hir::Module {
             top_forms: vec![hir::TopForm::Expr(hir::Expr::Call {
-                func: Box::new(hir::Expr::Var {
-                    name: "range".into(),
+                func: Box::new(hir::Expr::Builtin {
+                    id: BuiltinId::Range,
                     span: span(1, 6),
                     ty: VexType::Fn {
                         params: vec![VexType::Int, VexType::Int],
@@ -2489,8 +2644,8 @@ mod tests {
     fn needs_vexrt_true_for_range() {
         let module = hir::Module {
             top_forms: vec![hir::TopForm::Expr(hir::Expr::Call {
-                func: Box::new(hir::Expr::Var {
-                    name: "range".into(),
+                func: Box::new(hir::Expr::Builtin {
+                    id: BuiltinId::Range,
                     span: span(1, 6),
                     ty: VexType::Fn {
                         params: vec![VexType::Int, VexType::Int],
@@ -2530,8 +2685,8 @@ mod tests {
     fn expr_each_with_lambda() {
         let mut cg = Generator::new();
         let list_expr = hir::Expr::Call {
-            func: Box::new(hir::Expr::Var {
-                name: "range".into(),
+            func: Box::new(hir::Expr::Builtin {
+                id: BuiltinId::Range,
                 span: span(6, 11),
                 ty: VexType::Fn {
                     params: vec![VexType::Int, VexType::Int],
@@ -2553,8 +2708,8 @@ mod tests {
             }],
             return_type: VexType::Unit,
             body: vec![hir::Expr::Call {
-                func: Box::new(hir::Expr::Var {
-                    name: "println".into(),
+                func: Box::new(hir::Expr::Builtin {
+                    id: BuiltinId::Println,
                     span: span(30, 37),
                     ty: VexType::Fn {
                         params: vec![VexType::String],
@@ -2562,8 +2717,8 @@ mod tests {
                     },
                 }),
                 args: vec![hir::Expr::Call {
-                    func: Box::new(hir::Expr::Var {
-                        name: "str".into(),
+                    func: Box::new(hir::Expr::Builtin {
+                        id: BuiltinId::Str,
                         span: span(39, 42),
                         ty: VexType::Fn {
                             params: vec![],
@@ -2641,8 +2796,8 @@ mod tests {
             }],
             return_type: VexType::Int,
             body: vec![hir::Expr::Call {
-                func: Box::new(hir::Expr::Var {
-                    name: "*".into(),
+                func: Box::new(hir::Expr::Builtin {
+                    id: BuiltinId::Mul,
                     span: span(20, 21),
                     ty: VexType::Fn {
                         params: vec![VexType::Int, VexType::Int],
@@ -2733,8 +2888,8 @@ mod tests {
             }],
             return_type: VexType::Bool,
             body: vec![hir::Expr::Call {
-                func: Box::new(hir::Expr::Var {
-                    name: ">".into(),
+                func: Box::new(hir::Expr::Builtin {
+                    id: BuiltinId::Gt,
                     span: span(25, 26),
                     ty: VexType::Fn {
                         params: vec![VexType::Int, VexType::Int],
@@ -2875,8 +3030,8 @@ mod tests {
                 ],
                 return_type: VexType::Int,
                 body: vec![hir::Expr::Call {
-                    func: Box::new(hir::Expr::Var {
-                        name: "+".into(),
+                    func: Box::new(hir::Expr::Builtin {
+                        id: BuiltinId::Add,
                         span: span(0, 1),
                         ty: VexType::Fn {
                             params: vec![VexType::Int, VexType::Int],
@@ -2965,8 +3120,8 @@ mod tests {
         let mut cg = Generator::new();
         let expr = hir::Expr::Spawn {
             body: Box::new(hir::Expr::Call {
-                func: Box::new(hir::Expr::Var {
-                    name: "println".into(),
+                func: Box::new(hir::Expr::Builtin {
+                    id: BuiltinId::Println,
                     span: span(7, 14),
                     ty: VexType::Fn {
                         params: vec![VexType::String],
@@ -3056,4 +3211,70 @@ mod tests {
             "chan string"
         );
     }
+
+    fn generate_source(source: &str) -> String {
+        let (tokens, _) = lexer::lex(source, FileId::new(0));
+        let (ast, _) = parser::parse(&tokens);
+        let (ast, _) = macro_expand::expand(ast);
+        let (module, diags) = typechecker::check(&ast);
+        assert!(diags.is_empty(), "{:?}", diags);
+        generate(&module)
+    }
+
+    #[test]
+    fn self_tail_call_lowers_to_loop() {
+        let output = generate_source(
+            "(defn sum-to [n : Int acc : Int] : Int
+               (if (= n 0) acc (let [m (- n 1)] (sum-to m (+ acc n)))))",
+        );
+        assert!(output.contains("func sumTo(n int64, acc int64) int64 {\n\tfor {\n"));
+        assert!(output.contains("\t\tif (n == 0) {\n\t\t\treturn acc\n\t\t} else {\n"));
+        assert!(output.contains("\t\t\t\tm := (n - 1)\n"));
+        assert!(output.contains("\t\t\t\tn, acc = m, (acc + n)\n\t\t\t\tcontinue\n"));
+        assert!(!output.contains("sumTo(m"));
+    }
+
+    #[test]
+    fn unit_self_tail_call_returns_bare() {
+        let output = generate_source(
+            "(defn tick [n : Int] (if (= n 0) (println \"done\") (tick (- n 1))))",
+        );
+        assert!(output.contains("\t\t\tfmt.Println(\"done\")\n\t\t\treturn\n"));
+        assert!(output.contains("\t\t\tn = (n - 1)\n\t\t\tcontinue\n"));
+    }
+
+    #[test]
+    fn non_tail_recursion_stays_recursive() {
+        let output =
+            generate_source("(defn fact [n : Int] : Int (if (= n 0) 1 (* n (fact (- n 1)))))");
+        assert!(!output.contains("for {"));
+        assert!(output.contains("fact((n - 1))"));
+    }
+
+    #[test]
+    fn tail_recursion_with_lambda_stays_recursive() {
+        let output = generate_source(
+            "(defn spin [n : Int] : Int
+               (let [f (fn [x : Int] : Int (+ x n))] (if (= n 0) (f 0) (spin (- n 1)))))",
+        );
+        assert!(!output.contains("for {"));
+    }
+
+    #[test]
+    fn let_shadowing_a_parameter_keeps_recursion() {
+        let output = generate_source(
+            "(defn count-down [n : Int] : Int
+               (if (= n 0) 0 (let [n (- n 1)] (count-down n))))",
+        );
+        assert!(!output.contains("for {"));
+        assert!(!output.contains("continue"));
+        assert!(output.contains("countDown(n)"));
+    }
+
+    #[test]
+    fn tail_calls_under_match_stay_recursive_without_a_loop() {
+        let output = generate_source("(defn down [n : Int] : Int (match n 0 0 _ (down (- n 1))))");
+        assert!(!output.contains("for {"));
+        assert!(output.contains("down((n - 1))"));
+    }
 }
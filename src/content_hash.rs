@@ -0,0 +1,102 @@
+use std::fmt;
+
+const OFFSET_BASIS: u128 = 0x6c62272e07bb014262b821756295c58d;
+const PRIME: u128 = 0x0000000001000000000000000000013b;
+
+#[derive(Debug, Clone, Copy, PartialEq, Eq, Hash)]
+pub struct ContentHash(u128);
+
+impl ContentHash {
+    pub fn of(bytes: &[u8]) -> Self {
+        let mut hasher = ContentHasher::new();
+        hasher.write(bytes);
+        hasher.finish()
+    }
+
+    pub fn parse(hex: &str) -> Option<Self> {
+        if hex.len() != 32 {
+            return None;
+        }
+        u128::from_str_radix(hex, 16).ok().map(ContentHash)
+    }
+}
+
+impl fmt::Display for ContentHash {
+    fn fmt(&self, f: &mut fmt::Formatter<'_>) -> fmt::Result {
+        write!(f, "{:032x}", self.0)
+    }
+}
+
+pub struct ContentHasher {
+    state: u128,
+}
+
+impl Default for ContentHasher {
+    fn default() -> Self {
+        Self::new()
+    }
+}
+
+impl ContentHasher {
+    pub fn new() -> Self {
+        Self {
+            state: OFFSET_BASIS,
+        }
+    }
+
+    pub fn write(&mut self, bytes: &[u8]) {
+        for &byte in bytes {
+            self.state ^= byte as u128;
+            self.state = self.state.wrapping_mul(PRIME);
+        }
+    }
+
+    pub fn write_str(&mut self, s: &str) {
+        self.write(&(s.len() as u64).to_le_bytes());
+        self.write(s.as_bytes());
+    }
+
+    pub fn write_hash(&mut self, hash: ContentHash) {
+        self.write(&hash.0.to_le_bytes());
+    }
+
+    pub fn finish(&self) -> ContentHash {
+        ContentHash(self.state)
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn empty_input_hashes_to_the_offset_basis() {
+        assert_eq!(ContentHash::of(b""), ContentHash(OFFSET_BASIS));
+    }
+
+    #[test]
+    fn hashing_is_deterministic_and_sensitive_to_content() {
+        assert_eq!(ContentHash::of(b"(defn f [] 1)"), ContentHash::of(b"(defn f [] 1)"));
+        assert_ne!(ContentHash::of(b"(defn f [] 1)"), ContentHash::of(b"(defn f [] 2)"));
+    }
+
+    #[test]
+    fn strings_are_length_prefixed() {
+        let mut a = ContentHasher::new();
+        a.write_str("ab");
+        a.write_str("c");
+        let mut b = ContentHasher::new();
+        b.write_str("a");
+        b.write_str("bc");
+        assert_ne!(a.finish(), b.finish());
+    }
+
+    #[test]
+    fn hex_round_trips() {
+        let hash = ContentHash::of(b"vex");
+        let hex = hash.to_string();
+        assert_eq!(hex.len(), 32);
+        assert_eq!(ContentHash::parse(&hex), Some(hash));
+        assert_eq!(ContentHash::parse("xyz"), None);
+    }
+}
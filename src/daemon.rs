@@ -0,0 +1,280 @@
+use std::fs;
+use std::io::{self, BufRead, BufReader, Read, Write};
+use std::path::{Path, PathBuf};
+
+use crate::cache::{self, ModuleCache};
+use crate::{CompileOptions, CompileResult};
+
+#[cfg(unix)]
+use std::os::unix::net::{UnixListener, UnixStream};
+
+#[derive(Debug, Clone, PartialEq)]
+pub struct BuildOutput {
+    pub go_files: Vec<(PathBuf, String)>,
+    pub uses_vexrt: bool,
+    pub extra_packages: usize,
+    pub cached_modules: usize,
+    pub diagnostics: Vec<String>,
+}
+
+impl BuildOutput {
+    pub fn from_result(result: &CompileResult) -> Self {
+        Self {
+            go_files: result
+                .go_files()
+                .into_iter()
+                .map(|(path, contents)| (path, contents.to_string()))
+                .collect(),
+            uses_vexrt: result.vexrt.is_some(),
+            extra_packages: result.extra_packages.len(),
+            cached_modules: result.cached_modules,
+            diagnostics: result
+                .diagnostics
+                .iter()
+                .map(|diag| diag.render(&result.source_map))
+                .collect(),
+        }
+    }
+
+    fn encode(&self, out: &mut impl Write) -> io::Result<()> {
+        writeln!(out, "{}", header())?;
+        write_field(out, "cached", self.cached_modules.to_string().as_bytes())?;
+        write_field(out, "packages", self.extra_packages.to_string().as_bytes())?;
+        write_field(out, "vexrt", if self.uses_vexrt { b"1" } else { b"0" })?;
+        for diagnostic in &self.diagnostics {
+            write_field(out, "diagnostic", diagnostic.as_bytes())?;
+        }
+        for (path, contents) in &self.go_files {
+            write_field(out, "path", path.display().to_string().as_bytes())?;
+            write_field(out, "contents", contents.as_bytes())?;
+        }
+        write_field(out, "end", b"")
+    }
+
+    fn decode(input: &mut impl BufRead) -> io::Result<Self> {
+        let mut output = Self {
+            go_files: Vec::new(),
+            uses_vexrt: false,
+            extra_packages: 0,
+            cached_modules: 0,
+            diagnostics: Vec::new(),
+        };
+        let mut path = None;
+        for (key, value) in read_fields(input)? {
+            let text = String::from_utf8(value).map_err(|_| invalid("field is not UTF-8"))?;
+            let number = || text.parse().map_err(|_| invalid("expected a number"));
+            match key.as_str() {
+                "cached" => output.cached_modules = number()?,
+                "packages" => output.extra_packages = number()?,
+                "vexrt" => output.uses_vexrt = text == "1",
+                "diagnostic" => output.diagnostics.push(text),
+                "path" => path = Some(PathBuf::from(text)),
+                "contents" => {
+                    let path = path.take().ok_or_else(|| invalid("contents without a path"))?;
+                    output.go_files.push((path, text));
+                }
+                _ => return Err(invalid("unknown response field")),
+            }
+        }
+        Ok(output)
+    }
+}
+
+fn header() -> String {
+    format!("vex-daemon {}", cache::build_id())
+}
+
+fn invalid(message: &str) -> io::Error {
+    io::Error::new(io::ErrorKind::InvalidData, message.to_string())
+}
+
+fn write_field(out: &mut impl Write, key: &str, value: &[u8]) -> io::Result<()> {
+    writeln!(out, "{} {}", key, value.len())?;
+    out.write_all(value)
+}
+
+fn read_fields(input: &mut impl BufRead) -> io::Result<Vec<(String, Vec<u8>)>> {
+    let mut line = String::new();
+    input.read_line(&mut line)?;
+    if line.trim_end() != header() {
+        return Err(invalid("daemon protocol version mismatch"));
+    }
+
+    let mut fields = Vec::new();
+    loop {
+        line.clear();
+        if input.read_line(&mut line)? == 0 {
+            return Err(io::ErrorKind::UnexpectedEof.into());
+        }
+        let (key, len) = line
+            .trim_end()
+            .split_once(' ')
+            .ok_or_else(|| invalid("malformed field"))?;
+        let len: usize = len.parse().map_err(|_| invalid("malformed field length"))?;
+        if key == "end" {
+            return Ok(fields);
+        }
+        let key = key.to_string();
+        let mut value = vec![0; len];
+        input.read_exact(&mut value)?;
+        fields.push((key, value));
+    }
+}
+
+fn encode_request(out: &mut impl Write, file_name: &str, source: &str) -> io::Result<()> {
+    writeln!(out, "{}", header())?;
+    write_field(out, "file", file_name.as_bytes())?;
+    write_field(out, "source", source.as_bytes())?;
+    write_field(out, "end", b"")
+}
+
+fn decode_request(input: &mut impl BufRead) -> io::Result<(String, String)> {
+    let mut file_name = None;
+    let mut source = None;
+    for (key, value) in read_fields(input)? {
+        let text = String::from_utf8(value).map_err(|_| invalid("field is not UTF-8"))?;
+        match key.as_str() {
+            "file" => file_name = Some(text),
+            "source" => source = Some(text),
+            _ => return Err(invalid("unknown request field")),
+        }
+    }
+    file_name
+        .zip(source)
+        .ok_or_else(|| invalid("request needs a file and its source"))
+}
+
+pub fn socket_path() -> Option<PathBuf> {
+    Some(cache::default_root()?.join("daemon.sock"))
+}
+
+pub struct Daemon {
+    cache: ModuleCache,
+}
+
+impl Daemon {
+    pub fn new(cache: ModuleCache) -> Self {
+        Self {
+            cache: cache.keep_in_memory(),
+        }
+    }
+
+    pub fn build(&self, file_name: &str, source: &str) -> BuildOutput {
+        let options = CompileOptions {
+            cache: Some(&self.cache),
+            timings: None,
+        };
+        BuildOutput::from_result(&crate::compile_with(source, file_name, options))
+    }
+
+    fn answer(&self, input: &mut impl BufRead, out: &mut impl Write) -> io::Result<()> {
+        let (file_name, source) = decode_request(input)?;
+        self.build(&file_name, &source).encode(out)?;
+        out.flush()?;
+        self.cache.prune().ok();
+        Ok(())
+    }
+}
+
+#[cfg(unix)]
+impl Daemon {
+    pub fn bind(path: &Path) -> io::Result<UnixListener> {
+        if path.exists() {
+            if UnixStream::connect(path).is_ok() {
+                return Err(io::Error::new(
+                    io::ErrorKind::AddrInUse,
+                    format!("a daemon is already listening on {}", path.display()),
+                ));
+            }
+            fs::remove_file(path)?;
+        }
+        if let Some(parent) = path.parent() {
+            fs::create_dir_all(parent)?;
+        }
+        UnixListener::bind(path)
+    }
+
+    pub fn serve(&self, listener: &UnixListener) {
+        for stream in listener.incoming() {
+            let Ok(stream) = stream else {
+                continue;
+            };
+            let mut input = BufReader::new(&stream);
+            let mut out = &stream;
+            self.answer(&mut input, &mut out).ok();
+        }
+    }
+}
+
+#[cfg(unix)]
+pub fn request(socket: &Path, file_name: &str, source: &str) -> io::Result<BuildOutput> {
+    let stream = UnixStream::connect(socket)?;
+    let mut out = &stream;
+    encode_request(&mut out, file_name, source)?;
+    out.flush()?;
+    BuildOutput::decode(&mut BufReader::new(&stream))
+}
+
+#[cfg(not(unix))]
+pub fn request(_socket: &Path, _file_name: &str, _source: &str) -> io::Result<BuildOutput> {
+    Err(io::ErrorKind::Unsupported.into())
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn sample() -> BuildOutput {
+        BuildOutput {
+            go_files: vec![
+                (PathBuf::from("go.mod"), "module vex_out\n".into()),
+                (PathBuf::from("main.go"), "package main\n\nfunc main() {}\n".into()),
+            ],
+            uses_vexrt: true,
+            extra_packages: 2,
+            cached_modules: 1,
+            diagnostics: vec!["error: type mismatch\n  --> main.vx:1:1".into()],
+        }
+    }
+
+    #[test]
+    fn outputs_round_trip_through_the_wire_format() {
+        let mut wire = Vec::new();
+        sample().encode(&mut wire).expect("encoding should succeed");
+        let decoded = BuildOutput::decode(&mut wire.as_slice());
+        assert_eq!(decoded.ok(), Some(sample()));
+    }
+
+    #[test]
+    fn requests_from_other_versions_are_rejected() {
+        let mut wire = Vec::new();
+        encode_request(&mut wire, "/p/main.vx", "(defn main [] 1)").expect("encode");
+        let request = decode_request(&mut wire.as_slice()).expect("request should decode");
+        assert_eq!(request, ("/p/main.vx".into(), "(defn main [] 1)".into()));
+
+        let stale = String::from_utf8(wire)
+            .expect("wire is UTF-8")
+            .replacen(env!("CARGO_PKG_VERSION"), "0.0.0-old", 1);
+        assert!(decode_request(&mut stale.as_bytes()).is_err());
+    }
+
+    #[test]
+    fn daemon_answers_with_the_in_process_result() {
+        let dir = std::env::temp_dir().join(format!("vex-daemon-{}", std::process::id()));
+        let cache = ModuleCache::open(dir.join("build")).expect("cache should open");
+        let daemon = Daemon::new(cache);
+        let source = "(defn main [] (println \"hi\"))";
+
+        let mut wire = Vec::new();
+        encode_request(&mut wire, "main.vx", source).expect("encode");
+        let mut response = Vec::new();
+        daemon
+            .answer(&mut wire.as_slice(), &mut response)
+            .expect("daemon should answer");
+        fs::remove_dir_all(&dir).ok();
+
+        let answered = BuildOutput::decode(&mut response.as_slice()).expect("decode");
+        let direct = BuildOutput::from_result(&crate::compile(source, "main.vx"));
+        assert_eq!(answered, direct);
+    }
+}
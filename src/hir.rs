@@ -1,3 +1,4 @@
+use crate::builtins::BuiltinId;
 use crate::source::Span;
 use crate::types::{RecordField, UnionVariant, VexType};
 
@@ -54,6 +55,12 @@ pub enum Expr {
         ty: VexType,
     },
 
+    Builtin {
+        id: BuiltinId,
+        span: Span,
+        ty: VexType,
+    },
+
     If {
         test: Box<Expr>,
         then_branch: Box<Expr>,
@@ -149,6 +156,7 @@ impl Expr {
             | Expr::Bool(_, s)
             | Expr::Nil(s) => *s,
             Expr::Var { span, .. }
+            | Expr::Builtin { span, .. }
             | Expr::If { span, .. }
             | Expr::Let { span, .. }
             | Expr::Lambda { span, .. }
@@ -172,6 +180,7 @@ impl Expr {
             Expr::Bool(..) => &VexType::Bool,
             Expr::Nil(..) => &VexType::Unit,
             Expr::Var { ty, .. }
+            | Expr::Builtin { ty, .. }
             | Expr::If { ty, .. }
             | Expr::Let { ty, .. }
             | Expr::Lambda { ty, .. }
@@ -292,6 +301,21 @@ mod tests {
         assert_eq!(expr.span(), span(0, 1));
     }
 
+    #[test]
+    fn builtin_type() {
+        let ty = VexType::Fn {
+            params: vec![VexType::Bool],
+            ret: Box::new(VexType::Bool),
+        };
+        let expr = Expr::Builtin {
+            id: BuiltinId::Not,
+            span: span(0, 3),
+            ty: ty.clone(),
+        };
+        assert_eq!(expr.ty(), &ty);
+        assert_eq!(expr.span(), span(0, 3));
+    }
+
     #[test]
     fn if_type() {
         let expr = Expr::If {
@@ -0,0 +1,406 @@
+use std::fmt::Write;
+use std::sync::Mutex;
+use std::time::{Duration, Instant};
+
+use crate::alloc_stats::{self, AllocStats};
+
+#[derive(Debug, Clone, Copy, PartialEq, Eq, PartialOrd, Ord, Hash)]
+pub enum Phase {
+    Parse,
+    Expand,
+    Summarize,
+    Check,
+    Codegen,
+    GoBuild,
+}
+
+impl Phase {
+    pub fn name(self) -> &'static str {
+        match self {
+            Phase::Parse => "parse",
+            Phase::Expand => "expand",
+            Phase::Summarize => "summarize",
+            Phase::Check => "check",
+            Phase::Codegen => "codegen",
+            Phase::GoBuild => "go build",
+        }
+    }
+}
+
+#[derive(Debug, Default, Clone, Copy, PartialEq, Eq)]
+pub struct Counts {
+    pub tokens: usize,
+    pub forms: usize,
+    pub output_bytes: usize,
+}
+
+impl Counts {
+    pub fn tokens(tokens: usize) -> Self {
+        Self {
+            tokens,
+            ..Self::default()
+        }
+    }
+
+    pub fn forms(forms: usize) -> Self {
+        Self {
+            forms,
+            ..Self::default()
+        }
+    }
+
+    pub fn output_bytes(output_bytes: usize) -> Self {
+        Self {
+            output_bytes,
+            ..Self::default()
+        }
+    }
+
+    fn add(&mut self, other: Counts) {
+        self.tokens += other.tokens;
+        self.forms += other.forms;
+        self.output_bytes += other.output_bytes;
+    }
+}
+
+#[derive(Debug, Clone, PartialEq)]
+pub struct Record {
+    pub module: String,
+    pub phase: Phase,
+    pub elapsed: Duration,
+    pub counts: Counts,
+    pub memory: AllocStats,
+}
+
+impl Record {
+    fn tokens_per_sec(&self) -> f64 {
+        per_second(self.counts.tokens, self.elapsed)
+    }
+
+    fn forms_per_sec(&self) -> f64 {
+        per_second(self.counts.forms, self.elapsed)
+    }
+}
+
+fn per_second(count: usize, elapsed: Duration) -> f64 {
+    let seconds = elapsed.as_secs_f64();
+    if count == 0 || seconds == 0.0 {
+        0.0
+    } else {
+        count as f64 / seconds
+    }
+}
+
+#[derive(Default)]
+pub struct Timings {
+    records: Mutex<Vec<Record>>,
+    wall: Mutex<Duration>,
+}
+
+impl Timings {
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    pub fn record(&self, module: &str, phase: Phase, elapsed: Duration, counts: Counts) {
+        self.push(Record {
+            module: module.to_string(),
+            phase,
+            elapsed,
+            counts,
+            memory: AllocStats::default(),
+        });
+    }
+
+    pub fn record_wall(&self, elapsed: Duration) {
+        *self.wall.lock().unwrap_or_else(|poisoned| poisoned.into_inner()) += elapsed;
+    }
+
+    pub fn wall(&self) -> Duration {
+        *self.wall.lock().unwrap_or_else(|poisoned| poisoned.into_inner())
+    }
+
+    fn push(&self, record: Record) {
+        self.records
+            .lock()
+            .unwrap_or_else(|poisoned| poisoned.into_inner())
+            .push(record);
+    }
+
+    pub fn records(&self) -> Vec<Record> {
+        let mut records = self
+            .records
+            .lock()
+            .unwrap_or_else(|poisoned| poisoned.into_inner())
+            .clone();
+        records.sort_by(|a, b| a.phase.cmp(&b.phase).then_with(|| a.module.cmp(&b.module)));
+        records
+    }
+
+    pub fn totals(&self) -> Vec<Record> {
+        let mut totals: Vec<Record> = Vec::new();
+        for record in self.records() {
+            match totals.last_mut() {
+                Some(total) if total.phase == record.phase => {
+                    total.elapsed += record.elapsed;
+                    total.counts.add(record.counts);
+                    total.memory.add(record.memory);
+                }
+                _ => totals.push(Record {
+                    module: String::new(),
+                    ..record
+                }),
+            }
+        }
+        totals
+    }
+
+    pub fn render(&self) -> String {
+        let mut out = String::new();
+        let header = format!(
+            "{:<10} {:<24} {:>10} {:>12} {:>12} {:>10}",
+            "phase", "module", "wall ms", "tokens/s", "forms/s", "out bytes"
+        );
+        out.push_str(&header);
+        out.push('\n');
+        for record in self.records() {
+            render_row(&mut out, &record, &record.module);
+        }
+        for record in self.totals() {
+            render_row(&mut out, &record, "(all)");
+        }
+        writeln!(out, "{:<10} {:<24} {:>10.3}", "total", "", millis(self.wall())).unwrap();
+        out
+    }
+
+    pub fn render_memory(&self) -> String {
+        let mut out = String::new();
+        writeln!(
+            out,
+            "{:<10} {:<24} {:>10} {:>14} {:>14}",
+            "phase", "module", "allocs", "alloc bytes", "peak bytes"
+        )
+        .unwrap();
+        let row = |out: &mut String, record: &Record, module: &str| {
+            writeln!(
+                out,
+                "{:<10} {:<24} {:>10} {:>14} {:>14}",
+                record.phase.name(),
+                module,
+                record.memory.allocations,
+                record.memory.bytes,
+                record.memory.peak_bytes
+            )
+            .unwrap();
+        };
+        for record in self.records() {
+            row(&mut out, &record, &record.module);
+        }
+        for record in self.totals() {
+            row(&mut out, &record, "(all)");
+        }
+        writeln!(
+            out,
+            "{:<10} {:<24} {:>10} {:>14} {:>14}",
+            "process",
+            "",
+            "",
+            "",
+            alloc_stats::process_peak_bytes()
+        )
+        .unwrap();
+        out
+    }
+
+    pub fn to_json(&self) -> String {
+        let rows = |records: Vec<Record>| {
+            records
+                .iter()
+                .map(|record| {
+                    format!(
+                        "{{\"phase\":\"{}\",\"module\":\"{}\",\"wall_ms\":{:.3},\"tokens\":{},\
+                         \"forms\":{},\"output_bytes\":{},\"tokens_per_sec\":{:.1},\
+                         \"forms_per_sec\":{:.1},\"allocations\":{},\"allocated_bytes\":{},\
+                         \"peak_bytes\":{}}}",
+                        record.phase.name(),
+                        json_escape(&record.module),
+                        millis(record.elapsed),
+                        record.counts.tokens,
+                        record.counts.forms,
+                        record.counts.output_bytes,
+                        record.tokens_per_sec(),
+                        record.forms_per_sec(),
+                        record.memory.allocations,
+                        record.memory.bytes,
+                        record.memory.peak_bytes
+                    )
+                })
+                .collect::<Vec<_>>()
+                .join(",")
+        };
+        format!(
+            "{{\"records\":[{}],\"phases\":[{}],\"wall_ms\":{:.3},\"peak_bytes\":{}}}",
+            rows(self.records()),
+            rows(self.totals()),
+            millis(self.wall()),
+            alloc_stats::process_peak_bytes()
+        )
+    }
+}
+
+fn millis(elapsed: Duration) -> f64 {
+    elapsed.as_secs_f64() * 1000.0
+}
+
+fn render_row(out: &mut String, record: &Record, module: &str) {
+    let rate = |value: f64| {
+        if value == 0.0 {
+            "-".to_string()
+        } else {
+            format!("{:.0}", value)
+        }
+    };
+    let bytes = match record.counts.output_bytes {
+        0 => "-".to_string(),
+        n => n.to_string(),
+    };
+    writeln!(
+        out,
+        "{:<10} {:<24} {:>10.3} {:>12} {:>12} {:>10}",
+        record.phase.name(),
+        module,
+        millis(record.elapsed),
+        rate(record.tokens_per_sec()),
+        rate(record.forms_per_sec()),
+        bytes
+    )
+    .unwrap();
+}
+
+fn json_escape(s: &str) -> String {
+    let mut out = String::with_capacity(s.len());
+    for ch in s.chars() {
+        match ch {
+            '"' => out.push_str("\\\""),
+            '\\' => out.push_str("\\\\"),
+            c if (c as u32) < 0x20 => write!(out, "\\u{:04x}", c as u32).unwrap(),
+            c => out.push(c),
+        }
+    }
+    out
+}
+
+pub fn measure<R>(
+    timings: Option<&Timings>,
+    module: &str,
+    phase: Phase,
+    work: impl FnOnce() -> R,
+    counts: impl FnOnce(&R) -> Counts,
+) -> R {
+    let Some(timings) = timings else {
+        return work();
+    };
+    let memory = alloc_stats::start();
+    let start = Instant::now();
+    let result = work();
+    let elapsed = start.elapsed();
+    let memory = alloc_stats::finish(memory);
+    timings.push(Record {
+        module: module.to_string(),
+        phase,
+        elapsed,
+        counts: counts(&result),
+        memory,
+    });
+    result
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn sample() -> Timings {
+        let timings = Timings::new();
+        timings.record("math", Phase::Expand, Duration::from_millis(2), Counts::forms(4));
+        timings.record("main.vx", Phase::Parse, Duration::from_millis(1), Counts::tokens(500));
+        timings.record("math", Phase::Parse, Duration::from_millis(3), Counts::tokens(1500));
+        timings
+    }
+
+    #[test]
+    fn records_sort_by_phase_then_module() {
+        let order: Vec<(Phase, String)> = sample()
+            .records()
+            .into_iter()
+            .map(|record| (record.phase, record.module))
+            .collect();
+        assert_eq!(
+            order,
+            [
+                (Phase::Parse, "main.vx".to_string()),
+                (Phase::Parse, "math".to_string()),
+                (Phase::Expand, "math".to_string()),
+            ]
+        );
+    }
+
+    #[test]
+    fn totals_sum_each_phase() {
+        let totals = sample().totals();
+        assert_eq!(totals.len(), 2);
+        assert_eq!(totals[0].elapsed, Duration::from_millis(4));
+        assert_eq!(totals[0].counts.tokens, 2000);
+        assert!((totals[0].tokens_per_sec() - 500_000.0).abs() < 1e-3);
+    }
+
+    #[test]
+    fn total_row_reports_recorded_wall_time() {
+        let timings = sample();
+        timings.record_wall(Duration::from_millis(5));
+        let report = timings.render();
+        let total = report.lines().last().expect("report has rows");
+        assert!(total.starts_with("total") && total.ends_with(" 5.000"), "{}", total);
+        assert!(timings.to_json().contains("\"wall_ms\":5.000"));
+    }
+
+    #[test]
+    fn measure_records_only_when_enabled() {
+        let timings = Timings::new();
+        let value = measure(None, "m", Phase::Check, || 7, |_| Counts::forms(1));
+        let counted = measure(Some(&timings), "m", Phase::Check, || 7, |n| Counts::forms(*n));
+        assert_eq!((value, counted), (7, 7));
+        assert_eq!(timings.records()[0].counts.forms, 7);
+    }
+
+    #[test]
+    fn memory_report_totals_each_phase() {
+        let timings = Timings::new();
+        let memory = |allocations, peak_bytes| AllocStats {
+            allocations,
+            bytes: allocations * 16,
+            peak_bytes,
+        };
+        for (module, stats) in [("a", memory(3, 48)), ("b", memory(5, 32))] {
+            timings.push(Record {
+                module: module.to_string(),
+                phase: Phase::Check,
+                elapsed: Duration::from_millis(1),
+                counts: Counts::default(),
+                memory: stats,
+            });
+        }
+        assert_eq!(timings.totals()[0].memory, memory(8, 48));
+        let report = timings.render_memory();
+        let total = report.lines().find(|line| line.contains("(all)"));
+        assert!(total.is_some_and(|line| line.starts_with("check") && line.ends_with(" 48")));
+    }
+
+    #[test]
+    fn json_report_lists_records_and_phases() {
+        let json = sample().to_json();
+        assert!(json.starts_with("{\"records\":[{\"phase\":\"parse\",\"module\":\"main.vx\""));
+        let phases = "\"phases\":[{\"phase\":\"parse\",\"module\":\"\",\"wall_ms\":4.000";
+        assert!(json.contains(phases));
+        assert_eq!(json_escape("a\"b\\c\n"), "a\\\"b\\\\c\\u000a");
+    }
+}
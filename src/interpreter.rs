@@ -1,9 +1,12 @@
-use std::collections::HashMap;
 use std::fmt;
+use std::sync::{Arc, PoisonError, RwLock};
 
-use crate::builtins;
+use crate::builtins::{self, BuiltinId};
 use crate::hir;
-use crate::types::{SyntaxValue, VexType};
+use crate::persistent::{PMap, PVec};
+use crate::resolve::{self, Address, Capture, IterKind, Resolver};
+use crate::scheduler::{Channel, ChannelError, Participant, Scheduler};
+use crate::types::SyntaxValue;
 
 #[derive(Debug, Clone)]
 pub struct RuntimeError {
@@ -16,6 +19,12 @@ impl fmt::Display for RuntimeError {
     }
 }
 
+#[derive(Debug)]
+pub struct Closure {
+    pub function: Arc<resolve::Function>,
+    pub captures: Vec<Value>,
+}
+
 #[derive(Debug, Clone)]
 pub enum Value {
     Int(i64),
@@ -23,8 +32,12 @@ pub enum Value {
     Bool(bool),
     String(String),
     Unit,
-    List(Vec<Value>),
-    Map(Vec<(Value, Value)>),
+    List(PVec<Value>),
+    Range {
+        start: i64,
+        end: i64,
+    },
+    Map(PMap<MapKey, Value>),
     Record {
         name: String,
         fields: Vec<(String, Value)>,
@@ -34,14 +47,43 @@ pub enum Value {
         variant_name: String,
         values: Vec<Value>,
     },
-    Fn {
-        params: Vec<String>,
-        body: Vec<hir::Expr>,
-    },
-    BuiltinFn(String),
+    Fn(Arc<Closure>),
+    BuiltinFn(BuiltinId),
+    Channel(Arc<Channel<Value>>),
     Syntax(SyntaxValue),
 }
 
+#[derive(Debug, Clone, PartialEq, Eq, Hash)]
+pub enum MapKey {
+    Int(i64),
+    Bool(bool),
+    String(String),
+    Unit,
+}
+
+impl MapKey {
+    pub fn from_value(value: &Value) -> Result<MapKey, RuntimeError> {
+        match value {
+            Value::Int(n) => Ok(MapKey::Int(*n)),
+            Value::Bool(b) => Ok(MapKey::Bool(*b)),
+            Value::String(s) => Ok(MapKey::String(s.clone())),
+            Value::Unit => Ok(MapKey::Unit),
+            other => Err(RuntimeError {
+                message: format!("map keys must be Int, Bool, String or nil, got {}", other),
+            }),
+        }
+    }
+
+    pub fn to_value(&self) -> Value {
+        match self {
+            MapKey::Int(n) => Value::Int(*n),
+            MapKey::Bool(b) => Value::Bool(*b),
+            MapKey::String(s) => Value::String(s.clone()),
+            MapKey::Unit => Value::Unit,
+        }
+    }
+}
+
 impl fmt::Display for Value {
     fn fmt(&self, f: &mut fmt::Formatter<'_>) -> fmt::Result {
         match self {
@@ -60,13 +102,23 @@ impl fmt::Display for Value {
                 }
                 write!(f, "]")
             }
+            Value::Range { start, end } => {
+                write!(f, "[")?;
+                for n in *start..*end {
+                    if n > *start {
+                        write!(f, " ")?;
+                    }
+                    write!(f, "{}", n)?;
+                }
+                write!(f, "]")
+            }
             Value::Map(entries) => {
                 write!(f, "{{")?;
                 for (i, (k, v)) in entries.iter().enumerate() {
                     if i > 0 {
                         write!(f, " ")?;
                     }
-                    write!(f, "{} {}", k, v)?;
+                    write!(f, "{} {}", k.to_value(), v)?;
                 }
                 write!(f, "}}")
             }
@@ -92,8 +144,9 @@ impl fmt::Display for Value {
                     write!(f, ")")
                 }
             }
-            Value::Fn { .. } => write!(f, "<fn>"),
-            Value::BuiltinFn(name) => write!(f, "<builtin:{}>", name),
+            Value::Fn(_) => write!(f, "<fn>"),
+            Value::BuiltinFn(id) => write!(f, "<builtin:{}>", builtins::get(*id).name),
+            Value::Channel(_) => write!(f, "<channel>"),
             Value::Syntax(s) => write!(f, "{}", s),
         }
     }
@@ -114,6 +167,9 @@ pub fn value_to_syntax(value: &Value) -> Result<SyntaxValue, RuntimeError> {
             }
             Ok(SyntaxValue::List(result))
         }
+        Value::Range { start, end } => Ok(SyntaxValue::List(
+            (*start..*end).map(SyntaxValue::Int).collect(),
+        )),
         _ => Err(RuntimeError {
             message: format!("cannot convert {} to Syntax", value),
         }),
@@ -133,43 +189,19 @@ pub fn syntax_to_value(syntax: &SyntaxValue) -> Value {
     }
 }
 
-struct Env {
-    scopes: Vec<HashMap<String, Value>>,
-}
-
-impl Env {
-    fn new() -> Self {
-        Self {
-            scopes: vec![HashMap::new()],
-        }
-    }
-
-    fn push_scope(&mut self) {
-        self.scopes.push(HashMap::new());
-    }
-
-    fn pop_scope(&mut self) {
-        self.scopes.pop();
-    }
-
-    fn define(&mut self, name: String, value: Value) {
-        if let Some(scope) = self.scopes.last_mut() {
-            scope.insert(name, value);
-        }
-    }
-
-    fn lookup(&self, name: &str) -> Option<&Value> {
-        for scope in self.scopes.iter().rev() {
-            if let Some(value) = scope.get(name) {
-                return Some(value);
-            }
-        }
-        None
-    }
+struct Frame {
+    base: usize,
+    closure: Option<Arc<Closure>>,
 }
 
 pub struct Interpreter {
-    env: Env,
+    resolver: Resolver,
+    globals: Arc<RwLock<Vec<Option<Value>>>>,
+    stack: Vec<Value>,
+    frames: Vec<Frame>,
+    tail_call: bool,
+    scheduler: Option<Scheduler>,
+    running: Option<Participant>,
 }
 
 impl Default for Interpreter {
@@ -180,14 +212,23 @@ impl Default for Interpreter {
 
 impl Interpreter {
     pub fn new() -> Self {
-        let mut env = Env::new();
-        for builtin in builtins::all_builtins() {
-            env.define(
-                builtin.name.to_string(),
-                Value::BuiltinFn(builtin.name.to_string()),
-            );
+        Self {
+            resolver: Resolver::new(),
+            globals: Arc::default(),
+            stack: Vec::new(),
+            frames: Vec::new(),
+            tail_call: false,
+            scheduler: None,
+            running: None,
+        }
+    }
+
+    fn for_task(globals: Arc<RwLock<Vec<Option<Value>>>>, scheduler: Scheduler) -> Self {
+        Self {
+            globals,
+            scheduler: Some(scheduler),
+            ..Self::new()
         }
-        Self { env }
     }
 
     pub fn eval_module(&mut self, module: &hir::Module) -> Result<Value, RuntimeError> {
@@ -199,54 +240,125 @@ impl Interpreter {
     }
 
     pub fn eval_top_form(&mut self, form: &hir::TopForm) -> Result<Value, RuntimeError> {
-        match form {
-            hir::TopForm::Module { .. }
-            | hir::TopForm::Export { .. }
-            | hir::TopForm::Import { .. }
-            | hir::TopForm::ImportGo { .. }
-            | hir::TopForm::Deftype { .. }
-            | hir::TopForm::Defunion { .. } => Ok(Value::Unit),
-
-            hir::TopForm::Defn {
-                name, params, body, ..
-            } => {
-                let func = Value::Fn {
-                    params: params.iter().map(|p| p.name.clone()).collect(),
-                    body: body.clone(),
-                };
-                self.env.define(name.clone(), func);
+        self.running = self.scheduler.as_ref().map(Scheduler::participate);
+        let result = self.run_top_form(form);
+        self.running = None;
+        let value = result?;
+        match self.scheduler.as_ref().and_then(Scheduler::take_failure) {
+            Some(message) => Err(RuntimeError {
+                message: ChannelError::TaskFailed(message).to_string(),
+            }),
+            None => Ok(value),
+        }
+    }
+
+    fn run_top_form(&mut self, form: &hir::TopForm) -> Result<Value, RuntimeError> {
+        let resolved = self.resolver.resolve_top_form(form);
+        self.frames.clear();
+        self.stack.clear();
+        self.tail_call = false;
+
+        match resolved {
+            resolve::TopForm::Declaration => Ok(Value::Unit),
+
+            resolve::TopForm::Defn { slot, function } => {
+                let func = Value::Fn(Arc::new(Closure {
+                    function,
+                    captures: Vec::new(),
+                }));
+                self.set_global(slot, func);
                 Ok(Value::Unit)
             }
 
-            hir::TopForm::Def { name, value, .. } => {
-                let val = self.eval_expr(value)?;
-                self.env.define(name.clone(), val);
+            resolve::TopForm::Def {
+                slot,
+                frame_size,
+                value,
+            } => {
+                let val = self.eval_in_frame(frame_size, &value)?;
+                self.set_global(slot, val);
                 Ok(Value::Unit)
             }
 
-            hir::TopForm::Expr(expr) => self.eval_expr(expr),
+            resolve::TopForm::Expr { frame_size, expr } => self.eval_in_frame(frame_size, &expr),
+        }
+    }
+
+    fn set_global(&mut self, slot: usize, value: Value) {
+        let mut globals = self.globals.write().unwrap_or_else(PoisonError::into_inner);
+        if globals.len() <= slot {
+            globals.resize(slot + 1, None);
         }
+        globals[slot] = Some(value);
     }
 
-    fn eval_expr(&mut self, expr: &hir::Expr) -> Result<Value, RuntimeError> {
+    fn eval_in_frame(
+        &mut self,
+        frame_size: usize,
+        expr: &resolve::Expr,
+    ) -> Result<Value, RuntimeError> {
+        self.push_frame(frame_size, None);
+        let result = self.eval_expr(expr)?;
+        self.pop_frame();
+        Ok(result)
+    }
+
+    fn push_frame(&mut self, size: usize, closure: Option<Arc<Closure>>) -> usize {
+        let base = self.stack.len();
+        self.frames.push(Frame { base, closure });
+        self.stack.resize(base + size, Value::Unit);
+        base
+    }
+
+    fn pop_frame(&mut self) {
+        if let Some(frame) = self.frames.pop() {
+            self.stack.truncate(frame.base);
+        }
+    }
+
+    fn frame_base(&self) -> usize {
+        self.frames.last().map(|f| f.base).unwrap_or(0)
+    }
+
+    fn captured(&self, index: usize) -> Result<Value, RuntimeError> {
+        self.frames
+            .last()
+            .and_then(|frame| frame.closure.as_ref())
+            .and_then(|closure| closure.captures.get(index))
+            .cloned()
+            .ok_or_else(|| RuntimeError {
+                message: "captured variable is missing from the closure".into(),
+            })
+    }
+
+    fn eval_expr(&mut self, expr: &resolve::Expr) -> Result<Value, RuntimeError> {
         match expr {
-            hir::Expr::Int(n, _) => Ok(Value::Int(*n)),
-            hir::Expr::Float(n, _) => Ok(Value::Float(*n)),
-            hir::Expr::String(s, _) => Ok(Value::String(s.clone())),
-            hir::Expr::Bool(b, _) => Ok(Value::Bool(*b)),
-            hir::Expr::Nil(_) => Ok(Value::Unit),
-
-            hir::Expr::Var { name, .. } => {
-                self.env.lookup(name).cloned().ok_or_else(|| RuntimeError {
-                    message: format!("undefined variable: {}", name),
-                })
-            }
+            resolve::Expr::Int(n) => Ok(Value::Int(*n)),
+            resolve::Expr::Float(n) => Ok(Value::Float(*n)),
+            resolve::Expr::String(s) => Ok(Value::String(s.clone())),
+            resolve::Expr::Bool(b) => Ok(Value::Bool(*b)),
+            resolve::Expr::Nil => Ok(Value::Unit),
+
+            resolve::Expr::Var { name, address } => match *address {
+                Address::Local(slot) => Ok(self.stack[self.frame_base() + slot].clone()),
+                Address::Captured(index) => self.captured(index),
+                Address::Global(slot) => self
+                    .globals
+                    .read()
+                    .unwrap_or_else(PoisonError::into_inner)
+                    .get(slot)
+                    .and_then(|value| value.clone())
+                    .ok_or_else(|| RuntimeError {
+                        message: format!("undefined variable: {}", name),
+                    }),
+            },
 
-            hir::Expr::If {
+            resolve::Expr::Builtin(id) => Ok(Value::BuiltinFn(*id)),
+
+            resolve::Expr::If {
                 test,
                 then_branch,
                 else_branch,
-                ..
             } => {
                 let cond = self.eval_expr(test)?;
                 match cond {
@@ -258,35 +370,58 @@ impl Interpreter {
                 }
             }
 
-            hir::Expr::Let { bindings, body, .. } => {
-                self.env.push_scope();
+            resolve::Expr::Let { bindings, body } => {
+                let base = self.frame_base();
                 for binding in bindings {
                     let val = self.eval_expr(&binding.value)?;
-                    self.env.define(binding.name.clone(), val);
+                    self.stack[base + binding.slot] = val;
                 }
                 let mut result = Value::Unit;
                 for e in body {
                     result = self.eval_expr(e)?;
                 }
-                self.env.pop_scope();
                 Ok(result)
             }
 
-            hir::Expr::Lambda { params, body, .. } => Ok(Value::Fn {
-                params: params.iter().map(|p| p.name.clone()).collect(),
-                body: body.clone(),
-            }),
+            resolve::Expr::Lambda(function) => Ok(Value::Fn(self.make_closure(function)?)),
 
-            hir::Expr::Call { func, args, .. } => {
+            resolve::Expr::Call { func, args } => {
                 let func_val = self.eval_expr(func)?;
-                let mut arg_vals = Vec::new();
+                let mut arg_vals = Vec::with_capacity(args.len());
                 for arg in args {
                     arg_vals.push(self.eval_expr(arg)?);
                 }
                 self.call_function(func_val, arg_vals)
             }
 
-            hir::Expr::FieldAccess { object, field, .. } => {
+            resolve::Expr::SelfTailCall { args } => {
+                for arg in args {
+                    let val = self.eval_expr(arg)?;
+                    self.stack.push(val);
+                }
+                self.tail_call = true;
+                Ok(Value::Unit)
+            }
+
+            resolve::Expr::CallBuiltin { id, args } => {
+                let mut arg_vals = Vec::with_capacity(args.len());
+                for arg in args {
+                    arg_vals.push(self.eval_expr(arg)?);
+                }
+                call_builtin(*id, arg_vals)
+            }
+
+            resolve::Expr::Iterate {
+                kind,
+                list,
+                callback,
+            } => {
+                let source = self.eval_expr(list)?;
+                let callback = self.eval_expr(callback)?;
+                self.iterate_with(*kind, source, callback)
+            }
+
+            resolve::Expr::FieldAccess { object, field } => {
                 let obj = self.eval_expr(object)?;
                 match obj {
                     Value::Record { fields, .. } => fields
@@ -302,21 +437,16 @@ impl Interpreter {
                 }
             }
 
-            hir::Expr::RecordConstructor { name, args, ty, .. } => {
-                let field_names = match ty {
-                    VexType::Record { fields, .. } => {
-                        fields.iter().map(|f| f.name.clone()).collect::<Vec<_>>()
-                    }
-                    _ => {
-                        return Err(RuntimeError {
-                            message: "record constructor with non-record type".into(),
-                        });
-                    }
-                };
-                let mut field_values = Vec::new();
-                for (i, arg) in args.iter().enumerate() {
+            resolve::Expr::RecordConstructor { name, fields, args } => {
+                if fields.len() != args.len() {
+                    return Err(RuntimeError {
+                        message: "record constructor with non-record type".into(),
+                    });
+                }
+                let mut field_values = Vec::with_capacity(args.len());
+                for (field, arg) in fields.iter().zip(args) {
                     let val = self.eval_expr(arg)?;
-                    field_values.push((field_names[i].clone(), val));
+                    field_values.push((field.clone(), val));
                 }
                 Ok(Value::Record {
                     name: name.clone(),
@@ -324,19 +454,12 @@ impl Interpreter {
                 })
             }
 
-            hir::Expr::Match {
-                scrutinee, clauses, ..
-            } => {
+            resolve::Expr::Match { scrutinee, clauses } => {
                 let val = self.eval_expr(scrutinee)?;
+                let base = self.frame_base();
                 for clause in clauses {
-                    if let Some(bindings) = match_pattern(&clause.pattern, &val) {
-                        self.env.push_scope();
-                        for (name, value) in bindings {
-                            self.env.define(name, value);
-                        }
-                        let result = self.eval_expr(&clause.body)?;
-                        self.env.pop_scope();
-                        return Ok(result);
+                    if match_pattern(&clause.pattern, &val, &mut self.stack[base..]) {
+                        return self.eval_expr(&clause.body);
                     }
                 }
                 Err(RuntimeError {
@@ -344,13 +467,12 @@ impl Interpreter {
                 })
             }
 
-            hir::Expr::VariantConstructor {
+            resolve::Expr::VariantConstructor {
                 union_name,
                 variant_name,
                 args,
-                ..
             } => {
-                let mut values = Vec::new();
+                let mut values = Vec::with_capacity(args.len());
                 for arg in args {
                     values.push(self.eval_expr(arg)?);
                 }
@@ -361,155 +483,359 @@ impl Interpreter {
                 })
             }
 
-            hir::Expr::Spawn { .. }
-            | hir::Expr::Channel { .. }
-            | hir::Expr::Send { .. }
-            | hir::Expr::Recv { .. } => Err(RuntimeError {
-                message: "concurrency primitives are not supported in the interpreter".into(),
+            resolve::Expr::Spawn(function) => {
+                let closure = self.make_closure(function)?;
+                let globals = Arc::clone(&self.globals);
+                let scheduler = self.scheduler();
+                let handle = scheduler.clone();
+                scheduler.spawn(move || {
+                    let mut task = Interpreter::for_task(globals, handle.clone());
+                    if let Err(err) = task.call_function(Value::Fn(closure), Vec::new()) {
+                        handle.fail(err.message);
+                    }
+                });
+                Ok(Value::Unit)
+            }
+
+            resolve::Expr::Channel { size } => {
+                let channel = match size {
+                    None => Channel::unbuffered(),
+                    Some(size) => match self.eval_expr(size)? {
+                        Value::Int(n) if n >= 0 => Channel::bounded(n as usize),
+                        other => {
+                            return Err(RuntimeError {
+                                message: format!(
+                                    "channel size must be a non-negative Int, got {}",
+                                    other
+                                ),
+                            });
+                        }
+                    },
+                };
+                Ok(Value::Channel(Arc::new(channel)))
+            }
+
+            resolve::Expr::Send { channel, value } => {
+                let channel = self.eval_channel(channel)?;
+                let value = self.eval_expr(value)?;
+                let scheduler = self.scheduler();
+                channel.send(value, &scheduler).map_err(|err| RuntimeError {
+                    message: err.to_string(),
+                })?;
+                Ok(Value::Unit)
+            }
+
+            resolve::Expr::Recv { channel } => {
+                let channel = self.eval_channel(channel)?;
+                let scheduler = self.scheduler();
+                channel.recv(&scheduler).map_err(|err| RuntimeError {
+                    message: err.to_string(),
+                })
+            }
+        }
+    }
+
+    fn make_closure(
+        &self,
+        function: &Arc<resolve::Function>,
+    ) -> Result<Arc<Closure>, RuntimeError> {
+        let base = self.frame_base();
+        let mut captures = Vec::with_capacity(function.captures.len());
+        for capture in &function.captures {
+            captures.push(match *capture {
+                Capture::Local(slot) => self.stack[base + slot].clone(),
+                Capture::Captured(index) => self.captured(index)?,
+            });
+        }
+        Ok(Arc::new(Closure {
+            function: Arc::clone(function),
+            captures,
+        }))
+    }
+
+    fn scheduler(&mut self) -> Scheduler {
+        if let Some(scheduler) = &self.scheduler {
+            return scheduler.clone();
+        }
+        let scheduler = Scheduler::with_available_parallelism();
+        self.running = Some(scheduler.participate());
+        self.scheduler = Some(scheduler.clone());
+        scheduler
+    }
+
+    fn eval_channel(&mut self, expr: &resolve::Expr) -> Result<Arc<Channel<Value>>, RuntimeError> {
+        match self.eval_expr(expr)? {
+            Value::Channel(channel) => Ok(channel),
+            other => Err(RuntimeError {
+                message: format!("expected a channel, got {}", other),
             }),
         }
     }
 
     fn call_function(&mut self, func: Value, args: Vec<Value>) -> Result<Value, RuntimeError> {
         match func {
-            Value::Fn { params, body } => {
-                if params.len() != args.len() {
+            Value::Fn(closure) => {
+                let function = Arc::clone(&closure.function);
+                if function.arity != args.len() {
                     return Err(RuntimeError {
                         message: format!(
                             "function expects {} arguments, got {}",
-                            params.len(),
+                            function.arity,
                             args.len()
                         ),
                     });
                 }
-                self.env.push_scope();
-                for (name, val) in params.iter().zip(args) {
-                    self.env.define(name.clone(), val);
-                }
-                let mut result = Value::Unit;
-                for expr in &body {
-                    result = self.eval_expr(expr)?;
+                let base = self.push_frame(function.frame_size, Some(closure));
+                for (i, arg) in args.into_iter().enumerate() {
+                    self.stack[base + i] = arg;
                 }
-                self.env.pop_scope();
+                let result = self.run_body(&function, base)?;
+                self.pop_frame();
                 Ok(result)
             }
-            Value::BuiltinFn(name) => self.call_builtin(&name, args),
+            Value::BuiltinFn(id) => call_builtin(id, args),
             _ => Err(RuntimeError {
                 message: format!("cannot call non-function value: {}", func),
             }),
         }
     }
 
-    fn call_builtin(&mut self, name: &str, args: Vec<Value>) -> Result<Value, RuntimeError> {
-        match name {
-            "+" => numeric_binop(&args, |a, b| a + b, |a, b| a + b),
-            "-" => numeric_binop(&args, |a, b| a - b, |a, b| a - b),
-            "*" => numeric_binop(&args, |a, b| a * b, |a, b| a * b),
-            "/" => {
-                if let (Value::Int(_), Value::Int(0)) = (&args[0], &args[1]) {
-                    return Err(RuntimeError {
-                        message: "division by zero".into(),
-                    });
-                }
-                numeric_binop(&args, |a, b| a / b, |a, b| a / b)
-            }
-            "mod" => match (&args[0], &args[1]) {
-                (Value::Int(a), Value::Int(b)) => {
-                    if *b == 0 {
-                        Err(RuntimeError {
-                            message: "modulo by zero".into(),
-                        })
-                    } else {
-                        Ok(Value::Int(a % b))
-                    }
-                }
-                _ => Err(RuntimeError {
-                    message: "mod requires Int arguments".into(),
-                }),
-            },
-            "<" => numeric_cmp(&args, |a, b| a < b, |a, b| a < b),
-            ">" => numeric_cmp(&args, |a, b| a > b, |a, b| a > b),
-            "<=" => numeric_cmp(&args, |a, b| a <= b, |a, b| a <= b),
-            ">=" => numeric_cmp(&args, |a, b| a >= b, |a, b| a >= b),
-            "=" => numeric_cmp(&args, |a, b| a == b, |a, b| a == b),
-            "!=" => numeric_cmp(&args, |a, b| a != b, |a, b| a != b),
-            "not" => match &args[0] {
-                Value::Bool(b) => Ok(Value::Bool(!b)),
-                _ => Err(RuntimeError {
-                    message: "not requires Bool argument".into(),
-                }),
-            },
-            "println" => {
-                println!("{}", value_to_string(&args[0]));
-                Ok(Value::Unit)
+    fn run_body(
+        &mut self,
+        function: &resolve::Function,
+        base: usize,
+    ) -> Result<Value, RuntimeError> {
+        let frame_end = base + function.frame_size;
+        loop {
+            let mut result = Value::Unit;
+            for expr in &function.body {
+                result = self.eval_expr(expr)?;
             }
-            "str" => {
-                let mut result = String::new();
-                for arg in &args {
-                    result.push_str(&value_to_string(arg));
-                }
-                Ok(Value::String(result))
+            if !self.tail_call {
+                return Ok(result);
             }
-            "range" => match (&args[0], &args[1]) {
-                (Value::Int(start), Value::Int(end)) => {
-                    let list: Vec<Value> = (*start..*end).map(Value::Int).collect();
-                    Ok(Value::List(list))
+            self.tail_call = false;
+            let args_start = self.stack.len() - function.arity;
+            for i in 0..function.arity {
+                self.stack.swap(base + i, args_start + i);
+            }
+            self.stack.truncate(frame_end);
+        }
+    }
+
+    fn iterate_with(
+        &mut self,
+        kind: IterKind,
+        source: Value,
+        callback: Value,
+    ) -> Result<Value, RuntimeError> {
+        let closure = match callback {
+            Value::Fn(closure) if closure.function.arity == 1 => closure,
+            other => {
+                return iterate(kind, source, |element| {
+                    self.call_function(other.clone(), vec![element])
+                });
+            }
+        };
+        let function = Arc::clone(&closure.function);
+        let base = self.push_frame(function.frame_size, Some(closure));
+        let result = iterate(kind, source, |element| {
+            self.stack[base] = element;
+            self.run_body(&function, base)
+        })?;
+        self.pop_frame();
+        Ok(result)
+    }
+}
+
+pub(crate) fn call_builtin(id: BuiltinId, args: Vec<Value>) -> Result<Value, RuntimeError> {
+    match id {
+        BuiltinId::Add => numeric_binop(&args, |a, b| a + b, |a, b| a + b),
+        BuiltinId::Sub => numeric_binop(&args, |a, b| a - b, |a, b| a - b),
+        BuiltinId::Mul => numeric_binop(&args, |a, b| a * b, |a, b| a * b),
+        BuiltinId::Div => {
+            if let (Value::Int(_), Value::Int(0)) = (&args[0], &args[1]) {
+                return Err(RuntimeError {
+                    message: "division by zero".into(),
+                });
+            }
+            numeric_binop(&args, |a, b| a / b, |a, b| a / b)
+        }
+        BuiltinId::Mod => match (&args[0], &args[1]) {
+            (Value::Int(a), Value::Int(b)) => {
+                if *b == 0 {
+                    Err(RuntimeError {
+                        message: "modulo by zero".into(),
+                    })
+                } else {
+                    Ok(Value::Int(a % b))
                 }
-                _ => Err(RuntimeError {
-                    message: "range requires Int arguments".into(),
-                }),
-            },
+            }
+            _ => Err(RuntimeError {
+                message: "mod requires Int arguments".into(),
+            }),
+        },
+        BuiltinId::Lt => numeric_cmp(&args, |a, b| a < b, |a, b| a < b),
+        BuiltinId::Gt => numeric_cmp(&args, |a, b| a > b, |a, b| a > b),
+        BuiltinId::Le => numeric_cmp(&args, |a, b| a <= b, |a, b| a <= b),
+        BuiltinId::Ge => numeric_cmp(&args, |a, b| a >= b, |a, b| a >= b),
+        BuiltinId::Eq => numeric_cmp(&args, |a, b| a == b, |a, b| a == b),
+        BuiltinId::Ne => numeric_cmp(&args, |a, b| a != b, |a, b| a != b),
+        BuiltinId::Not => match &args[0] {
+            Value::Bool(b) => Ok(Value::Bool(!b)),
+            _ => Err(RuntimeError {
+                message: "not requires Bool argument".into(),
+            }),
+        },
+        BuiltinId::Println => {
+            println!("{}", value_to_string(&args[0]));
+            Ok(Value::Unit)
+        }
+        BuiltinId::Str => {
+            let mut result = String::new();
+            for arg in &args {
+                result.push_str(&value_to_string(arg));
+            }
+            Ok(Value::String(result))
+        }
+        BuiltinId::Range => match (&args[0], &args[1]) {
+            (Value::Int(start), Value::Int(end)) => Ok(Value::Range {
+                start: *start,
+                end: *end,
+            }),
             _ => Err(RuntimeError {
-                message: format!("unknown builtin: {}", name),
+                message: "range requires Int arguments".into(),
+            }),
+        },
+    }
+}
+
+enum Elements {
+    Range(std::ops::Range<i64>),
+    List { items: PVec<Value>, index: usize },
+}
+
+impl Elements {
+    fn new(source: Value) -> Result<Elements, RuntimeError> {
+        match source {
+            Value::Range { start, end } => Ok(Elements::Range(start..end)),
+            Value::List(items) => Ok(Elements::List { items, index: 0 }),
+            other => Err(RuntimeError {
+                message: format!("expected a List, got {}", other),
             }),
         }
     }
 }
 
-fn match_pattern(pattern: &hir::Pattern, value: &Value) -> Option<Vec<(String, Value)>> {
-    match pattern {
-        hir::Pattern::Wildcard(_) => Some(vec![]),
-        hir::Pattern::Binding { name, .. } => Some(vec![(name.clone(), value.clone())]),
-        hir::Pattern::Literal(lit) => {
-            let lit_val = match lit.as_ref() {
-                hir::Expr::Int(n, _) => Value::Int(*n),
-                hir::Expr::Float(n, _) => Value::Float(*n),
-                hir::Expr::String(s, _) => Value::String(s.clone()),
-                hir::Expr::Bool(b, _) => Value::Bool(*b),
-                hir::Expr::Nil(_) => Value::Unit,
-                _ => return None,
-            };
-            if values_equal(&lit_val, value) {
-                Some(vec![])
-            } else {
-                None
+impl Iterator for Elements {
+    type Item = Value;
+
+    fn size_hint(&self) -> (usize, Option<usize>) {
+        match self {
+            Elements::Range(range) => range.size_hint(),
+            Elements::List { items, index } => {
+                let remaining = items.len().saturating_sub(*index);
+                (remaining, Some(remaining))
+            }
+        }
+    }
+
+    fn next(&mut self) -> Option<Value> {
+        match self {
+            Elements::Range(range) => range.next().map(Value::Int),
+            Elements::List { items, index } => {
+                let element = items.get(*index).cloned();
+                *index += 1;
+                element
             }
         }
-        hir::Pattern::Constructor {
+    }
+}
+
+pub(crate) fn iterate(
+    kind: IterKind,
+    source: Value,
+    mut call: impl FnMut(Value) -> Result<Value, RuntimeError>,
+) -> Result<Value, RuntimeError> {
+    let elements = Elements::new(source)?;
+    match kind {
+        IterKind::Each => {
+            for element in elements {
+                call(element)?;
+            }
+            Ok(Value::Unit)
+        }
+        IterKind::Map => {
+            let mut mapped = PVec::with_capacity(elements.size_hint().0);
+            for element in elements {
+                mapped.push(call(element)?);
+            }
+            Ok(Value::List(mapped))
+        }
+        IterKind::Filter => {
+            let mut kept = PVec::new();
+            for element in elements {
+                match call(element.clone())? {
+                    Value::Bool(true) => kept.push(element),
+                    Value::Bool(false) => {}
+                    other => {
+                        return Err(RuntimeError {
+                            message: format!("filter callback must return Bool, got {}", other),
+                        });
+                    }
+                }
+            }
+            Ok(Value::List(kept))
+        }
+    }
+}
+
+pub(crate) fn match_pattern(
+    pattern: &resolve::Pattern,
+    value: &Value,
+    slots: &mut [Value],
+) -> bool {
+    match pattern {
+        resolve::Pattern::Wildcard => true,
+        resolve::Pattern::Binding(slot) => {
+            slots[*slot] = value.clone();
+            true
+        }
+        resolve::Pattern::Literal(lit) => {
+            literal_value(lit).is_some_and(|lit_val| values_equal(&lit_val, value))
+        }
+        resolve::Pattern::Constructor {
             variant_name,
             bindings,
-            ..
         } => match value {
             Value::Variant {
                 variant_name: vn,
                 values,
                 ..
-            } if vn == variant_name => {
-                if bindings.len() != values.len() {
-                    return None;
-                }
-                let mut all_bindings = Vec::new();
+            } if vn == variant_name && bindings.len() == values.len() => {
                 for (pat, val) in bindings.iter().zip(values.iter()) {
-                    let sub_bindings = match_pattern(pat, val)?;
-                    all_bindings.extend(sub_bindings);
+                    if !match_pattern(pat, val, slots) {
+                        return false;
+                    }
                 }
-                Some(all_bindings)
+                true
             }
-            _ => None,
+            _ => false,
         },
     }
 }
 
+fn literal_value(expr: &resolve::Expr) -> Option<Value> {
+    match expr {
+        resolve::Expr::Int(n) => Some(Value::Int(*n)),
+        resolve::Expr::Float(n) => Some(Value::Float(*n)),
+        resolve::Expr::String(s) => Some(Value::String(s.clone())),
+        resolve::Expr::Bool(b) => Some(Value::Bool(*b)),
+        resolve::Expr::Nil => Some(Value::Unit),
+        _ => None,
+    }
+}
+
 fn values_equal(a: &Value, b: &Value) -> bool {
     match (a, b) {
         (Value::Int(a), Value::Int(b)) => a == b,
@@ -761,6 +1087,87 @@ mod tests {
         assert!(matches!(result, Value::Int(25)));
     }
 
+    #[test]
+    fn lambda_reads_enclosing_let_through_callee() {
+        let source = r#"
+            (defn apply-to [f : (Fn [Int] Int) x : Int] : Int (f x))
+            (let [k 10]
+              (apply-to (fn [x : Int] : Int (+ x k)) 5))
+        "#;
+        let result = eval_source(source).unwrap();
+        assert!(matches!(result, Value::Int(15)));
+    }
+
+    #[test]
+    fn closure_outlives_its_defining_call() {
+        let source = r#"
+            (defn adder [k : Int] : (Fn [Int] Int) (fn [x : Int] : Int (+ x k)))
+            (let [add2 (adder 2) add5 (adder 5)]
+              (+ (add2 1) (add5 1)))
+        "#;
+        let result = eval_source(source).unwrap();
+        assert!(matches!(result, Value::Int(9)));
+    }
+
+    #[test]
+    fn nested_closure_captures_through_parent() {
+        let source = r#"
+            (defn curry [a : Int] : (Fn [Int] (Fn [Int] Int))
+              (fn [b : Int] : (Fn [Int] Int) (fn [c : Int] : Int (+ a (* b c)))))
+            (((curry 1) 2) 3)
+        "#;
+        let result = eval_source(source).unwrap();
+        assert!(matches!(result, Value::Int(7)));
+    }
+
+    #[test]
+    fn self_tail_call_runs_in_constant_stack() {
+        let source = r#"
+            (defn count-down [n : Int acc : Int] : Int
+              (if (= n 0)
+                acc
+                (let [next (- n 1)]
+                  (count-down next (+ acc 1)))))
+            (count-down 1000000 0)
+        "#;
+        let result = eval_source(source).unwrap();
+        assert!(matches!(result, Value::Int(1000000)));
+    }
+
+    #[test]
+    fn self_tail_call_through_match() {
+        let source = r#"
+            (defunion Step (More Int) (Done))
+            (defn walk [s : Step acc : Int] : Int
+              (match s
+                (More n) (walk (if (= n 0) (Done) (More (- n 1))) (+ acc 1))
+                (Done) acc))
+            (walk (More 200000) 0)
+        "#;
+        let result = eval_source(source).unwrap();
+        assert!(matches!(result, Value::Int(200001)));
+    }
+
+    #[test]
+    fn inner_let_shadows_outer() {
+        let result = eval_source("(let [x 1] (let [x (+ x 1)] (* x 10)))").unwrap();
+        assert!(matches!(result, Value::Int(20)));
+    }
+
+    #[test]
+    fn match_binds_into_frame_slots() {
+        let source = r#"
+            (defunion Shape (Circle Float) (Rect Float Float))
+            (defn area [s : Shape] : Float
+              (match s
+                (Circle r) (* r r)
+                (Rect w h) (* w h)))
+            (+ (area (Rect 2.0 3.0)) (area (Circle 1.0)))
+        "#;
+        let result = eval_source(source).unwrap();
+        assert!(matches!(result, Value::Float(f) if (f - 7.0).abs() < f64::EPSILON));
+    }
+
     #[test]
     fn division() {
         let result = eval_source("(/ 10 3)").unwrap();
@@ -779,16 +1186,126 @@ mod tests {
         assert!(result.is_err());
     }
 
+    #[test]
+    fn builtin_passed_as_value() {
+        let result = eval_source("(let [f not] (f false))").unwrap();
+        assert!(matches!(result, Value::Bool(true)));
+    }
+
+    #[test]
+    fn user_defn_shadows_builtin() {
+        let result = eval_source("(defn not [x : Int] : Int (+ x 1)) (not 41)").unwrap();
+        assert!(matches!(result, Value::Int(42)));
+    }
+
     #[test]
     fn range_builtin() {
         let result = eval_source("(range 0 5)").unwrap();
-        if let Value::List(items) = result {
-            assert_eq!(items.len(), 5);
-            assert!(matches!(items[0], Value::Int(0)));
-            assert!(matches!(items[4], Value::Int(4)));
-        } else {
-            panic!("expected List value");
-        }
+        assert!(matches!(result, Value::Range { start: 0, end: 5 }));
+        assert_eq!(result.to_string(), "[0 1 2 3 4]");
+    }
+
+    #[test]
+    fn range_is_lazy() {
+        let result = eval_source("(range 0 1000000000)").unwrap();
+        assert!(matches!(
+            result,
+            Value::Range {
+                start: 0,
+                end: 1000000000
+            }
+        ));
+        let err = eval_source("(each (range 0 1000000000) (fn [x : Int] (/ x 0)))").unwrap_err();
+        assert_eq!(err.message, "division by zero");
+    }
+
+    #[test]
+    fn map_and_filter_stream_over_ranges() {
+        let result = eval_source(
+            "(filter (map (range 0 10) (fn [x : Int] : Int (* x x)))
+                     (fn [x : Int] : Bool (= (mod x 2) 0)))",
+        )
+        .unwrap();
+        assert_eq!(result.to_string(), "[0 4 16 36 64]");
+    }
+
+    #[test]
+    fn nested_callbacks_keep_their_own_frames() {
+        let result = eval_source(
+            "(defn row [k : Int] : (List Int) (map (range 0 3) (fn [x : Int] : Int (* x k))))
+             (map (range 1 3) (fn [k : Int] : (List Int) (row k)))",
+        )
+        .unwrap();
+        assert_eq!(result.to_string(), "[[0 1 2] [0 2 4]]");
+    }
+
+    #[test]
+    fn collections_example_runs() {
+        let source = std::fs::read_to_string("examples/collections.vx")
+            .expect("collections.vx should exist");
+        let result = eval_source(&format!("{}\n(main)", source)).unwrap();
+        assert!(matches!(result, Value::Unit));
+    }
+
+    #[test]
+    fn concurrency_example_runs() {
+        let source = std::fs::read_to_string("examples/concurrency.vx")
+            .expect("concurrency.vx should exist");
+        let result = eval_source(&format!("{}\n(main)", source)).unwrap();
+        assert!(matches!(result, Value::Unit));
+    }
+
+    #[test]
+    fn spawned_tasks_fan_in_over_a_channel() {
+        let result = eval_source(
+            "(defn square [n : Int] : Int (* n n))
+             (defn collect [ch : (Channel Int) n : Int acc : Int] : Int
+               (if (= n 0) acc (collect ch (- n 1) (+ acc (recv ch)))))
+             (let [ch (channel Int)]
+               (each (range 0 10) (fn [x : Int] (spawn (send ch (square x)))))
+               (collect ch 10 0))",
+        )
+        .unwrap();
+        assert!(matches!(result, Value::Int(285)));
+    }
+
+    #[test]
+    fn bounded_channels_buffer_without_a_receiver() {
+        let result = eval_source(
+            "(let [ch (channel Int 2)]
+               (send ch 1)
+               (send ch 2)
+               (+ (recv ch) (recv ch)))",
+        )
+        .unwrap();
+        assert!(matches!(result, Value::Int(3)));
+    }
+
+    #[test]
+    fn receiving_with_no_sender_is_a_deadlock() {
+        let err = eval_source("(let [ch (channel Int)] (recv ch))").unwrap_err();
+        assert!(err.message.starts_with("deadlock"), "{}", err.message);
+    }
+
+    #[test]
+    fn task_errors_reach_the_receiver() {
+        let err = eval_source(
+            "(let [ch (channel Int)]
+               (spawn (send ch (/ 1 0)))
+               (recv ch))",
+        )
+        .unwrap_err();
+        assert_eq!(err.message, "spawned task failed: division by zero");
+    }
+
+    #[test]
+    fn each_returns_unit_after_visiting_every_element() {
+        let result = eval_source(
+            "(defn visit [xs : (List Int)] (each xs (fn [x : Int] (+ x 1))))
+             (visit (range 0 3))",
+        )
+        .unwrap();
+        assert!(matches!(result, Value::Unit));
     }
 
     #[test]
@@ -845,6 +1362,18 @@ mod tests {
         assert!(matches!(result, Value::String(ref s) if s == "FizzBuzz"));
     }
 
+    #[test]
+    fn map_values_display_and_reject_unhashable_keys() {
+        let mut map = PMap::new();
+        let key = MapKey::from_value(&Value::String("a".into())).unwrap();
+        map.insert(key, Value::Int(1));
+        let shared = Value::Map(map.clone());
+        map.insert(MapKey::Int(2), Value::Bool(true));
+        assert_eq!(format!("{}", shared), "{\"a\" 1}");
+        assert_eq!(map.len(), 2);
+        assert!(MapKey::from_value(&Value::Float(1.0)).is_err());
+    }
+
     #[test]
     fn value_display() {
         assert_eq!(format!("{}", Value::Int(42)), "42");
@@ -855,7 +1384,7 @@ mod tests {
         assert_eq!(
             format!(
                 "{}",
-                Value::List(vec![Value::Int(1), Value::Int(2), Value::Int(3)])
+                Value::List(PVec::from_iter([Value::Int(1), Value::Int(2), Value::Int(3)]))
             ),
             "[1 2 3]"
         );
@@ -934,7 +1463,7 @@ mod tests {
 
     #[test]
     fn value_to_syntax_list() {
-        let val = Value::List(vec![Value::Int(1), Value::Int(2)]);
+        let val = Value::List(PVec::from_iter([Value::Int(1), Value::Int(2)]));
         let result = value_to_syntax(&val).unwrap();
         assert_eq!(
             result,
@@ -944,10 +1473,16 @@ mod tests {
 
     #[test]
     fn value_to_syntax_fn_fails() {
-        let val = Value::Fn {
-            params: vec![],
-            body: vec![],
-        };
+        let val = Value::Fn(Arc::new(Closure {
+            function: Arc::new(resolve::Function {
+                id: 0,
+                arity: 0,
+                frame_size: 0,
+                captures: vec![],
+                body: vec![],
+            }),
+            captures: vec![],
+        }));
         assert!(value_to_syntax(&val).is_err());
     }
 
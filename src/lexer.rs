@@ -1,8 +1,11 @@
+use std::borrow::Cow;
+use std::ops::Range;
+
 use crate::diagnostics::Diagnostic;
 use crate::source::{FileId, Span};
 
 #[derive(Debug, Clone, PartialEq)]
-pub enum TokenKind {
+pub enum TokenKind<'a> {
     LeftParen,
     RightParen,
     LeftBracket,
@@ -11,27 +14,133 @@ pub enum TokenKind {
     RightBrace,
     Dot,
     Colon,
-    Symbol(String),
-    Keyword(String),
+    Symbol(&'a str),
+    Keyword(&'a str),
     Integer(i64),
     Float(f64),
-    String(String),
+    String(Cow<'a, str>),
     Boolean(bool),
     Nil,
 }
 
 #[derive(Debug, Clone, PartialEq)]
-pub struct Token {
-    pub kind: TokenKind,
+pub struct Token<'a> {
+    pub kind: TokenKind<'a>,
     pub span: Span,
 }
 
-impl Token {
-    fn new(kind: TokenKind, span: Span) -> Self {
+impl<'a> Token<'a> {
+    fn new(kind: TokenKind<'a>, span: Span) -> Self {
         Self { kind, span }
     }
 }
 
+const SPACE: u8 = 1;
+const COMMENT: u8 = 1 << 1;
+const DIGIT: u8 = 1 << 2;
+const IDENT_START: u8 = 1 << 3;
+const IDENT_CONTINUE: u8 = 1 << 4;
+const OPERATOR: u8 = 1 << 5;
+
+const fn byte_classes() -> [u8; 256] {
+    let mut table = [0; 256];
+    let mut i = 0;
+    while i < 256 {
+        let b = i as u8;
+        let mut class = 0;
+        if matches!(b, b' ' | b'\t' | b'\n' | b'\r' | b',') {
+            class |= SPACE;
+        }
+        if b != b'\n' {
+            class |= COMMENT;
+        }
+        if b.is_ascii_digit() {
+            class |= DIGIT | IDENT_CONTINUE;
+        }
+        if b.is_ascii_alphabetic() || b == b'_' {
+            class |= IDENT_START | IDENT_CONTINUE;
+        }
+        if matches!(b, b'-' | b'!' | b'?') {
+            class |= IDENT_CONTINUE;
+        }
+        if matches!(
+            b,
+            b'+' | b'-' | b'*' | b'/' | b'<' | b'>' | b'=' | b'!' | b'&' | b'|' | b'%' | b'^' | b'~'
+        ) {
+            class |= OPERATOR;
+        }
+        table[i] = class;
+        i += 1;
+    }
+    table
+}
+
+static BYTE_CLASSES: [u8; 256] = byte_classes();
+
+fn is(class: u8, b: u8) -> bool {
+    BYTE_CLASSES[b as usize] & class != 0
+}
+
+const ONES: u64 = 0x0101_0101_0101_0101;
+const HIGHS: u64 = ONES * 0x80;
+const LOWS: u64 = ONES * 0x7f;
+
+fn nonzero_bytes(word: u64) -> u64 {
+    (((word & LOWS) + LOWS) | word) & HIGHS
+}
+
+fn bytes_equal(word: u64, b: u8) -> u64 {
+    !nonzero_bytes(word ^ (ONES * b as u64)) & HIGHS
+}
+
+fn bytes_in_range(word: u64, lo: u8, hi: u8) -> u64 {
+    let low = word & LOWS;
+    let at_least_lo = low + ONES * (0x80 - lo as u64);
+    let above_hi = low + ONES * (0x7f - hi as u64);
+    at_least_lo & !above_hi & !word & HIGHS
+}
+
+fn space_bytes(word: u64) -> u64 {
+    bytes_equal(word, b' ')
+        | bytes_equal(word, b'\n')
+        | bytes_equal(word, b'\t')
+        | bytes_equal(word, b'\r')
+        | bytes_equal(word, b',')
+}
+
+fn comment_bytes(word: u64) -> u64 {
+    !bytes_equal(word, b'\n') & HIGHS
+}
+
+fn digit_bytes(word: u64) -> u64 {
+    bytes_in_range(word, b'0', b'9')
+}
+
+fn ident_continue_bytes(word: u64) -> u64 {
+    bytes_in_range(word, b'a', b'z')
+        | bytes_in_range(word, b'A', b'Z')
+        | digit_bytes(word)
+        | bytes_equal(word, b'-')
+        | bytes_equal(word, b'_')
+        | bytes_equal(word, b'!')
+        | bytes_equal(word, b'?')
+}
+
+fn scan_run(bytes: &[u8], mut pos: usize, class: u8, word_class: fn(u64) -> u64) -> usize {
+    while let Some(chunk) = bytes.get(pos..pos + 8) {
+        let word = u64::from_le_bytes(chunk.try_into().expect("chunk is 8 bytes"));
+        let run = (!word_class(word) & HIGHS).trailing_zeros() as usize / 8;
+        pos += run;
+        if run < 8 {
+            return pos;
+        }
+    }
+    while bytes.get(pos).is_some_and(|&b| is(class, b)) {
+        pos += 1;
+    }
+    pos
+}
+
 struct Lexer<'a> {
     source: &'a str,
     bytes: &'a [u8],
@@ -67,27 +176,30 @@ impl<'a> Lexer<'a> {
 
     fn skip_whitespace_and_comments(&mut self) {
         loop {
-            match self.peek() {
-                Some(b' ' | b'\t' | b'\n' | b'\r' | b',') => {
-                    self.advance();
-                }
-                Some(b';') => {
-                    while let Some(b) = self.peek() {
-                        if b == b'\n' {
-                            break;
-                        }
-                        self.advance();
-                    }
-                }
-                _ => break,
+            self.pos = scan_run(self.bytes, self.pos, SPACE, space_bytes);
+            if self.peek() != Some(b';') {
+                break;
             }
+            self.pos = scan_run(self.bytes, self.pos, COMMENT, comment_bytes);
         }
     }
 
-    fn lex_string(&mut self) -> Token {
+    fn lex_string(&mut self) -> Token<'a> {
         let start = self.pos;
         self.advance();
-        let mut value = String::new();
+        let body = self.pos;
+        while let Some(b) = self.peek() {
+            match b {
+                b'"' => {
+                    let value = &self.source[body..self.pos];
+                    self.advance();
+                    return Token::new(TokenKind::String(Cow::Borrowed(value)), self.span(start));
+                }
+                b'\\' => break,
+                _ => self.pos += 1,
+            }
+        }
+        let mut value = self.source[body..self.pos].to_string();
 
         loop {
             match self.advance() {
@@ -96,10 +208,10 @@ impl<'a> Lexer<'a> {
                         "unterminated string literal",
                         self.span(start),
                     ));
-                    return Token::new(TokenKind::String(value), self.span(start));
+                    return Token::new(TokenKind::String(Cow::Owned(value)), self.span(start));
                 }
                 Some(b'"') => {
-                    return Token::new(TokenKind::String(value), self.span(start));
+                    return Token::new(TokenKind::String(Cow::Owned(value)), self.span(start));
                 }
                 Some(b'\\') => match self.advance() {
                     None => {
@@ -107,7 +219,7 @@ impl<'a> Lexer<'a> {
                             "unterminated string literal",
                             self.span(start),
                         ));
-                        return Token::new(TokenKind::String(value), self.span(start));
+                        return Token::new(TokenKind::String(Cow::Owned(value)), self.span(start));
                     }
                     Some(b'\\') => value.push('\\'),
                     Some(b'"') => value.push('"'),
@@ -167,28 +279,15 @@ impl<'a> Lexer<'a> {
         }
     }
 
-    fn lex_number(&mut self, start: usize) -> Token {
-        while let Some(b) = self.peek() {
-            if b.is_ascii_digit() {
-                self.advance();
-            } else {
-                break;
-            }
-        }
+    fn lex_number(&mut self, start: usize) -> Token<'a> {
+        self.pos = scan_run(self.bytes, self.pos, DIGIT, digit_bytes);
 
         if self.peek() == Some(b'.') {
             let dot_pos = self.pos;
-            if let Some(next) = self.bytes.get(dot_pos + 1)
-                && next.is_ascii_digit()
+            if let Some(&next) = self.bytes.get(dot_pos + 1)
+                && is(DIGIT, next)
             {
-                self.advance();
-                while let Some(b) = self.peek() {
-                    if b.is_ascii_digit() {
-                        self.advance();
-                    } else {
-                        break;
-                    }
-                }
+                self.pos = scan_run(self.bytes, dot_pos + 1, DIGIT, digit_bytes);
                 let text = &self.source[start..self.pos];
                 let val: f64 = match text.parse() {
                     Ok(v) => v,
@@ -218,66 +317,33 @@ impl<'a> Lexer<'a> {
         Token::new(TokenKind::Integer(val), self.span(start))
     }
 
-    fn is_ident_start(b: u8) -> bool {
-        b.is_ascii_alphabetic() || b == b'_'
-    }
-
-    fn is_ident_continue(b: u8) -> bool {
-        b.is_ascii_alphanumeric() || matches!(b, b'-' | b'_' | b'!' | b'?')
+    fn skip_ident_continue(&mut self, from: usize) {
+        self.pos = scan_run(self.bytes, from, IDENT_CONTINUE, ident_continue_bytes);
     }
 
-    fn is_operator_char(b: u8) -> bool {
-        matches!(
-            b,
-            b'+' | b'-'
-                | b'*'
-                | b'/'
-                | b'<'
-                | b'>'
-                | b'='
-                | b'!'
-                | b'&'
-                | b'|'
-                | b'%'
-                | b'^'
-                | b'~'
-        )
-    }
-
-    fn lex_alpha_symbol(&mut self) -> Token {
+    fn lex_alpha_symbol(&mut self) -> Token<'a> {
         let start = self.pos;
-        self.advance();
-        while let Some(b) = self.peek() {
-            if Self::is_ident_continue(b) {
-                self.advance();
-            } else {
-                break;
-            }
-        }
+        self.skip_ident_continue(start + 1);
         let text = &self.source[start..self.pos];
         let kind = match text {
             "true" => TokenKind::Boolean(true),
             "false" => TokenKind::Boolean(false),
             "nil" => TokenKind::Nil,
-            _ => TokenKind::Symbol(text.to_string()),
+            _ => TokenKind::Symbol(text),
         };
         Token::new(kind, self.span(start))
     }
 
-    fn lex_operator_symbol(&mut self) -> Token {
+    fn lex_operator_symbol(&mut self) -> Token<'a> {
         let start = self.pos;
-        while let Some(b) = self.peek() {
-            if Self::is_operator_char(b) {
-                self.advance();
-            } else {
-                break;
-            }
+        while self.peek().is_some_and(|b| is(OPERATOR, b)) {
+            self.pos += 1;
         }
         let text = &self.source[start..self.pos];
-        Token::new(TokenKind::Symbol(text.to_string()), self.span(start))
+        Token::new(TokenKind::Symbol(text), self.span(start))
     }
 
-    fn next_token(&mut self) -> Option<Token> {
+    fn next_token(&mut self) -> Option<Token<'a>> {
         self.skip_whitespace_and_comments();
 
         let b = self.peek()?;
@@ -321,29 +387,19 @@ impl<'a> Lexer<'a> {
                 let start = self.pos;
                 self.advance();
                 if let Some(next) = self.peek()
-                    && Self::is_ident_start(next)
+                    && is(IDENT_START, next)
                 {
-                    self.advance();
-                    while let Some(c) = self.peek() {
-                        if Self::is_ident_continue(c) {
-                            self.advance();
-                        } else {
-                            break;
-                        }
-                    }
+                    self.skip_ident_continue(self.pos + 1);
                     let text = &self.source[start + 1..self.pos];
-                    Some(Token::new(
-                        TokenKind::Keyword(text.to_string()),
-                        self.span(start),
-                    ))
+                    Some(Token::new(TokenKind::Keyword(text), self.span(start)))
                 } else {
                     Some(Token::new(TokenKind::Colon, self.span(start)))
                 }
             }
             b'"' => Some(self.lex_string()),
             b'-' => {
-                if let Some(next) = self.bytes.get(self.pos + 1)
-                    && next.is_ascii_digit()
+                if let Some(&next) = self.bytes.get(self.pos + 1)
+                    && is(DIGIT, next)
                 {
                     let start = self.pos;
                     self.advance();
@@ -352,12 +408,12 @@ impl<'a> Lexer<'a> {
                     Some(self.lex_operator_symbol())
                 }
             }
-            b if b.is_ascii_digit() => {
+            b if is(DIGIT, b) => {
                 let start = self.pos;
                 Some(self.lex_number(start))
             }
-            b if Self::is_ident_start(b) => Some(self.lex_alpha_symbol()),
-            b if Self::is_operator_char(b) => Some(self.lex_operator_symbol()),
+            b if is(IDENT_START, b) => Some(self.lex_alpha_symbol()),
+            b if is(OPERATOR, b) => Some(self.lex_operator_symbol()),
             _ => {
                 let start = self.pos;
                 self.advance();
@@ -369,29 +425,109 @@ impl<'a> Lexer<'a> {
             }
         }
     }
+}
 
-    fn lex_all(mut self) -> (Vec<Token>, Vec<Diagnostic>) {
-        let mut tokens = Vec::new();
-        while let Some(token) = self.next_token() {
-            tokens.push(token);
+pub struct TokenStream<'a> {
+    lexer: Lexer<'a>,
+    read: usize,
+}
+
+impl TokenStream<'_> {
+    pub fn tokens_read(&self) -> usize {
+        self.read
+    }
+
+    pub fn finish(&mut self) -> Vec<Diagnostic> {
+        while self.next().is_some() {}
+        std::mem::take(&mut self.lexer.diagnostics)
+    }
+}
+
+impl<'a> Iterator for TokenStream<'a> {
+    type Item = Token<'a>;
+
+    fn next(&mut self) -> Option<Token<'a>> {
+        let token = self.lexer.next_token()?;
+        self.read += 1;
+        Some(token)
+    }
+}
+
+pub fn stream(source: &str, file: FileId) -> TokenStream<'_> {
+    stream_range(source, file, 0..source.len())
+}
+
+pub fn stream_range(source: &str, file: FileId, range: Range<usize>) -> TokenStream<'_> {
+    let mut lexer = Lexer::new(&source[..range.end], file);
+    lexer.pos = range.start;
+    TokenStream { lexer, read: 0 }
+}
+
+fn skip_string(bytes: &[u8], mut pos: usize) -> usize {
+    while let Some(&b) = bytes.get(pos) {
+        pos += 1;
+        match b {
+            b'"' => return pos,
+            b'\\' if bytes.get(pos) == Some(&b'u') => {
+                pos += 1;
+                for _ in 0..4 {
+                    let Some(&digit) = bytes.get(pos) else {
+                        break;
+                    };
+                    pos += 1;
+                    if !digit.is_ascii_hexdigit() {
+                        break;
+                    }
+                }
+            }
+            b'\\' => pos += 1,
+            _ => {}
+        }
+    }
+    bytes.len()
+}
+
+pub fn split_top_level(source: &str, target: usize) -> Vec<Range<usize>> {
+    let bytes = source.as_bytes();
+    let mut chunks = Vec::new();
+    let (mut start, mut pos, mut depth) = (0, 0, 0usize);
+    while let Some(&b) = bytes.get(pos) {
+        pos += 1;
+        match b {
+            b'"' => pos = skip_string(bytes, pos),
+            b';' => pos = scan_run(bytes, pos, COMMENT, comment_bytes),
+            b'(' | b'[' | b'{' => depth += 1,
+            b')' | b']' | b'}' => {
+                depth = depth.saturating_sub(1);
+                if depth == 0 && pos - start >= target {
+                    chunks.push(start..pos);
+                    start = pos;
+                }
+            }
+            _ => {}
         }
-        (tokens, self.diagnostics)
     }
+    if start < bytes.len() || chunks.is_empty() {
+        chunks.push(start..bytes.len());
+    }
+    chunks
 }
 
-pub fn lex(source: &str, file: FileId) -> (Vec<Token>, Vec<Diagnostic>) {
-    Lexer::new(source, file).lex_all()
+pub fn lex(source: &str, file: FileId) -> (Vec<Token<'_>>, Vec<Diagnostic>) {
+    let mut tokens = stream(source, file);
+    let collected = tokens.by_ref().collect();
+    (collected, tokens.finish())
 }
 
 #[cfg(test)]
 mod tests {
     use super::*;
 
-    fn lex_test(source: &str) -> (Vec<Token>, Vec<Diagnostic>) {
+    fn lex_test(source: &str) -> (Vec<Token<'_>>, Vec<Diagnostic>) {
         lex(source, FileId::new(0))
     }
 
-    fn kinds(source: &str) -> Vec<TokenKind> {
+    fn kinds(source: &str) -> Vec<TokenKind<'_>> {
         lex_test(source).0.into_iter().map(|t| t.kind).collect()
     }
 
@@ -452,6 +588,54 @@ mod tests {
         assert_eq!(kinds(r#""\u0041""#), vec![TokenKind::String("A".into())]);
     }
 
+    #[test]
+    fn word_classes_agree_with_the_byte_table() {
+        let classes: [(u8, fn(u64) -> u64); 4] = [
+            (SPACE, space_bytes),
+            (COMMENT, comment_bytes),
+            (DIGIT, digit_bytes),
+            (IDENT_CONTINUE, ident_continue_bytes),
+        ];
+        for b in 0..=255u8 {
+            let mut bytes = *b"abcdefgh";
+            bytes[5] = b;
+            let word = u64::from_le_bytes(bytes);
+            for (class, word_class) in classes {
+                let flagged = word_class(word) & (0x80 << 40) != 0;
+                assert_eq!(flagged, is(class, b), "byte {:#04x}, class {}", b, class);
+            }
+        }
+    }
+
+    #[test]
+    fn long_runs_cross_word_boundaries() {
+        let source = "\t\n      (defn a-really-long-identifier-name? []\
+                      ; comment \u{e9} running past a word\n\
+                      :keyword-long-enough 1234567890123 3.14159265358)";
+        let symbol = TokenKind::Symbol;
+        assert_eq!(
+            kinds(source),
+            vec![
+                TokenKind::LeftParen,
+                symbol("defn"),
+                symbol("a-really-long-identifier-name?"),
+                TokenKind::LeftBracket,
+                TokenKind::RightBracket,
+                TokenKind::Keyword("keyword-long-enough"),
+                TokenKind::Integer(1234567890123),
+                TokenKind::Float(3.14159265358),
+                TokenKind::RightParen,
+            ]
+        );
+    }
+
+    #[test]
+    fn only_escaped_strings_allocate() {
+        let kinds = kinds(r#""plain text" "line\nbreak""#);
+        assert!(matches!(&kinds[0], TokenKind::String(Cow::Borrowed("plain text"))));
+        assert!(matches!(&kinds[1], TokenKind::String(Cow::Owned(s)) if s == "line\nbreak"));
+    }
+
     #[test]
     fn unterminated_string() {
         let (tokens, diags) = lex_test(r#""oops"#);
@@ -476,29 +660,29 @@ mod tests {
 
     #[test]
     fn symbols_alphabetic() {
-        assert_eq!(kinds("foo"), vec![TokenKind::Symbol("foo".into())]);
-        assert_eq!(kinds("defn"), vec![TokenKind::Symbol("defn".into())]);
+        assert_eq!(kinds("foo"), vec![TokenKind::Symbol("foo")]);
+        assert_eq!(kinds("defn"), vec![TokenKind::Symbol("defn")]);
         assert_eq!(
             kinds("handle-tool-call"),
-            vec![TokenKind::Symbol("handle-tool-call".into())]
+            vec![TokenKind::Symbol("handle-tool-call")]
         );
-        assert_eq!(kinds("empty?"), vec![TokenKind::Symbol("empty?".into())]);
-        assert_eq!(kinds("set!"), vec![TokenKind::Symbol("set!".into())]);
-        assert_eq!(kinds("_unused"), vec![TokenKind::Symbol("_unused".into())]);
+        assert_eq!(kinds("empty?"), vec![TokenKind::Symbol("empty?")]);
+        assert_eq!(kinds("set!"), vec![TokenKind::Symbol("set!")]);
+        assert_eq!(kinds("_unused"), vec![TokenKind::Symbol("_unused")]);
     }
 
     #[test]
     fn symbols_operator() {
-        assert_eq!(kinds("+"), vec![TokenKind::Symbol("+".into())]);
-        assert_eq!(kinds(">="), vec![TokenKind::Symbol(">=".into())]);
-        assert_eq!(kinds("!="), vec![TokenKind::Symbol("!=".into())]);
-        assert_eq!(kinds("&&"), vec![TokenKind::Symbol("&&".into())]);
+        assert_eq!(kinds("+"), vec![TokenKind::Symbol("+")]);
+        assert_eq!(kinds(">="), vec![TokenKind::Symbol(">=")]);
+        assert_eq!(kinds("!="), vec![TokenKind::Symbol("!=")]);
+        assert_eq!(kinds("&&"), vec![TokenKind::Symbol("&&")]);
     }
 
     #[test]
     fn keywords() {
-        assert_eq!(kinds(":name"), vec![TokenKind::Keyword("name".into())]);
-        assert_eq!(kinds(":else"), vec![TokenKind::Keyword("else".into())]);
+        assert_eq!(kinds(":name"), vec![TokenKind::Keyword("name")]);
+        assert_eq!(kinds(":else"), vec![TokenKind::Keyword("else")]);
     }
 
     #[test]
@@ -507,9 +691,9 @@ mod tests {
             kinds("[x : Int]"),
             vec![
                 TokenKind::LeftBracket,
-                TokenKind::Symbol("x".into()),
+                TokenKind::Symbol("x"),
                 TokenKind::Colon,
-                TokenKind::Symbol("Int".into()),
+                TokenKind::Symbol("Int"),
                 TokenKind::RightBracket,
             ]
         );
@@ -522,7 +706,7 @@ mod tests {
             kinds("(- 42)"),
             vec![
                 TokenKind::LeftParen,
-                TokenKind::Symbol("-".into()),
+                TokenKind::Symbol("-"),
                 TokenKind::Integer(42),
                 TokenKind::RightParen,
             ]
@@ -545,9 +729,9 @@ mod tests {
         assert_eq!(
             kinds("vex.http"),
             vec![
-                TokenKind::Symbol("vex".into()),
+                TokenKind::Symbol("vex"),
                 TokenKind::Dot,
-                TokenKind::Symbol("http".into()),
+                TokenKind::Symbol("http"),
             ]
         );
     }
@@ -559,12 +743,12 @@ mod tests {
             kinds(source),
             vec![
                 TokenKind::LeftParen,
-                TokenKind::Symbol("defn".into()),
-                TokenKind::Symbol("main".into()),
+                TokenKind::Symbol("defn"),
+                TokenKind::Symbol("main"),
                 TokenKind::LeftBracket,
                 TokenKind::RightBracket,
                 TokenKind::LeftParen,
-                TokenKind::Symbol("println".into()),
+                TokenKind::Symbol("println"),
                 TokenKind::String("Hello, World!".into()),
                 TokenKind::RightParen,
                 TokenKind::RightParen,
@@ -604,7 +788,7 @@ mod tests {
             vec![
                 TokenKind::Integer(42),
                 TokenKind::Dot,
-                TokenKind::Symbol("foo".into()),
+                TokenKind::Symbol("foo"),
             ]
         );
     }
@@ -624,10 +808,43 @@ mod tests {
             kinds("{:a 1}"),
             vec![
                 TokenKind::LeftBrace,
-                TokenKind::Keyword("a".into()),
+                TokenKind::Keyword("a"),
                 TokenKind::Integer(1),
                 TokenKind::RightBrace,
             ]
         );
     }
+
+    #[test]
+    fn stream_lexes_on_demand_and_drains_on_finish() {
+        let mut tokens = stream("(a) $ b", FileId::new(0));
+        assert_eq!(tokens.next().map(|t| t.kind), Some(TokenKind::LeftParen));
+        assert_eq!(tokens.tokens_read(), 1);
+        let diagnostics = tokens.finish();
+        assert_eq!(tokens.tokens_read(), 4);
+        assert_eq!(diagnostics.len(), 1);
+        assert!(tokens.next().is_none());
+    }
+
+    #[test]
+    fn top_level_chunks_lex_like_the_whole_source() {
+        let source = r#"(a "x)\"(" b) ; c) (
+[1 2] (d "\u00z)" e) ) :k (f"#;
+        let (whole, whole_diagnostics) = lex_test(source);
+        let chunks = split_top_level(source, 1);
+        assert_eq!(chunks.len(), 5);
+        let mut tokens = Vec::new();
+        let mut diagnostics = Vec::new();
+        for range in chunks {
+            let mut stream = stream_range(source, FileId::new(0), range);
+            tokens.extend(stream.by_ref());
+            diagnostics.extend(stream.finish());
+        }
+        assert_eq!(tokens, whole);
+        let spans = |diagnostics: &[Diagnostic]| -> Vec<Span> {
+            diagnostics.iter().map(|d| d.span).collect()
+        };
+        assert_eq!(spans(&diagnostics), spans(&whole_diagnostics));
+        assert_eq!(split_top_level(source, source.len()), vec![0..source.len()]);
+    }
 }
@@ -1,27 +1,75 @@
+pub mod alloc_stats;
 pub mod ast;
+pub mod binary_cache;
 pub mod builtins;
+pub mod bytecode;
+pub mod cache;
 pub mod codegen;
+pub mod content_hash;
+pub mod daemon;
 pub mod diagnostics;
 pub mod hir;
+pub mod instrument;
 pub mod interpreter;
 pub mod lexer;
 pub mod macro_expand;
+pub mod module_graph;
+pub mod parallel;
 pub mod parser;
+pub mod persistent;
+pub mod repl;
+pub mod resolve;
+pub mod scheduler;
 pub mod source;
+pub mod summary;
+pub mod symbol;
+pub mod tailcall;
 pub mod typechecker;
 pub mod types;
+pub mod vm;
+pub mod workspace;
 
+use cache::{CompiledModule, ModuleCache};
 use diagnostics::Diagnostic;
-use source::SourceMap;
+use instrument::{Counts, Phase, Timings};
+use module_graph::{Import, ModuleGraph, ModuleNode};
+use source::{FileId, SourceMap};
+use std::collections::HashMap;
 use std::path::{Path, PathBuf};
+use std::time::Instant;
+use summary::Summary;
 use types::VexType;
 
+pub use module_graph::{collect_imports, resolve_module_path};
+pub use summary::collect_exports;
+
 pub struct VexrtFiles {
     pub option_go: String,
     pub result_go: String,
     pub collections_go: String,
 }
 
+impl VexrtFiles {
+    pub fn generate() -> Self {
+        Self {
+            option_go: codegen::generate_vexrt_option(),
+            result_go: codegen::generate_vexrt_result(),
+            collections_go: codegen::generate_vexrt_collections(),
+        }
+    }
+
+    pub fn go_files(&self) -> Vec<(PathBuf, &str)> {
+        vec![
+            (PathBuf::from("vexrt/option.go"), self.option_go.as_str()),
+            (PathBuf::from("vexrt/result.go"), self.result_go.as_str()),
+            (
+                PathBuf::from("vexrt/collections.go"),
+                self.collections_go.as_str(),
+            ),
+        ]
+    }
+}
+
 pub struct GoPackage {
     pub name: String,
     pub source: String,
@@ -32,43 +80,27 @@ pub struct CompileResult {
     pub go_mod: String,
     pub vexrt: Option<VexrtFiles>,
     pub extra_packages: Vec<GoPackage>,
+    pub cached_modules: usize,
     pub diagnostics: Vec<Diagnostic>,
     pub source_map: SourceMap,
 }
 
-pub fn resolve_module_path(source_dir: &Path, module_name: &str) -> PathBuf {
-    let parts: Vec<&str> = module_name.split('.').collect();
-    let mut path = source_dir.to_path_buf();
-    for part in &parts[..parts.len() - 1] {
-        path.push(part);
+impl CompileResult {
+    pub fn go_files(&self) -> Vec<(PathBuf, &str)> {
+        let mut files = vec![
+            (PathBuf::from("go.mod"), self.go_mod.as_str()),
+            (PathBuf::from("main.go"), self.go_source.as_str()),
+        ];
+        if let Some(vexrt) = &self.vexrt {
+            files.extend(vexrt.go_files());
+        }
+        for pkg in &self.extra_packages {
+            let file_name = pkg.name.rsplit('/').next().unwrap_or(&pkg.name);
+            let path = Path::new(&pkg.name).join(format!("{}.go", file_name));
+            files.push((path, pkg.source.as_str()));
+        }
+        files
     }
-    path.push(format!("{}.vx", parts[parts.len() - 1]));
-    path
-}
-
-pub fn collect_imports(program: &[ast::TopForm]) -> Vec<(String, Vec<String>)> {
-    program
-        .iter()
-        .filter_map(|form| match form {
-            ast::TopForm::Import {
-                module_path,
-                symbols,
-                ..
-            } => Some((module_path.clone(), symbols.clone())),
-            _ => None,
-        })
-        .collect()
-}
-
-pub fn collect_exports(program: &[ast::TopForm]) -> Vec<String> {
-    program
-        .iter()
-        .filter_map(|form| match form {
-            ast::TopForm::Export { symbols, .. } => Some(symbols.clone()),
-            _ => None,
-        })
-        .flatten()
-        .collect()
 }
 
 pub fn extract_exported_types(
@@ -103,153 +135,391 @@ pub fn extract_exported_types(
     result
 }
 
-fn compile_single(
-    source: &str,
-    file_name: &str,
-    source_map: &mut SourceMap,
-    imported_symbols: &[(String, VexType)],
-) -> Result<(Vec<ast::TopForm>, hir::Module), Vec<Diagnostic>> {
-    let file_id = source_map.add_file(file_name.to_string(), source.to_string());
-    let (tokens, lex_diags) = lexer::lex(source, file_id);
-    if !lex_diags.is_empty() {
-        return Err(lex_diags);
+type LinkedImports = (Vec<(String, VexType)>, HashMap<String, String>);
+
+fn package_name(module_name: &str) -> String {
+    module_name.replace('.', "/")
+}
+
+fn link_imports(
+    imports: &[Import],
+    graph: &ModuleGraph,
+    summaries: &[Option<Summary>],
+    importer: FileId,
+) -> Result<LinkedImports, Vec<Diagnostic>> {
+    let mut diagnostics = Vec::new();
+    let mut imported_symbols = Vec::new();
+    let mut import_map = HashMap::new();
+    for import in imports {
+        let Some(summary) = &summaries[import.module] else {
+            continue;
+        };
+        let module_name = &graph.modules[import.module].name;
+        for sym in &import.symbols {
+            if !summary.exports.contains(sym) {
+                diagnostics.push(Diagnostic::error(
+                    format!(
+                        "symbol '{}' is not exported by module '{}'",
+                        sym, module_name
+                    ),
+                    source::Span::new(importer, 0, 0),
+                ));
+            }
+            import_map.insert(sym.clone(), package_name(module_name));
+        }
+        imported_symbols.extend(summary.select(&import.symbols));
     }
+    if diagnostics.is_empty() {
+        Ok((imported_symbols, import_map))
+    } else {
+        Err(diagnostics)
+    }
+}
 
-    let (ast, parse_diags) = parser::parse(&tokens);
-    if !parse_diags.is_empty() {
-        return Err(parse_diags);
+fn expand_module(
+    node: &ModuleNode,
+    timings: Option<&Timings>,
+) -> Result<Vec<ast::TopForm>, Vec<Diagnostic>> {
+    let (ast, expand_diags) = instrument::measure(
+        timings,
+        &node.name,
+        Phase::Expand,
+        || macro_expand::expand(node.ast.clone()),
+        |(ast, _)| Counts::forms(ast.len()),
+    );
+    if expand_diags.is_empty() {
+        Ok(ast)
+    } else {
+        Err(expand_diags)
     }
+}
 
-    let (ast, expand_diags) = macro_expand::expand(ast);
-    if !expand_diags.is_empty() {
-        return Err(expand_diags);
+struct Prepared {
+    ast: Option<Vec<ast::TopForm>>,
+    summary: Option<Summary>,
+}
+
+struct GraphOutput {
+    compiled: Vec<Option<CompiledModule>>,
+    summaries: Vec<Option<Summary>>,
+    diagnostics: Vec<Diagnostic>,
+    cache_hits: usize,
+}
+
+struct GraphBuild<'a> {
+    graph: &'a ModuleGraph,
+    source_map: &'a SourceMap,
+    cache: Option<&'a ModuleCache>,
+    timings: Option<&'a Timings>,
+}
+
+impl GraphBuild<'_> {
+    fn source(&self, node: &ModuleNode) -> &str {
+        node.file_id.map_or("", |file_id| self.source_map.source(file_id))
     }
 
-    let (hir_module, check_diags) = typechecker::check_with_imports(&ast, imported_symbols);
-    if !check_diags.is_empty() {
-        return Err(check_diags);
+    fn prepare(&self, index: usize) -> Result<Prepared, Vec<Diagnostic>> {
+        let node = &self.graph.modules[index];
+        let key = cache::module_key(&node.name, self.source(node), &[]);
+        if let Some(summary) = self.cache.and_then(|cache| cache.load_interface(key)) {
+            return Ok(Prepared {
+                ast: None,
+                summary: Some(summary),
+            });
+        }
+
+        let ast = expand_module(node, self.timings)?;
+        let summary = instrument::measure(
+            self.timings,
+            &node.name,
+            Phase::Summarize,
+            || summary::extract(&ast),
+            |_| Counts::forms(ast.len()),
+        );
+        if let (Some(cache), Some(summary)) = (self.cache, &summary) {
+            cache.store_interface(key, summary).ok();
+        }
+        Ok(Prepared {
+            ast: Some(ast),
+            summary,
+        })
     }
 
-    Ok((ast, hir_module))
+    fn compile(
+        &self,
+        index: usize,
+        prepared: &Prepared,
+        summaries: &[Option<Summary>],
+    ) -> Result<(CompiledModule, bool), Vec<Diagnostic>> {
+        let node = &self.graph.modules[index];
+        let key = self.cache.map(|_| {
+            let signatures: Vec<_> = node
+                .imports
+                .iter()
+                .filter_map(|import| {
+                    let summary = summaries[import.module].as_ref()?;
+                    let name = self.graph.modules[import.module].name.as_str();
+                    Some((name, import.symbols.as_slice(), summary.signature()))
+                })
+                .collect();
+            cache::module_key(&node.name, self.source(node), &signatures)
+        });
+        if let (Some(cache), Some(key)) = (self.cache, key)
+            && let Some(module) = cache.load(key)
+        {
+            return Ok((module, true));
+        }
+
+        let file_id = node.file_id.unwrap_or(FileId::new(0));
+        let (imported_symbols, import_map) =
+            link_imports(&node.imports, self.graph, summaries, file_id)?;
+        let expanded;
+        let ast = match &prepared.ast {
+            Some(ast) => ast,
+            None => {
+                expanded = expand_module(node, self.timings)?;
+                &expanded
+            }
+        };
+
+        let (hir, check_diags) = instrument::measure(
+            self.timings,
+            &node.name,
+            Phase::Check,
+            || typechecker::check_with_imports(ast, &imported_symbols),
+            |_| Counts::forms(ast.len()),
+        );
+        if !check_diags.is_empty() {
+            return Err(check_diags);
+        }
+
+        let go_source = instrument::measure(
+            self.timings,
+            &node.name,
+            Phase::Codegen,
+            || codegen::generate_package_with_imports(&hir, &package_name(&node.name), &import_map),
+            |go_source| Counts::output_bytes(go_source.len()),
+        );
+        let exports = collect_exports(ast);
+        let module = CompiledModule {
+            summary: Summary {
+                types: extract_exported_types(&hir, &exports),
+                exports,
+            },
+            go_source,
+        };
+        if let (Some(cache), Some(key)) = (self.cache, key) {
+            cache.store(key, &module).ok();
+        }
+        Ok((module, false))
+    }
+
+    fn run(&self) -> GraphOutput {
+        let graph = self.graph;
+        let count = graph.modules.len();
+        let mut failures: Vec<Vec<Diagnostic>> = vec![Vec::new(); count];
+        let mut prepared: Vec<Option<Prepared>> = (0..count).map(|_| None).collect();
+        let mut summaries: Vec<Option<Summary>> = vec![None; count];
+        let mut compiled: Vec<Option<CompiledModule>> = (0..count).map(|_| None).collect();
+        let mut cache_hits = 0;
+
+        let candidates: Vec<usize> = graph
+            .order
+            .iter()
+            .copied()
+            .filter(|&index| {
+                let node = &graph.modules[index];
+                node.file_id.is_some() && node.diagnostics.is_empty()
+            })
+            .collect();
+        let results = parallel::map(&candidates, |&index| self.prepare(index));
+        for (&index, result) in candidates.iter().zip(results) {
+            match result {
+                Ok(module) => {
+                    summaries[index] = module.summary.clone();
+                    prepared[index] = Some(module);
+                }
+                Err(diags) => failures[index] = diags,
+            }
+        }
+
+        let mut pending: Vec<usize> = candidates
+            .into_iter()
+            .filter(|&index| prepared[index].is_some())
+            .collect();
+        loop {
+            let (ready, waiting): (Vec<usize>, Vec<usize>) =
+                pending.into_iter().partition(|&index| {
+                    graph.modules[index]
+                        .imports
+                        .iter()
+                        .all(|import| summaries[import.module].is_some())
+                });
+            if ready.is_empty() {
+                break;
+            }
+
+            let done = &summaries;
+            let results = parallel::map(&ready, |&index| {
+                let Some(module) = &prepared[index] else {
+                    return Err(Vec::new());
+                };
+                self.compile(index, module, done)
+            });
+            for (index, result) in ready.into_iter().zip(results) {
+                match result {
+                    Ok((module, hit)) => {
+                        cache_hits += hit as usize;
+                        summaries[index] = Some(module.summary.clone());
+                        compiled[index] = Some(module);
+                    }
+                    Err(diags) => failures[index] = diags,
+                }
+            }
+            pending = waiting;
+        }
+
+        let diagnostics = graph
+            .order
+            .iter()
+            .flat_map(|&index| {
+                graph.modules[index]
+                    .diagnostics
+                    .iter()
+                    .cloned()
+                    .chain(std::mem::take(&mut failures[index]))
+            })
+            .collect();
+        GraphOutput {
+            compiled,
+            summaries,
+            diagnostics,
+            cache_hits,
+        }
+    }
+}
+
+#[derive(Default, Clone, Copy)]
+pub struct CompileOptions<'a> {
+    pub cache: Option<&'a ModuleCache>,
+    pub timings: Option<&'a Timings>,
 }
 
 pub fn compile(source: &str, file_name: &str) -> CompileResult {
+    compile_with(source, file_name, CompileOptions::default())
+}
+
+pub fn compile_with(source: &str, file_name: &str, options: CompileOptions) -> CompileResult {
+    let started = Instant::now();
+    let result = compile_phases(source, file_name, options);
+    if let Some(timings) = options.timings {
+        timings.record_wall(started.elapsed());
+    }
+    result
+}
+
+fn compile_phases(source: &str, file_name: &str, options: CompileOptions) -> CompileResult {
+    let CompileOptions { cache, timings } = options;
     let mut source_map = SourceMap::new();
-    let mut all_diagnostics = Vec::new();
-    let mut extra_packages = Vec::new();
-    let mut imported_symbols: Vec<(String, VexType)> = Vec::new();
 
     let source_path = Path::new(file_name);
     let source_dir = source_path.parent().unwrap_or(Path::new("."));
 
     let file_id = source_map.add_file(file_name.to_string(), source.to_string());
-    let (tokens, lex_diags) = lexer::lex(source, file_id);
-    if !lex_diags.is_empty() {
+    let parsed = instrument::measure(
+        timings,
+        file_name,
+        Phase::Parse,
+        || parser::parse_source(source, file_id),
+        |parsed| Counts {
+            tokens: parsed.tokens,
+            forms: parsed.forms.len(),
+            output_bytes: 0,
+        },
+    );
+    if !parsed.diagnostics.is_empty() {
         return CompileResult {
             go_source: String::new(),
             go_mod: String::new(),
             vexrt: None,
             extra_packages: Vec::new(),
-            diagnostics: lex_diags,
+            cached_modules: 0,
+            diagnostics: parsed.diagnostics,
             source_map,
         };
     }
+    let main_ast = parsed.forms;
 
-    let (main_ast, parse_diags) = parser::parse(&tokens);
-    if !parse_diags.is_empty() {
-        return CompileResult {
-            go_source: String::new(),
-            go_mod: String::new(),
-            vexrt: None,
-            extra_packages: Vec::new(),
-            diagnostics: parse_diags,
-            source_map,
-        };
-    }
-
-    let (main_ast, expand_diags) = macro_expand::expand(main_ast);
+    let (main_ast, expand_diags) = instrument::measure(
+        timings,
+        file_name,
+        Phase::Expand,
+        || macro_expand::expand(main_ast),
+        |(ast, _)| Counts::forms(ast.len()),
+    );
     if !expand_diags.is_empty() {
         return CompileResult {
             go_source: String::new(),
             go_mod: String::new(),
             vexrt: None,
             extra_packages: Vec::new(),
+            cached_modules: 0,
             diagnostics: expand_diags,
             source_map,
         };
     }
 
     let imports = collect_imports(&main_ast);
-    for (module_path, symbols) in &imports {
-        let module_file = resolve_module_path(source_dir, module_path);
-        let module_source = match std::fs::read_to_string(&module_file) {
-            Ok(s) => s,
-            Err(_) => {
-                all_diagnostics.push(Diagnostic::error(
-                    format!(
-                        "could not find module '{}' (looked for {})",
-                        module_path,
-                        module_file.display()
-                    ),
-                    source::Span::new(file_id, 0, 0),
-                ));
-                continue;
-            }
-        };
-
-        let module_file_name = module_file.display().to_string();
-        match compile_single(&module_source, &module_file_name, &mut source_map, &[]) {
-            Ok((dep_ast, dep_hir)) => {
-                let exported = collect_exports(&dep_ast);
-                for sym in symbols {
-                    if !exported.contains(sym) {
-                        all_diagnostics.push(Diagnostic::error(
-                            format!(
-                                "symbol '{}' is not exported by module '{}'",
-                                sym, module_path
-                            ),
-                            source::Span::new(file_id, 0, 0),
-                        ));
-                    }
-                }
-
-                let types = extract_exported_types(&dep_hir, symbols);
-                imported_symbols.extend(types);
-
-                let pkg_name = module_path.replace('.', "/");
-                let go_source = codegen::generate_package(&dep_hir, &pkg_name);
-                extra_packages.push(GoPackage {
-                    name: pkg_name,
-                    source: go_source,
-                });
-            }
-            Err(diags) => {
-                all_diagnostics.extend(diags);
-            }
-        }
+    let graph = module_graph::build(source_dir, file_id, &imports, &mut source_map, timings);
+    let GraphOutput {
+        mut compiled,
+        summaries,
+        diagnostics: mut all_diagnostics,
+        cache_hits,
+    } = GraphBuild {
+        graph: &graph,
+        source_map: &source_map,
+        cache,
+        timings,
     }
+    .run();
+    let linked = link_imports(&graph.roots, &graph, &summaries, file_id);
 
-    if !all_diagnostics.is_empty() {
-        return CompileResult {
-            go_source: String::new(),
-            go_mod: String::new(),
-            vexrt: None,
-            extra_packages: Vec::new(),
-            diagnostics: all_diagnostics,
-            source_map,
-        };
-    }
+    let (imported_symbols, import_map) = match linked {
+        Ok(linked) if all_diagnostics.is_empty() => linked,
+        linked => {
+            all_diagnostics.extend(linked.err().unwrap_or_default());
+            return CompileResult {
+                go_source: String::new(),
+                go_mod: String::new(),
+                vexrt: None,
+                extra_packages: Vec::new(),
+                cached_modules: 0,
+                diagnostics: all_diagnostics,
+                source_map,
+            };
+        }
+    };
 
-    let import_map: std::collections::HashMap<String, String> = imports
+    let extra_packages = graph
+        .order
         .iter()
-        .flat_map(|(module_path, symbols)| {
-            symbols
-                .iter()
-                .map(move |sym| (sym.clone(), module_path.replace('.', "/")))
+        .filter_map(|&index| {
+            let module = compiled[index].take()?;
+            Some(GoPackage {
+                name: package_name(&graph.modules[index].name),
+                source: module.go_source,
+            })
         })
         .collect();
 
-    let (hir_module, check_diags) = typechecker::check_with_imports(&main_ast, &imported_symbols);
+    let (hir_module, check_diags) = instrument::measure(
+        timings,
+        file_name,
+        Phase::Check,
+        || typechecker::check_with_imports(&main_ast, &imported_symbols),
+        |_| Counts::forms(main_ast.len()),
+    );
 
     if !check_diags.is_empty() {
         return CompileResult {
@@ -257,31 +527,31 @@ pub fn compile(source: &str, file_name: &str) -> CompileResult {
             go_mod: String::new(),
             vexrt: None,
             extra_packages: Vec::new(),
+            cached_modules: 0,
             diagnostics: check_diags,
             source_map,
         };
     }
 
-    let go_source = codegen::generate_with_imports(&hir_module, &import_map);
+    let go_source = instrument::measure(
+        timings,
+        file_name,
+        Phase::Codegen,
+        || codegen::generate_with_imports(&hir_module, &import_map),
+        |go_source| Counts::output_bytes(go_source.len()),
+    );
     let go_mod = codegen::generate_go_mod();
 
     let needs_rt = codegen::needs_vexrt(&hir_module);
 
-    let vexrt = if needs_rt {
-        Some(VexrtFiles {
-            option_go: codegen::generate_vexrt_option(),
-            result_go: codegen::generate_vexrt_result(),
-            collections_go: codegen::generate_vexrt_collections(),
-        })
-    } else {
-        None
-    };
+    let vexrt = needs_rt.then(VexrtFiles::generate);
 
     CompileResult {
         go_source,
         go_mod,
         vexrt,
         extra_packages,
+        cached_modules: cache_hits,
         diagnostics: Vec::new(),
         source_map,
     }
@@ -533,4 +803,300 @@ mod tests {
         );
         assert!(result.go_source.contains("func main()"));
     }
+
+    #[test]
+    fn modules_example_compiles_packages_in_import_order() {
+        let source = std::fs::read_to_string("examples/modules/main.vx")
+            .expect("modules/main.vx should exist");
+        let result = compile(&source, "examples/modules/main.vx");
+        assert!(
+            result.diagnostics.is_empty(),
+            "diagnostics: {:?}",
+            result.diagnostics
+        );
+        let names: Vec<&str> = result.extra_packages.iter().map(|p| p.name.as_str()).collect();
+        assert_eq!(names, ["math"]);
+    }
+
+    #[test]
+    fn import_diagnostics_follow_import_order() {
+        let dir = std::env::temp_dir().join(format!("vex-imports-{}", std::process::id()));
+        std::fs::create_dir_all(&dir).expect("temp dir should be writable");
+        std::fs::write(dir.join("broken.vx"), "(module broken) (defn f [] : Int \"no\")")
+            .expect("module should be writable");
+        let main = dir.join("main.vx");
+        let result = compile(
+            "(import missing [a]) (import broken [f]) (import gone [b])",
+            &main.display().to_string(),
+        );
+        std::fs::remove_dir_all(&dir).ok();
+        let messages: Vec<&str> = result
+            .diagnostics
+            .iter()
+            .map(|d| d.message.as_str())
+            .collect();
+        assert_eq!(messages.len(), 3, "{:?}", messages);
+        assert!(messages[0].contains("'missing'"));
+        assert!(messages[1].contains("return type"));
+        assert!(messages[2].contains("'gone'"));
+    }
+
+    fn compile_project(name: &str, files: &[(&str, &str)], main: &str) -> CompileResult {
+        let dir = std::env::temp_dir().join(format!("vex-{}-{}", name, std::process::id()));
+        std::fs::create_dir_all(&dir).expect("temp dir should be writable");
+        for (file, source) in files {
+            std::fs::write(dir.join(file), source).expect("module should be writable");
+        }
+        let result = compile(main, &dir.join("main.vx").display().to_string());
+        std::fs::remove_dir_all(&dir).ok();
+        result
+    }
+
+    #[test]
+    fn transitive_imports_pass_exported_types_to_dependents() {
+        let result = compile_project(
+            "transitive",
+            &[
+                (
+                    "geometry.vx",
+                    "(module geometry) (import math [square]) (export [area])
+                     (defn area [n : Int] : Int (square n))",
+                ),
+                (
+                    "math.vx",
+                    "(module math) (export [square]) (defn square [n : Int] : Int (* n n))",
+                ),
+            ],
+            "(import geometry [area]) (defn main [] (println (str (area 3))))",
+        );
+        assert!(
+            result.diagnostics.is_empty(),
+            "diagnostics: {:?}",
+            result.diagnostics
+        );
+        let names: Vec<&str> = result.extra_packages.iter().map(|p| p.name.as_str()).collect();
+        assert_eq!(names, ["math", "geometry"]);
+        assert!(result.extra_packages[1].source.contains("math.Square"));
+    }
+
+    #[test]
+    fn shared_imports_compile_once() {
+        let result = compile_project(
+            "diamond",
+            &[
+                (
+                    "left.vx",
+                    "(module left) (import base [one]) (export [two])
+                     (defn two [] : Int (+ (one) 1))",
+                ),
+                (
+                    "right.vx",
+                    "(module right) (import base [one]) (export [three])
+                     (defn three [] : Int (+ (one) 2))",
+                ),
+                ("base.vx", "(module base) (export [one]) (defn one [] : Int 1)"),
+            ],
+            "(import left [two]) (import right [three])
+             (defn main [] (println (str (+ (two) (three)))))",
+        );
+        assert!(
+            result.diagnostics.is_empty(),
+            "diagnostics: {:?}",
+            result.diagnostics
+        );
+        let names: Vec<&str> = result.extra_packages.iter().map(|p| p.name.as_str()).collect();
+        assert_eq!(names, ["base", "left", "right"]);
+    }
+
+    #[test]
+    fn dependents_of_unsummarized_modules_wait_for_the_body_check() {
+        let result = compile_project(
+            "unsummarized",
+            &[
+                ("consts.vx", "(module consts) (export [answer]) (defn answer [] 42)"),
+                (
+                    "report.vx",
+                    "(module report) (import consts [answer]) (export [line])
+                     (defn line [] : String (str (answer)))",
+                ),
+            ],
+            "(import report [line]) (defn main [] (println (line)))",
+        );
+        assert!(
+            result.diagnostics.is_empty(),
+            "diagnostics: {:?}",
+            result.diagnostics
+        );
+        let names: Vec<&str> = result.extra_packages.iter().map(|p| p.name.as_str()).collect();
+        assert_eq!(names, ["consts", "report"]);
+        assert!(result.extra_packages[1].source.contains("consts.Answer"));
+    }
+
+    #[test]
+    fn import_cycles_are_diagnosed() {
+        let result = compile_project(
+            "cycle",
+            &[
+                ("ping.vx", "(module ping) (import pong [g]) (export [f]) (defn f [] : Int 1)"),
+                ("pong.vx", "(module pong) (import ping [f]) (export [g]) (defn g [] : Int 2)"),
+            ],
+            "(import ping [f]) (defn main [] (println (str (f))))",
+        );
+        let messages: Vec<&str> = result
+            .diagnostics
+            .iter()
+            .map(|d| d.message.as_str())
+            .collect();
+        assert_eq!(messages, ["import cycle: ping -> pong -> ping"]);
+    }
+
+    #[test]
+    fn unchanged_modules_are_served_from_the_cache() {
+        let dir = std::env::temp_dir().join(format!("vex-cached-{}", std::process::id()));
+        std::fs::create_dir_all(&dir).expect("temp dir should be writable");
+        let cache = ModuleCache::open(dir.join("cache")).expect("cache should open");
+        let math = |body: &str| {
+            let source = format!(
+                "(module math) (export [square]) (defn square [n : Int] : Int {})",
+                body
+            );
+            std::fs::write(dir.join("math.vx"), source).expect("module should be writable");
+        };
+        std::fs::write(
+            dir.join("geometry.vx"),
+            "(module geometry) (import math [square]) (export [area])
+             (defn area [n : Int] : Int (square n))",
+        )
+        .expect("module should be writable");
+        let main = dir.join("main.vx").display().to_string();
+        let build = || {
+            compile_with(
+                "(import geometry [area]) (defn main [] (println (str (area 3))))",
+                &main,
+                CompileOptions {
+                    cache: Some(&cache),
+                    timings: None,
+                },
+            )
+        };
+
+        math("(* n n)");
+        let cold = build();
+        let warm = build();
+        math("(* n (+ n 0))");
+        let edited = build();
+        std::fs::remove_dir_all(&dir).ok();
+
+        assert!(cold.diagnostics.is_empty(), "diagnostics: {:?}", cold.diagnostics);
+        assert_eq!(cold.cached_modules, 0);
+        assert_eq!(warm.cached_modules, 2);
+        assert_eq!(edited.cached_modules, 1);
+        let sources = |result: &CompileResult| {
+            result
+                .extra_packages
+                .iter()
+                .map(|p| p.source.clone())
+                .collect::<Vec<_>>()
+        };
+        assert_eq!(sources(&cold), sources(&warm));
+        assert_eq!(warm.go_source, cold.go_source);
+    }
+
+    #[test]
+    fn dependents_check_against_summaries_of_failing_modules() {
+        let result = compile_project(
+            "summaries",
+            &[
+                (
+                    "math.vx",
+                    "(module math) (export [square]) (defn square [n : Int] : Int \"oops\")",
+                ),
+                (
+                    "geometry.vx",
+                    "(module geometry) (import math [square]) (export [area])
+                     (defn area [n : Int] : Int (square true))",
+                ),
+            ],
+            "(import geometry [area]) (defn main [] (println (str (area 3))))",
+        );
+        let messages: Vec<&str> = result
+            .diagnostics
+            .iter()
+            .map(|d| d.message.as_str())
+            .collect();
+        assert_eq!(messages.len(), 2, "{:?}", messages);
+        assert!(messages[0].contains("return type"));
+        assert!(messages[1].contains("argument 1 has type Bool"));
+    }
+
+    #[test]
+    fn go_files_lay_out_the_go_module() {
+        let result = compile_project(
+            "layout",
+            &[(
+                "math.vx",
+                "(module math) (export [square]) (defn square [n : Int] : Int (* n n))",
+            )],
+            "(import math [square]) (defn main [] (println (str (square 3))))",
+        );
+        assert!(
+            result.diagnostics.is_empty(),
+            "diagnostics: {:?}",
+            result.diagnostics
+        );
+        let paths: Vec<PathBuf> = result.go_files().into_iter().map(|(path, _)| path).collect();
+        assert_eq!(
+            paths,
+            [
+                PathBuf::from("go.mod"),
+                PathBuf::from("main.go"),
+                PathBuf::from("math/math.go"),
+            ]
+        );
+    }
+    #[test]
+    fn timings_cover_every_phase_of_every_module() {
+        let dir = std::env::temp_dir().join(format!("vex-timings-{}", std::process::id()));
+        std::fs::create_dir_all(&dir).expect("temp dir should be writable");
+        std::fs::write(
+            dir.join("math.vx"),
+            "(module math) (export [square]) (defn square [n : Int] : Int (* n n))",
+        )
+        .expect("module should be writable");
+        let main = dir.join("main.vx").display().to_string();
+        let timings = Timings::new();
+        let result = compile_with(
+            "(import math [square]) (defn main [] (println (str (square 3))))",
+            &main,
+            CompileOptions {
+                cache: None,
+                timings: Some(&timings),
+            },
+        );
+        std::fs::remove_dir_all(&dir).ok();
+
+        assert!(result.diagnostics.is_empty(), "diagnostics: {:?}", result.diagnostics);
+        let recorded: Vec<(Phase, &str)> = timings
+            .records()
+            .iter()
+            .map(|record| (record.phase, if record.module == "math" { "math" } else { "main" }))
+            .collect();
+        assert_eq!(
+            recorded,
+            [
+                (Phase::Parse, "main"),
+                (Phase::Parse, "math"),
+                (Phase::Expand, "main"),
+                (Phase::Expand, "math"),
+                (Phase::Summarize, "math"),
+                (Phase::Check, "main"),
+                (Phase::Check, "math"),
+                (Phase::Codegen, "main"),
+                (Phase::Codegen, "math"),
+            ]
+        );
+        let codegen = timings.totals().pop().expect("codegen should be recorded");
+        let emitted = result.go_source.len() + result.extra_packages[0].source.len();
+        assert_eq!(codegen.counts.output_bytes, emitted);
+    }
 }
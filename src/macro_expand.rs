@@ -1,5 +1,5 @@
 use std::collections::HashMap;
-use std::sync::atomic::{AtomicUsize, Ordering};
+use std::sync::LazyLock;
 
 use crate::ast::{self, Binding, Expr, TopForm};
 use crate::diagnostics::Diagnostic;
@@ -11,13 +11,13 @@ use crate::types::{SyntaxValue, expr_to_syntax, syntax_to_expr};
 const MAX_EXPANSION_DEPTH: usize = 64;
 const PRELUDE_SOURCE: &str = include_str!("../stdlib/prelude.vx");
 
-static GENSYM_COUNTER: AtomicUsize = AtomicUsize::new(0);
-
-fn gensym(base: &str) -> String {
-    let id = GENSYM_COUNTER.fetch_add(1, Ordering::Relaxed);
+fn gensym(base: &str, gensyms: &mut usize) -> String {
+    let id = *gensyms;
+    *gensyms += 1;
     format!("__{}_{}", base, id)
 }
 
+#[derive(Clone)]
 struct MacroDef {
     params: Vec<String>,
     rest_param: Option<String>,
@@ -40,6 +40,12 @@ fn macro_val_to_syntax(val: &MacroVal) -> SyntaxValue {
     }
 }
 
+static PRELUDE: LazyLock<HashMap<String, MacroDef>> = LazyLock::new(|| {
+    let mut macros = HashMap::new();
+    load_prelude(&mut macros);
+    macros
+});
+
 fn load_prelude(registry: &mut HashMap<String, MacroDef>) {
     let prelude_file = FileId::new(u32::MAX);
     let (tokens, _) = lexer::lex(PRELUDE_SOURCE, prelude_file);
@@ -65,44 +71,106 @@ fn load_prelude(registry: &mut HashMap<String, MacroDef>) {
     }
 }
 
-pub fn expand(program: Vec<TopForm>) -> (Vec<TopForm>, Vec<Diagnostic>) {
-    let mut registry: HashMap<String, MacroDef> = HashMap::new();
-    let mut diagnostics = Vec::new();
+#[derive(Clone)]
+pub struct MacroRegistry {
+    macros: HashMap<String, MacroDef>,
+    gensyms: usize,
+}
 
-    load_prelude(&mut registry);
+struct Expander<'a> {
+    macros: &'a HashMap<String, MacroDef>,
+    gensyms: usize,
+}
 
-    for form in &program {
-        if let TopForm::DefMacro {
-            name,
-            params,
-            rest_param,
-            body,
-            ..
-        } = form
-        {
-            registry.insert(
-                name.clone(),
-                MacroDef {
-                    params: params.iter().map(|p| p.name.clone()).collect(),
-                    rest_param: rest_param.clone(),
-                    body: body.clone(),
-                },
-            );
+pub struct MacroCheckpoint {
+    saved: Vec<(String, Option<MacroDef>)>,
+}
+
+impl Default for MacroRegistry {
+    fn default() -> Self {
+        Self::with_prelude()
+    }
+}
+
+impl MacroRegistry {
+    pub fn with_prelude() -> Self {
+        Self {
+            macros: PRELUDE.clone(),
+            gensyms: 0,
         }
     }
 
-    let expanded: Vec<TopForm> = program
-        .into_iter()
-        .filter(|form| !matches!(form, TopForm::DefMacro { .. }))
-        .map(|form| expand_top_form(form, &registry, &mut diagnostics))
-        .collect();
+    pub fn checkpoint(&self, program: &[TopForm]) -> MacroCheckpoint {
+        let saved = program
+            .iter()
+            .filter_map(|form| match form {
+                TopForm::DefMacro { name, .. } => {
+                    Some((name.clone(), self.macros.get(name).cloned()))
+                }
+                _ => None,
+            })
+            .collect();
+        MacroCheckpoint { saved }
+    }
 
-    (expanded, diagnostics)
+    pub fn restore(&mut self, checkpoint: MacroCheckpoint) {
+        for (name, previous) in checkpoint.saved.into_iter().rev() {
+            match previous {
+                Some(def) => {
+                    self.macros.insert(name, def);
+                }
+                None => {
+                    self.macros.remove(&name);
+                }
+            }
+        }
+    }
+
+    pub fn expand(&mut self, program: Vec<TopForm>) -> (Vec<TopForm>, Vec<Diagnostic>) {
+        let mut diagnostics = Vec::new();
+
+        for form in &program {
+            if let TopForm::DefMacro {
+                name,
+                params,
+                rest_param,
+                body,
+                ..
+            } = form
+            {
+                self.macros.insert(
+                    name.clone(),
+                    MacroDef {
+                        params: params.iter().map(|p| p.name.clone()).collect(),
+                        rest_param: rest_param.clone(),
+                        body: body.clone(),
+                    },
+                );
+            }
+        }
+
+        let mut expander = Expander {
+            macros: &self.macros,
+            gensyms: self.gensyms,
+        };
+        let expanded: Vec<TopForm> = program
+            .into_iter()
+            .filter(|form| !matches!(form, TopForm::DefMacro { .. }))
+            .map(|form| expand_top_form(form, &mut expander, &mut diagnostics))
+            .collect();
+        self.gensyms = expander.gensyms;
+
+        (expanded, diagnostics)
+    }
+}
+
+pub fn expand(program: Vec<TopForm>) -> (Vec<TopForm>, Vec<Diagnostic>) {
+    MacroRegistry::with_prelude().expand(program)
 }
 
 fn expand_top_form(
     form: TopForm,
-    registry: &HashMap<String, MacroDef>,
+    expander: &mut Expander<'_>,
     diagnostics: &mut Vec<Diagnostic>,
 ) -> TopForm {
     match form {
@@ -118,7 +186,7 @@ fn expand_top_form(
             return_type,
             body: body
                 .into_iter()
-                .map(|e| expand_expr(e, registry, diagnostics, 0))
+                .map(|e| expand_expr(e, expander, diagnostics, 0))
                 .collect(),
             span,
         },
@@ -130,17 +198,17 @@ fn expand_top_form(
         } => TopForm::Def {
             name,
             type_ann,
-            value: expand_expr(value, registry, diagnostics, 0),
+            value: expand_expr(value, expander, diagnostics, 0),
             span,
         },
-        TopForm::Expr(expr) => TopForm::Expr(expand_expr(expr, registry, diagnostics, 0)),
+        TopForm::Expr(expr) => TopForm::Expr(expand_expr(expr, expander, diagnostics, 0)),
         other => other,
     }
 }
 
 fn expand_expr(
     expr: Expr,
-    registry: &HashMap<String, MacroDef>,
+    expander: &mut Expander<'_>,
     diagnostics: &mut Vec<Diagnostic>,
     depth: usize,
 ) -> Expr {
@@ -155,7 +223,7 @@ fn expand_expr(
     match expr {
         Expr::Call { func, args, span } => {
             if let Expr::Symbol(ref name, _) = *func
-                && let Some(macro_def) = registry.get(name.as_str())
+                && let Some(macro_def) = expander.macros.get(name.as_str())
             {
                 let min_args = macro_def.params.len();
                 let is_variadic = macro_def.rest_param.is_some();
@@ -213,16 +281,16 @@ fn expand_expr(
                     }
                 }
 
-                let renamed = rename_in_macro_val(result);
+                let renamed = rename_in_macro_val(result, &mut expander.gensyms);
                 let result_syntax = macro_val_to_syntax(&renamed);
                 let expanded_ast = syntax_to_expr(&result_syntax, span);
-                return expand_expr(expanded_ast, registry, diagnostics, depth + 1);
+                return expand_expr(expanded_ast, expander, diagnostics, depth + 1);
             }
             Expr::Call {
-                func: Box::new(expand_expr(*func, registry, diagnostics, depth)),
+                func: Box::new(expand_expr(*func, expander, diagnostics, depth)),
                 args: args
                     .into_iter()
-                    .map(|a| expand_expr(a, registry, diagnostics, depth))
+                    .map(|a| expand_expr(a, expander, diagnostics, depth))
                     .collect(),
                 span,
             }
@@ -234,9 +302,9 @@ fn expand_expr(
             else_branch,
             span,
         } => Expr::If {
-            test: Box::new(expand_expr(*test, registry, diagnostics, depth)),
-            then_branch: Box::new(expand_expr(*then_branch, registry, diagnostics, depth)),
-            else_branch: Box::new(expand_expr(*else_branch, registry, diagnostics, depth)),
+            test: Box::new(expand_expr(*test, expander, diagnostics, depth)),
+            then_branch: Box::new(expand_expr(*then_branch, expander, diagnostics, depth)),
+            else_branch: Box::new(expand_expr(*else_branch, expander, diagnostics, depth)),
             span,
         },
 
@@ -249,13 +317,13 @@ fn expand_expr(
                 .into_iter()
                 .map(|b| Binding {
                     name: b.name,
-                    value: expand_expr(b.value, registry, diagnostics, depth),
+                    value: expand_expr(b.value, expander, diagnostics, depth),
                     span: b.span,
                 })
                 .collect(),
             body: body
                 .into_iter()
-                .map(|e| expand_expr(e, registry, diagnostics, depth))
+                .map(|e| expand_expr(e, expander, diagnostics, depth))
                 .collect(),
             span,
         },
@@ -270,7 +338,7 @@ fn expand_expr(
             return_type,
             body: body
                 .into_iter()
-                .map(|e| expand_expr(e, registry, diagnostics, depth))
+                .map(|e| expand_expr(e, expander, diagnostics, depth))
                 .collect(),
             span,
         },
@@ -280,7 +348,7 @@ fn expand_expr(
             field,
             span,
         } => Expr::FieldAccess {
-            object: Box::new(expand_expr(*object, registry, diagnostics, depth)),
+            object: Box::new(expand_expr(*object, expander, diagnostics, depth)),
             field,
             span,
         },
@@ -290,12 +358,12 @@ fn expand_expr(
             clauses,
             span,
         } => Expr::Match {
-            scrutinee: Box::new(expand_expr(*scrutinee, registry, diagnostics, depth)),
+            scrutinee: Box::new(expand_expr(*scrutinee, expander, diagnostics, depth)),
             clauses: clauses
                 .into_iter()
                 .map(|c| ast::MatchClause {
                     pattern: c.pattern,
-                    body: expand_expr(c.body, registry, diagnostics, depth),
+                    body: expand_expr(c.body, expander, diagnostics, depth),
                     span: c.span,
                 })
                 .collect(),
@@ -303,7 +371,7 @@ fn expand_expr(
         },
 
         Expr::Spawn { body, span } => Expr::Spawn {
-            body: Box::new(expand_expr(*body, registry, diagnostics, depth)),
+            body: Box::new(expand_expr(*body, expander, diagnostics, depth)),
             span,
         },
 
@@ -312,28 +380,28 @@ fn expand_expr(
             value,
             span,
         } => Expr::Send {
-            channel: Box::new(expand_expr(*channel, registry, diagnostics, depth)),
-            value: Box::new(expand_expr(*value, registry, diagnostics, depth)),
+            channel: Box::new(expand_expr(*channel, expander, diagnostics, depth)),
+            value: Box::new(expand_expr(*value, expander, diagnostics, depth)),
             span,
         },
 
         Expr::Recv { channel, span } => Expr::Recv {
-            channel: Box::new(expand_expr(*channel, registry, diagnostics, depth)),
+            channel: Box::new(expand_expr(*channel, expander, diagnostics, depth)),
             span,
         },
 
         Expr::Quote { expr, span } => Expr::Quote {
-            expr: Box::new(expand_expr(*expr, registry, diagnostics, depth)),
+            expr: Box::new(expand_expr(*expr, expander, diagnostics, depth)),
             span,
         },
 
         Expr::Unquote { expr, span } => Expr::Unquote {
-            expr: Box::new(expand_expr(*expr, registry, diagnostics, depth)),
+            expr: Box::new(expand_expr(*expr, expander, diagnostics, depth)),
             span,
         },
 
         Expr::Splice { expr, span } => Expr::Splice {
-            expr: Box::new(expand_expr(*expr, registry, diagnostics, depth)),
+            expr: Box::new(expand_expr(*expr, expander, diagnostics, depth)),
             span,
         },
 
@@ -526,22 +594,31 @@ fn eval_macro_builtin(name: &str, args: Vec<MacroVal>) -> Result<MacroVal, Strin
     }
 }
 
-fn rename_in_macro_val(val: MacroVal) -> MacroVal {
+fn rename_in_macro_val(val: MacroVal, gensyms: &mut usize) -> MacroVal {
     let mut renames: HashMap<String, String> = HashMap::new();
-    rename_mval(val, &mut renames)
+    rename_mval(val, &mut renames, gensyms)
 }
 
-fn rename_mval(val: MacroVal, renames: &mut HashMap<String, String>) -> MacroVal {
+fn rename_mval(
+    val: MacroVal,
+    renames: &mut HashMap<String, String>,
+    gensyms: &mut usize,
+) -> MacroVal {
     match val {
         MacroVal::CallSite(_) => val,
-        MacroVal::Intro(s) => MacroVal::Intro(rename_syntax(s, renames)),
+        MacroVal::Intro(s) => MacroVal::Intro(rename_syntax(s, renames, gensyms)),
         MacroVal::MList(items) => {
             if is_mlist_let_form(&items) {
-                rename_mlist_let(items, renames)
+                rename_mlist_let(items, renames, gensyms)
             } else if is_mlist_fn_form(&items) {
-                rename_mlist_fn(items, renames)
+                rename_mlist_fn(items, renames, gensyms)
             } else {
-                MacroVal::MList(items.into_iter().map(|v| rename_mval(v, renames)).collect())
+                MacroVal::MList(
+                    items
+                        .into_iter()
+                        .map(|v| rename_mval(v, renames, gensyms))
+                        .collect(),
+                )
             }
         }
     }
@@ -561,7 +638,11 @@ fn is_mlist_fn_form(items: &[MacroVal]) -> bool {
     matches!(macro_val_to_syntax(&items[0]), SyntaxValue::Sym(ref s) if s == "fn")
 }
 
-fn rename_mlist_let(items: Vec<MacroVal>, renames: &mut HashMap<String, String>) -> MacroVal {
+fn rename_mlist_let(
+    items: Vec<MacroVal>,
+    renames: &mut HashMap<String, String>,
+    gensyms: &mut usize,
+) -> MacroVal {
     let mut result = vec![items[0].clone()];
     let mut body_renames = renames.clone();
 
@@ -572,29 +653,33 @@ fn rename_mlist_let(items: Vec<MacroVal>, renames: &mut HashMap<String, String>)
             let name_val = &binding_items[i];
             let value_val = &binding_items[i + 1];
             if let MacroVal::Intro(SyntaxValue::Sym(name)) = name_val {
-                let new_name = gensym(name);
+                let new_name = gensym(name, gensyms);
                 body_renames.insert(name.clone(), new_name.clone());
                 new_bindings.push(MacroVal::Intro(SyntaxValue::Sym(new_name)));
-                new_bindings.push(rename_mval(value_val.clone(), renames));
+                new_bindings.push(rename_mval(value_val.clone(), renames, gensyms));
             } else {
-                new_bindings.push(rename_mval(name_val.clone(), renames));
-                new_bindings.push(rename_mval(value_val.clone(), renames));
+                new_bindings.push(rename_mval(name_val.clone(), renames, gensyms));
+                new_bindings.push(rename_mval(value_val.clone(), renames, gensyms));
             }
             i += 2;
         }
         result.push(MacroVal::MList(new_bindings));
     } else {
-        result.push(rename_mval(items[1].clone(), renames));
+        result.push(rename_mval(items[1].clone(), renames, gensyms));
     }
 
     for item in items.into_iter().skip(2) {
-        result.push(rename_mval(item, &mut body_renames));
+        result.push(rename_mval(item, &mut body_renames, gensyms));
     }
 
     MacroVal::MList(result)
 }
 
-fn rename_mlist_fn(items: Vec<MacroVal>, renames: &mut HashMap<String, String>) -> MacroVal {
+fn rename_mlist_fn(
+    items: Vec<MacroVal>,
+    renames: &mut HashMap<String, String>,
+    gensyms: &mut usize,
+) -> MacroVal {
     let mut result = vec![items[0].clone()];
     let mut body_renames = renames.clone();
 
@@ -603,27 +688,31 @@ fn rename_mlist_fn(items: Vec<MacroVal>, renames: &mut HashMap<String, String>)
             .into_iter()
             .map(|p| {
                 if let MacroVal::Intro(SyntaxValue::Sym(name)) = &p {
-                    let new_name = gensym(name);
+                    let new_name = gensym(name, gensyms);
                     body_renames.insert(name.clone(), new_name.clone());
                     MacroVal::Intro(SyntaxValue::Sym(new_name))
                 } else {
-                    rename_mval(p, renames)
+                    rename_mval(p, renames, gensyms)
                 }
             })
             .collect();
         result.push(MacroVal::MList(new_params));
     } else {
-        result.push(rename_mval(items[1].clone(), renames));
+        result.push(rename_mval(items[1].clone(), renames, gensyms));
     }
 
     for item in items.into_iter().skip(2) {
-        result.push(rename_mval(item, &mut body_renames));
+        result.push(rename_mval(item, &mut body_renames, gensyms));
     }
 
     MacroVal::MList(result)
 }
 
-fn rename_syntax(syntax: SyntaxValue, renames: &HashMap<String, String>) -> SyntaxValue {
+fn rename_syntax(
+    syntax: SyntaxValue,
+    renames: &HashMap<String, String>,
+    gensyms: &mut usize,
+) -> SyntaxValue {
     match syntax {
         SyntaxValue::Sym(ref name) => {
             if let Some(new_name) = renames.get(name) {
@@ -634,14 +723,14 @@ fn rename_syntax(syntax: SyntaxValue, renames: &HashMap<String, String>) -> Synt
         }
         SyntaxValue::List(items) => {
             if is_syntax_let_form(&items) {
-                rename_syntax_let(items, renames)
+                rename_syntax_let(items, renames, gensyms)
             } else if is_syntax_fn_form(&items) {
-                rename_syntax_fn(items, renames)
+                rename_syntax_fn(items, renames, gensyms)
             } else {
                 SyntaxValue::List(
                     items
                         .into_iter()
-                        .map(|s| rename_syntax(s, renames))
+                        .map(|s| rename_syntax(s, renames, gensyms))
                         .collect(),
                 )
             }
@@ -658,7 +747,11 @@ fn is_syntax_fn_form(items: &[SyntaxValue]) -> bool {
     items.len() >= 3 && matches!(&items[0], SyntaxValue::Sym(s) if s == "fn")
 }
 
-fn rename_syntax_let(items: Vec<SyntaxValue>, renames: &HashMap<String, String>) -> SyntaxValue {
+fn rename_syntax_let(
+    items: Vec<SyntaxValue>,
+    renames: &HashMap<String, String>,
+    gensyms: &mut usize,
+) -> SyntaxValue {
     let mut result = vec![items[0].clone()];
     let mut body_renames = renames.clone();
 
@@ -667,29 +760,33 @@ fn rename_syntax_let(items: Vec<SyntaxValue>, renames: &HashMap<String, String>)
         let mut i = 0;
         while i + 1 < bindings.len() {
             if let SyntaxValue::Sym(name) = &bindings[i] {
-                let new_name = gensym(name);
+                let new_name = gensym(name, gensyms);
                 body_renames.insert(name.clone(), new_name.clone());
                 new_bindings.push(SyntaxValue::Sym(new_name));
-                new_bindings.push(rename_syntax(bindings[i + 1].clone(), renames));
+                new_bindings.push(rename_syntax(bindings[i + 1].clone(), renames, gensyms));
             } else {
-                new_bindings.push(rename_syntax(bindings[i].clone(), renames));
-                new_bindings.push(rename_syntax(bindings[i + 1].clone(), renames));
+                new_bindings.push(rename_syntax(bindings[i].clone(), renames, gensyms));
+                new_bindings.push(rename_syntax(bindings[i + 1].clone(), renames, gensyms));
             }
             i += 2;
         }
         result.push(SyntaxValue::List(new_bindings));
     } else {
-        result.push(rename_syntax(items[1].clone(), renames));
+        result.push(rename_syntax(items[1].clone(), renames, gensyms));
     }
 
     for item in items.into_iter().skip(2) {
-        result.push(rename_syntax(item, &body_renames));
+        result.push(rename_syntax(item, &body_renames, gensyms));
     }
 
     SyntaxValue::List(result)
 }
 
-fn rename_syntax_fn(items: Vec<SyntaxValue>, renames: &HashMap<String, String>) -> SyntaxValue {
+fn rename_syntax_fn(
+    items: Vec<SyntaxValue>,
+    renames: &HashMap<String, String>,
+    gensyms: &mut usize,
+) -> SyntaxValue {
     let mut result = vec![items[0].clone()];
     let mut body_renames = renames.clone();
 
@@ -698,21 +795,21 @@ fn rename_syntax_fn(items: Vec<SyntaxValue>, renames: &HashMap<String, String>)
             .iter()
             .map(|p| {
                 if let SyntaxValue::Sym(name) = p {
-                    let new_name = gensym(name);
+                    let new_name = gensym(name, gensyms);
                     body_renames.insert(name.clone(), new_name.clone());
                     SyntaxValue::Sym(new_name)
                 } else {
-                    rename_syntax(p.clone(), renames)
+                    rename_syntax(p.clone(), renames, gensyms)
                 }
             })
             .collect();
         result.push(SyntaxValue::List(new_params));
     } else {
-        result.push(rename_syntax(items[1].clone(), renames));
+        result.push(rename_syntax(items[1].clone(), renames, gensyms));
     }
 
     for item in items.into_iter().skip(2) {
-        result.push(rename_syntax(item, &body_renames));
+        result.push(rename_syntax(item, &body_renames, gensyms));
     }
 
     SyntaxValue::List(result)
@@ -1578,4 +1675,61 @@ mod tests {
             panic!("expected DefMacro");
         }
     }
+
+    fn parse_forms(source: &str) -> Vec<TopForm> {
+        let (tokens, _) = lexer::lex(source, FileId::new(0));
+        let (forms, diags) = parser::parse(&tokens);
+        assert!(diags.is_empty(), "{:?}", diags);
+        forms
+    }
+
+    #[test]
+    fn registry_keeps_macros_between_expansions() {
+        let mut registry = MacroRegistry::with_prelude();
+        let forms = parse_forms("(defmacro twice [x] (list (quote +) x x))");
+        let (_, diags) = registry.expand(forms);
+        assert!(diags.is_empty(), "{:?}", diags);
+
+        let (result, diags) = registry.expand(parse_forms("(twice 21)"));
+        assert!(diags.is_empty(), "{:?}", diags);
+        if let TopForm::Expr(Expr::Call { func, args, .. }) = &result[0] {
+            assert!(matches!(func.as_ref(), Expr::Symbol(name, _) if name == "+"));
+            assert_eq!(args.len(), 2);
+        } else {
+            panic!("expected call, got {:?}", result[0]);
+        }
+    }
+
+    #[test]
+    fn registry_restore_drops_new_macros() {
+        let mut registry = MacroRegistry::with_prelude();
+        let forms = parse_forms("(defmacro twice [x] (list (quote +) x x))");
+        let checkpoint = registry.checkpoint(&forms);
+        registry.expand(forms);
+        registry.restore(checkpoint);
+
+        let (result, _) = registry.expand(parse_forms("(twice 21)"));
+        if let TopForm::Expr(Expr::Call { func, .. }) = &result[0] {
+            assert!(matches!(func.as_ref(), Expr::Symbol(name, _) if name == "twice"));
+        } else {
+            panic!("expected call, got {:?}", result[0]);
+        }
+    }
+
+    #[test]
+    fn gensyms_are_numbered_per_registry() {
+        let source = "(defmacro with-temp [body] (list (quote let) (list (quote tmp) 0) body))
+                      (with-temp 1)";
+        let (first, _) = expand(parse_forms(source));
+        let (second, _) = expand(parse_forms(source));
+        assert_eq!(first, second);
+
+        let mut registry = MacroRegistry::with_prelude();
+        let (_, _) = registry.expand(parse_forms(source));
+        let (again, _) = registry.expand(parse_forms("(with-temp 2)"));
+        let TopForm::Expr(Expr::Let { bindings, .. }) = &again[0] else {
+            panic!("expected let, got {:?}", again[0]);
+        };
+        assert_eq!(bindings[0].name, "__tmp_1");
+    }
 }
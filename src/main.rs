@@ -1,8 +1,13 @@
 use std::env;
 use std::fs;
 use std::io::{self, Write};
-use std::path::Path;
+use std::path::{Path, PathBuf};
 use std::process::{self, Command};
+use std::time::Instant;
+
+#[cfg(feature = "mem-stats")]
+#[global_allocator]
+static ALLOCATOR: vex::alloc_stats::CountingAllocator = vex::alloc_stats::CountingAllocator;
 
 fn main() {
     let args: Vec<String> = env::args().collect();
@@ -21,7 +26,9 @@ fn main() {
             }
             run_compile(&args);
         }
-        "repl" => run_repl(),
+        "repl" => run_repl(&args[2..]),
+        "daemon" => run_daemon(),
+        "cache" if args.get(2).is_some_and(|arg| arg == "clean") => run_cache_clean(),
         _ => {
             eprintln!("Unknown command: {}", subcommand);
             print_usage();
@@ -32,9 +39,41 @@ fn main() {
 
 fn print_usage() {
     eprintln!("Usage:");
-    eprintln!("  vex build <file.vx> [-o <output>] [--emit-go <dir>]");
-    eprintln!("  vex run <file.vx>");
-    eprintln!("  vex repl");
+    eprintln!("  vex build <file.vx> [-o <output>] [--emit-go <dir>] [--no-cache]");
+    eprintln!("            [--timings[=json]] [--mem-stats]");
+    eprintln!("  vex run <file.vx> [--no-cache] [--timings[=json]] [--mem-stats]");
+    eprintln!("  vex repl [--vm]");
+    eprintln!("  vex daemon");
+    eprintln!("  vex cache clean");
+}
+
+#[derive(Clone, Copy)]
+enum TimingsFormat {
+    Text,
+    Json,
+}
+
+struct Report {
+    timings: vex::instrument::Timings,
+    format: Option<TimingsFormat>,
+    memory: bool,
+}
+
+fn print_report(report: &Option<Report>) {
+    let Some(report) = report else {
+        return;
+    };
+    match report.format {
+        Some(TimingsFormat::Json) => {
+            eprintln!("{}", report.timings.to_json());
+            return;
+        }
+        Some(TimingsFormat::Text) => eprint!("{}", report.timings.render()),
+        None => {}
+    }
+    if report.memory {
+        eprint!("{}", report.timings.render_memory());
+    }
 }
 
 fn run_compile(args: &[String]) {
@@ -47,6 +86,9 @@ fn run_compile(args: &[String]) {
 
     let mut output_name: Option<String> = None;
     let mut emit_go_dir: Option<String> = None;
+    let mut use_cache = true;
+    let mut timings_format: Option<TimingsFormat> = None;
+    let mut mem_stats = false;
 
     let mut i = 3;
     while i < args.len() {
@@ -67,6 +109,10 @@ fn run_compile(args: &[String]) {
                 }
                 emit_go_dir = Some(args[i].clone());
             }
+            "--no-cache" => use_cache = false,
+            "--timings" => timings_format = Some(TimingsFormat::Text),
+            "--timings=json" => timings_format = Some(TimingsFormat::Json),
+            "--mem-stats" => mem_stats = true,
             other => {
                 eprintln!("Unknown option: {}", other);
                 process::exit(3);
@@ -83,15 +129,53 @@ fn run_compile(args: &[String]) {
         }
     };
 
-    let result = vex::compile(&source, &source_path.display().to_string());
+    let cache = use_cache
+        .then(vex::cache::ModuleCache::default_dir)
+        .flatten()
+        .and_then(|dir| vex::cache::ModuleCache::open(dir).ok());
+    if mem_stats && !cfg!(feature = "mem-stats") {
+        eprintln!("--mem-stats needs a vex built with `cargo build --features mem-stats`");
+        process::exit(3);
+    }
+    if mem_stats {
+        vex::alloc_stats::enable();
+    }
+    let report = (timings_format.is_some() || mem_stats).then(|| Report {
+        timings: vex::instrument::Timings::new(),
+        format: timings_format,
+        memory: mem_stats,
+    });
+    let options = vex::CompileOptions {
+        cache: cache.as_ref(),
+        timings: report.as_ref().map(|report| &report.timings),
+    };
+    let from_daemon = (use_cache && report.is_none())
+        .then(vex::daemon::socket_path)
+        .flatten()
+        .and_then(|socket| {
+            let absolute = fs::canonicalize(source_path).ok()?;
+            vex::daemon::request(&socket, &absolute.display().to_string(), &source).ok()
+        });
+    let output = from_daemon.unwrap_or_else(|| {
+        let result = vex::compile_with(&source, &source_path.display().to_string(), options);
+        vex::daemon::BuildOutput::from_result(&result)
+    });
 
-    if !result.diagnostics.is_empty() {
-        for diag in &result.diagnostics {
-            eprintln!("{}", diag.render(&result.source_map));
+    if !output.diagnostics.is_empty() {
+        for diag in &output.diagnostics {
+            eprintln!("{}", diag);
         }
+        print_report(&report);
         process::exit(1);
     }
 
+    if subcommand == "build" && output.extra_packages > 0 {
+        eprintln!(
+            "{} of {} modules served from cache",
+            output.cached_modules, output.extra_packages
+        );
+    }
+
     let binary_name = output_name.unwrap_or_else(|| {
         source_path
             .file_stem()
@@ -100,64 +184,80 @@ fn run_compile(args: &[String]) {
             .to_string()
     });
 
-    let tmp_dir = tempdir();
-
-    fs::write(tmp_dir.join("go.mod"), &result.go_mod).expect("failed to write go.mod");
-    fs::write(tmp_dir.join("main.go"), &result.go_source).expect("failed to write main.go");
-
-    if let Some(ref vexrt) = result.vexrt {
-        let vexrt_dir = tmp_dir.join("vexrt");
-        fs::create_dir_all(&vexrt_dir).expect("failed to create vexrt directory");
-        fs::write(vexrt_dir.join("option.go"), &vexrt.option_go)
-            .expect("failed to write option.go");
-        fs::write(vexrt_dir.join("result.go"), &vexrt.result_go)
-            .expect("failed to write result.go");
-        fs::write(vexrt_dir.join("collections.go"), &vexrt.collections_go)
-            .expect("failed to write collections.go");
-    }
-
-    for pkg in &result.extra_packages {
-        let pkg_dir = tmp_dir.join(&pkg.name);
-        fs::create_dir_all(&pkg_dir).expect("failed to create package directory");
-        let file_name = pkg.name.rsplit('/').next().unwrap_or(&pkg.name);
-        fs::write(pkg_dir.join(format!("{}.go", file_name)), &pkg.source)
-            .expect("failed to write package file");
+    let runtime = vex::VexrtFiles::generate();
+    let mut go_files: Vec<(PathBuf, &str)> = output
+        .go_files
+        .iter()
+        .map(|(path, contents)| (path.clone(), contents.as_str()))
+        .collect();
+    if !output.uses_vexrt {
+        go_files.extend(runtime.go_files());
     }
 
     if let Some(ref dir) = emit_go_dir {
         let dest = Path::new(dir);
-        fs::create_dir_all(dest).expect("failed to create emit-go directory");
-        fs::write(dest.join("go.mod"), &result.go_mod).expect("failed to write go.mod");
-        fs::write(dest.join("main.go"), &result.go_source).expect("failed to write main.go");
-        if let Some(ref vexrt) = result.vexrt {
-            let vexrt_dest = dest.join("vexrt");
-            fs::create_dir_all(&vexrt_dest).expect("failed to create vexrt directory");
-            fs::write(vexrt_dest.join("option.go"), &vexrt.option_go)
-                .expect("failed to write option.go");
-            fs::write(vexrt_dest.join("result.go"), &vexrt.result_go)
-                .expect("failed to write result.go");
-            fs::write(vexrt_dest.join("collections.go"), &vexrt.collections_go)
-                .expect("failed to write collections.go");
-        }
-        for pkg in &result.extra_packages {
-            let pkg_dest = dest.join(&pkg.name);
-            fs::create_dir_all(&pkg_dest).expect("failed to create package directory");
-            let file_name = pkg.name.rsplit('/').next().unwrap_or(&pkg.name);
-            fs::write(pkg_dest.join(format!("{}.go", file_name)), &pkg.source)
-                .expect("failed to write package file");
+        for (relative, contents) in &output.go_files {
+            let path = dest.join(relative);
+            if let Some(parent) = path.parent() {
+                fs::create_dir_all(parent).expect("failed to create emit-go directory");
+            }
+            fs::write(&path, contents).expect("failed to write emitted Go file");
         }
     }
 
-    let output_path = env::current_dir().unwrap().join(&binary_name);
+    let binaries = (subcommand == "run" && use_cache)
+        .then(vex::binary_cache::BinaryCache::default_dir)
+        .flatten()
+        .and_then(|dir| vex::binary_cache::BinaryCache::open(dir).ok())
+        .map(|binaries| {
+            let toolchain = vex::binary_cache::toolchain_id();
+            (binaries, vex::binary_cache::key(&go_files, toolchain))
+        });
+    if let Some((binaries, key)) = &binaries
+        && let Some(binary) = binaries.lookup(*key)
+    {
+        print_report(&report);
+        run_binary(&binary, false);
+    }
 
-    let go_build = Command::new("go")
-        .arg("build")
-        .arg("-o")
-        .arg(&output_path)
-        .current_dir(&tmp_dir)
-        .output();
+    let workspace = match vex::workspace::Workspace::for_source(source_path) {
+        Ok(workspace) => workspace,
+        Err(e) => {
+            eprintln!("Could not prepare build directory: {}", e);
+            process::exit(3);
+        }
+    };
+    if let Err(e) = workspace.sync(go_files) {
+        eprintln!("Could not write {}: {}", workspace.root().display(), e);
+        process::exit(3);
+    }
 
-    let _ = fs::remove_dir_all(&tmp_dir);
+    let output_path = match &binaries {
+        Some((binaries, key)) => binaries.staging_path(*key),
+        None => env::current_dir().unwrap().join(&binary_name),
+    };
+
+    let go_started = Instant::now();
+    let go_build = vex::instrument::measure(
+        options.timings,
+        &binary_name,
+        vex::instrument::Phase::GoBuild,
+        || {
+            Command::new("go")
+                .arg("build")
+                .arg("-o")
+                .arg(&output_path)
+                .current_dir(workspace.root())
+                .output()
+        },
+        |_| {
+            let size = fs::metadata(&output_path).map_or(0, |metadata| metadata.len());
+            vex::instrument::Counts::output_bytes(size as usize)
+        },
+    );
+    if let Some(timings) = options.timings {
+        timings.record_wall(go_started.elapsed());
+    }
 
     match go_build {
         Ok(output) => {
@@ -166,6 +266,7 @@ fn run_compile(args: &[String]) {
                     "go build failed:\n{}",
                     String::from_utf8_lossy(&output.stderr)
                 );
+                print_report(&report);
                 process::exit(2);
             }
         }
@@ -175,25 +276,104 @@ fn run_compile(args: &[String]) {
         }
     }
 
+    print_report(&report);
     if subcommand == "run" {
-        let status = Command::new(&output_path).status();
-        let _ = fs::remove_file(&output_path);
-        match status {
-            Ok(s) => process::exit(s.code().unwrap_or(1)),
+        match binaries {
+            Some((binaries, key)) => match binaries.insert(key, &output_path) {
+                Ok(binary) => run_binary(&binary, false),
+                Err(_) => run_binary(&output_path, true),
+            },
+            None => run_binary(&output_path, true),
+        }
+    }
+}
+
+fn run_binary(binary: &Path, remove_after: bool) -> ! {
+    let status = Command::new(binary).status();
+    if remove_after {
+        let _ = fs::remove_file(binary);
+    }
+    match status {
+        Ok(s) => process::exit(s.code().unwrap_or(1)),
+        Err(e) => {
+            eprintln!("Failed to run binary: {}", e);
+            process::exit(1);
+        }
+    }
+}
+
+fn run_cache_clean() {
+    let (Some(modules), Some(binaries)) = (
+        vex::cache::ModuleCache::default_dir(),
+        vex::binary_cache::BinaryCache::default_dir(),
+    ) else {
+        eprintln!("Could not locate the cache directory; set VEX_CACHE or HOME");
+        process::exit(3);
+    };
+    let cleaned = [
+        (
+            &modules,
+            vex::cache::ModuleCache::open(&modules).and_then(|cache| cache.clean()),
+        ),
+        (
+            &binaries,
+            vex::binary_cache::BinaryCache::open(&binaries).and_then(|cache| cache.clean()),
+        ),
+    ];
+    for (dir, removed) in cleaned {
+        match removed {
+            Ok(count) => println!("Removed {} cache entries from {}", count, dir.display()),
             Err(e) => {
-                eprintln!("Failed to run binary: {}", e);
-                process::exit(1);
+                eprintln!("Could not clean {}: {}", dir.display(), e);
+                process::exit(3);
             }
         }
     }
 }
 
-fn run_repl() {
+#[cfg(unix)]
+fn run_daemon() {
+    let (Some(socket), Some(dir)) = (
+        vex::daemon::socket_path(),
+        vex::cache::ModuleCache::default_dir(),
+    ) else {
+        eprintln!("Could not locate the cache directory; set VEX_CACHE or HOME");
+        process::exit(3);
+    };
+    let cache = match vex::cache::ModuleCache::open(&dir) {
+        Ok(cache) => cache,
+        Err(e) => {
+            eprintln!("Could not open {}: {}", dir.display(), e);
+            process::exit(3);
+        }
+    };
+    let listener = match vex::daemon::Daemon::bind(&socket) {
+        Ok(listener) => listener,
+        Err(e) => {
+            eprintln!("Could not listen on {}: {}", socket.display(), e);
+            process::exit(3);
+        }
+    };
+    eprintln!("vex daemon listening on {}", socket.display());
+    vex::daemon::Daemon::new(cache).serve(&listener);
+}
+
+#[cfg(not(unix))]
+fn run_daemon() {
+    eprintln!("vex daemon needs Unix domain sockets, which this platform does not provide");
+    process::exit(3);
+}
+
+fn run_repl(args: &[String]) {
+    let backend = if args.iter().any(|arg| arg == "--vm") {
+        vex::repl::Backend::Bytecode
+    } else {
+        vex::repl::Backend::TreeWalker
+    };
+
     println!("Vex REPL — type :quit to exit");
 
-    let mut interpreter = vex::interpreter::Interpreter::new();
-    let mut accumulated = String::new();
-    let mut prev_count: usize = 0;
+    let mut session = vex::repl::ReplSession::with_backend(backend);
 
     while let Some(input) = read_input() {
         let trimmed = input.trim();
@@ -204,56 +384,22 @@ fn run_repl() {
             continue;
         }
 
-        let test_source = if accumulated.is_empty() {
-            input.clone()
-        } else {
-            format!("{}\n{}", accumulated, input)
-        };
-
-        let mut source_map = vex::source::SourceMap::new();
-        let file_id = source_map.add_file("repl".into(), test_source.clone());
-        let (tokens, lex_diags) = vex::lexer::lex(&test_source, file_id);
-        if !lex_diags.is_empty() {
-            for d in &lex_diags {
-                eprintln!("{}", d.render(&source_map));
-            }
-            continue;
-        }
-
-        let (ast, parse_diags) = vex::parser::parse(&tokens);
-        if !parse_diags.is_empty() {
-            for d in &parse_diags {
-                eprintln!("{}", d.render(&source_map));
-            }
-            continue;
-        }
-
-        let (ast, expand_diags) = vex::macro_expand::expand(ast);
-        if !expand_diags.is_empty() {
-            for d in &expand_diags {
-                eprintln!("{}", d.render(&source_map));
-            }
-            continue;
-        }
-
-        let (hir_module, check_diags) = vex::typechecker::check(&ast);
-        if !check_diags.is_empty() {
-            for d in &check_diags {
-                eprintln!("{}", d.render(&source_map));
+        match session.eval(&input) {
+            Ok(results) => {
+                for result in results {
+                    match result {
+                        Ok(vex::interpreter::Value::Unit) => {}
+                        Ok(value) => println!("=> {}", value),
+                        Err(err) => eprintln!("{}", err),
+                    }
+                }
             }
-            continue;
-        }
-
-        accumulated = test_source;
-
-        for form in &hir_module.top_forms[prev_count..] {
-            match interpreter.eval_top_form(form) {
-                Ok(vex::interpreter::Value::Unit) => {}
-                Ok(value) => println!("=> {}", value),
-                Err(err) => eprintln!("{}", err),
+            Err(diags) => {
+                for d in &diags {
+                    eprintln!("{}", d.render(session.source_map()));
+                }
             }
         }
-        prev_count = hir_module.top_forms.len();
     }
 }
 
@@ -291,10 +437,3 @@ fn read_input() -> Option<String> {
         }
     }
 }
-
-fn tempdir() -> std::path::PathBuf {
-    let mut path = env::temp_dir();
-    path.push(format!("vex-build-{}", std::process::id()));
-    fs::create_dir_all(&path).expect("failed to create temp directory");
-    path
-}
@@ -0,0 +1,269 @@
+use std::collections::HashMap;
+use std::path::{Path, PathBuf};
+
+use crate::ast;
+use crate::diagnostics::Diagnostic;
+use crate::instrument::{self, Counts, Phase, Timings};
+use crate::parser;
+use crate::source::{FileId, SourceMap, Span};
+
+pub fn resolve_module_path(source_dir: &Path, module_name: &str) -> PathBuf {
+    let parts: Vec<&str> = module_name.split('.').collect();
+    let mut path = source_dir.to_path_buf();
+    for part in &parts[..parts.len() - 1] {
+        path.push(part);
+    }
+    path.push(format!("{}.vx", parts[parts.len() - 1]));
+    path
+}
+
+pub fn collect_imports(program: &[ast::TopForm]) -> Vec<(String, Vec<String>)> {
+    program
+        .iter()
+        .filter_map(|form| match form {
+            ast::TopForm::Import {
+                module_path,
+                symbols,
+                ..
+            } => Some((module_path.clone(), symbols.clone())),
+            _ => None,
+        })
+        .collect()
+}
+
+#[derive(Debug, Clone, PartialEq, Eq)]
+pub struct Import {
+    pub module: usize,
+    pub symbols: Vec<String>,
+}
+
+pub struct ModuleNode {
+    pub name: String,
+    pub file_id: Option<FileId>,
+    pub ast: Vec<ast::TopForm>,
+    pub imports: Vec<Import>,
+    pub diagnostics: Vec<Diagnostic>,
+}
+
+pub struct ModuleGraph {
+    pub modules: Vec<ModuleNode>,
+    pub roots: Vec<Import>,
+    pub order: Vec<usize>,
+}
+
+#[derive(Clone, Copy, PartialEq, Eq)]
+enum Visit {
+    InProgress,
+    Done,
+}
+
+struct Builder<'a> {
+    source_dir: &'a Path,
+    source_map: &'a mut SourceMap,
+    timings: Option<&'a Timings>,
+    modules: Vec<ModuleNode>,
+    index: HashMap<String, usize>,
+    visits: Vec<Visit>,
+    stack: Vec<usize>,
+    order: Vec<usize>,
+}
+
+impl Builder<'_> {
+    fn visit(&mut self, name: &str, importer: FileId) -> usize {
+        if let Some(&index) = self.index.get(name) {
+            if self.visits[index] == Visit::InProgress {
+                self.report_cycle(index);
+            }
+            return index;
+        }
+
+        let index = self.load(name, importer);
+        self.stack.push(index);
+        if let Some(file_id) = self.modules[index].file_id {
+            for (dep, symbols) in collect_imports(&self.modules[index].ast) {
+                let module = self.visit(&dep, file_id);
+                self.modules[index].imports.push(Import { module, symbols });
+            }
+        }
+        self.stack.pop();
+        self.visits[index] = Visit::Done;
+        self.order.push(index);
+        index
+    }
+
+    fn load(&mut self, name: &str, importer: FileId) -> usize {
+        let index = self.modules.len();
+        self.index.insert(name.to_string(), index);
+        self.visits.push(Visit::InProgress);
+
+        let path = resolve_module_path(self.source_dir, name);
+        let mut node = ModuleNode {
+            name: name.to_string(),
+            file_id: None,
+            ast: Vec::new(),
+            imports: Vec::new(),
+            diagnostics: Vec::new(),
+        };
+        match std::fs::read_to_string(&path) {
+            Ok(source) => {
+                let file_id = self.source_map.add_file(path.display().to_string(), source);
+                let source = self.source_map.source(file_id);
+                let parsed = instrument::measure(
+                    self.timings,
+                    name,
+                    Phase::Parse,
+                    || parser::parse_source(source, file_id),
+                    |parsed| Counts {
+                        tokens: parsed.tokens,
+                        forms: parsed.forms.len(),
+                        output_bytes: 0,
+                    },
+                );
+                node.diagnostics = parsed.diagnostics;
+                if node.diagnostics.is_empty() {
+                    node.file_id = Some(file_id);
+                    node.ast = parsed.forms;
+                }
+            }
+            Err(_) => node.diagnostics.push(Diagnostic::error(
+                format!(
+                    "could not find module '{}' (looked for {})",
+                    name,
+                    path.display()
+                ),
+                Span::new(importer, 0, 0),
+            )),
+        }
+        self.modules.push(node);
+        index
+    }
+
+    fn report_cycle(&mut self, start: usize) {
+        let Some(position) = self.stack.iter().position(|&index| index == start) else {
+            return;
+        };
+        let Some(&last) = self.stack.last() else {
+            return;
+        };
+        let mut names: Vec<&str> = self.stack[position..]
+            .iter()
+            .map(|&index| self.modules[index].name.as_str())
+            .collect();
+        names.push(&self.modules[start].name);
+        let message = format!("import cycle: {}", names.join(" -> "));
+        let file = self.modules[last].file_id.unwrap_or(FileId::new(0));
+        self.modules[last]
+            .diagnostics
+            .push(Diagnostic::error(message, Span::new(file, 0, 0)));
+    }
+}
+
+pub fn build(
+    source_dir: &Path,
+    importer: FileId,
+    imports: &[(String, Vec<String>)],
+    source_map: &mut SourceMap,
+    timings: Option<&Timings>,
+) -> ModuleGraph {
+    let mut builder = Builder {
+        source_dir,
+        source_map,
+        timings,
+        modules: Vec::new(),
+        index: HashMap::new(),
+        visits: Vec::new(),
+        stack: Vec::new(),
+        order: Vec::new(),
+    };
+    let roots = imports
+        .iter()
+        .map(|(name, symbols)| Import {
+            module: builder.visit(name, importer),
+            symbols: symbols.clone(),
+        })
+        .collect();
+    ModuleGraph {
+        modules: builder.modules,
+        roots,
+        order: builder.order,
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn write_project(name: &str, files: &[(&str, &str)]) -> PathBuf {
+        let dir = std::env::temp_dir().join(format!("vex-graph-{}-{}", name, std::process::id()));
+        std::fs::create_dir_all(&dir).expect("temp dir should be writable");
+        for (file, source) in files {
+            std::fs::write(dir.join(file), source).expect("module should be writable");
+        }
+        dir
+    }
+
+    fn names(graph: &ModuleGraph, indices: &[usize]) -> Vec<String> {
+        indices
+            .iter()
+            .map(|&index| graph.modules[index].name.clone())
+            .collect()
+    }
+
+    fn imports(names: &[&str]) -> Vec<(String, Vec<String>)> {
+        names
+            .iter()
+            .map(|name| (name.to_string(), Vec::new()))
+            .collect()
+    }
+
+    #[test]
+    fn shared_dependencies_are_loaded_once_and_ordered_first() {
+        let dir = write_project(
+            "diamond",
+            &[
+                ("a.vx", "(module a) (import c [f])"),
+                ("b.vx", "(module b) (import c [f])"),
+                ("c.vx", "(module c) (export [f]) (defn f [] : Int 1)"),
+            ],
+        );
+        let mut source_map = SourceMap::new();
+        let graph = build(&dir, FileId::new(0), &imports(&["a", "b"]), &mut source_map, None);
+        std::fs::remove_dir_all(&dir).ok();
+
+        assert_eq!(graph.modules.len(), 3);
+        assert_eq!(names(&graph, &graph.order), ["c", "a", "b"]);
+        assert_eq!(names(&graph, &[graph.roots[0].module]), ["a"]);
+    }
+
+    #[test]
+    fn cycles_are_reported_on_the_closing_module() {
+        let dir = write_project(
+            "cycle",
+            &[
+                ("a.vx", "(module a) (import b [g])"),
+                ("b.vx", "(module b) (import a [f])"),
+            ],
+        );
+        let mut source_map = SourceMap::new();
+        let graph = build(&dir, FileId::new(0), &imports(&["a"]), &mut source_map, None);
+        std::fs::remove_dir_all(&dir).ok();
+
+        let b = &graph.modules[graph.modules[0].imports[0].module];
+        assert_eq!(b.diagnostics.len(), 1);
+        assert_eq!(b.diagnostics[0].message, "import cycle: a -> b -> a");
+        assert!(graph.modules[0].diagnostics.is_empty());
+    }
+
+    #[test]
+    fn missing_modules_become_nodes_with_diagnostics() {
+        let dir = write_project("missing", &[("a.vx", "(module a) (import gone [x])")]);
+        let mut source_map = SourceMap::new();
+        let graph = build(&dir, FileId::new(0), &imports(&["a"]), &mut source_map, None);
+        std::fs::remove_dir_all(&dir).ok();
+
+        assert_eq!(names(&graph, &graph.order), ["gone", "a"]);
+        let gone = &graph.modules[graph.order[0]];
+        assert!(gone.diagnostics[0].message.contains("could not find module 'gone'"));
+        assert_eq!(gone.diagnostics[0].span.file, graph.modules[0].file_id.unwrap());
+    }
+}
@@ -1,8 +1,13 @@
+use std::ops::Range;
+
 use crate::ast::{Binding, Expr, Field, MatchClause, Param, Pattern, TopForm, TypeExpr, Variant};
 use crate::diagnostics::{Diagnostic, Label};
-use crate::lexer::{Token, TokenKind};
+use crate::lexer::{self, Token, TokenKind};
+use crate::parallel;
 use crate::source::{FileId, Span};
 
+const CHUNK_BYTES: usize = 32 * 1024;
+
 fn token_kind_name(kind: &TokenKind) -> &'static str {
     match kind {
         TokenKind::LeftParen => "'('",
@@ -23,41 +28,54 @@ fn token_kind_name(kind: &TokenKind) -> &'static str {
     }
 }
 
-struct Parser<'a> {
-    tokens: &'a [Token],
-    pos: usize,
+struct Parser<'a, I: Iterator<Item = Token<'a>>> {
+    tokens: I,
+    current: Option<Token<'a>>,
+    last_end: Span,
     diagnostics: Vec<Diagnostic>,
 }
 
-impl<'a> Parser<'a> {
-    fn new(tokens: &'a [Token]) -> Self {
+impl<'a, I: Iterator<Item = Token<'a>>> Parser<'a, I> {
+    fn new(mut tokens: I) -> Self {
+        let current = tokens.next();
         Self {
             tokens,
-            pos: 0,
+            current,
+            last_end: Span::new(FileId::new(0), 0, 0),
             diagnostics: Vec::new(),
         }
     }
 
+    fn token(&self) -> &Token<'a> {
+        self.current
+            .as_ref()
+            .expect("parser read past the end of input")
+    }
+
+    fn bump(&mut self) {
+        if let Some(token) = &self.current {
+            self.last_end = Span::new(token.span.file, token.span.end, token.span.end);
+        }
+        self.current = self.tokens.next();
+    }
+
     fn eof_span(&self) -> Span {
-        self.tokens
-            .last()
-            .map(|t| Span::new(t.span.file, t.span.end, t.span.end))
-            .unwrap_or(Span::new(FileId::new(0), 0, 0))
+        self.last_end
     }
 
     fn at_end(&self) -> bool {
-        self.pos >= self.tokens.len()
+        self.current.is_none()
     }
 
     fn check(&self, f: impl FnOnce(&TokenKind) -> bool) -> bool {
-        self.tokens.get(self.pos).is_some_and(|t| f(&t.kind))
+        self.current.as_ref().is_some_and(|t| f(&t.kind))
     }
 
     fn expect_right_paren(&mut self, open_span: Span) -> Option<Span> {
-        if let Some(token) = self.tokens.get(self.pos) {
+        if let Some(token) = self.current.as_ref() {
             if matches!(token.kind, TokenKind::RightParen) {
                 let span = token.span;
-                self.pos += 1;
+                self.bump();
                 return Some(span);
             }
             let desc = token_kind_name(&token.kind);
@@ -76,10 +94,10 @@ impl<'a> Parser<'a> {
     }
 
     fn expect_right_bracket(&mut self, open_span: Span) -> Option<Span> {
-        if let Some(token) = self.tokens.get(self.pos) {
+        if let Some(token) = self.current.as_ref() {
             if matches!(token.kind, TokenKind::RightBracket) {
                 let span = token.span;
-                self.pos += 1;
+                self.bump();
                 return Some(span);
             }
             let desc = token_kind_name(&token.kind);
@@ -105,13 +123,13 @@ impl<'a> Parser<'a> {
             ));
             return None;
         }
-        let span = self.tokens[self.pos].span;
-        if let TokenKind::Symbol(ref name) = self.tokens[self.pos].kind {
-            let name = name.clone();
-            self.pos += 1;
+        let span = self.token().span;
+        if let TokenKind::Symbol(name) = self.token().kind {
+            let name = name.to_string();
+            self.bump();
             Some((name, span))
         } else {
-            let desc = token_kind_name(&self.tokens[self.pos].kind);
+            let desc = token_kind_name(&self.token().kind);
             self.diagnostics.push(Diagnostic::error(
                 format!("expected symbol, found {}", desc),
                 span,
@@ -120,73 +138,42 @@ impl<'a> Parser<'a> {
         }
     }
 
-    fn parse_program(&mut self) -> Vec<TopForm> {
+    fn parse_program(&mut self) -> (Vec<TopForm>, bool) {
         let mut forms = Vec::new();
         while !self.at_end() {
             if let Some(form) = self.parse_top_form() {
                 forms.push(form);
             } else {
-                break;
+                return (forms, false);
             }
         }
-        forms
+        (forms, true)
     }
 
     fn parse_top_form(&mut self) -> Option<TopForm> {
-        if self.check(|k| matches!(k, TokenKind::LeftParen))
-            && let Some(TokenKind::Symbol(name)) = self.tokens.get(self.pos + 1).map(|t| &t.kind)
-        {
-            match name.as_str() {
-                "module" => {
-                    let open_span = self.tokens[self.pos].span;
-                    self.pos += 1;
-                    return self.parse_module(open_span);
-                }
-                "export" => {
-                    let open_span = self.tokens[self.pos].span;
-                    self.pos += 1;
-                    return self.parse_export(open_span);
-                }
-                "import" => {
-                    let open_span = self.tokens[self.pos].span;
-                    self.pos += 1;
-                    return self.parse_import(open_span);
-                }
-                "import-go" => {
-                    let open_span = self.tokens[self.pos].span;
-                    self.pos += 1;
-                    return self.parse_import_go(open_span);
-                }
-                "defn" => {
-                    let open_span = self.tokens[self.pos].span;
-                    self.pos += 1;
-                    return self.parse_defn(open_span);
-                }
-                "def" => {
-                    let open_span = self.tokens[self.pos].span;
-                    self.pos += 1;
-                    return self.parse_def(open_span);
-                }
-                "deftype" => {
-                    let open_span = self.tokens[self.pos].span;
-                    self.pos += 1;
-                    return self.parse_deftype(open_span);
-                }
-                "defunion" => {
-                    let open_span = self.tokens[self.pos].span;
-                    self.pos += 1;
-                    return self.parse_defunion(open_span);
-                }
-                "defmacro" => {
-                    let open_span = self.tokens[self.pos].span;
-                    self.pos += 1;
-                    return self.parse_defmacro(open_span);
-                }
+        if !self.check(|k| matches!(k, TokenKind::LeftParen)) {
+            let expr = self.parse_expr()?;
+            return Some(TopForm::Expr(expr));
+        }
+
+        let open_span = self.token().span;
+        self.bump();
+        if let Some(TokenKind::Symbol(name)) = self.current.as_ref().map(|t| &t.kind) {
+            match *name {
+                "module" => return self.parse_module(open_span),
+                "export" => return self.parse_export(open_span),
+                "import" => return self.parse_import(open_span),
+                "import-go" => return self.parse_import_go(open_span),
+                "defn" => return self.parse_defn(open_span),
+                "def" => return self.parse_def(open_span),
+                "deftype" => return self.parse_deftype(open_span),
+                "defunion" => return self.parse_defunion(open_span),
+                "defmacro" => return self.parse_defmacro(open_span),
                 _ => {}
             }
         }
 
-        let expr = self.parse_expr()?;
+        let expr = self.parse_list_expr(open_span)?;
         Some(TopForm::Expr(expr))
     }
 
@@ -196,7 +183,7 @@ impl<'a> Parser<'a> {
         let mut end_span = start_span;
 
         while self.check(|k| matches!(k, TokenKind::Dot)) {
-            self.pos += 1;
+            self.bump();
             let (part, part_span) = self.expect_symbol()?;
             name.push('.');
             name.push_str(&part);
@@ -210,7 +197,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_module(&mut self, open_span: Span) -> Option<TopForm> {
-        self.pos += 1;
+        self.bump();
 
         let (name, _) = self.parse_qualified_id()?;
         let close_span = self.expect_right_paren(open_span)?;
@@ -222,13 +209,13 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_export(&mut self, open_span: Span) -> Option<TopForm> {
-        self.pos += 1;
+        self.bump();
 
         if self.at_end() || !self.check(|k| matches!(k, TokenKind::LeftBracket)) {
             let span = if self.at_end() {
                 self.eof_span()
             } else {
-                self.tokens[self.pos].span
+                self.token().span
             };
             self.diagnostics.push(Diagnostic::error(
                 "expected '[' for export symbol list",
@@ -236,8 +223,8 @@ impl<'a> Parser<'a> {
             ));
             return None;
         }
-        let bracket_span = self.tokens[self.pos].span;
-        self.pos += 1;
+        let bracket_span = self.token().span;
+        self.bump();
 
         let mut symbols = Vec::new();
         while !self.at_end() && !self.check(|k| matches!(k, TokenKind::RightBracket)) {
@@ -255,7 +242,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_import(&mut self, open_span: Span) -> Option<TopForm> {
-        self.pos += 1;
+        self.bump();
 
         let (module_path, _) = self.parse_qualified_id()?;
 
@@ -263,7 +250,7 @@ impl<'a> Parser<'a> {
             let span = if self.at_end() {
                 self.eof_span()
             } else {
-                self.tokens[self.pos].span
+                self.token().span
             };
             self.diagnostics.push(Diagnostic::error(
                 "expected '[' for import symbol list",
@@ -271,8 +258,8 @@ impl<'a> Parser<'a> {
             ));
             return None;
         }
-        let bracket_span = self.tokens[self.pos].span;
-        self.pos += 1;
+        let bracket_span = self.token().span;
+        self.bump();
 
         let mut symbols = Vec::new();
         while !self.at_end() && !self.check(|k| matches!(k, TokenKind::RightBracket)) {
@@ -291,7 +278,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_import_go(&mut self, open_span: Span) -> Option<TopForm> {
-        self.pos += 1;
+        self.bump();
 
         if self.at_end() {
             self.diagnostics.push(Diagnostic::error(
@@ -300,15 +287,15 @@ impl<'a> Parser<'a> {
             ));
             return None;
         }
-        let go_package = if let TokenKind::String(ref s) = self.tokens[self.pos].kind {
-            let s = s.clone();
-            self.pos += 1;
+        let go_package = if let TokenKind::String(s) = &self.token().kind {
+            let s = s.to_string();
+            self.bump();
             s
         } else {
-            let desc = token_kind_name(&self.tokens[self.pos].kind);
+            let desc = token_kind_name(&self.token().kind);
             self.diagnostics.push(Diagnostic::error(
                 format!("expected Go package path string, found {}", desc),
-                self.tokens[self.pos].span,
+                self.token().span,
             ));
             return None;
         };
@@ -317,7 +304,7 @@ impl<'a> Parser<'a> {
             let span = if self.at_end() {
                 self.eof_span()
             } else {
-                self.tokens[self.pos].span
+                self.token().span
             };
             self.diagnostics.push(Diagnostic::error(
                 "expected '[' for import-go symbol list",
@@ -325,8 +312,8 @@ impl<'a> Parser<'a> {
             ));
             return None;
         }
-        let bracket_span = self.tokens[self.pos].span;
-        self.pos += 1;
+        let bracket_span = self.token().span;
+        self.bump();
 
         let mut symbols = Vec::new();
         while !self.at_end() && !self.check(|k| matches!(k, TokenKind::RightBracket)) {
@@ -353,56 +340,36 @@ impl<'a> Parser<'a> {
             return None;
         }
 
-        let span = self.tokens[self.pos].span;
-        let kind = self.tokens[self.pos].kind.clone();
-
-        match kind {
-            TokenKind::Integer(n) => {
-                self.pos += 1;
-                Some(Expr::Int(n, span))
-            }
-            TokenKind::Float(f) => {
-                self.pos += 1;
-                Some(Expr::Float(f, span))
-            }
-            TokenKind::String(s) => {
-                self.pos += 1;
-                Some(Expr::String(s, span))
-            }
-            TokenKind::Boolean(b) => {
-                self.pos += 1;
-                Some(Expr::Bool(b, span))
-            }
-            TokenKind::Nil => {
-                self.pos += 1;
-                Some(Expr::Nil(span))
-            }
-            TokenKind::Symbol(name) => {
-                self.pos += 1;
-                Some(Expr::Symbol(name, span))
-            }
-            TokenKind::Keyword(name) => {
-                self.pos += 1;
-                Some(Expr::Keyword(name, span))
-            }
+        let span = self.token().span;
+        let expr = match &self.token().kind {
+            TokenKind::Integer(n) => Expr::Int(*n, span),
+            TokenKind::Float(f) => Expr::Float(*f, span),
+            TokenKind::String(s) => Expr::String(s.to_string(), span),
+            TokenKind::Boolean(b) => Expr::Bool(*b, span),
+            TokenKind::Nil => Expr::Nil(span),
+            TokenKind::Symbol(name) => Expr::Symbol(name.to_string(), span),
+            TokenKind::Keyword(name) => Expr::Keyword(name.to_string(), span),
             TokenKind::LeftParen => {
-                self.pos += 1;
-                self.parse_list_expr(span)
+                self.bump();
+                return self.parse_list_expr(span);
             }
-            ref k => {
+            k => {
+                let desc = token_kind_name(k);
                 self.diagnostics.push(Diagnostic::error(
-                    format!("unexpected {} in expression", token_kind_name(k)),
+                    format!("unexpected {} in expression", desc),
                     span,
                 ));
-                None
+                return None;
             }
-        }
+        };
+        self.bump();
+        Some(expr)
     }
 
     fn parse_list_expr(&mut self, open_span: Span) -> Option<Expr> {
         if self.check(|k| matches!(k, TokenKind::RightParen)) {
-            let close_span = self.tokens[self.pos].span;
-            self.pos += 1;
+            let close_span = self.token().span;
+            self.bump();
             self.diagnostics.push(Diagnostic::error(
                 "unexpected empty expression '()'",
                 Span::new(open_span.file, open_span.start, close_span.end),
@@ -414,8 +381,8 @@ impl<'a> Parser<'a> {
             return self.parse_field_access(open_span);
         }
 
-        if let Some(TokenKind::Symbol(name)) = self.tokens.get(self.pos).map(|t| &t.kind) {
-            match name.as_str() {
+        if let Some(TokenKind::Symbol(name)) = self.current.as_ref().map(|t| &t.kind) {
+            match *name {
                 "if" => return self.parse_if(open_span),
                 "let" => return self.parse_let(open_span),
                 "match" => return self.parse_match(open_span),
@@ -435,7 +402,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_spawn(&mut self, open_span: Span) -> Option<Expr> {
-        self.pos += 1;
+        self.bump();
         let body = self.parse_expr()?;
         let close_span = self.expect_right_paren(open_span)?;
         Some(Expr::Spawn {
@@ -445,7 +412,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_channel(&mut self, open_span: Span) -> Option<Expr> {
-        self.pos += 1;
+        self.bump();
         let element_type = self.parse_type()?;
         let size = if !self.at_end() && !self.check(|k| matches!(k, TokenKind::RightParen)) {
             Some(Box::new(self.parse_expr()?))
@@ -461,7 +428,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_send(&mut self, open_span: Span) -> Option<Expr> {
-        self.pos += 1;
+        self.bump();
         let channel = self.parse_expr()?;
         let value = self.parse_expr()?;
         let close_span = self.expect_right_paren(open_span)?;
@@ -473,7 +440,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_recv(&mut self, open_span: Span) -> Option<Expr> {
-        self.pos += 1;
+        self.bump();
         let channel = self.parse_expr()?;
         let close_span = self.expect_right_paren(open_span)?;
         Some(Expr::Recv {
@@ -483,7 +450,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_quote(&mut self, open_span: Span) -> Option<Expr> {
-        self.pos += 1;
+        self.bump();
         let expr = self.parse_expr()?;
         let close_span = self.expect_right_paren(open_span)?;
         Some(Expr::Quote {
@@ -493,7 +460,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_unquote(&mut self, open_span: Span) -> Option<Expr> {
-        self.pos += 1;
+        self.bump();
         let expr = self.parse_expr()?;
         let close_span = self.expect_right_paren(open_span)?;
         Some(Expr::Unquote {
@@ -503,7 +470,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_splice(&mut self, open_span: Span) -> Option<Expr> {
-        self.pos += 1;
+        self.bump();
         let expr = self.parse_expr()?;
         let close_span = self.expect_right_paren(open_span)?;
         Some(Expr::Splice {
@@ -530,7 +497,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_if(&mut self, open_span: Span) -> Option<Expr> {
-        self.pos += 1;
+        self.bump();
 
         let test = self.parse_expr()?;
         let then_branch = self.parse_expr()?;
@@ -547,7 +514,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_let(&mut self, open_span: Span) -> Option<Expr> {
-        self.pos += 1;
+        self.bump();
 
         let bindings = self.parse_binding_list()?;
         let body = self.parse_body()?;
@@ -570,16 +537,16 @@ impl<'a> Parser<'a> {
             return None;
         }
 
-        let open_span = self.tokens[self.pos].span;
-        if !matches!(self.tokens[self.pos].kind, TokenKind::LeftBracket) {
-            let desc = token_kind_name(&self.tokens[self.pos].kind);
+        let open_span = self.token().span;
+        if !matches!(self.token().kind, TokenKind::LeftBracket) {
+            let desc = token_kind_name(&self.token().kind);
             self.diagnostics.push(Diagnostic::error(
                 format!("expected '[' for binding list, found {}", desc),
                 open_span,
             ));
             return None;
         }
-        self.pos += 1;
+        self.bump();
 
         let mut bindings = Vec::new();
 
@@ -607,7 +574,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_match(&mut self, open_span: Span) -> Option<Expr> {
-        self.pos += 1;
+        self.bump();
 
         let scrutinee = Box::new(self.parse_expr()?);
 
@@ -653,43 +620,43 @@ impl<'a> Parser<'a> {
             return None;
         }
 
-        let span = self.tokens[self.pos].span;
-        match &self.tokens[self.pos].kind {
+        let span = self.token().span;
+        match &self.token().kind {
             TokenKind::Integer(n) => {
                 let n = *n;
-                self.pos += 1;
+                self.bump();
                 Some(Pattern::Literal(Box::new(Expr::Int(n, span))))
             }
             TokenKind::Float(f) => {
                 let f = *f;
-                self.pos += 1;
+                self.bump();
                 Some(Pattern::Literal(Box::new(Expr::Float(f, span))))
             }
             TokenKind::String(s) => {
-                let s = s.clone();
-                self.pos += 1;
+                let s = s.to_string();
+                self.bump();
                 Some(Pattern::Literal(Box::new(Expr::String(s, span))))
             }
             TokenKind::Boolean(b) => {
                 let b = *b;
-                self.pos += 1;
+                self.bump();
                 Some(Pattern::Literal(Box::new(Expr::Bool(b, span))))
             }
             TokenKind::Nil => {
-                self.pos += 1;
+                self.bump();
                 Some(Pattern::Literal(Box::new(Expr::Nil(span))))
             }
-            TokenKind::Symbol(s) if s == "_" => {
-                self.pos += 1;
+            TokenKind::Symbol(s) if *s == "_" => {
+                self.bump();
                 Some(Pattern::Wildcard(span))
             }
             TokenKind::Symbol(s) => {
-                let s = s.clone();
-                self.pos += 1;
+                let s = s.to_string();
+                self.bump();
                 Some(Pattern::Binding(s, span))
             }
             TokenKind::LeftParen => {
-                self.pos += 1;
+                self.bump();
                 let (name, _) = self.expect_symbol()?;
                 let mut args = Vec::new();
                 while !self.at_end() && !self.check(|k| matches!(k, TokenKind::RightParen)) {
@@ -703,7 +670,7 @@ impl<'a> Parser<'a> {
                 })
             }
             _ => {
-                let desc = token_kind_name(&self.tokens[self.pos].kind);
+                let desc = token_kind_name(&self.token().kind);
                 self.diagnostics.push(Diagnostic::error(
                     format!("expected pattern, found {}", desc),
                     span,
@@ -714,12 +681,12 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_lambda(&mut self, open_span: Span) -> Option<Expr> {
-        self.pos += 1;
+        self.bump();
 
         let params = self.parse_param_list()?;
 
         let return_type = if self.check(|k| matches!(k, TokenKind::Colon)) {
-            self.pos += 1;
+            self.bump();
             Some(self.parse_type()?)
         } else {
             None
@@ -737,7 +704,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_field_access(&mut self, open_span: Span) -> Option<Expr> {
-        self.pos += 1;
+        self.bump();
 
         let object = self.parse_expr()?;
         let (field, _) = self.expect_symbol()?;
@@ -751,13 +718,13 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_defn(&mut self, open_span: Span) -> Option<TopForm> {
-        self.pos += 1;
+        self.bump();
 
         let (name, _) = self.expect_symbol()?;
         let params = self.parse_param_list()?;
 
         let return_type = if self.check(|k| matches!(k, TokenKind::Colon)) {
-            self.pos += 1;
+            self.bump();
             Some(self.parse_type()?)
         } else {
             None
@@ -776,12 +743,12 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_def(&mut self, open_span: Span) -> Option<TopForm> {
-        self.pos += 1;
+        self.bump();
 
         let (name, _) = self.expect_symbol()?;
 
         let type_ann = if self.check(|k| matches!(k, TokenKind::Colon)) {
-            self.pos += 1;
+            self.bump();
             Some(self.parse_type()?)
         } else {
             None
@@ -799,7 +766,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_deftype(&mut self, open_span: Span) -> Option<TopForm> {
-        self.pos += 1;
+        self.bump();
 
         let (name, _) = self.expect_symbol()?;
 
@@ -826,16 +793,16 @@ impl<'a> Parser<'a> {
             return None;
         }
 
-        let open_span = self.tokens[self.pos].span;
-        if !matches!(self.tokens[self.pos].kind, TokenKind::LeftParen) {
-            let desc = token_kind_name(&self.tokens[self.pos].kind);
+        let open_span = self.token().span;
+        if !matches!(self.token().kind, TokenKind::LeftParen) {
+            let desc = token_kind_name(&self.token().kind);
             self.diagnostics.push(Diagnostic::error(
                 format!("expected '(' for field declaration, found {}", desc),
                 open_span,
             ));
             return None;
         }
-        self.pos += 1;
+        self.bump();
 
         let (name, _) = self.expect_symbol()?;
         let type_expr = self.parse_type()?;
@@ -849,7 +816,7 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_defunion(&mut self, open_span: Span) -> Option<TopForm> {
-        self.pos += 1;
+        self.bump();
 
         let (name, _) = self.expect_symbol()?;
 
@@ -868,23 +835,23 @@ impl<'a> Parser<'a> {
     }
 
     fn parse_defmacro(&mut self, open_span: Span) -> Option<TopForm> {
-        self.pos += 1;
+        self.bump();
 
         let (name, _) = self.expect_symbol()?;
 
-        if self.at_end() || !matches!(self.tokens[self.pos].kind, TokenKind::LeftBracket) {
+        if self.at_end() || !matches!(self.token().kind, TokenKind::LeftBracket) {
             self.diagnostics.push(Diagnostic::error(
                 "expected '[' for macro parameter list",
                 if self.at_end() {
                     self.eof_span()
                 } else {
-                    self.tokens[self.pos].span
+                    self.token().span
                 },
             ));
             return None;
         }
-        let bracket_span = self.tokens[self.pos].span;
-        self.pos += 1;
+        let bracket_span = self.token().span;
+        self.bump();
 
         let mut params = Vec::new();
         let mut rest_param = None;
@@ -926,16 +893,16 @@ impl<'a> Parser<'a> {
             return None;
         }
 
-        let open_span = self.tokens[self.pos].span;
-        if !matches!(self.tokens[self.pos].kind, TokenKind::LeftParen) {
-            let desc = token_kind_name(&self.tokens[self.pos].kind);
+        let open_span = self.token().span;
+        if !matches!(self.token().kind, TokenKind::LeftParen) {
+            let desc = token_kind_name(&self.token().kind);
             self.diagnostics.push(Diagnostic::error(
                 format!("expected '(' for variant declaration, found {}", desc),
                 open_span,
             ));
             return None;
         }
-        self.pos += 1;
+        self.bump();
 
         let (name, _) = self.expect_symbol()?;
 
@@ -962,16 +929,16 @@ impl<'a> Parser<'a> {
             return None;
         }
 
-        let open_span = self.tokens[self.pos].span;
-        if !matches!(self.tokens[self.pos].kind, TokenKind::LeftBracket) {
-            let desc = token_kind_name(&self.tokens[self.pos].kind);
+        let open_span = self.token().span;
+        if !matches!(self.token().kind, TokenKind::LeftBracket) {
+            let desc = token_kind_name(&self.token().kind);
             self.diagnostics.push(Diagnostic::error(
                 format!("expected '[' for parameter list, found {}", desc),
                 open_span,
             ));
             return None;
         }
-        self.pos += 1;
+        self.bump();
 
         let mut params = Vec::new();
 
@@ -979,7 +946,7 @@ impl<'a> Parser<'a> {
             let (name, name_span) = self.expect_symbol()?;
 
             let type_ann = if self.check(|k| matches!(k, TokenKind::Colon)) {
-                self.pos += 1;
+                self.bump();
                 let t = self.parse_type()?;
                 Some(t)
             } else {
@@ -1012,20 +979,20 @@ impl<'a> Parser<'a> {
             return None;
         }
 
-        let span = self.tokens[self.pos].span;
+        let span = self.token().span;
 
-        match &self.tokens[self.pos].kind {
+        match &self.token().kind {
             TokenKind::Symbol(name) => {
-                let name = name.clone();
-                self.pos += 1;
+                let name = name.to_string();
+                self.bump();
                 Some(TypeExpr::Named { name, span })
             }
             TokenKind::LeftParen => {
-                self.pos += 1;
+                self.bump();
                 self.parse_compound_type(span)
             }
             _ => {
-                let desc = token_kind_name(&self.tokens[self.pos].kind);
+                let desc = token_kind_name(&self.token().kind);
                 self.diagnostics.push(Diagnostic::error(
                     format!("expected type, found {}", desc),
                     span,
@@ -1073,16 +1040,16 @@ impl<'a> Parser<'a> {
             return None;
         }
 
-        let bracket_span = self.tokens[self.pos].span;
-        if !matches!(self.tokens[self.pos].kind, TokenKind::LeftBracket) {
-            let desc = token_kind_name(&self.tokens[self.pos].kind);
+        let bracket_span = self.token().span;
+        if !matches!(self.token().kind, TokenKind::LeftBracket) {
+            let desc = token_kind_name(&self.token().kind);
             self.diagnostics.push(Diagnostic::error(
                 format!("expected '[' for function type parameters, found {}", desc),
                 bracket_span,
             ));
             return None;
         }
-        self.pos += 1;
+        self.bump();
 
         let mut params = Vec::new();
         while !self.at_end() && !self.check(|k| matches!(k, TokenKind::RightBracket)) {
@@ -1102,12 +1069,71 @@ impl<'a> Parser<'a> {
     }
 }
 
-pub fn parse(tokens: &[Token]) -> (Vec<TopForm>, Vec<Diagnostic>) {
-    let mut parser = Parser::new(tokens);
-    let forms = parser.parse_program();
+pub struct Parsed {
+    pub forms: Vec<TopForm>,
+    pub tokens: usize,
+    pub diagnostics: Vec<Diagnostic>,
+}
+
+pub fn parse(tokens: &[Token<'_>]) -> (Vec<TopForm>, Vec<Diagnostic>) {
+    let mut parser = Parser::new(tokens.iter().cloned());
+    let (forms, _) = parser.parse_program();
     (forms, parser.diagnostics)
 }
 
+struct Chunk {
+    forms: Vec<TopForm>,
+    complete: bool,
+    tokens: usize,
+    lex_diagnostics: Vec<Diagnostic>,
+    parse_diagnostics: Vec<Diagnostic>,
+}
+
+fn parse_chunk(source: &str, file: FileId, range: Range<usize>) -> Chunk {
+    let mut tokens = lexer::stream_range(source, file, range);
+    let mut parser = Parser::new(tokens.by_ref());
+    let (forms, complete) = parser.parse_program();
+    let parse_diagnostics = parser.diagnostics;
+    let lex_diagnostics = tokens.finish();
+    Chunk {
+        forms,
+        complete,
+        tokens: tokens.tokens_read(),
+        lex_diagnostics,
+        parse_diagnostics,
+    }
+}
+
+fn parse_chunked(source: &str, file: FileId, chunk_bytes: usize) -> Parsed {
+    let ranges = lexer::split_top_level(source, chunk_bytes);
+    let chunks = parallel::map(&ranges, |range| parse_chunk(source, file, range.clone()));
+
+    let mut parsed = Parsed {
+        forms: Vec::new(),
+        tokens: 0,
+        diagnostics: Vec::new(),
+    };
+    let mut lex_diagnostics = Vec::new();
+    let mut stopped = false;
+    for chunk in chunks {
+        parsed.tokens += chunk.tokens;
+        lex_diagnostics.extend(chunk.lex_diagnostics);
+        if !stopped {
+            parsed.forms.extend(chunk.forms);
+            parsed.diagnostics.extend(chunk.parse_diagnostics);
+            stopped = !chunk.complete;
+        }
+    }
+    if !lex_diagnostics.is_empty() {
+        parsed.diagnostics = lex_diagnostics;
+    }
+    parsed
+}
+
+pub fn parse_source(source: &str, file: FileId) -> Parsed {
+    parse_chunked(source, file, CHUNK_BYTES)
+}
+
 #[cfg(test)]
 mod tests {
     use super::*;
@@ -2434,4 +2460,59 @@ mod tests {
         assert_eq!(forms.len(), 1);
         assert!(matches!(&forms[0], TopForm::DefMacro { name, .. } if name == "when"));
     }
+
+    #[test]
+    fn streaming_parse_matches_the_token_slice() {
+        let sources = [
+            "(module app) (import math [square]) (defn main [] (println (square 3)))",
+            "(deftype P (x Int)) (match (P 1) (P x) x _ 0) :done \"a\\nb\"",
+            "(defn f [x : Int] : Int (+ x 1)) (defn g [",
+            "(if true 1)) (def y 2)",
+        ];
+        for source in sources {
+            let (tokens, _) = lex(source, FileId::new(0));
+            let (forms, diags) = parse(&tokens);
+            let parsed = super::parse_source(source, FileId::new(0));
+            assert_eq!(parsed.forms, forms, "{}", source);
+            assert_eq!(parsed.tokens, tokens.len());
+            let messages = |diags: &[Diagnostic]| -> Vec<(String, Span)> {
+                diags.iter().map(|d| (d.message.clone(), d.span)).collect()
+            };
+            assert_eq!(messages(&parsed.diagnostics), messages(&diags), "{}", source);
+        }
+    }
+
+    #[test]
+    fn lexer_diagnostics_after_a_parse_error_still_win() {
+        let parsed = super::parse_source("(defn f [) (def x 1) (def y @)", FileId::new(0));
+        assert_eq!(parsed.diagnostics.len(), 1);
+        assert_eq!(parsed.diagnostics[0].message, "unrecognized character: '@'");
+    }
+
+    #[test]
+    fn chunked_parse_matches_the_serial_parse() {
+        let sources = [
+            "(defn a [] 1) (defn b [] 2) 3 :k (c \")\" [4])",
+            "(defn a [] 1) (if) (defn c [] 3) (defn d [",
+            "(defn a [] 1) ) (defn b [] 2)",
+            "(def x 1) (def y #) (let [a 1)",
+        ];
+        for source in sources {
+            let (tokens, lex_diags) = lex(source, FileId::new(0));
+            let (forms, parse_diags) = parse(&tokens);
+            let expected = if lex_diags.is_empty() {
+                parse_diags
+            } else {
+                lex_diags
+            };
+            let chunked = parse_chunked(source, FileId::new(0), 1);
+            assert!(lexer::split_top_level(source, 1).len() > 2);
+            assert_eq!(chunked.forms, forms, "{}", source);
+            assert_eq!(chunked.tokens, tokens.len());
+            let messages = |diags: &[Diagnostic]| -> Vec<(String, Span)> {
+                diags.iter().map(|d| (d.message.clone(), d.span)).collect()
+            };
+            assert_eq!(messages(&chunked.diagnostics), messages(&expected), "{}", source);
+        }
+    }
 }
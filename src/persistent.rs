@@ -0,0 +1,597 @@
+use std::collections::hash_map::DefaultHasher;
+use std::hash::{Hash, Hasher};
+use std::mem;
+use std::slice;
+use std::sync::Arc;
+
+const BITS: usize = 5;
+const WIDTH: usize = 1 << BITS;
+const MASK: usize = WIDTH - 1;
+
+#[derive(Debug, Clone)]
+enum VecNode<T> {
+    Branch(Vec<Arc<VecNode<T>>>),
+    Leaf(Vec<T>),
+}
+
+#[derive(Debug, Clone)]
+pub struct PVec<T> {
+    len: usize,
+    shift: usize,
+    root: Arc<VecNode<T>>,
+    tail: Arc<Vec<T>>,
+}
+
+impl<T> Default for PVec<T> {
+    fn default() -> Self {
+        Self {
+            len: 0,
+            shift: BITS,
+            root: Arc::new(VecNode::Branch(Vec::new())),
+            tail: Arc::new(Vec::new()),
+        }
+    }
+}
+
+impl<T: Clone> PVec<T> {
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    pub fn with_capacity(capacity: usize) -> Self {
+        let mut shift = BITS;
+        while 1usize
+            .checked_shl((shift + BITS) as u32)
+            .is_some_and(|covered| capacity > covered)
+        {
+            shift += BITS;
+        }
+        let sealed = capacity.saturating_sub(1) & !MASK;
+        let children = sealed.div_ceil(1 << shift).min(WIDTH);
+        Self {
+            len: 0,
+            shift,
+            root: Arc::new(VecNode::Branch(Vec::with_capacity(children))),
+            tail: Arc::new(Vec::with_capacity(capacity.min(WIDTH))),
+        }
+    }
+
+    pub fn len(&self) -> usize {
+        self.len
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.len == 0
+    }
+
+    fn tail_offset(&self) -> usize {
+        self.len - self.tail.len()
+    }
+
+    fn leaf(&self, index: usize) -> &[T] {
+        if index >= self.tail_offset() {
+            return &self.tail;
+        }
+        let mut node = &self.root;
+        let mut level = self.shift;
+        loop {
+            match node.as_ref() {
+                VecNode::Branch(children) => {
+                    node = &children[(index >> level) & MASK];
+                    level -= BITS;
+                }
+                VecNode::Leaf(values) => return values,
+            }
+        }
+    }
+
+    pub fn get(&self, index: usize) -> Option<&T> {
+        if index >= self.len {
+            return None;
+        }
+        self.leaf(index).get(index & MASK)
+    }
+
+    pub fn push(&mut self, value: T) {
+        if self.tail.len() == WIDTH {
+            let offset = self.tail_offset();
+            let full = Arc::try_unwrap(mem::take(&mut self.tail))
+                .unwrap_or_else(|tail| (*tail).clone());
+            let leaf = VecNode::Leaf(full);
+            if offset == 1 << (self.shift + BITS) {
+                let path = Arc::new(new_path(self.shift, leaf));
+                self.root = Arc::new(VecNode::Branch(vec![self.root.clone(), path]));
+                self.shift += BITS;
+            } else {
+                push_leaf(Arc::make_mut(&mut self.root), self.shift, offset, leaf);
+            }
+            self.tail = Arc::new(Vec::with_capacity(WIDTH));
+        }
+        Arc::make_mut(&mut self.tail).push(value);
+        self.len += 1;
+    }
+
+    pub fn set(&mut self, index: usize, value: T) -> bool {
+        if index >= self.len {
+            return false;
+        }
+        if index >= self.tail_offset() {
+            Arc::make_mut(&mut self.tail)[index & MASK] = value;
+            return true;
+        }
+        let mut node = Arc::make_mut(&mut self.root);
+        let mut level = self.shift;
+        loop {
+            match node {
+                VecNode::Branch(children) => {
+                    node = Arc::make_mut(&mut children[(index >> level) & MASK]);
+                    level -= BITS;
+                }
+                VecNode::Leaf(values) => {
+                    values[index & MASK] = value;
+                    return true;
+                }
+            }
+        }
+    }
+
+    pub fn iter(&self) -> VecIter<'_, T> {
+        VecIter {
+            vec: self,
+            index: 0,
+            leaf: Default::default(),
+        }
+    }
+}
+
+fn new_path<T>(level: usize, leaf: VecNode<T>) -> VecNode<T> {
+    if level == 0 {
+        leaf
+    } else {
+        let mut children = Vec::with_capacity(WIDTH);
+        children.push(Arc::new(new_path(level - BITS, leaf)));
+        VecNode::Branch(children)
+    }
+}
+
+fn push_leaf<T: Clone>(node: &mut VecNode<T>, level: usize, index: usize, leaf: VecNode<T>) {
+    let VecNode::Branch(children) = node else {
+        return;
+    };
+    let slot = (index >> level) & MASK;
+    if level == BITS {
+        children.push(Arc::new(leaf));
+    } else if slot < children.len() {
+        push_leaf(Arc::make_mut(&mut children[slot]), level - BITS, index, leaf);
+    } else {
+        children.push(Arc::new(new_path(level - BITS, leaf)));
+    }
+}
+
+pub struct VecIter<'a, T> {
+    vec: &'a PVec<T>,
+    index: usize,
+    leaf: slice::Iter<'a, T>,
+}
+
+impl<'a, T: Clone> Iterator for VecIter<'a, T> {
+    type Item = &'a T;
+
+    fn next(&mut self) -> Option<&'a T> {
+        if let Some(value) = self.leaf.next() {
+            self.index += 1;
+            return Some(value);
+        }
+        if self.index >= self.vec.len {
+            return None;
+        }
+        self.leaf = self.vec.leaf(self.index).iter();
+        self.index += 1;
+        self.leaf.next()
+    }
+
+    fn size_hint(&self) -> (usize, Option<usize>) {
+        let remaining = self.vec.len - self.index;
+        (remaining, Some(remaining))
+    }
+}
+
+impl<'a, T: Clone> IntoIterator for &'a PVec<T> {
+    type Item = &'a T;
+    type IntoIter = VecIter<'a, T>;
+
+    fn into_iter(self) -> VecIter<'a, T> {
+        self.iter()
+    }
+}
+
+impl<T: Clone> FromIterator<T> for PVec<T> {
+    fn from_iter<I: IntoIterator<Item = T>>(iter: I) -> Self {
+        let iter = iter.into_iter();
+        let mut vec = PVec::with_capacity(iter.size_hint().0);
+        for value in iter {
+            vec.push(value);
+        }
+        vec
+    }
+}
+
+impl<T: Clone + PartialEq> PartialEq for PVec<T> {
+    fn eq(&self, other: &Self) -> bool {
+        self.len == other.len && self.iter().eq(other.iter())
+    }
+}
+
+#[derive(Debug, Clone)]
+enum MapEntry<K, V> {
+    Leaf { hash: u64, key: K, value: V },
+    Collision { hash: u64, pairs: Vec<(K, V)> },
+    Node(Arc<MapNode<K, V>>),
+}
+
+impl<K, V> MapEntry<K, V> {
+    fn hash(&self) -> u64 {
+        match self {
+            MapEntry::Leaf { hash, .. } | MapEntry::Collision { hash, .. } => *hash,
+            MapEntry::Node(_) => 0,
+        }
+    }
+}
+
+#[derive(Debug, Clone)]
+struct MapNode<K, V> {
+    bitmap: u32,
+    entries: Vec<MapEntry<K, V>>,
+}
+
+impl<K, V> Default for MapNode<K, V> {
+    fn default() -> Self {
+        Self {
+            bitmap: 0,
+            entries: Vec::new(),
+        }
+    }
+}
+
+#[derive(Debug, Clone)]
+pub struct PMap<K, V> {
+    len: usize,
+    root: Arc<MapNode<K, V>>,
+}
+
+impl<K, V> Default for PMap<K, V> {
+    fn default() -> Self {
+        Self {
+            len: 0,
+            root: Arc::new(MapNode::default()),
+        }
+    }
+}
+
+fn hash_key<K: Hash>(key: &K) -> u64 {
+    let mut hasher = DefaultHasher::new();
+    key.hash(&mut hasher);
+    hasher.finish()
+}
+
+fn fragment(hash: u64, shift: usize) -> u32 {
+    1 << ((hash >> shift) as usize & MASK)
+}
+
+impl<K: Clone + Hash + Eq, V: Clone> PMap<K, V> {
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    pub fn len(&self) -> usize {
+        self.len
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.len == 0
+    }
+
+    pub fn get(&self, key: &K) -> Option<&V> {
+        let hash = hash_key(key);
+        let mut node = &self.root;
+        let mut shift = 0;
+        loop {
+            let bit = fragment(hash, shift);
+            if node.bitmap & bit == 0 {
+                return None;
+            }
+            let index = (node.bitmap & (bit - 1)).count_ones() as usize;
+            match &node.entries[index] {
+                MapEntry::Leaf {
+                    key: found,
+                    value,
+                    ..
+                } => return (found == key).then_some(value),
+                MapEntry::Collision { pairs, .. } => {
+                    return pairs
+                        .iter()
+                        .find(|(found, _)| found == key)
+                        .map(|(_, value)| value);
+                }
+                MapEntry::Node(child) => {
+                    node = child;
+                    shift += BITS;
+                }
+            }
+        }
+    }
+
+    pub fn contains_key(&self, key: &K) -> bool {
+        self.get(key).is_some()
+    }
+
+    pub fn insert(&mut self, key: K, value: V) {
+        let hash = hash_key(&key);
+        if insert_entry(Arc::make_mut(&mut self.root), 0, hash, key, value) {
+            self.len += 1;
+        }
+    }
+
+    pub fn iter(&self) -> MapIter<'_, K, V> {
+        MapIter {
+            stack: vec![self.root.entries.iter()],
+            pairs: Default::default(),
+        }
+    }
+}
+
+fn insert_entry<K: Clone + Eq, V: Clone>(
+    node: &mut MapNode<K, V>,
+    shift: usize,
+    hash: u64,
+    key: K,
+    value: V,
+) -> bool {
+    let bit = fragment(hash, shift);
+    let index = (node.bitmap & (bit - 1)).count_ones() as usize;
+    if node.bitmap & bit == 0 {
+        node.bitmap |= bit;
+        node.entries.insert(index, MapEntry::Leaf { hash, key, value });
+        return true;
+    }
+    match &mut node.entries[index] {
+        MapEntry::Node(child) => insert_entry(Arc::make_mut(child), shift + BITS, hash, key, value),
+        MapEntry::Leaf {
+            hash: found_hash,
+            key: found,
+            value: slot,
+        } if *found_hash == hash && *found == key => {
+            *slot = value;
+            false
+        }
+        MapEntry::Collision {
+            hash: found_hash,
+            pairs,
+        } if *found_hash == hash => {
+            if let Some((_, slot)) = pairs.iter_mut().find(|(found, _)| *found == key) {
+                *slot = value;
+                return false;
+            }
+            pairs.push((key, value));
+            true
+        }
+        entry => {
+            let placeholder = MapEntry::Collision {
+                hash: 0,
+                pairs: Vec::new(),
+            };
+            let existing = mem::replace(entry, placeholder);
+            let added = MapEntry::Leaf { hash, key, value };
+            *entry = merge(shift + BITS, existing, added);
+            true
+        }
+    }
+}
+
+fn merge<K, V>(shift: usize, existing: MapEntry<K, V>, added: MapEntry<K, V>) -> MapEntry<K, V> {
+    let (existing_hash, added_hash) = (existing.hash(), added.hash());
+    if existing_hash == added_hash {
+        let mut pairs = Vec::new();
+        for entry in [existing, added] {
+            match entry {
+                MapEntry::Leaf { key, value, .. } => pairs.push((key, value)),
+                MapEntry::Collision { pairs: more, .. } => pairs.extend(more),
+                MapEntry::Node(_) => {}
+            }
+        }
+        return MapEntry::Collision {
+            hash: added_hash,
+            pairs,
+        };
+    }
+    let existing_bit = fragment(existing_hash, shift);
+    let added_bit = fragment(added_hash, shift);
+    let node = if existing_bit == added_bit {
+        MapNode {
+            bitmap: existing_bit,
+            entries: vec![merge(shift + BITS, existing, added)],
+        }
+    } else if existing_bit < added_bit {
+        MapNode {
+            bitmap: existing_bit | added_bit,
+            entries: vec![existing, added],
+        }
+    } else {
+        MapNode {
+            bitmap: existing_bit | added_bit,
+            entries: vec![added, existing],
+        }
+    };
+    MapEntry::Node(Arc::new(node))
+}
+
+pub struct MapIter<'a, K, V> {
+    stack: Vec<slice::Iter<'a, MapEntry<K, V>>>,
+    pairs: slice::Iter<'a, (K, V)>,
+}
+
+impl<'a, K, V> Iterator for MapIter<'a, K, V> {
+    type Item = (&'a K, &'a V);
+
+    fn next(&mut self) -> Option<(&'a K, &'a V)> {
+        loop {
+            if let Some((key, value)) = self.pairs.next() {
+                return Some((key, value));
+            }
+            let Some(entry) = self.stack.last_mut()?.next() else {
+                self.stack.pop();
+                continue;
+            };
+            match entry {
+                MapEntry::Leaf { key, value, .. } => return Some((key, value)),
+                MapEntry::Collision { pairs, .. } => self.pairs = pairs.iter(),
+                MapEntry::Node(node) => self.stack.push(node.entries.iter()),
+            }
+        }
+    }
+}
+
+impl<K: Clone + Hash + Eq, V: Clone> FromIterator<(K, V)> for PMap<K, V> {
+    fn from_iter<I: IntoIterator<Item = (K, V)>>(iter: I) -> Self {
+        let mut map = PMap::new();
+        for (key, value) in iter {
+            map.insert(key, value);
+        }
+        map
+    }
+}
+
+impl<K: Clone + Hash + Eq, V: Clone + PartialEq> PartialEq for PMap<K, V> {
+    fn eq(&self, other: &Self) -> bool {
+        self.len == other.len && self.iter().all(|(key, value)| other.get(key) == Some(value))
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn vec_push_and_get_across_levels() {
+        let vec: PVec<usize> = (0..100_000).collect();
+        assert_eq!(vec.len(), 100_000);
+        for index in [0, 31, 32, 1023, 1024, 1055, 32_767, 32_768, 99_999] {
+            assert_eq!(vec.get(index), Some(&index));
+        }
+        assert_eq!(vec.get(100_000), None);
+    }
+
+    #[test]
+    fn vec_with_capacity_grows_past_its_first_leaf() {
+        let mut vec = PVec::with_capacity(3);
+        assert!(vec.is_empty());
+        for n in 0..100 {
+            vec.push(n);
+        }
+        assert_eq!(vec.len(), 100);
+        assert_eq!(vec.get(99), Some(&99));
+    }
+
+    #[test]
+    fn vec_with_capacity_sizes_the_trie_for_every_element() {
+        assert_eq!(PVec::<usize>::with_capacity(0).shift, BITS);
+        assert_eq!(PVec::<usize>::with_capacity(1024).shift, BITS);
+        assert_eq!(PVec::<usize>::with_capacity(1025).shift, 2 * BITS);
+
+        let mut vec = PVec::with_capacity(100_000);
+        assert_eq!(vec.shift, 3 * BITS);
+        let VecNode::Branch(children) = vec.root.as_ref() else {
+            panic!("root should be a branch");
+        };
+        assert!(children.capacity() >= 4);
+        for n in 0..100_000 {
+            vec.push(n);
+        }
+        assert_eq!(vec.shift, 3 * BITS);
+        let pushed: PVec<usize> = (0..100_000).collect();
+        assert!(vec.iter().eq(pushed.iter()));
+        assert_eq!(vec.get(32_768), Some(&32_768));
+    }
+
+    #[test]
+    fn vec_iter_visits_every_element_in_order() {
+        let vec: PVec<usize> = (0..5000).collect();
+        assert!(vec.iter().copied().eq(0..5000));
+        assert_eq!(vec.iter().size_hint(), (5000, Some(5000)));
+    }
+
+    #[test]
+    fn vec_clones_are_independent() {
+        let original: PVec<usize> = (0..2000).collect();
+        let mut copy = original.clone();
+        assert!(copy.set(10, 7));
+        assert!(copy.set(1990, 7));
+        copy.push(2000);
+        assert_eq!(original.get(10), Some(&10));
+        assert_eq!(original.get(1990), Some(&1990));
+        assert_eq!(original.len(), 2000);
+        assert_eq!(copy.get(10), Some(&7));
+        assert_eq!(copy.get(2000), Some(&2000));
+        assert!(!copy.set(5000, 0));
+    }
+
+    #[test]
+    fn vec_equality_compares_elements() {
+        let a: PVec<i64> = (0..40).collect();
+        let b: PVec<i64> = (0..40).collect();
+        let c: PVec<i64> = (0..41).collect();
+        assert_eq!(a, b);
+        assert_ne!(a, c);
+    }
+
+    #[test]
+    fn map_insert_get_and_overwrite() {
+        let mut map: PMap<i64, i64> = (0..100_000).map(|n| (n, n * 2)).collect();
+        assert_eq!(map.len(), 100_000);
+        assert_eq!(map.get(&0), Some(&0));
+        assert_eq!(map.get(&77_777), Some(&155_554));
+        assert_eq!(map.get(&100_000), None);
+        map.insert(5, 0);
+        assert_eq!(map.len(), 100_000);
+        assert_eq!(map.get(&5), Some(&0));
+    }
+
+    #[test]
+    fn map_clones_are_independent() {
+        let original: PMap<String, i64> = [("a".to_string(), 1)].into_iter().collect();
+        let mut copy = original.clone();
+        copy.insert("b".to_string(), 2);
+        copy.insert("a".to_string(), 3);
+        assert_eq!(original.len(), 1);
+        assert_eq!(original.get(&"a".to_string()), Some(&1));
+        assert_eq!(copy.get(&"a".to_string()), Some(&3));
+        assert!(copy.contains_key(&"b".to_string()));
+    }
+
+    #[test]
+    fn map_iter_visits_every_entry() {
+        let map: PMap<i64, i64> = (0..3000).map(|n| (n, n)).collect();
+        let mut keys: Vec<i64> = map.iter().map(|(key, _)| *key).collect();
+        keys.sort();
+        assert!(keys.into_iter().eq(0..3000));
+    }
+
+    #[test]
+    fn map_colliding_hashes_share_a_bucket() {
+        let mut node = MapNode::default();
+        assert!(insert_entry(&mut node, 0, 42, "x", 1));
+        assert!(insert_entry(&mut node, 0, 42, "y", 2));
+        assert!(!insert_entry(&mut node, 0, 42, "x", 3));
+        assert!(insert_entry(&mut node, 0, 42 | 1 << 40, "z", 4));
+        let map = PMap {
+            len: 3,
+            root: Arc::new(node),
+        };
+        let mut pairs: Vec<(&str, i64)> = map
+            .iter()
+            .map(|(key, value)| (*key, *value))
+            .collect();
+        pairs.sort();
+        assert_eq!(pairs, [("x", 3), ("y", 2), ("z", 4)]);
+    }
+}
@@ -0,0 +1,196 @@
+use crate::diagnostics::Diagnostic;
+use crate::hir;
+use crate::interpreter::{Interpreter, RuntimeError, Value};
+use crate::macro_expand::MacroRegistry;
+use crate::parser;
+use crate::source::SourceMap;
+use crate::typechecker::IncrementalChecker;
+use crate::vm::Vm;
+
+pub type EvalResults = Vec<Result<Value, RuntimeError>>;
+
+#[derive(Debug, Clone, Copy, PartialEq, Eq)]
+pub enum Backend {
+    TreeWalker,
+    Bytecode,
+}
+
+enum Engine {
+    TreeWalker(Interpreter),
+    Bytecode(Vm),
+}
+
+impl Engine {
+    fn new(backend: Backend) -> Self {
+        match backend {
+            Backend::TreeWalker => Engine::TreeWalker(Interpreter::new()),
+            Backend::Bytecode => Engine::Bytecode(Vm::new()),
+        }
+    }
+
+    fn eval_top_form(&mut self, form: &hir::TopForm) -> Result<Value, RuntimeError> {
+        match self {
+            Engine::TreeWalker(interpreter) => interpreter.eval_top_form(form),
+            Engine::Bytecode(vm) => vm.eval_top_form(form),
+        }
+    }
+}
+
+pub struct ReplSession {
+    source_map: SourceMap,
+    macros: MacroRegistry,
+    checker: IncrementalChecker,
+    engine: Engine,
+}
+
+impl Default for ReplSession {
+    fn default() -> Self {
+        Self::new()
+    }
+}
+
+impl ReplSession {
+    pub fn new() -> Self {
+        Self::with_backend(Backend::TreeWalker)
+    }
+
+    pub fn with_backend(backend: Backend) -> Self {
+        Self {
+            source_map: SourceMap::new(),
+            macros: MacroRegistry::with_prelude(),
+            checker: IncrementalChecker::new(),
+            engine: Engine::new(backend),
+        }
+    }
+
+    pub fn source_map(&self) -> &SourceMap {
+        &self.source_map
+    }
+
+    pub fn eval(&mut self, input: &str) -> Result<EvalResults, Vec<Diagnostic>> {
+        let file_id = self
+            .source_map
+            .add_file("repl".to_string(), input.to_string());
+
+        let parsed = parser::parse_source(input, file_id);
+        if !parsed.diagnostics.is_empty() {
+            return Err(parsed.diagnostics);
+        }
+        let ast = parsed.forms;
+
+        let checkpoint = self.macros.checkpoint(&ast);
+        let (ast, expand_diags) = self.macros.expand(ast);
+        if !expand_diags.is_empty() {
+            self.macros.restore(checkpoint);
+            return Err(expand_diags);
+        }
+
+        let (hir_module, check_diags) = self.checker.check(&ast);
+        if !check_diags.is_empty() {
+            self.macros.restore(checkpoint);
+            return Err(check_diags);
+        }
+
+        Ok(hir_module
+            .top_forms
+            .iter()
+            .map(|form| self.engine.eval_top_form(form))
+            .collect())
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use std::time::{Duration, Instant};
+
+    fn eval_ok(session: &mut ReplSession, input: &str) -> Vec<Value> {
+        match session.eval(input) {
+            Ok(results) => results
+                .into_iter()
+                .map(|r| r.expect("runtime error"))
+                .collect(),
+            Err(diags) => panic!("unexpected diagnostics: {:?}", diags),
+        }
+    }
+
+    #[test]
+    fn definitions_persist_between_inputs() {
+        let mut session = ReplSession::new();
+        eval_ok(&mut session, "(defn double [x : Int] : Int (* x 2))");
+        eval_ok(&mut session, "(def base 20)");
+        let values = eval_ok(&mut session, "(+ (double base) 2)");
+        assert_eq!(values.len(), 1);
+        assert!(matches!(values[0], Value::Int(42)));
+    }
+
+    #[test]
+    fn bytecode_backend_keeps_state_between_inputs() {
+        let mut session = ReplSession::with_backend(Backend::Bytecode);
+        eval_ok(&mut session, "(defn double [x : Int] : Int (* x 2))");
+        eval_ok(&mut session, "(defunion Slot (Full Int) (Empty))");
+        let values = eval_ok(&mut session, "(match (Full 21) (Full n) (double n) (Empty) 0)");
+        assert!(matches!(values[0], Value::Int(42)));
+        assert!(session.eval("(double true)").is_err());
+    }
+
+    #[test]
+    fn macros_persist_between_inputs() {
+        let mut session = ReplSession::new();
+        eval_ok(
+            &mut session,
+            "(defmacro unless [test body] (list (quote if) test 0 body))",
+        );
+        let values = eval_ok(&mut session, "(unless false 7)");
+        assert!(matches!(values[0], Value::Int(7)));
+    }
+
+    #[test]
+    fn failed_input_leaves_no_trace() {
+        let mut session = ReplSession::new();
+        assert!(session.eval("(defn broken [] : Int \"nope\")").is_err());
+        assert!(session.eval("(defmacro m [] 1) (undefined-fn)").is_err());
+        assert!(session.eval("(broken)").is_err());
+        assert!(session.eval("(m)").is_err());
+    }
+
+    #[test]
+    fn diagnostics_point_at_their_own_entry() {
+        let mut session = ReplSession::new();
+        eval_ok(&mut session, "(def x 1)");
+        let diags = session.eval("(+ x \"a\")").unwrap_err();
+        let file = diags[0].span.file;
+        assert_eq!(session.source_map().source(file), "(+ x \"a\")");
+    }
+
+    #[test]
+    fn latency_stays_flat_as_session_grows() {
+        let mut session = ReplSession::new();
+        let total = 3000;
+        let window = 200;
+        let mut timings = Vec::with_capacity(total);
+
+        for i in 0..total {
+            let input = format!("(defn f{} [x : Int] : Int (+ x {}))", i, i);
+            let start = Instant::now();
+            eval_ok(&mut session, &input);
+            timings.push(start.elapsed());
+        }
+        let values = eval_ok(&mut session, "(f2999 1)");
+        assert!(matches!(values[0], Value::Int(3000)));
+
+        let median = |slice: &[Duration]| {
+            let mut sorted = slice.to_vec();
+            sorted.sort();
+            sorted[sorted.len() / 2]
+        };
+        let early = median(&timings[..window]);
+        let late = median(&timings[total - window..]);
+        assert!(
+            late <= early * 4 + Duration::from_micros(200),
+            "per-entry latency grew from {:?} to {:?}",
+            early,
+            late
+        );
+    }
+}
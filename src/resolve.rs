@@ -0,0 +1,776 @@
+use std::collections::HashMap;
+use std::sync::Arc;
+
+use crate::builtins::BuiltinId;
+use crate::hir;
+use crate::tailcall::SelfCall;
+use crate::types::VexType;
+
+#[derive(Debug, Clone, Copy, PartialEq, Eq)]
+pub enum Address {
+    Local(usize),
+    Captured(usize),
+    Global(usize),
+}
+
+#[derive(Debug, Clone, Copy, PartialEq, Eq)]
+pub enum Capture {
+    Local(usize),
+    Captured(usize),
+}
+
+#[derive(Debug, Clone, PartialEq)]
+pub struct Function {
+    pub id: usize,
+    pub arity: usize,
+    pub frame_size: usize,
+    pub captures: Vec<Capture>,
+    pub body: Vec<Expr>,
+}
+
+#[derive(Debug, Clone, Copy, PartialEq, Eq)]
+pub enum IterKind {
+    Each,
+    Map,
+    Filter,
+}
+
+impl IterKind {
+    pub fn of(name: &str) -> Option<IterKind> {
+        match name {
+            "each" => Some(IterKind::Each),
+            "map" => Some(IterKind::Map),
+            "filter" => Some(IterKind::Filter),
+            _ => None,
+        }
+    }
+}
+
+#[derive(Debug, Clone, PartialEq)]
+pub struct LetBinding {
+    pub slot: usize,
+    pub value: Expr,
+}
+
+#[derive(Debug, Clone, PartialEq)]
+pub enum Pattern {
+    Wildcard,
+    Binding(usize),
+    Literal(Box<Expr>),
+    Constructor {
+        variant_name: String,
+        bindings: Vec<Pattern>,
+    },
+}
+
+#[derive(Debug, Clone, PartialEq)]
+pub struct MatchClause {
+    pub pattern: Pattern,
+    pub body: Expr,
+}
+
+#[derive(Debug, Clone, PartialEq)]
+pub enum Expr {
+    Int(i64),
+    Float(f64),
+    String(String),
+    Bool(bool),
+    Nil,
+    Var {
+        name: String,
+        address: Address,
+    },
+    Builtin(BuiltinId),
+    If {
+        test: Box<Expr>,
+        then_branch: Box<Expr>,
+        else_branch: Box<Expr>,
+    },
+    Let {
+        bindings: Vec<LetBinding>,
+        body: Vec<Expr>,
+    },
+    Lambda(Arc<Function>),
+    Call {
+        func: Box<Expr>,
+        args: Vec<Expr>,
+    },
+    SelfTailCall {
+        args: Vec<Expr>,
+    },
+    CallBuiltin {
+        id: BuiltinId,
+        args: Vec<Expr>,
+    },
+    Iterate {
+        kind: IterKind,
+        list: Box<Expr>,
+        callback: Box<Expr>,
+    },
+    FieldAccess {
+        object: Box<Expr>,
+        field: String,
+    },
+    RecordConstructor {
+        name: String,
+        fields: Vec<String>,
+        args: Vec<Expr>,
+    },
+    Match {
+        scrutinee: Box<Expr>,
+        clauses: Vec<MatchClause>,
+    },
+    VariantConstructor {
+        union_name: String,
+        variant_name: String,
+        args: Vec<Expr>,
+    },
+    Spawn(Arc<Function>),
+    Channel {
+        size: Option<Box<Expr>>,
+    },
+    Send {
+        channel: Box<Expr>,
+        value: Box<Expr>,
+    },
+    Recv {
+        channel: Box<Expr>,
+    },
+}
+
+#[derive(Debug, Clone, PartialEq)]
+pub enum TopForm {
+    Declaration,
+    Defn {
+        slot: usize,
+        function: Arc<Function>,
+    },
+    Def {
+        slot: usize,
+        frame_size: usize,
+        value: Expr,
+    },
+    Expr {
+        frame_size: usize,
+        expr: Expr,
+    },
+}
+
+#[derive(Default)]
+struct FunctionScope {
+    blocks: Vec<Vec<(String, usize)>>,
+    next_slot: usize,
+    frame_size: usize,
+    captured: Vec<String>,
+    captures: Vec<Capture>,
+}
+
+impl FunctionScope {
+    fn new() -> Self {
+        Self {
+            blocks: vec![Vec::new()],
+            ..Self::default()
+        }
+    }
+
+    fn push_block(&mut self) {
+        self.blocks.push(Vec::new());
+    }
+
+    fn pop_block(&mut self) {
+        if let Some(block) = self.blocks.pop() {
+            self.next_slot -= block.len();
+        }
+    }
+
+    fn declare(&mut self, name: &str) -> usize {
+        let slot = self.next_slot;
+        self.next_slot += 1;
+        self.frame_size = self.frame_size.max(self.next_slot);
+        if let Some(block) = self.blocks.last_mut() {
+            block.push((name.to_string(), slot));
+        }
+        slot
+    }
+
+    fn lookup(&self, name: &str) -> Option<usize> {
+        self.blocks.iter().rev().find_map(|block| {
+            block
+                .iter()
+                .rev()
+                .find(|(bound, _)| bound == name)
+                .map(|(_, slot)| *slot)
+        })
+    }
+}
+
+fn capture(
+    enclosing: &mut [FunctionScope],
+    scope: &mut FunctionScope,
+    name: &str,
+) -> Option<usize> {
+    if let Some(index) = scope.captured.iter().position(|bound| bound == name) {
+        return Some(index);
+    }
+    let (parent, outer) = enclosing.split_last_mut()?;
+    let source = match parent.lookup(name) {
+        Some(slot) => Capture::Local(slot),
+        None => Capture::Captured(capture(outer, parent, name)?),
+    };
+    scope.captured.push(name.to_string());
+    scope.captures.push(source);
+    Some(scope.captures.len() - 1)
+}
+
+#[derive(Default)]
+pub struct Resolver {
+    globals: HashMap<String, usize>,
+    next_function_id: usize,
+    self_call: Option<(String, usize)>,
+    current: FunctionScope,
+    enclosing: Vec<FunctionScope>,
+}
+
+impl Resolver {
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    pub fn global_slot(&mut self, name: &str) -> usize {
+        if let Some(&slot) = self.globals.get(name) {
+            return slot;
+        }
+        let slot = self.globals.len();
+        self.globals.insert(name.to_string(), slot);
+        slot
+    }
+
+    pub fn resolve_top_form(&mut self, form: &hir::TopForm) -> TopForm {
+        match form {
+            hir::TopForm::Module { .. }
+            | hir::TopForm::Export { .. }
+            | hir::TopForm::Import { .. }
+            | hir::TopForm::ImportGo { .. }
+            | hir::TopForm::Deftype { .. }
+            | hir::TopForm::Defunion { .. } => TopForm::Declaration,
+
+            hir::TopForm::Defn {
+                name, params, body, ..
+            } => {
+                let slot = self.global_slot(name);
+                let self_call = Some((name.clone(), params.len()));
+                let function = Arc::new(self.resolve_function(params, body, self_call));
+                TopForm::Defn { slot, function }
+            }
+
+            hir::TopForm::Def { name, value, .. } => {
+                self.current = FunctionScope::new();
+                let value = self.resolve_expr(value);
+                let frame_size = std::mem::take(&mut self.current).frame_size;
+                let slot = self.global_slot(name);
+                TopForm::Def {
+                    slot,
+                    frame_size,
+                    value,
+                }
+            }
+
+            hir::TopForm::Expr(expr) => {
+                self.current = FunctionScope::new();
+                let expr = self.resolve_expr(expr);
+                let frame_size = std::mem::take(&mut self.current).frame_size;
+                TopForm::Expr { frame_size, expr }
+            }
+        }
+    }
+
+    fn resolve_function(
+        &mut self,
+        params: &[hir::Param],
+        body: &[hir::Expr],
+        self_call: Option<(String, usize)>,
+    ) -> Function {
+        let id = self.next_function_id;
+        self.next_function_id += 1;
+        let outer = std::mem::replace(&mut self.current, FunctionScope::new());
+        self.enclosing.push(outer);
+        let outer_self_call = std::mem::replace(&mut self.self_call, self_call);
+
+        for param in params {
+            self.current.declare(&param.name);
+        }
+        let body = self.resolve_tail_body(body);
+
+        self.self_call = outer_self_call;
+        let outer = self.enclosing.pop().unwrap_or_default();
+        let scope = std::mem::replace(&mut self.current, outer);
+        Function {
+            id,
+            arity: params.len(),
+            frame_size: scope.frame_size,
+            captures: scope.captures,
+            body,
+        }
+    }
+
+    fn lookup(&mut self, name: &str) -> Address {
+        if let Some(slot) = self.current.lookup(name) {
+            return Address::Local(slot);
+        }
+        match capture(&mut self.enclosing, &mut self.current, name) {
+            Some(index) => Address::Captured(index),
+            None => Address::Global(self.global_slot(name)),
+        }
+    }
+
+    fn resolve_body(&mut self, body: &[hir::Expr]) -> Vec<Expr> {
+        body.iter().map(|e| self.resolve_expr(e)).collect()
+    }
+
+    fn resolve_tail_body(&mut self, body: &[hir::Expr]) -> Vec<Expr> {
+        let last = body.len().saturating_sub(1);
+        body.iter()
+            .enumerate()
+            .map(|(i, e)| {
+                if i == last {
+                    self.resolve_tail(e)
+                } else {
+                    self.resolve_expr(e)
+                }
+            })
+            .collect()
+    }
+
+    fn is_self_call(&self, func: &hir::Expr, args: &[hir::Expr]) -> bool {
+        let Some((name, arity)) = &self.self_call else {
+            return false;
+        };
+        let target = SelfCall {
+            name,
+            arity: *arity,
+        };
+        target.matches(func, args) && self.current.lookup(name).is_none()
+    }
+
+    fn resolve_tail(&mut self, expr: &hir::Expr) -> Expr {
+        match expr {
+            hir::Expr::If {
+                test,
+                then_branch,
+                else_branch,
+                ..
+            } => Expr::If {
+                test: self.resolve_boxed(test),
+                then_branch: Box::new(self.resolve_tail(then_branch)),
+                else_branch: Box::new(self.resolve_tail(else_branch)),
+            },
+            hir::Expr::Let { bindings, body, .. } => self.resolve_let(bindings, body, true),
+            hir::Expr::Match {
+                scrutinee, clauses, ..
+            } => self.resolve_match(scrutinee, clauses, true),
+            hir::Expr::Call { func, args, .. } if self.is_self_call(func, args) => {
+                Expr::SelfTailCall {
+                    args: self.resolve_body(args),
+                }
+            }
+            _ => self.resolve_expr(expr),
+        }
+    }
+
+    fn resolve_call(&mut self, func: &hir::Expr, args: &[hir::Expr]) -> Expr {
+        if let hir::Expr::Builtin { id, .. } = func {
+            return Expr::CallBuiltin {
+                id: *id,
+                args: self.resolve_body(args),
+            };
+        }
+        if let hir::Expr::Var { name, .. } = func
+            && let Some(kind) = IterKind::of(name)
+            && let [list, callback] = args
+        {
+            return Expr::Iterate {
+                kind,
+                list: self.resolve_boxed(list),
+                callback: self.resolve_boxed(callback),
+            };
+        }
+        Expr::Call {
+            func: self.resolve_boxed(func),
+            args: self.resolve_body(args),
+        }
+    }
+
+    fn resolve_let(&mut self, bindings: &[hir::Binding], body: &[hir::Expr], tail: bool) -> Expr {
+        self.current.push_block();
+        let mut resolved = Vec::new();
+        for binding in bindings {
+            let value = self.resolve_expr(&binding.value);
+            let slot = self.current.declare(&binding.name);
+            resolved.push(LetBinding { slot, value });
+        }
+        let body = if tail {
+            self.resolve_tail_body(body)
+        } else {
+            self.resolve_body(body)
+        };
+        self.current.pop_block();
+        Expr::Let {
+            bindings: resolved,
+            body,
+        }
+    }
+
+    fn resolve_match(
+        &mut self,
+        scrutinee: &hir::Expr,
+        clauses: &[hir::MatchClause],
+        tail: bool,
+    ) -> Expr {
+        let scrutinee = self.resolve_boxed(scrutinee);
+        let clauses = clauses
+            .iter()
+            .map(|clause| {
+                self.current.push_block();
+                let pattern = self.resolve_pattern(&clause.pattern);
+                let body = if tail {
+                    self.resolve_tail(&clause.body)
+                } else {
+                    self.resolve_expr(&clause.body)
+                };
+                self.current.pop_block();
+                MatchClause { pattern, body }
+            })
+            .collect();
+        Expr::Match { scrutinee, clauses }
+    }
+
+    fn resolve_boxed(&mut self, expr: &hir::Expr) -> Box<Expr> {
+        Box::new(self.resolve_expr(expr))
+    }
+
+    fn resolve_expr(&mut self, expr: &hir::Expr) -> Expr {
+        match expr {
+            hir::Expr::Int(n, _) => Expr::Int(*n),
+            hir::Expr::Float(n, _) => Expr::Float(*n),
+            hir::Expr::String(s, _) => Expr::String(s.clone()),
+            hir::Expr::Bool(b, _) => Expr::Bool(*b),
+            hir::Expr::Nil(_) => Expr::Nil,
+
+            hir::Expr::Var { name, .. } => Expr::Var {
+                name: name.clone(),
+                address: self.lookup(name),
+            },
+
+            hir::Expr::Builtin { id, .. } => Expr::Builtin(*id),
+
+            hir::Expr::If {
+                test,
+                then_branch,
+                else_branch,
+                ..
+            } => Expr::If {
+                test: self.resolve_boxed(test),
+                then_branch: self.resolve_boxed(then_branch),
+                else_branch: self.resolve_boxed(else_branch),
+            },
+
+            hir::Expr::Let { bindings, body, .. } => self.resolve_let(bindings, body, false),
+
+            hir::Expr::Lambda { params, body, .. } => {
+                Expr::Lambda(Arc::new(self.resolve_function(params, body, None)))
+            }
+
+            hir::Expr::Call { func, args, .. } => self.resolve_call(func, args),
+
+            hir::Expr::FieldAccess { object, field, .. } => Expr::FieldAccess {
+                object: self.resolve_boxed(object),
+                field: field.clone(),
+            },
+
+            hir::Expr::RecordConstructor { name, args, ty, .. } => {
+                let fields = match ty {
+                    VexType::Record { fields, .. } => {
+                        fields.iter().map(|f| f.name.clone()).collect()
+                    }
+                    _ => Vec::new(),
+                };
+                Expr::RecordConstructor {
+                    name: name.clone(),
+                    fields,
+                    args: self.resolve_body(args),
+                }
+            }
+
+            hir::Expr::Match {
+                scrutinee, clauses, ..
+            } => self.resolve_match(scrutinee, clauses, false),
+
+            hir::Expr::VariantConstructor {
+                union_name,
+                variant_name,
+                args,
+                ..
+            } => Expr::VariantConstructor {
+                union_name: union_name.clone(),
+                variant_name: variant_name.clone(),
+                args: self.resolve_body(args),
+            },
+
+            hir::Expr::Spawn { body, .. } => {
+                let body = std::slice::from_ref(body.as_ref());
+                Expr::Spawn(Arc::new(self.resolve_function(&[], body, None)))
+            }
+
+            hir::Expr::Channel { size, .. } => Expr::Channel {
+                size: size.as_ref().map(|s| self.resolve_boxed(s)),
+            },
+
+            hir::Expr::Send { channel, value, .. } => Expr::Send {
+                channel: self.resolve_boxed(channel),
+                value: self.resolve_boxed(value),
+            },
+
+            hir::Expr::Recv { channel, .. } => Expr::Recv {
+                channel: self.resolve_boxed(channel),
+            },
+        }
+    }
+
+    fn resolve_pattern(&mut self, pattern: &hir::Pattern) -> Pattern {
+        match pattern {
+            hir::Pattern::Wildcard(_) => Pattern::Wildcard,
+            hir::Pattern::Binding { name, .. } => Pattern::Binding(self.current.declare(name)),
+            hir::Pattern::Literal(expr) => Pattern::Literal(self.resolve_boxed(expr)),
+            hir::Pattern::Constructor {
+                variant_name,
+                bindings,
+                ..
+            } => Pattern::Constructor {
+                variant_name: variant_name.clone(),
+                bindings: bindings.iter().map(|b| self.resolve_pattern(b)).collect(),
+            },
+        }
+    }
+}
+
+pub fn resolve(module: &hir::Module) -> Vec<TopForm> {
+    let mut resolver = Resolver::new();
+    module
+        .top_forms
+        .iter()
+        .map(|form| resolver.resolve_top_form(form))
+        .collect()
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::lexer;
+    use crate::macro_expand;
+    use crate::parser;
+    use crate::source::FileId;
+    use crate::typechecker;
+
+    fn resolve_source(source: &str) -> Vec<TopForm> {
+        let (tokens, _) = lexer::lex(source, FileId::new(0));
+        let (ast, _) = parser::parse(&tokens);
+        let (ast, _) = macro_expand::expand(ast);
+        let (module, diags) = typechecker::check(&ast);
+        assert!(diags.is_empty(), "{:?}", diags);
+        resolve(&module)
+    }
+
+    fn var_address(expr: &Expr) -> Address {
+        match expr {
+            Expr::Var { address, .. } => *address,
+            other => panic!("expected variable, got {:?}", other),
+        }
+    }
+
+    #[test]
+    fn params_and_lets_get_frame_slots() {
+        let forms = resolve_source("(defn f [x : Int] : Int (let [y 1] (+ x y)))");
+        let TopForm::Defn { function, .. } = &forms[0] else {
+            panic!("expected defn");
+        };
+        assert_eq!(function.arity, 1);
+        assert_eq!(function.frame_size, 2);
+        assert!(function.captures.is_empty());
+
+        let Expr::Let { bindings, body } = &function.body[0] else {
+            panic!("expected let");
+        };
+        assert_eq!(bindings[0].slot, 1);
+        let Expr::CallBuiltin { id, args } = &body[0] else {
+            panic!("expected builtin call");
+        };
+        assert_eq!(*id, BuiltinId::Add);
+        assert_eq!(var_address(&args[0]), Address::Local(0));
+        assert_eq!(var_address(&args[1]), Address::Local(1));
+    }
+
+    #[test]
+    fn sibling_scopes_reuse_slots() {
+        let forms = resolve_source("(defn f [] : Int (let [a 1] a) (let [b 2] b))");
+        let TopForm::Defn { function, .. } = &forms[0] else {
+            panic!("expected defn");
+        };
+        assert_eq!(function.frame_size, 1);
+    }
+
+    #[test]
+    fn lambda_captures_enclosing_local() {
+        let forms = resolve_source("(let [a 1] (fn [b : Int] : Int (+ a b)))");
+        let TopForm::Expr { frame_size, expr } = &forms[0] else {
+            panic!("expected expression");
+        };
+        assert_eq!(*frame_size, 1);
+        let Expr::Let { body, .. } = expr else {
+            panic!("expected let");
+        };
+        let Expr::Lambda(function) = &body[0] else {
+            panic!("expected lambda");
+        };
+        assert_eq!(function.captures, [Capture::Local(0)]);
+        let Expr::CallBuiltin { args, .. } = &function.body[0] else {
+            panic!("expected builtin call");
+        };
+        assert_eq!(var_address(&args[0]), Address::Captured(0));
+        assert_eq!(var_address(&args[1]), Address::Local(0));
+    }
+
+    #[test]
+    fn nested_lambda_captures_through_its_parent() {
+        let forms = resolve_source("(let [a 1 b 2] (fn [] (fn [] (+ b a))))");
+        let TopForm::Expr { expr, .. } = &forms[0] else {
+            panic!("expected expression");
+        };
+        let Expr::Let { body, .. } = expr else {
+            panic!("expected let");
+        };
+        let Expr::Lambda(outer) = &body[0] else {
+            panic!("expected lambda");
+        };
+        let Expr::Lambda(inner) = &outer.body[0] else {
+            panic!("expected lambda");
+        };
+        assert_eq!(outer.captures, [Capture::Local(1), Capture::Local(0)]);
+        assert_eq!(inner.captures, [Capture::Captured(0), Capture::Captured(1)]);
+    }
+
+    #[test]
+    fn spawn_body_becomes_a_capturing_closure() {
+        let forms = resolve_source("(let [ch (channel Int)] (spawn (send ch 1)))");
+        let TopForm::Expr { expr, .. } = &forms[0] else {
+            panic!("expected expression");
+        };
+        let Expr::Let { body, .. } = expr else {
+            panic!("expected let");
+        };
+        let Expr::Spawn(task) = &body[0] else {
+            panic!("expected spawn");
+        };
+        assert_eq!(task.arity, 0);
+        assert_eq!(task.captures, [Capture::Local(0)]);
+    }
+
+    #[test]
+    fn match_bindings_get_slots() {
+        let forms = resolve_source(
+            "(defunion Shape (Circle Float) (Rect Float Float))
+             (defn area [s : Shape] : Float (match s (Circle r) r (Rect w h) (* w h)))",
+        );
+        let TopForm::Defn { function, .. } = &forms[1] else {
+            panic!("expected defn");
+        };
+        assert_eq!(function.frame_size, 3);
+        let Expr::Match { clauses, .. } = &function.body[0] else {
+            panic!("expected match");
+        };
+        assert!(matches!(
+            &clauses[1].pattern,
+            Pattern::Constructor { bindings, .. }
+                if *bindings == [Pattern::Binding(1), Pattern::Binding(2)]
+        ));
+    }
+
+    #[test]
+    fn functions_get_distinct_ids() {
+        let forms = resolve_source("(defn f [] : Int 1) (defn g [] (fn [x : Int] x))");
+        let TopForm::Defn { function: f, .. } = &forms[0] else {
+            panic!("expected defn");
+        };
+        let TopForm::Defn { function: g, .. } = &forms[1] else {
+            panic!("expected defn");
+        };
+        let Expr::Lambda(lambda) = &g.body[0] else {
+            panic!("expected lambda");
+        };
+        assert_ne!(f.id, g.id);
+        assert_ne!(g.id, lambda.id);
+    }
+
+    #[test]
+    fn self_tail_calls_are_marked() {
+        let forms = resolve_source(
+            "(defn loop [n : Int acc : Int] : Int
+               (if (= n 0) acc (let [m (- n 1)] (loop m (+ acc (loop 0 n))))))",
+        );
+        let TopForm::Defn { function, .. } = &forms[0] else {
+            panic!("expected defn");
+        };
+        let Expr::If { else_branch, .. } = &function.body[0] else {
+            panic!("expected if");
+        };
+        let Expr::Let { body, .. } = else_branch.as_ref() else {
+            panic!("expected let");
+        };
+        let Expr::SelfTailCall { args } = &body[0] else {
+            panic!("expected self tail call, got {:?}", body[0]);
+        };
+        let Expr::CallBuiltin { args, .. } = &args[1] else {
+            panic!("expected builtin call");
+        };
+        assert!(matches!(args[1], Expr::Call { .. }));
+    }
+
+    #[test]
+    fn builtin_values_resolve_without_a_global() {
+        let forms = resolve_source("(let [f not] (f true))");
+        let TopForm::Expr { expr, .. } = &forms[0] else {
+            panic!("expected expression");
+        };
+        let Expr::Let { bindings, .. } = expr else {
+            panic!("expected let");
+        };
+        assert_eq!(bindings[0].value, Expr::Builtin(BuiltinId::Not));
+    }
+
+    #[test]
+    fn higher_order_builtins_resolve_to_iterate() {
+        let forms = resolve_source("(map (range 0 3) (fn [x : Int] : Int (* x 2)))");
+        let TopForm::Expr { expr, .. } = &forms[0] else {
+            panic!("expected expression");
+        };
+        let Expr::Iterate {
+            kind,
+            list,
+            callback,
+        } = expr
+        else {
+            panic!("expected iterate, got {:?}", expr);
+        };
+        assert_eq!(*kind, IterKind::Map);
+        assert!(matches!(list.as_ref(), Expr::CallBuiltin { .. }));
+        assert!(matches!(callback.as_ref(), Expr::Lambda(_)));
+    }
+
+    #[test]
+    fn globals_keep_their_slot_across_redefinition() {
+        let mut resolver = Resolver::new();
+        let first = resolver.global_slot("f");
+        let other = resolver.global_slot("g");
+        assert_ne!(first, other);
+        assert_eq!(resolver.global_slot("f"), first);
+    }
+}
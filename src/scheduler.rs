@@ -0,0 +1,573 @@
+use std::any::Any;
+use std::cell::Cell;
+use std::collections::VecDeque;
+use std::fmt;
+use std::panic::{self, AssertUnwindSafe};
+use std::sync::atomic::{AtomicUsize, Ordering};
+use std::sync::{Arc, Condvar, Mutex, MutexGuard, PoisonError, Weak};
+use std::thread;
+use std::time::{Duration, Instant};
+
+const TICK: Duration = Duration::from_millis(1);
+const IDLE_WAIT: Duration = Duration::from_millis(10);
+const IDLE_EXIT: Duration = Duration::from_millis(100);
+const MAX_COMPENSATION: usize = 128;
+
+type Task = Box<dyn FnOnce() + Send>;
+
+thread_local! {
+    static WORKER: Cell<Option<(usize, Option<usize>)>> = const { Cell::new(None) };
+    static PARTICIPANT: Cell<usize> = const { Cell::new(0) };
+}
+
+fn lock<T>(mutex: &Mutex<T>) -> MutexGuard<'_, T> {
+    mutex.lock().unwrap_or_else(PoisonError::into_inner)
+}
+
+fn panic_message(payload: &(dyn Any + Send)) -> String {
+    if let Some(message) = payload.downcast_ref::<&str>() {
+        message.to_string()
+    } else if let Some(message) = payload.downcast_ref::<String>() {
+        message.clone()
+    } else {
+        "unknown panic payload".to_string()
+    }
+}
+
+#[derive(Default)]
+struct Quiet {
+    epoch: u64,
+    settled: usize,
+}
+
+struct Shared {
+    injector: Mutex<VecDeque<Task>>,
+    deques: Vec<Mutex<VecDeque<Task>>>,
+    idle: Mutex<()>,
+    wake: Condvar,
+    workers: AtomicUsize,
+    queued: AtomicUsize,
+    participants: AtomicUsize,
+    blocked: AtomicUsize,
+    blocked_workers: AtomicUsize,
+    quiet: Mutex<Quiet>,
+    failure: Mutex<Option<String>>,
+}
+
+impl Shared {
+    fn id(self: &Arc<Self>) -> usize {
+        Arc::as_ptr(self) as usize
+    }
+
+    fn current_worker(self: &Arc<Self>) -> Option<Option<usize>> {
+        let id = self.id();
+        WORKER
+            .get()
+            .and_then(|(owner, index)| (owner == id).then_some(index))
+    }
+
+    fn next_task(&self, index: Option<usize>) -> Option<Task> {
+        if let Some(task) = index.and_then(|i| lock(&self.deques[i]).pop_back()) {
+            return Some(task);
+        }
+        if let Some(task) = lock(&self.injector).pop_front() {
+            return Some(task);
+        }
+        let start = index.map_or(0, |i| i + 1);
+        (0..self.deques.len())
+            .map(|offset| (start + offset) % self.deques.len())
+            .filter(|&victim| Some(victim) != index)
+            .find_map(|victim| lock(&self.deques[victim]).pop_front())
+    }
+
+    fn run(&self, task: Task) {
+        self.participants.fetch_add(1, Ordering::SeqCst);
+        self.queued.fetch_sub(1, Ordering::SeqCst);
+        let outcome = panic::catch_unwind(AssertUnwindSafe(task));
+        self.participants.fetch_sub(1, Ordering::SeqCst);
+        match outcome {
+            Ok(()) => self.progressed(),
+            Err(payload) => self.fail(format!("task panicked: {}", panic_message(&*payload))),
+        }
+    }
+
+    fn fail(&self, message: String) {
+        lock(&self.failure).get_or_insert(message);
+        self.progressed();
+    }
+
+    fn worker_limit(&self) -> usize {
+        self.deques.len() + MAX_COMPENSATION
+    }
+
+    fn compensate(self: &Arc<Self>) {
+        let reserved = self
+            .workers
+            .fetch_update(Ordering::SeqCst, Ordering::SeqCst, |workers| {
+                let starved = self.queued.load(Ordering::SeqCst) > 0
+                    && self.blocked_workers.load(Ordering::SeqCst) >= workers;
+                (starved && workers < self.worker_limit()).then_some(workers + 1)
+            });
+        if reserved.is_ok() {
+            start_worker(self, None);
+        }
+    }
+
+    fn progressed(&self) {
+        let mut quiet = lock(&self.quiet);
+        quiet.epoch += 1;
+        quiet.settled = 0;
+    }
+
+    fn epoch(&self) -> u64 {
+        lock(&self.quiet).epoch
+    }
+
+    fn settle(&self, epoch: u64, settled: &mut Option<u64>) -> Option<ChannelError> {
+        let mut quiet = lock(&self.quiet);
+        if quiet.epoch != epoch {
+            return None;
+        }
+        if *settled != Some(epoch) {
+            quiet.settled += 1;
+            *settled = Some(epoch);
+        }
+        let blocked = self.blocked.load(Ordering::SeqCst);
+        if quiet.settled < blocked || blocked < self.participants.load(Ordering::SeqCst) {
+            return None;
+        }
+        if self.queued.load(Ordering::SeqCst) == 0 {
+            return Some(ChannelError::Deadlock);
+        }
+        let workers = self.workers.load(Ordering::SeqCst);
+        (workers >= self.worker_limit() && self.blocked_workers.load(Ordering::SeqCst) >= workers)
+            .then_some(ChannelError::Starved)
+    }
+}
+
+fn start_worker(shared: &Arc<Shared>, index: Option<usize>) {
+    let weak = Arc::downgrade(shared);
+    thread::spawn(move || worker_loop(weak, index));
+}
+
+fn worker_loop(weak: Weak<Shared>, index: Option<usize>) {
+    WORKER.set(Some((weak.as_ptr() as usize, index)));
+    let mut idle_since = Instant::now();
+    while let Some(shared) = weak.upgrade() {
+        if let Some(task) = shared.next_task(index) {
+            shared.run(task);
+            idle_since = Instant::now();
+            continue;
+        }
+        if index.is_none() && idle_since.elapsed() >= IDLE_EXIT {
+            shared.workers.fetch_sub(1, Ordering::SeqCst);
+            return;
+        }
+        let guard = lock(&shared.idle);
+        let _ = shared.wake.wait_timeout(guard, IDLE_WAIT);
+    }
+}
+
+#[derive(Clone)]
+pub struct Scheduler {
+    shared: Arc<Shared>,
+}
+
+impl Scheduler {
+    pub fn new(threads: usize) -> Self {
+        let threads = threads.max(1);
+        let shared = Arc::new(Shared {
+            injector: Mutex::new(VecDeque::new()),
+            deques: (0..threads).map(|_| Mutex::new(VecDeque::new())).collect(),
+            idle: Mutex::new(()),
+            wake: Condvar::new(),
+            workers: AtomicUsize::new(threads),
+            queued: AtomicUsize::new(0),
+            participants: AtomicUsize::new(0),
+            blocked: AtomicUsize::new(0),
+            blocked_workers: AtomicUsize::new(0),
+            quiet: Mutex::new(Quiet::default()),
+            failure: Mutex::new(None),
+        });
+        for index in 0..threads {
+            start_worker(&shared, Some(index));
+        }
+        Self { shared }
+    }
+
+    pub fn with_available_parallelism() -> Self {
+        let threads = thread::available_parallelism().map_or(1, |n| n.get());
+        Self::new(threads)
+    }
+
+    pub fn threads(&self) -> usize {
+        self.shared.deques.len()
+    }
+
+    pub fn spawn(&self, task: impl FnOnce() + Send + 'static) {
+        let shared = &self.shared;
+        shared.queued.fetch_add(1, Ordering::SeqCst);
+        match shared.current_worker() {
+            Some(Some(index)) => lock(&shared.deques[index]).push_back(Box::new(task)),
+            _ => lock(&shared.injector).push_back(Box::new(task)),
+        }
+        shared.progressed();
+        shared.wake.notify_one();
+        shared.compensate();
+    }
+
+    pub fn participate(&self) -> Participant {
+        let id = self.shared.id();
+        let nested = PARTICIPANT.get() == id;
+        if !nested {
+            PARTICIPANT.set(id);
+            self.shared.participants.fetch_add(1, Ordering::SeqCst);
+        }
+        Participant {
+            shared: Arc::clone(&self.shared),
+            nested,
+        }
+    }
+
+    pub fn fail(&self, message: String) {
+        self.shared.fail(message);
+    }
+
+    pub fn take_failure(&self) -> Option<String> {
+        lock(&self.shared.failure).take()
+    }
+
+    fn block(&self) -> Blocked<'_> {
+        let shared = &self.shared;
+        let worker = shared.current_worker().is_some();
+        let counted = worker || PARTICIPANT.get() == shared.id();
+        if worker {
+            shared.blocked_workers.fetch_add(1, Ordering::SeqCst);
+        }
+        if !counted {
+            shared.participants.fetch_add(1, Ordering::SeqCst);
+        }
+        shared.blocked.fetch_add(1, Ordering::SeqCst);
+        shared.compensate();
+        Blocked {
+            shared,
+            worker,
+            counted,
+        }
+    }
+}
+
+pub struct Participant {
+    shared: Arc<Shared>,
+    nested: bool,
+}
+
+impl Drop for Participant {
+    fn drop(&mut self) {
+        if !self.nested {
+            PARTICIPANT.set(0);
+            self.shared.participants.fetch_sub(1, Ordering::SeqCst);
+            self.shared.progressed();
+        }
+    }
+}
+
+struct Blocked<'a> {
+    shared: &'a Arc<Shared>,
+    worker: bool,
+    counted: bool,
+}
+
+impl Drop for Blocked<'_> {
+    fn drop(&mut self) {
+        self.shared.blocked.fetch_sub(1, Ordering::SeqCst);
+        if self.worker {
+            self.shared.blocked_workers.fetch_sub(1, Ordering::SeqCst);
+        }
+        if !self.counted {
+            self.shared.participants.fetch_sub(1, Ordering::SeqCst);
+        }
+    }
+}
+
+#[derive(Debug, Clone, PartialEq, Eq)]
+pub enum ChannelError {
+    Deadlock,
+    Starved,
+    TaskFailed(String),
+}
+
+impl fmt::Display for ChannelError {
+    fn fmt(&self, f: &mut fmt::Formatter<'_>) -> fmt::Result {
+        match self {
+            ChannelError::Deadlock => write!(f, "deadlock: every task is blocked on a channel"),
+            ChannelError::Starved => write!(
+                f,
+                "every worker is blocked on a channel and {} extra threads are already running",
+                MAX_COMPENSATION
+            ),
+            ChannelError::TaskFailed(message) => write!(f, "spawned task failed: {}", message),
+        }
+    }
+}
+
+#[derive(Debug)]
+struct ChannelState<T> {
+    queue: VecDeque<T>,
+    sent: u64,
+    received: u64,
+}
+
+#[derive(Debug)]
+pub struct Channel<T> {
+    capacity: Option<usize>,
+    state: Mutex<ChannelState<T>>,
+    changed: Condvar,
+}
+
+impl<T> Channel<T> {
+    fn with_capacity(capacity: Option<usize>) -> Self {
+        Self {
+            capacity,
+            state: Mutex::new(ChannelState {
+                queue: VecDeque::new(),
+                sent: 0,
+                received: 0,
+            }),
+            changed: Condvar::new(),
+        }
+    }
+
+    pub fn unbuffered() -> Self {
+        Self::with_capacity(Some(0))
+    }
+
+    pub fn bounded(capacity: usize) -> Self {
+        Self::with_capacity(Some(capacity))
+    }
+
+    pub fn unbounded() -> Self {
+        Self::with_capacity(None)
+    }
+
+    pub fn len(&self) -> usize {
+        lock(&self.state).queue.len()
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.len() == 0
+    }
+
+    pub fn send(&self, value: T, scheduler: &Scheduler) -> Result<(), ChannelError> {
+        let limit = self.capacity.map(|capacity| capacity.max(1));
+        let mut value = Some(value);
+        let ticket = self.block_on(scheduler, |state| {
+            if limit.is_some_and(|limit| state.queue.len() >= limit) {
+                return None;
+            }
+            state.queue.push_back(value.take()?);
+            state.sent += 1;
+            Some(state.sent)
+        })?;
+        if self.capacity == Some(0) {
+            self.block_on(scheduler, |state| (state.received >= ticket).then_some(()))?;
+        }
+        Ok(())
+    }
+
+    pub fn recv(&self, scheduler: &Scheduler) -> Result<T, ChannelError> {
+        self.block_on(scheduler, |state| {
+            let value = state.queue.pop_front()?;
+            state.received += 1;
+            Some(value)
+        })
+    }
+
+    fn block_on<R>(
+        &self,
+        scheduler: &Scheduler,
+        mut attempt: impl FnMut(&mut ChannelState<T>) -> Option<R>,
+    ) -> Result<R, ChannelError> {
+        let mut state = lock(&self.state);
+        if let Some(result) = attempt(&mut state) {
+            self.advance(scheduler);
+            return Ok(result);
+        }
+        let _blocked = scheduler.block();
+        let mut settled = None;
+        loop {
+            let (next, _) = self
+                .changed
+                .wait_timeout(state, TICK)
+                .unwrap_or_else(PoisonError::into_inner);
+            state = next;
+            let epoch = scheduler.shared.epoch();
+            if let Some(result) = attempt(&mut state) {
+                self.advance(scheduler);
+                return Ok(result);
+            }
+            if let Some(message) = scheduler.take_failure() {
+                return Err(ChannelError::TaskFailed(message));
+            }
+            scheduler.shared.compensate();
+            if let Some(error) = scheduler.shared.settle(epoch, &mut settled) {
+                return Err(error);
+            }
+        }
+    }
+
+    fn advance(&self, scheduler: &Scheduler) {
+        scheduler.shared.progressed();
+        self.changed.notify_all();
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use std::sync::mpsc;
+
+    #[test]
+    fn spawned_tasks_all_run() {
+        let scheduler = Scheduler::new(4);
+        let (tx, rx) = mpsc::channel();
+        for n in 0..100 {
+            let tx = tx.clone();
+            scheduler.spawn(move || tx.send(n).unwrap());
+        }
+        let mut seen: Vec<i32> = rx.iter().take(100).collect();
+        seen.sort();
+        assert_eq!(seen, (0..100).collect::<Vec<_>>());
+    }
+
+    #[test]
+    fn tasks_spawned_from_workers_are_stolen() {
+        let scheduler = Scheduler::new(4);
+        let results = Arc::new(Channel::unbounded());
+        let inner = scheduler.clone();
+        let sink = Arc::clone(&results);
+        scheduler.spawn(move || {
+            for n in 0..50 {
+                let handle = inner.clone();
+                let sink = Arc::clone(&sink);
+                inner.spawn(move || sink.send(n, &handle).unwrap());
+            }
+        });
+        let mut total = 0;
+        for _ in 0..50 {
+            total += results.recv(&scheduler).unwrap();
+        }
+        assert_eq!(total, (0..50).sum::<i32>());
+    }
+
+    #[test]
+    fn unbuffered_send_waits_for_a_receiver() {
+        let scheduler = Scheduler::new(2);
+        let channel = Arc::new(Channel::unbuffered());
+        let sender = Arc::clone(&channel);
+        let handle = scheduler.clone();
+        scheduler.spawn(move || sender.send(42, &handle).unwrap());
+        assert_eq!(channel.recv(&scheduler), Ok(42));
+        assert!(channel.is_empty());
+    }
+
+    #[test]
+    fn bounded_channel_holds_up_to_capacity() {
+        let scheduler = Scheduler::new(1);
+        let channel = Channel::bounded(2);
+        channel.send(1, &scheduler).unwrap();
+        channel.send(2, &scheduler).unwrap();
+        assert_eq!(channel.len(), 2);
+        assert_eq!(channel.recv(&scheduler), Ok(1));
+        assert_eq!(channel.recv(&scheduler), Ok(2));
+    }
+
+    #[test]
+    fn blocked_workers_are_compensated() {
+        let scheduler = Scheduler::new(1);
+        let first = Arc::new(Channel::unbuffered());
+        let second = Arc::new(Channel::unbuffered());
+        let relay_in = Arc::clone(&first);
+        let relay_out = Arc::clone(&second);
+        let handle = scheduler.clone();
+        scheduler.spawn(move || {
+            let value: i32 = relay_in.recv(&handle).unwrap();
+            relay_out.send(value + 1, &handle).unwrap();
+        });
+        let source = Arc::clone(&first);
+        let handle = scheduler.clone();
+        scheduler.spawn(move || source.send(1, &handle).unwrap());
+        assert_eq!(second.recv(&scheduler), Ok(2));
+    }
+
+    #[test]
+    fn receiving_with_no_sender_reports_deadlock() {
+        let scheduler = Scheduler::new(2);
+        let channel: Channel<i32> = Channel::unbuffered();
+        assert_eq!(channel.recv(&scheduler), Err(ChannelError::Deadlock));
+    }
+
+    #[test]
+    fn compensation_threads_are_capped() {
+        let scheduler = Scheduler::new(1);
+        let _running = scheduler.participate();
+        let requests = Arc::new(Channel::unbounded());
+        let replies = Arc::new(Channel::unbounded());
+        let tasks = MAX_COMPENSATION + 16;
+        for _ in 0..tasks {
+            let requests = Arc::clone(&requests);
+            let replies = Arc::clone(&replies);
+            let handle = scheduler.clone();
+            scheduler.spawn(move || {
+                let n: usize = requests.recv(&handle).unwrap();
+                replies.send(n, &handle).unwrap();
+            });
+        }
+        thread::sleep(Duration::from_millis(50));
+        let workers = scheduler.shared.workers.load(Ordering::SeqCst);
+        assert!(workers <= 1 + MAX_COMPENSATION, "{} workers", workers);
+        for n in 0..tasks {
+            requests.send(n, &scheduler).unwrap();
+        }
+        let total: usize = (0..tasks).map(|_| replies.recv(&scheduler).unwrap()).sum();
+        assert_eq!(total, (0..tasks).sum::<usize>());
+    }
+
+    #[test]
+    fn running_participants_are_not_deadlocked() {
+        let scheduler = Scheduler::new(1);
+        let _running = scheduler.participate();
+        let channel = Arc::new(Channel::unbuffered());
+        let receiver = Arc::clone(&channel);
+        let handle = scheduler.clone();
+        let (tx, rx) = mpsc::channel();
+        scheduler.spawn(move || tx.send(receiver.recv(&handle)).unwrap());
+        thread::sleep(Duration::from_millis(20));
+        channel.send(7, &scheduler).unwrap();
+        assert_eq!(rx.recv().unwrap(), Ok(7));
+    }
+
+    #[test]
+    fn task_failures_wake_blocked_receivers() {
+        let scheduler = Scheduler::new(2);
+        let channel: Channel<i32> = Channel::unbuffered();
+        let handle = scheduler.clone();
+        scheduler.spawn(move || handle.fail("division by zero".into()));
+        assert_eq!(
+            channel.recv(&scheduler),
+            Err(ChannelError::TaskFailed("division by zero".into()))
+        );
+        assert_eq!(scheduler.take_failure(), None);
+    }
+
+    #[test]
+    fn task_panics_surface_as_failures() {
+        let scheduler = Scheduler::new(2);
+        let channel: Channel<i32> = Channel::unbuffered();
+        scheduler.spawn(|| panic!("index out of range"));
+        assert_eq!(
+            channel.recv(&scheduler),
+            Err(ChannelError::TaskFailed("task panicked: index out of range".into()))
+        );
+    }
+}
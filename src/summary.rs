@@ -0,0 +1,325 @@
+use crate::ast;
+use crate::content_hash::{ContentHash, ContentHasher};
+use crate::typechecker;
+use crate::types::{RecordField, UnionVariant, VexType};
+
+const INTERFACE_HEADER: &str = "vex-interface 1";
+
+#[derive(Debug, Clone, PartialEq)]
+pub struct Summary {
+    pub exports: Vec<String>,
+    pub types: Vec<(String, VexType)>,
+}
+
+impl Summary {
+    pub fn select(&self, symbols: &[String]) -> Vec<(String, VexType)> {
+        self.types
+            .iter()
+            .filter(|(name, _)| symbols.contains(name))
+            .cloned()
+            .collect()
+    }
+
+    pub fn signature(&self) -> ContentHash {
+        let mut hasher = ContentHasher::new();
+        for name in &self.exports {
+            hasher.write_str(name);
+        }
+        for (name, ty) in &self.types {
+            hasher.write_str(name);
+            hasher.write_str(&encode_type(ty));
+        }
+        hasher.finish()
+    }
+
+    pub fn to_interface(&self) -> String {
+        let mut out = String::from(INTERFACE_HEADER);
+        out.push_str("\nexports");
+        for name in &self.exports {
+            out.push(' ');
+            out.push_str(name);
+        }
+        out.push('\n');
+        for (name, ty) in &self.types {
+            out.push_str("type ");
+            out.push_str(name);
+            out.push(' ');
+            out.push_str(&encode_type(ty));
+            out.push('\n');
+        }
+        out
+    }
+
+    pub fn from_interface(text: &str) -> Option<Self> {
+        let (summary, rest) = Self::parse_interface(text)?;
+        rest.is_empty().then_some(summary)
+    }
+
+    pub fn parse_interface(text: &str) -> Option<(Self, &str)> {
+        let rest = text.strip_prefix(INTERFACE_HEADER)?.strip_prefix('\n')?;
+        let (exports_line, mut rest) = rest.split_once('\n')?;
+        let exports = exports_line
+            .strip_prefix("exports")?
+            .split_whitespace()
+            .map(str::to_string)
+            .collect();
+
+        let mut types = Vec::new();
+        while let Some(entry) = rest.strip_prefix("type ") {
+            let (line, next) = entry.split_once('\n')?;
+            let mut tokens = line.split_whitespace();
+            let name = tokens.next()?.to_string();
+            let ty = decode_type(&mut tokens)?;
+            if tokens.next().is_some() {
+                return None;
+            }
+            types.push((name, ty));
+            rest = next;
+        }
+        Some((Self { exports, types }, rest))
+    }
+}
+
+pub fn collect_exports(program: &[ast::TopForm]) -> Vec<String> {
+    program
+        .iter()
+        .filter_map(|form| match form {
+            ast::TopForm::Export { symbols, .. } => Some(symbols.clone()),
+            _ => None,
+        })
+        .flatten()
+        .collect()
+}
+
+pub fn extract(program: &[ast::TopForm]) -> Option<Summary> {
+    let exports = collect_exports(program);
+    let types = typechecker::declared_types(program)
+        .into_iter()
+        .filter(|(name, _)| exports.contains(name))
+        .map(|(name, ty)| Some((name, ty?)))
+        .collect::<Option<Vec<_>>>()?;
+    Some(Summary { exports, types })
+}
+
+pub fn encode_type(ty: &VexType) -> String {
+    let mut out = String::new();
+    write_type(ty, &mut out);
+    out
+}
+
+fn write_token(token: &str, out: &mut String) {
+    if !out.is_empty() {
+        out.push(' ');
+    }
+    out.push_str(token);
+}
+
+fn write_type(ty: &VexType, out: &mut String) {
+    match ty {
+        VexType::Int => write_token("Int", out),
+        VexType::Float => write_token("Float", out),
+        VexType::Bool => write_token("Bool", out),
+        VexType::String => write_token("String", out),
+        VexType::Unit => write_token("Unit", out),
+        VexType::Syntax => write_token("Syntax", out),
+        VexType::TypeVar(id) => write_token(&format!("?{}", id), out),
+        VexType::Fn { params, ret } => {
+            write_token("Fn", out);
+            write_token(&params.len().to_string(), out);
+            for param in params {
+                write_type(param, out);
+            }
+            write_type(ret, out);
+        }
+        VexType::Record { name, fields } => {
+            write_token("Record", out);
+            write_token(name, out);
+            write_token(&fields.len().to_string(), out);
+            for field in fields {
+                write_token(&field.name, out);
+                write_type(&field.ty, out);
+            }
+        }
+        VexType::Union { name, variants } => {
+            write_token("Union", out);
+            write_token(name, out);
+            write_token(&variants.len().to_string(), out);
+            for variant in variants {
+                write_token(&variant.name, out);
+                write_token(&variant.types.len().to_string(), out);
+                for ty in &variant.types {
+                    write_type(ty, out);
+                }
+            }
+        }
+        VexType::List(inner) => {
+            write_token("List", out);
+            write_type(inner, out);
+        }
+        VexType::Map { key, value } => {
+            write_token("Map", out);
+            write_type(key, out);
+            write_type(value, out);
+        }
+        VexType::Channel(inner) => {
+            write_token("Channel", out);
+            write_type(inner, out);
+        }
+        VexType::Option(inner) => {
+            write_token("Option", out);
+            write_type(inner, out);
+        }
+        VexType::Result { ok, err } => {
+            write_token("Result", out);
+            write_type(ok, out);
+            write_type(err, out);
+        }
+    }
+}
+
+pub fn decode_type<'a>(tokens: &mut impl Iterator<Item = &'a str>) -> Option<VexType> {
+    let ty = match tokens.next()? {
+        "Int" => VexType::Int,
+        "Float" => VexType::Float,
+        "Bool" => VexType::Bool,
+        "String" => VexType::String,
+        "Unit" => VexType::Unit,
+        "Syntax" => VexType::Syntax,
+        "Fn" => {
+            let count: usize = tokens.next()?.parse().ok()?;
+            let params = (0..count)
+                .map(|_| decode_type(tokens))
+                .collect::<Option<Vec<_>>>()?;
+            VexType::Fn {
+                params,
+                ret: Box::new(decode_type(tokens)?),
+            }
+        }
+        "Record" => {
+            let name = tokens.next()?.to_string();
+            let count: usize = tokens.next()?.parse().ok()?;
+            let fields = (0..count)
+                .map(|_| {
+                    let name = tokens.next()?.to_string();
+                    let ty = decode_type(tokens)?;
+                    Some(RecordField { name, ty })
+                })
+                .collect::<Option<Vec<_>>>()?;
+            VexType::Record { name, fields }
+        }
+        "Union" => {
+            let name = tokens.next()?.to_string();
+            let count: usize = tokens.next()?.parse().ok()?;
+            let variants = (0..count)
+                .map(|_| {
+                    let name = tokens.next()?.to_string();
+                    let arity: usize = tokens.next()?.parse().ok()?;
+                    let types = (0..arity)
+                        .map(|_| decode_type(tokens))
+                        .collect::<Option<Vec<_>>>()?;
+                    Some(UnionVariant { name, types })
+                })
+                .collect::<Option<Vec<_>>>()?;
+            VexType::Union { name, variants }
+        }
+        "List" => VexType::List(Box::new(decode_type(tokens)?)),
+        "Map" => VexType::Map {
+            key: Box::new(decode_type(tokens)?),
+            value: Box::new(decode_type(tokens)?),
+        },
+        "Channel" => VexType::Channel(Box::new(decode_type(tokens)?)),
+        "Option" => VexType::Option(Box::new(decode_type(tokens)?)),
+        "Result" => VexType::Result {
+            ok: Box::new(decode_type(tokens)?),
+            err: Box::new(decode_type(tokens)?),
+        },
+        token => VexType::TypeVar(token.strip_prefix('?')?.parse().ok()?),
+    };
+    Some(ty)
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::lexer::lex;
+    use crate::parser::parse;
+    use crate::source::FileId;
+
+    fn summarize(source: &str) -> Option<Summary> {
+        let (tokens, _) = lex(source, FileId::new(0));
+        let (ast, _) = parse(&tokens);
+        extract(&ast)
+    }
+
+    #[test]
+    fn annotated_exports_summarize_without_checking_bodies() {
+        let summary = summarize(
+            "(module shapes)
+             (export [area origin])
+             (deftype Point (x Int) (y Int))
+             (defn area [w : Int h : Int] : Int (undefined-helper w h))
+             (def origin : Point (Point 0 0))
+             (defn hidden [] : Int 0)",
+        )
+        .expect("every export is annotated");
+        assert_eq!(summary.exports, ["area", "origin"]);
+        let names: Vec<&str> = summary.types.iter().map(|(name, _)| name.as_str()).collect();
+        assert_eq!(names, ["area", "origin"]);
+        assert_eq!(
+            summary.types[0].1,
+            VexType::Fn {
+                params: vec![VexType::Int, VexType::Int],
+                ret: Box::new(VexType::Int),
+            }
+        );
+        assert!(matches!(&summary.types[1].1, VexType::Record { name, .. } if name == "Point"));
+    }
+
+    #[test]
+    fn unannotated_exports_have_no_summary() {
+        assert!(summarize("(module m) (export [f]) (defn f [] 1)").is_none());
+        assert!(summarize("(module m) (export [x]) (def x 1)").is_none());
+        assert!(summarize("(module m) (export [f]) (defn f [] : Int 1) (def y 2)").is_some());
+    }
+
+    #[test]
+    fn signatures_naming_foreign_types_have_no_summary() {
+        assert!(summarize("(module m) (export [f]) (defn f [p : Point] : Int 1)").is_none());
+        assert!(summarize("(module m) (export [o]) (def o : Point (make-point))").is_none());
+    }
+
+    #[test]
+    fn interfaces_round_trip() {
+        let summary = summarize(
+            "(module m) (export [f g]) (defn f [xs : (List Int)] : (Option Int) (first xs))
+             (def g : (Map String Float) (empty-map))",
+        )
+        .expect("every export is annotated");
+        let interface = summary.to_interface();
+        assert_eq!(Summary::from_interface(&interface), Some(summary));
+        assert_eq!(Summary::from_interface(&format!("{}go\n", interface)), None);
+    }
+
+    #[test]
+    fn types_round_trip_through_their_encoding() {
+        let ty = VexType::Union {
+            name: "Shape".into(),
+            variants: vec![
+                UnionVariant {
+                    name: "Circle".into(),
+                    types: vec![VexType::Float],
+                },
+                UnionVariant {
+                    name: "Empty".into(),
+                    types: vec![],
+                },
+            ],
+        };
+        let nested = VexType::Map {
+            key: Box::new(VexType::String),
+            value: Box::new(VexType::Option(Box::new(ty))),
+        };
+        let encoded = encode_type(&nested);
+        assert_eq!(decode_type(&mut encoded.split_whitespace()), Some(nested));
+    }
+}
@@ -0,0 +1,79 @@
+use std::collections::HashMap;
+use std::sync::Arc;
+
+#[derive(Debug, Clone, Copy, PartialEq, Eq, Hash)]
+pub struct Symbol(u32);
+
+#[derive(Default)]
+pub struct Interner {
+    ids: HashMap<Arc<str>, Symbol>,
+    names: Vec<Arc<str>>,
+}
+
+impl Interner {
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    pub fn intern(&mut self, name: &str) -> Symbol {
+        if let Some(&symbol) = self.ids.get(name) {
+            return symbol;
+        }
+        let symbol = Symbol(self.names.len() as u32);
+        let name: Arc<str> = Arc::from(name);
+        self.names.push(Arc::clone(&name));
+        self.ids.insert(name, symbol);
+        symbol
+    }
+
+    pub fn get(&self, name: &str) -> Option<Symbol> {
+        self.ids.get(name).copied()
+    }
+
+    pub fn resolve(&self, symbol: Symbol) -> &str {
+        &self.names[symbol.0 as usize]
+    }
+
+    pub fn len(&self) -> usize {
+        self.names.len()
+    }
+
+    pub fn is_empty(&self) -> bool {
+        self.names.is_empty()
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn equal_names_share_one_symbol() {
+        let mut interner = Interner::new();
+        let a = interner.intern("handle-tool-call");
+        let b = interner.intern(&String::from("handle-tool-call"));
+        assert_eq!(a, b);
+        assert_ne!(a, interner.intern("handle-tool"));
+        assert_eq!(interner.resolve(a), "handle-tool-call");
+        assert_eq!(interner.len(), 2);
+    }
+
+    #[test]
+    fn lookups_do_not_intern() {
+        let mut interner = Interner::new();
+        assert_eq!(interner.get("x"), None);
+        assert!(interner.is_empty());
+        let x = interner.intern("x");
+        assert_eq!(interner.get("x"), Some(x));
+    }
+
+    #[test]
+    fn interners_are_independent() {
+        let mut first = Interner::new();
+        let mut second = Interner::new();
+        first.intern("a");
+        let b = first.intern("b");
+        assert_eq!(second.get("b"), None);
+        assert_ne!(second.intern("b"), b);
+    }
+}
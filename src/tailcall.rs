@@ -0,0 +1,136 @@
+use crate::hir;
+
+#[derive(Debug, Clone, Copy)]
+pub struct SelfCall<'a> {
+    pub name: &'a str,
+    pub arity: usize,
+}
+
+impl SelfCall<'_> {
+    pub fn matches(&self, func: &hir::Expr, args: &[hir::Expr]) -> bool {
+        args.len() == self.arity && matches!(func, hir::Expr::Var { name, .. } if name == self.name)
+    }
+}
+
+pub fn has_self_tail_call(name: &str, params: &[hir::Param], body: &[hir::Expr]) -> bool {
+    if params.iter().any(|param| param.name == name) {
+        return false;
+    }
+    let target = SelfCall {
+        name,
+        arity: params.len(),
+    };
+    body.last().is_some_and(|expr| tail_calls(expr, params, &target))
+}
+
+pub fn binds(bindings: &[hir::Binding], name: &str) -> bool {
+    bindings.iter().any(|binding| binding.name == name)
+}
+
+pub fn shadows(bindings: &[hir::Binding], params: &[hir::Param], target: &SelfCall) -> bool {
+    binds(bindings, target.name) || params.iter().any(|param| binds(bindings, &param.name))
+}
+
+fn tail_calls(expr: &hir::Expr, params: &[hir::Param], target: &SelfCall) -> bool {
+    match expr {
+        hir::Expr::If {
+            then_branch,
+            else_branch,
+            ..
+        } => tail_calls(then_branch, params, target) || tail_calls(else_branch, params, target),
+        hir::Expr::Let { bindings, body, .. } => {
+            !shadows(bindings, params, target)
+                && body.last().is_some_and(|e| tail_calls(e, params, target))
+        }
+        hir::Expr::Call { func, args, .. } => target.matches(func, args),
+        hir::Expr::Match { .. }
+        | hir::Expr::Int(..)
+        | hir::Expr::Float(..)
+        | hir::Expr::String(..)
+        | hir::Expr::Bool(..)
+        | hir::Expr::Nil(..)
+        | hir::Expr::Var { .. }
+        | hir::Expr::Builtin { .. }
+        | hir::Expr::Lambda { .. }
+        | hir::Expr::FieldAccess { .. }
+        | hir::Expr::RecordConstructor { .. }
+        | hir::Expr::VariantConstructor { .. }
+        | hir::Expr::Spawn { .. }
+        | hir::Expr::Channel { .. }
+        | hir::Expr::Send { .. }
+        | hir::Expr::Recv { .. } => false,
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::lexer;
+    use crate::macro_expand;
+    use crate::parser;
+    use crate::source::FileId;
+    use crate::typechecker;
+
+    fn defn_has_tail_call(source: &str) -> bool {
+        let (tokens, _) = lexer::lex(source, FileId::new(0));
+        let (ast, _) = parser::parse(&tokens);
+        let (ast, _) = macro_expand::expand(ast);
+        let (module, diags) = typechecker::check(&ast);
+        assert!(diags.is_empty(), "{:?}", diags);
+        match &module.top_forms[0] {
+            hir::TopForm::Defn {
+                name, params, body, ..
+            } => has_self_tail_call(name, params, body),
+            other => panic!("expected defn, got {:?}", other),
+        }
+    }
+
+    #[test]
+    fn detects_tail_call_through_if_and_let() {
+        assert!(defn_has_tail_call(
+            "(defn count [n : Int] : Int (if (= n 0) 0 (let [m (- n 1)] (count m))))"
+        ));
+    }
+
+    #[test]
+    fn detects_tail_call_in_cond() {
+        assert!(defn_has_tail_call(
+            "(defn down [n : Int] : Int (cond (< n 0) 0 (= n 0) 0 :else (down (- n 1))))"
+        ));
+    }
+
+    #[test]
+    fn ignores_non_tail_recursion() {
+        assert!(!defn_has_tail_call(
+            "(defn fact [n : Int] : Int (if (= n 0) 1 (* n (fact (- n 1)))))"
+        ));
+    }
+
+    #[test]
+    fn ignores_calls_inside_lambdas() {
+        assert!(!defn_has_tail_call(
+            "(defn f [n : Int] : Int (let [g (fn [x : Int] : Int (f x))] (g n)))"
+        ));
+    }
+
+    #[test]
+    fn ignores_calls_behind_a_let_shadowing_a_parameter() {
+        assert!(!defn_has_tail_call(
+            "(defn count [n : Int] : Int (if (= n 0) 0 (let [n (- n 1)] (count n))))"
+        ));
+    }
+
+    #[test]
+    fn ignores_calls_reached_only_through_match() {
+        assert!(!defn_has_tail_call(
+            "(defn down [n : Int] : Int (match n 0 0 _ (down (- n 1))))"
+        ));
+    }
+
+    #[test]
+    fn ignores_shadowed_name() {
+        assert!(!defn_has_tail_call(
+            "(defn f [n : Int] : Int (let [f (fn [x : Int] : Int x)] (f n)))"
+        ));
+    }
+}
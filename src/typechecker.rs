@@ -3,11 +3,12 @@ use crate::builtins;
 use crate::diagnostics::Diagnostic;
 use crate::hir;
 use crate::source::Span;
+use crate::symbol::Symbol;
 use crate::types::{RecordField, TypeEnv, UnionVariant, VexType};
 
 struct Checker {
     env: TypeEnv,
-    type_defs: std::collections::HashMap<String, VexType>,
+    type_defs: std::collections::HashMap<Symbol, VexType>,
     go_imports: std::collections::HashSet<String>,
     diagnostics: Vec<Diagnostic>,
 }
@@ -16,8 +17,9 @@ impl Checker {
     fn new() -> Self {
         let mut env = TypeEnv::new();
         for builtin in builtins::all_builtins() {
-            env.define(builtin.name.to_string(), builtin.ty);
+            env.define(builtin.name, builtin.ty);
         }
+        env.push_scope();
         Self {
             env,
             type_defs: std::collections::HashMap::new(),
@@ -26,6 +28,10 @@ impl Checker {
         }
     }
 
+    fn type_def(&self, name: &str) -> Option<&VexType> {
+        self.type_defs.get(&self.env.symbol(name)?)
+    }
+
     fn check_expr(&mut self, expr: &ast::Expr) -> Option<hir::Expr> {
         match expr {
             ast::Expr::Int(n, span) => Some(hir::Expr::Int(*n, *span)),
@@ -109,6 +115,15 @@ impl Checker {
         }
 
         if let Some(ty) = self.env.lookup(name) {
+            if self.env.is_root_binding(name)
+                && let Some(id) = builtins::id_of(name)
+            {
+                return Some(hir::Expr::Builtin {
+                    id,
+                    span,
+                    ty: ty.clone(),
+                });
+            }
             Some(hir::Expr::Var {
                 name: name.to_string(),
                 span,
@@ -152,7 +167,7 @@ impl Checker {
                 return self.check_filter(args, span);
             }
 
-            if let Some(record_ty) = self.type_defs.get(name).cloned()
+            if let Some(record_ty) = self.type_def(name).cloned()
                 && matches!(&record_ty, VexType::Record { .. })
             {
                 return self.check_record_constructor(name, &record_ty, args, span);
@@ -186,18 +201,12 @@ impl Checker {
             checked_args.push(self.check_expr(arg)?);
         }
 
-        let func_name = if let ast::Expr::Symbol(name, _) = func {
-            Some(name.as_str())
-        } else {
-            None
-        };
-
-        let func_ty = self.resolve_call_type(func_name, &checked_func, &checked_args, span)?;
+        let func_ty = self.resolve_call_type(&checked_func, &checked_args);
 
         let (ret_ty, checked_func) = match func_ty {
             VexType::Fn { params, ret } => {
-                if let Some(name) = func_name
-                    && builtins::lookup(name).is_some_and(|b| b.variadic)
+                if let hir::Expr::Builtin { id, .. } = &checked_func
+                    && builtins::get(*id).variadic
                 {
                     (*ret, checked_func)
                 } else {
@@ -247,19 +256,12 @@ impl Checker {
         })
     }
 
-    fn resolve_call_type(
-        &mut self,
-        func_name: Option<&str>,
-        checked_func: &hir::Expr,
-        checked_args: &[hir::Expr],
-        _span: Span,
-    ) -> Option<VexType> {
-        if let Some(name) = func_name
-            && let Some(builtin) = builtins::lookup(name)
-            && !builtin.variadic
-            && self.is_numeric_op(name)
+    fn resolve_call_type(&self, checked_func: &hir::Expr, checked_args: &[hir::Expr]) -> VexType {
+        if let hir::Expr::Builtin { id, .. } = checked_func
+            && id.is_numeric()
             && !checked_args.is_empty()
         {
+            let builtin = builtins::get(*id);
             let first_arg_ty = checked_args[0].ty();
             if first_arg_ty == &VexType::Float {
                 let ret = if let VexType::Fn { ret, .. } = &builtin.ty {
@@ -269,23 +271,16 @@ impl Checker {
                         (**ret).clone()
                     }
                 } else {
-                    return Some(checked_func.ty().clone());
+                    return checked_func.ty().clone();
                 };
-                return Some(VexType::Fn {
+                return VexType::Fn {
                     params: vec![VexType::Float; checked_args.len()],
                     ret: Box::new(ret),
-                });
+                };
             }
         }
 
-        Some(checked_func.ty().clone())
-    }
-
-    fn is_numeric_op(&self, name: &str) -> bool {
-        matches!(
-            name,
-            "+" | "-" | "*" | "/" | "mod" | "<" | ">" | "<=" | ">=" | "=" | "!="
-        )
+        checked_func.ty().clone()
     }
 
     fn check_if(
@@ -344,7 +339,7 @@ impl Checker {
                 "String" => Some(VexType::String),
                 "Unit" => Some(VexType::Unit),
                 _ => {
-                    if let Some(ty) = self.type_defs.get(name) {
+                    if let Some(ty) = self.type_def(name) {
                         Some(ty.clone())
                     } else {
                         self.diagnostics
@@ -459,7 +454,7 @@ impl Checker {
         for binding in bindings {
             let checked_value = self.check_expr(&binding.value)?;
             let ty = checked_value.ty().clone();
-            self.env.define(binding.name.clone(), ty.clone());
+            self.env.define(&binding.name, ty.clone());
             checked_bindings.push(hir::Binding {
                 name: binding.name.clone(),
                 ty,
@@ -514,7 +509,7 @@ impl Checker {
 
         self.env.push_scope();
         for param in &checked_params {
-            self.env.define(param.name.clone(), param.ty.clone());
+            self.env.define(&param.name, param.ty.clone());
         }
 
         let mut checked_body = self.check_body(body)?;
@@ -669,7 +664,7 @@ impl Checker {
                     });
                 }
 
-                self.env.define(name.clone(), expected_ty.clone());
+                self.env.define(name, expected_ty.clone());
                 Some(hir::Pattern::Binding {
                     name: name.clone(),
                     ty: expected_ty.clone(),
@@ -1456,11 +1451,11 @@ impl Checker {
             params: param_types,
             ret: Box::new(ret_ty_from_ann.clone().unwrap_or(VexType::Unit)),
         };
-        self.env.define(name.to_string(), fn_ty);
+        self.env.define(name, fn_ty);
 
         self.env.push_scope();
         for param in &checked_params {
-            self.env.define(param.name.clone(), param.ty.clone());
+            self.env.define(&param.name, param.ty.clone());
         }
 
         let mut checked_body = self.check_body(body)?;
@@ -1498,7 +1493,7 @@ impl Checker {
             params: checked_params.iter().map(|p| p.ty.clone()).collect(),
             ret: Box::new(ret_ty.clone()),
         };
-        self.env.define(name.to_string(), final_fn_ty);
+        self.env.define(name, final_fn_ty);
 
         Some(hir::TopForm::Defn {
             name: name.to_string(),
@@ -1536,7 +1531,7 @@ impl Checker {
             value_ty
         };
 
-        self.env.define(name.to_string(), ty.clone());
+        self.env.define(name, ty.clone());
 
         Some(hir::TopForm::Def {
             name: name.to_string(),
@@ -1566,7 +1561,8 @@ impl Checker {
             fields: record_fields.clone(),
         };
 
-        self.type_defs.insert(name.to_string(), record_type);
+        let symbol = self.env.intern(name);
+        self.type_defs.insert(symbol, record_type);
 
         Some(hir::TopForm::Deftype {
             name: name.to_string(),
@@ -1598,7 +1594,8 @@ impl Checker {
             variants: checked_variants.clone(),
         };
 
-        self.type_defs.insert(name.to_string(), union_type);
+        let symbol = self.env.intern(name);
+        self.type_defs.insert(symbol, union_type);
 
         Some(hir::TopForm::Defunion {
             name: name.to_string(),
@@ -1607,6 +1604,19 @@ impl Checker {
         })
     }
 
+    fn check_program(&mut self, program: &[ast::TopForm]) -> hir::Module {
+        validate_module_structure(program, &mut self.diagnostics);
+        validate_exports(program, &mut self.diagnostics);
+
+        let mut top_forms = Vec::new();
+        for form in program {
+            if let Some(checked) = self.check_top_form(form) {
+                top_forms.push(checked);
+            }
+        }
+        hir::Module { top_forms }
+    }
+
     fn check_top_form(&mut self, form: &ast::TopForm) -> Option<hir::TopForm> {
         match form {
             ast::TopForm::Module { name, span } => Some(hir::TopForm::Module {
@@ -1770,21 +1780,158 @@ pub fn check_with_imports(
     let mut checker = Checker::new();
 
     for (name, ty) in imported_symbols {
-        checker.env.define(name.clone(), ty.clone());
+        checker.env.define(name, ty.clone());
     }
 
-    let mut top_forms = Vec::new();
-
-    validate_module_structure(program, &mut checker.diagnostics);
-    validate_exports(program, &mut checker.diagnostics);
+    let module = checker.check_program(program);
+    (module, checker.diagnostics)
+}
 
+pub fn declared_types(program: &[ast::TopForm]) -> Vec<(String, Option<VexType>)> {
+    let mut checker = Checker::new();
+    let mut declared = Vec::new();
     for form in program {
-        if let Some(checked) = checker.check_top_form(form) {
-            top_forms.push(checked);
+        match form {
+            ast::TopForm::Deftype { name, fields, span } => {
+                checker.check_deftype(name, fields, *span);
+            }
+            ast::TopForm::Defunion {
+                name,
+                variants,
+                span,
+            } => {
+                checker.check_defunion(name, variants, *span);
+            }
+            ast::TopForm::Defn {
+                name,
+                params,
+                return_type,
+                ..
+            } => {
+                let params: Option<Vec<VexType>> = params
+                    .iter()
+                    .map(|param| checker.resolve_type(param.type_ann.as_ref()?))
+                    .collect();
+                let ret = return_type
+                    .as_ref()
+                    .and_then(|ret| checker.resolve_type(ret));
+                let ty = params.zip(ret).map(|(params, ret)| VexType::Fn {
+                    params,
+                    ret: Box::new(ret),
+                });
+                declared.push((name.clone(), ty));
+            }
+            ast::TopForm::Def { name, type_ann, .. } => {
+                let ty = type_ann.as_ref().and_then(|ann| checker.resolve_type(ann));
+                declared.push((name.clone(), ty));
+            }
+            _ => {}
+        }
+    }
+    declared
+}
+
+pub struct IncrementalChecker {
+    checker: Checker,
+}
+
+struct Rollback {
+    scope_depth: usize,
+    globals: Vec<(String, Option<VexType>)>,
+    type_defs: Vec<(String, Option<VexType>)>,
+    go_imports: Vec<String>,
+}
+
+impl Rollback {
+    fn record(checker: &Checker, program: &[ast::TopForm]) -> Self {
+        let mut rollback = Rollback {
+            scope_depth: checker.env.scope_depth(),
+            globals: Vec::new(),
+            type_defs: Vec::new(),
+            go_imports: Vec::new(),
+        };
+        for form in program {
+            match form {
+                ast::TopForm::Defn { name, .. } | ast::TopForm::Def { name, .. } => {
+                    let previous = if checker.env.is_root_binding(name) {
+                        None
+                    } else {
+                        checker.env.lookup(name).cloned()
+                    };
+                    rollback.globals.push((name.clone(), previous));
+                }
+                ast::TopForm::Deftype { name, .. } | ast::TopForm::Defunion { name, .. } => {
+                    let previous = checker.type_def(name).cloned();
+                    rollback.type_defs.push((name.clone(), previous));
+                }
+                ast::TopForm::ImportGo { symbols, .. } => {
+                    for sym in symbols {
+                        if !checker.go_imports.contains(sym) {
+                            rollback.go_imports.push(sym.clone());
+                        }
+                    }
+                }
+                ast::TopForm::Module { .. }
+                | ast::TopForm::Export { .. }
+                | ast::TopForm::Import { .. }
+                | ast::TopForm::DefMacro { .. }
+                | ast::TopForm::Expr(_) => {}
+            }
+        }
+        rollback
+    }
+
+    fn apply(self, checker: &mut Checker) {
+        checker.env.truncate_scopes(self.scope_depth);
+        for (name, previous) in self.globals.into_iter().rev() {
+            match previous {
+                Some(ty) => checker.env.define(&name, ty),
+                None => {
+                    checker.env.remove(&name);
+                }
+            }
+        }
+        for (name, previous) in self.type_defs.into_iter().rev() {
+            match previous {
+                Some(ty) => {
+                    let symbol = checker.env.intern(&name);
+                    checker.type_defs.insert(symbol, ty);
+                }
+                None => {
+                    if let Some(symbol) = checker.env.symbol(&name) {
+                        checker.type_defs.remove(&symbol);
+                    }
+                }
+            }
+        }
+        for sym in self.go_imports {
+            checker.go_imports.remove(&sym);
         }
     }
+}
 
-    (hir::Module { top_forms }, checker.diagnostics)
+impl Default for IncrementalChecker {
+    fn default() -> Self {
+        Self::new()
+    }
+}
+
+impl IncrementalChecker {
+    pub fn new() -> Self {
+        Self {
+            checker: Checker::new(),
+        }
+    }
+
+    pub fn check(&mut self, program: &[ast::TopForm]) -> (hir::Module, Vec<Diagnostic>) {
+        let rollback = Rollback::record(&self.checker, program);
+        let module = self.checker.check_program(program);
+        let diagnostics = std::mem::take(&mut self.checker.diagnostics);
+        if !diagnostics.is_empty() {
+            rollback.apply(&mut self.checker);
+        }
+        (module, diagnostics)
+    }
 }
 
 #[cfg(test)]
@@ -1864,11 +2011,38 @@ mod tests {
     fn builtin_symbol() {
         let (module, diags) = check_source("+");
         assert!(diags.is_empty());
-        if let hir::TopForm::Expr(hir::Expr::Var { name, ty, .. }) = &module.top_forms[0] {
-            assert_eq!(name, "+");
+        if let hir::TopForm::Expr(hir::Expr::Builtin { id, ty, .. }) = &module.top_forms[0] {
+            assert_eq!(*id, builtins::BuiltinId::Add);
             assert!(matches!(ty, VexType::Fn { .. }));
         } else {
-            panic!("expected var");
+            panic!("expected builtin");
+        }
+    }
+
+    #[test]
+    fn shadowed_builtin_stays_a_var() {
+        let (module, diags) = check_source("(let [str (fn [x : Int] : Int x)] (str 1))");
+        assert!(diags.is_empty(), "{:?}", diags);
+        if let hir::TopForm::Expr(hir::Expr::Let { body, ty, .. }) = &module.top_forms[0] {
+            assert_eq!(ty, &VexType::Int);
+            assert!(matches!(
+                &body[0],
+                hir::Expr::Call { func, .. } if matches!(func.as_ref(), hir::Expr::Var { .. })
+            ));
+        } else {
+            panic!("expected let");
+        }
+    }
+
+    #[test]
+    fn user_defn_shadows_builtin_globally() {
+        let (module, diags) = check_source("(defn not [x : Int] : Int x) (not 1)");
+        assert!(diags.is_empty(), "{:?}", diags);
+        if let hir::TopForm::Expr(hir::Expr::Call { func, ty, .. }) = &module.top_forms[1] {
+            assert_eq!(ty, &VexType::Int);
+            assert!(matches!(func.as_ref(), hir::Expr::Var { name, .. } if name == "not"));
+        } else {
+            panic!("expected call");
         }
     }
 
@@ -3557,4 +3731,86 @@ mod tests {
             panic!("expected defn");
         }
     }
+
+    fn expand_source(source: &str) -> Vec<ast::TopForm> {
+        let (tokens, _) = lex(source, FileId::new(0));
+        let (ast, _) = parse(&tokens);
+        let (expanded, _) = crate::macro_expand::expand(ast);
+        expanded
+    }
+
+    #[test]
+    fn incremental_sees_earlier_definitions() {
+        let mut checker = IncrementalChecker::new();
+        let (_, diags) = checker.check(&expand_source("(defn double [x : Int] : Int (* x 2))"));
+        assert!(diags.is_empty(), "{:?}", diags);
+
+        let (module, diags) = checker.check(&expand_source("(double 21)"));
+        assert!(diags.is_empty(), "{:?}", diags);
+        assert_eq!(module.top_forms.len(), 1);
+        if let hir::TopForm::Expr(expr) = &module.top_forms[0] {
+            assert_eq!(expr.ty(), &VexType::Int);
+        } else {
+            panic!("expected expression");
+        }
+    }
+
+    #[test]
+    fn incremental_rolls_back_failed_input() {
+        let mut checker = IncrementalChecker::new();
+        checker.check(&expand_source("(def x 1)"));
+
+        let (_, diags) = checker.check(&expand_source(
+            r#"(def x "shadow") (deftype P [a : Int]) (defn bad [] : Int "no")"#,
+        ));
+        assert!(!diags.is_empty());
+
+        let (module, diags) = checker.check(&expand_source("(+ x 1)"));
+        assert!(diags.is_empty(), "{:?}", diags);
+        assert_eq!(module.top_forms.len(), 1);
+
+        let (_, diags) = checker.check(&expand_source("(bad)"));
+        assert!(!diags.is_empty());
+        let (_, diags) = checker.check(&expand_source("(P 1)"));
+        assert!(!diags.is_empty());
+    }
+
+    #[test]
+    fn incremental_rollback_restores_builtins() {
+        let mut checker = IncrementalChecker::new();
+        let (_, diags) = checker.check(&expand_source(r#"(defn not [x : Int] : Int "no")"#));
+        assert!(!diags.is_empty());
+
+        let (module, diags) = checker.check(&expand_source("(not true)"));
+        assert!(diags.is_empty(), "{:?}", diags);
+        assert!(matches!(
+            &module.top_forms[0],
+            hir::TopForm::Expr(hir::Expr::Call { func, .. })
+                if matches!(func.as_ref(), hir::Expr::Builtin { .. })
+        ));
+    }
+
+    #[test]
+    fn declared_types_match_checked_signatures() {
+        let program = expand_source(
+            "(deftype Point (x Int) (y Int))
+             (defn norm [p : Point] : Int (+ (. p x) (. p y)))
+             (defn twice [f : (Fn [Int] Int) n : Int] : Int (f (f n)))
+             (defn inferred [n : Int] (* n 2))
+             (def origin : Point (Point 0 0))",
+        );
+        let declared = declared_types(&program);
+        let (module, diags) = check(&program);
+        assert!(diags.is_empty(), "{:?}", diags);
+        let names: Vec<&str> = declared.iter().map(|(name, _)| name.as_str()).collect();
+        assert_eq!(names, ["norm", "twice", "inferred", "origin"]);
+        assert!(declared[2].1.is_none());
+        let exported: Vec<String> = ["norm", "twice", "origin"].map(String::from).to_vec();
+        let checked = crate::extract_exported_types(&module, &exported);
+        let summarized: Vec<(String, VexType)> = declared
+            .into_iter()
+            .filter_map(|(name, ty)| Some((name, ty?)))
+            .collect();
+        assert_eq!(summarized, checked);
+    }
 }
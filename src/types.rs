@@ -1,5 +1,6 @@
 use crate::ast;
 use crate::source::{FileId, Span};
+use crate::symbol::{Interner, Symbol};
 use std::collections::HashMap;
 use std::fmt;
 
@@ -468,7 +469,8 @@ impl fmt::Display for VexType {
 }
 
 pub struct TypeEnv {
-    scopes: Vec<HashMap<std::string::String, VexType>>,
+    symbols: Interner,
+    scopes: Vec<HashMap<Symbol, VexType>>,
     next_type_var: u32,
 }
 
@@ -481,11 +483,20 @@ impl Default for TypeEnv {
 impl TypeEnv {
     pub fn new() -> Self {
         Self {
+            symbols: Interner::new(),
             scopes: vec![HashMap::new()],
             next_type_var: 0,
         }
     }
 
+    pub fn intern(&mut self, name: &str) -> Symbol {
+        self.symbols.intern(name)
+    }
+
+    pub fn symbol(&self, name: &str) -> Option<Symbol> {
+        self.symbols.get(name)
+    }
+
     pub fn push_scope(&mut self) {
         self.scopes.push(HashMap::new());
     }
@@ -494,21 +505,48 @@ impl TypeEnv {
         self.scopes.pop();
     }
 
-    pub fn define(&mut self, name: std::string::String, ty: VexType) {
+    pub fn scope_depth(&self) -> usize {
+        self.scopes.len()
+    }
+
+    pub fn truncate_scopes(&mut self, depth: usize) {
+        self.scopes.truncate(depth.max(1));
+    }
+
+    pub fn remove(&mut self, name: &str) -> Option<VexType> {
+        let symbol = self.symbols.get(name)?;
+        self.scopes.last_mut().and_then(|scope| scope.remove(&symbol))
+    }
+
+    pub fn define(&mut self, name: &str, ty: VexType) {
+        let symbol = self.symbols.intern(name);
         if let Some(scope) = self.scopes.last_mut() {
-            scope.insert(name, ty);
+            scope.insert(symbol, ty);
         }
     }
 
     pub fn lookup(&self, name: &str) -> Option<&VexType> {
+        let symbol = self.symbols.get(name)?;
         for scope in self.scopes.iter().rev() {
-            if let Some(ty) = scope.get(name) {
+            if let Some(ty) = scope.get(&symbol) {
                 return Some(ty);
             }
         }
         None
     }
 
+    pub fn is_root_binding(&self, name: &str) -> bool {
+        let Some(symbol) = self.symbols.get(name) else {
+            return false;
+        };
+        for (depth, scope) in self.scopes.iter().enumerate().rev() {
+            if scope.contains_key(&symbol) {
+                return depth == 0;
+            }
+        }
+        false
+    }
+
     pub fn fresh_type_var(&mut self) -> VexType {
         let id = self.next_type_var;
         self.next_type_var += 1;
@@ -670,7 +708,7 @@ mod tests {
     #[test]
     fn env_define_and_lookup() {
         let mut env = TypeEnv::new();
-        env.define("x".into(), VexType::Int);
+        env.define("x", VexType::Int);
         assert_eq!(env.lookup("x"), Some(&VexType::Int));
         assert_eq!(env.lookup("y"), None);
     }
@@ -678,10 +716,10 @@ mod tests {
     #[test]
     fn env_scoping() {
         let mut env = TypeEnv::new();
-        env.define("x".into(), VexType::Int);
+        env.define("x", VexType::Int);
 
         env.push_scope();
-        env.define("x".into(), VexType::Float);
+        env.define("x", VexType::Float);
         assert_eq!(env.lookup("x"), Some(&VexType::Float));
 
         env.pop_scope();
@@ -691,10 +729,10 @@ mod tests {
     #[test]
     fn env_inner_scope_sees_outer() {
         let mut env = TypeEnv::new();
-        env.define("x".into(), VexType::Int);
+        env.define("x", VexType::Int);
 
         env.push_scope();
-        env.define("y".into(), VexType::Bool);
+        env.define("y", VexType::Bool);
         assert_eq!(env.lookup("x"), Some(&VexType::Int));
         assert_eq!(env.lookup("y"), Some(&VexType::Bool));
 
@@ -702,6 +740,44 @@ mod tests {
         assert_eq!(env.lookup("y"), None);
     }
 
+    #[test]
+    fn env_truncate_and_remove() {
+        let mut env = TypeEnv::new();
+        env.define("x", VexType::Int);
+        env.push_scope();
+        env.push_scope();
+        assert_eq!(env.scope_depth(), 3);
+
+        env.truncate_scopes(1);
+        assert_eq!(env.scope_depth(), 1);
+        assert_eq!(env.remove("x"), Some(VexType::Int));
+        assert_eq!(env.lookup("x"), None);
+    }
+
+    #[test]
+    fn env_root_binding_is_shadowable() {
+        let mut env = TypeEnv::new();
+        env.define("x", VexType::Int);
+        assert!(env.is_root_binding("x"));
+
+        env.push_scope();
+        assert!(env.is_root_binding("x"));
+        env.define("x", VexType::Bool);
+        assert!(!env.is_root_binding("x"));
+        assert!(!env.is_root_binding("y"));
+    }
+
+    #[test]
+    fn env_lookups_of_unknown_names_intern_nothing() {
+        let mut env = TypeEnv::new();
+        env.define("x", VexType::Int);
+        assert_eq!(env.lookup("missing"), None);
+        assert!(!env.is_root_binding("missing"));
+        assert_eq!(env.remove("missing"), None);
+        assert_eq!(env.symbols.len(), 1);
+        assert_eq!(env.symbol("x"), Some(env.intern("x")));
+    }
+
     #[test]
     fn env_fresh_type_vars() {
         let mut env = TypeEnv::new();
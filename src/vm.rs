@@ -0,0 +1,551 @@
+use std::mem;
+use std::sync::Arc;
+
+use crate::bytecode::{Chunk, Entry, Op, Program};
+use crate::hir;
+use crate::interpreter::{self, Closure, RuntimeError, Value};
+use crate::resolve::Resolver;
+
+struct CallFrame {
+    base: usize,
+    callee: usize,
+    closure: Option<Arc<Closure>>,
+    return_to: Option<(Arc<Chunk>, usize)>,
+}
+
+pub struct Vm {
+    resolver: Resolver,
+    program: Program,
+    globals: Vec<Option<Value>>,
+    stack: Vec<Value>,
+    frames: Vec<CallFrame>,
+}
+
+impl Default for Vm {
+    fn default() -> Self {
+        Self::new()
+    }
+}
+
+impl Vm {
+    pub fn new() -> Self {
+        Self {
+            resolver: Resolver::new(),
+            program: Program::new(),
+            globals: Vec::new(),
+            stack: Vec::new(),
+            frames: Vec::new(),
+        }
+    }
+
+    pub fn eval_module(&mut self, module: &hir::Module) -> Result<Value, RuntimeError> {
+        let mut last = Value::Unit;
+        for form in &module.top_forms {
+            last = self.eval_top_form(form)?;
+        }
+        Ok(last)
+    }
+
+    pub fn eval_top_form(&mut self, form: &hir::TopForm) -> Result<Value, RuntimeError> {
+        let resolved = self.resolver.resolve_top_form(form);
+        let entry = self.program.compile_top_form(&resolved);
+        self.frames.clear();
+        self.stack.clear();
+
+        match entry {
+            Entry::Declaration => Ok(Value::Unit),
+
+            Entry::Defn { slot, function } => {
+                let function = self
+                    .program
+                    .function(function)
+                    .map(|compiled| compiled.function.clone())
+                    .ok_or_else(|| RuntimeError {
+                        message: "defn was not compiled".into(),
+                    })?;
+                let func = Value::Fn(Arc::new(Closure {
+                    function,
+                    captures: Vec::new(),
+                }));
+                self.set_global(slot, func);
+                Ok(Value::Unit)
+            }
+
+            Entry::Def { slot, chunk } => {
+                let val = self.run(chunk)?;
+                self.set_global(slot, val);
+                Ok(Value::Unit)
+            }
+
+            Entry::Expr(chunk) => self.run(chunk),
+        }
+    }
+
+    fn set_global(&mut self, slot: usize, value: Value) {
+        if self.globals.len() <= slot {
+            self.globals.resize(slot + 1, None);
+        }
+        self.globals[slot] = Some(value);
+    }
+
+    fn push_frame(
+        &mut self,
+        base: usize,
+        callee: usize,
+        closure: Option<Arc<Closure>>,
+        return_to: Option<(Arc<Chunk>, usize)>,
+    ) {
+        self.frames.push(CallFrame {
+            base,
+            callee,
+            closure,
+            return_to,
+        });
+    }
+
+    fn pop(&mut self) -> Value {
+        self.stack.pop().unwrap_or(Value::Unit)
+    }
+
+    fn captured(&self, index: usize) -> Result<Value, RuntimeError> {
+        self.frames
+            .last()
+            .and_then(|frame| frame.closure.as_ref())
+            .and_then(|closure| closure.captures.get(index))
+            .cloned()
+            .ok_or_else(|| RuntimeError {
+                message: "captured variable is missing from the closure".into(),
+            })
+    }
+
+    fn function_chunk(&self, id: usize) -> Result<Arc<Chunk>, RuntimeError> {
+        self.program
+            .function(id)
+            .map(|compiled| compiled.chunk.clone())
+            .ok_or_else(|| RuntimeError {
+                message: "call to a function that was never compiled".into(),
+            })
+    }
+
+    fn call_value(&mut self, func: &Value, args: Vec<Value>) -> Result<Value, RuntimeError> {
+        match func {
+            Value::Fn(closure) => {
+                if closure.function.arity != args.len() {
+                    return Err(RuntimeError {
+                        message: format!(
+                            "function expects {} arguments, got {}",
+                            closure.function.arity,
+                            args.len()
+                        ),
+                    });
+                }
+                let target = self.function_chunk(closure.function.id)?;
+                let base = self.stack.len();
+                self.stack.extend(args);
+                self.execute(target, base, Some(Arc::clone(closure)))
+            }
+            Value::BuiltinFn(id) => interpreter::call_builtin(*id, args),
+            other => Err(RuntimeError {
+                message: format!("cannot call non-function value: {}", other),
+            }),
+        }
+    }
+
+    fn run(&mut self, entry: Arc<Chunk>) -> Result<Value, RuntimeError> {
+        let base = self.stack.len();
+        self.execute(entry, base, None)
+    }
+
+    fn execute(
+        &mut self,
+        entry: Arc<Chunk>,
+        mut base: usize,
+        closure: Option<Arc<Closure>>,
+    ) -> Result<Value, RuntimeError> {
+        self.push_frame(base, base, closure, None);
+        self.stack.resize(base + entry.frame_size, Value::Unit);
+        let mut chunk = entry;
+        let mut ip = 0;
+
+        loop {
+            let op = chunk.code[ip];
+            ip += 1;
+            match op {
+                Op::Unit => self.stack.push(Value::Unit),
+                Op::Int(n) => self.stack.push(Value::Int(n)),
+                Op::Float(n) => self.stack.push(Value::Float(n)),
+                Op::Bool(b) => self.stack.push(Value::Bool(b)),
+                Op::Str(id) => {
+                    let s = self.program.string(id).to_string();
+                    self.stack.push(Value::String(s));
+                }
+
+                Op::LoadLocal(slot) => {
+                    let value = self.stack[base + slot as usize].clone();
+                    self.stack.push(value);
+                }
+                Op::LoadCaptured(index) => {
+                    let value = self.captured(index as usize)?;
+                    self.stack.push(value);
+                }
+                Op::LoadGlobal { slot, name } => {
+                    let value = self
+                        .globals
+                        .get(slot as usize)
+                        .and_then(|value| value.clone())
+                        .ok_or_else(|| RuntimeError {
+                            message: format!("undefined variable: {}", self.program.string(name)),
+                        })?;
+                    self.stack.push(value);
+                }
+                Op::Builtin(id) => self.stack.push(Value::BuiltinFn(id)),
+                Op::StoreLocal(slot) => {
+                    let value = self.pop();
+                    self.stack[base + slot as usize] = value;
+                }
+                Op::Pop => {
+                    self.pop();
+                }
+
+                Op::Jump(target) => ip = target as usize,
+                Op::JumpIfFalse(target) => match self.pop() {
+                    Value::Bool(true) => {}
+                    Value::Bool(false) => ip = target as usize,
+                    cond => {
+                        return Err(RuntimeError {
+                            message: format!("if condition must be Bool, got {}", cond),
+                        });
+                    }
+                },
+
+                Op::Call(argc) => {
+                    let argc = argc as usize;
+                    let callee = self.stack.len() - argc - 1;
+                    match mem::replace(&mut self.stack[callee], Value::Unit) {
+                        Value::Fn(closure) => {
+                            let function = &closure.function;
+                            if function.arity != argc {
+                                return Err(RuntimeError {
+                                    message: format!(
+                                        "function expects {} arguments, got {}",
+                                        function.arity, argc
+                                    ),
+                                });
+                            }
+                            let target = self.function_chunk(function.id)?;
+                            base = callee + 1;
+                            self.push_frame(base, callee, Some(closure), Some((chunk, ip)));
+                            self.stack.resize(base + target.frame_size, Value::Unit);
+                            chunk = target;
+                            ip = 0;
+                        }
+                        Value::BuiltinFn(id) => {
+                            let args = self.stack.split_off(callee + 1);
+                            self.stack.pop();
+                            let result = interpreter::call_builtin(id, args)?;
+                            self.stack.push(result);
+                        }
+                        other => {
+                            return Err(RuntimeError {
+                                message: format!("cannot call non-function value: {}", other),
+                            });
+                        }
+                    }
+                }
+
+                Op::CallBuiltin { id, argc } => {
+                    let args = self.stack.split_off(self.stack.len() - argc as usize);
+                    let result = interpreter::call_builtin(id, args)?;
+                    self.stack.push(result);
+                }
+
+                Op::Iterate(kind) => {
+                    let callback = self.pop();
+                    let source = self.pop();
+                    let result = interpreter::iterate(kind, source, |element| {
+                        self.call_value(&callback, vec![element])
+                    })?;
+                    self.stack.push(result);
+                }
+
+                Op::TailCall(argc) => {
+                    let argc = argc as usize;
+                    let args_start = self.stack.len() - argc;
+                    for i in 0..argc {
+                        self.stack.swap(base + i, args_start + i);
+                    }
+                    self.stack.truncate(base + chunk.frame_size);
+                    ip = 0;
+                }
+
+                Op::Return => {
+                    let result = self.pop();
+                    let Some(frame) = self.frames.pop() else {
+                        return Ok(result);
+                    };
+                    self.stack.truncate(frame.callee);
+                    match frame.return_to {
+                        Some((caller, resume)) => {
+                            chunk = caller;
+                            ip = resume;
+                            base = self.frames.last().map(|f| f.base).unwrap_or(0);
+                            self.stack.push(result);
+                        }
+                        None => return Ok(result),
+                    }
+                }
+
+                Op::Closure(id) => {
+                    let function = self
+                        .program
+                        .function(id as usize)
+                        .map(|compiled| Arc::clone(&compiled.function))
+                        .ok_or_else(|| RuntimeError {
+                            message: "closure over a function that was never compiled".into(),
+                        })?;
+                    let captures = self
+                        .stack
+                        .split_off(self.stack.len() - function.captures.len());
+                    self.stack.push(Value::Fn(Arc::new(Closure {
+                        function,
+                        captures,
+                    })));
+                }
+
+                Op::GetField(name) => {
+                    let obj = self.pop();
+                    let field = self.program.string(name);
+                    let value = match obj {
+                        Value::Record { fields, .. } => fields
+                            .into_iter()
+                            .find(|(name, _)| name == field)
+                            .map(|(_, val)| val)
+                            .ok_or_else(|| RuntimeError {
+                                message: format!("no field '{}' on record", field),
+                            })?,
+                        _ => {
+                            return Err(RuntimeError {
+                                message: format!("field access on non-record value: {}", obj),
+                            });
+                        }
+                    };
+                    self.stack.push(value);
+                }
+
+                Op::Record(shape) => {
+                    let shape = self.program.record(shape);
+                    if shape.fields.len() != shape.arity {
+                        return Err(RuntimeError {
+                            message: "record constructor with non-record type".into(),
+                        });
+                    }
+                    let values = self.stack.split_off(self.stack.len() - shape.arity);
+                    let fields = shape.fields.iter().cloned().zip(values).collect();
+                    self.stack.push(Value::Record {
+                        name: shape.name.clone(),
+                        fields,
+                    });
+                }
+
+                Op::Variant(shape) => {
+                    let shape = self.program.variant(shape);
+                    let values = self.stack.split_off(self.stack.len() - shape.arity);
+                    self.stack.push(Value::Variant {
+                        union_name: shape.union_name.clone(),
+                        variant_name: shape.variant_name.clone(),
+                        values,
+                    });
+                }
+
+                Op::Match { pattern, fail } => {
+                    let value = self.pop();
+                    let matched = interpreter::match_pattern(
+                        self.program.pattern(pattern),
+                        &value,
+                        &mut self.stack[base..],
+                    );
+                    self.stack.push(value);
+                    if !matched {
+                        ip = fail as usize;
+                    }
+                }
+                Op::NoMatch => {
+                    return Err(RuntimeError {
+                        message: "no matching clause in match expression".into(),
+                    });
+                }
+
+                Op::Unsupported => {
+                    return Err(RuntimeError {
+                        message: "concurrency primitives are not supported in the bytecode VM"
+                            .into(),
+                    });
+                }
+            }
+        }
+    }
+}
+
+pub fn eval(module: &hir::Module) -> Result<Value, RuntimeError> {
+    let mut vm = Vm::new();
+    vm.eval_module(module)
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+    use crate::lexer;
+    use crate::macro_expand;
+    use crate::parser;
+    use crate::source::FileId;
+    use crate::typechecker;
+
+    fn check_source(source: &str) -> hir::Module {
+        let (tokens, _) = lexer::lex(source, FileId::new(0));
+        let (ast, _) = parser::parse(&tokens);
+        let (ast, _) = macro_expand::expand(ast);
+        let (module, diags) = typechecker::check(&ast);
+        assert!(diags.is_empty(), "{:?}", diags);
+        module
+    }
+
+    fn run_both(source: &str) -> (String, String) {
+        let module = check_source(source);
+        let show = |result: Result<Value, RuntimeError>| match result {
+            Ok(value) => value.to_string(),
+            Err(err) => err.to_string(),
+        };
+        (show(interpreter::eval(&module)), show(eval(&module)))
+    }
+
+    fn assert_agrees(source: &str, expected: &str) {
+        let (tree_walker, vm) = run_both(source);
+        assert_eq!(vm, expected);
+        assert_eq!(tree_walker, vm);
+    }
+
+    #[test]
+    fn recursion() {
+        assert_agrees(
+            "(defn fib [n : Int] : Int
+               (if (<= n 1) n (+ (fib (- n 1)) (fib (- n 2)))))
+             (fib 15)",
+            "610",
+        );
+    }
+
+    #[test]
+    fn counting_loop() {
+        assert_agrees(
+            "(defn count-up [i : Int acc : Int] : Int
+               (if (= i 0) acc (count-up (- i 1) (+ acc i))))
+             (count-up 100 0)",
+            "5050",
+        );
+    }
+
+    #[test]
+    fn self_tail_call_runs_in_constant_stack() {
+        assert_agrees(
+            "(defn count-down [n : Int acc : Int] : Int
+               (if (= n 0) acc (count-down (- n 1) (+ acc 1))))
+             (count-down 1000000 0)",
+            "1000000",
+        );
+    }
+
+    #[test]
+    fn let_and_shadowing() {
+        assert_agrees("(let [x 1] (let [x (+ x 1)] (* x 10)))", "20");
+        assert_agrees("(let [x 10] (+ x 1) (+ x 2))", "12");
+    }
+
+    #[test]
+    fn lambda_captures_enclosing_let() {
+        assert_agrees(
+            "(defn apply-to [f : (Fn [Int] Int) x : Int] : Int (f x))
+             (let [k 10] (apply-to (fn [x : Int] : Int (+ x k)) 5))",
+            "15",
+        );
+    }
+
+    #[test]
+    fn records_and_variants() {
+        assert_agrees(
+            "(deftype Point (x Float) (y Float))
+             (let [p (Point 1.0 2.0)] (. p y))",
+            "2",
+        );
+        assert_agrees(
+            "(defunion Shape (Circle Float) (Rect Float Float))
+             (defn area [s : Shape] : Float
+               (match s
+                 (Circle r) (* r r)
+                 (Rect w h) (* w h)))
+             (+ (area (Rect 2.0 3.0)) (area (Circle 1.0)))",
+            "7",
+        );
+    }
+
+    #[test]
+    fn match_wildcard_and_literals() {
+        assert_agrees(
+            "(defunion Color (Red) (Green) (Blue))
+             (match (Green) (Red) \"red\" _ \"other\")",
+            "\"other\"",
+        );
+        assert_agrees("(match 2 1 \"one\" 2 \"two\" _ \"many\")", "\"two\"");
+    }
+
+    #[test]
+    fn closures_outlive_their_defining_call() {
+        assert_agrees(
+            "(defn adder [k : Int] : (Fn [Int] Int) (fn [x : Int] : Int (+ x k)))
+             ((adder 1) 2)",
+            "3",
+        );
+        assert_agrees(
+            "(defn curry [a : Int] : (Fn [Int] (Fn [Int] Int))
+               (fn [b : Int] : (Fn [Int] Int) (fn [c : Int] : Int (+ a (* b c)))))
+             (((curry 1) 2) 3)",
+            "7",
+        );
+    }
+
+    #[test]
+    fn runtime_errors_match_tree_walker() {
+        assert_agrees("(/ 42 0)", "runtime error: division by zero");
+    }
+
+    #[test]
+    fn builtins_as_values_and_shadowed_builtins() {
+        assert_agrees("(let [f not] (f false))", "true");
+        assert_agrees("(defn not [x : Int] : Int (+ x 1)) (not 41)", "42");
+    }
+
+    #[test]
+    fn iteration_over_lazy_ranges() {
+        assert_agrees(
+            "(filter (map (range 0 10) (fn [x : Int] : Int (* x x)))
+                     (fn [x : Int] : Bool (= (mod x 2) 0)))",
+            "[0 4 16 36 64]",
+        );
+        assert_agrees("(let [xs (range 0 3)] (map xs (fn [x : Int] : Int (+ x 1))))", "[1 2 3]");
+        assert_agrees(
+            "(each (range 0 1000000000) (fn [x : Int] (/ x 0)))",
+            "runtime error: division by zero",
+        );
+    }
+
+    #[test]
+    fn globals_persist_across_top_forms() {
+        let source = "(def base 40) (defn bump [x : Int] : Int (+ x 2)) (bump base)";
+        let module = check_source(source);
+        let mut vm = Vm::new();
+        for form in &module.top_forms[..2] {
+            vm.eval_top_form(form).unwrap();
+        }
+        let result = vm.eval_top_form(&module.top_forms[2]).unwrap();
+        assert!(matches!(result, Value::Int(42)));
+    }
+}
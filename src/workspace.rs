@@ -0,0 +1,150 @@
+use std::collections::BTreeSet;
+use std::fs;
+use std::io;
+use std::path::{Path, PathBuf};
+
+use crate::cache;
+use crate::content_hash::ContentHash;
+
+const MANIFEST: &str = ".vex-files";
+
+#[derive(Debug, Default, Clone, Copy, PartialEq, Eq)]
+pub struct SyncStats {
+    pub written: usize,
+    pub unchanged: usize,
+    pub removed: usize,
+}
+
+pub struct Workspace {
+    root: PathBuf,
+}
+
+impl Workspace {
+    pub fn open(root: impl Into<PathBuf>) -> io::Result<Self> {
+        let root = root.into();
+        fs::create_dir_all(&root)?;
+        Ok(Self { root })
+    }
+
+    pub fn for_source(source_path: &Path) -> io::Result<Self> {
+        let absolute = fs::canonicalize(source_path)?;
+        let key = ContentHash::of(absolute.display().to_string().as_bytes());
+        let base = cache::default_root().unwrap_or_else(|| std::env::temp_dir().join("vex"));
+        Self::open(base.join("workspaces").join(key.to_string()))
+    }
+
+    pub fn root(&self) -> &Path {
+        &self.root
+    }
+
+    pub fn sync<'a>(
+        &self,
+        files: impl IntoIterator<Item = (PathBuf, &'a str)>,
+    ) -> io::Result<SyncStats> {
+        let manifest = self.root.join(MANIFEST);
+        let previous: BTreeSet<PathBuf> = fs::read_to_string(&manifest)
+            .unwrap_or_default()
+            .lines()
+            .map(PathBuf::from)
+            .collect();
+
+        let mut stats = SyncStats::default();
+        let mut current = BTreeSet::new();
+        for (relative, contents) in files {
+            let path = self.root.join(&relative);
+            if fs::read(&path).is_ok_and(|existing| existing == contents.as_bytes()) {
+                stats.unchanged += 1;
+            } else {
+                write_atomically(&path, contents)?;
+                stats.written += 1;
+            }
+            current.insert(relative);
+        }
+
+        for stale in previous.difference(&current) {
+            if fs::remove_file(self.root.join(stale)).is_ok() {
+                stats.removed += 1;
+            }
+        }
+
+        let listing: String = current
+            .iter()
+            .map(|path| format!("{}\n", path.display()))
+            .collect();
+        write_atomically(&manifest, &listing)?;
+        Ok(stats)
+    }
+}
+
+fn write_atomically(path: &Path, contents: &str) -> io::Result<()> {
+    if let Some(parent) = path.parent() {
+        fs::create_dir_all(parent)?;
+    }
+    let mut partial = path.as_os_str().to_owned();
+    partial.push(format!(".{}", std::process::id()));
+    fs::write(&partial, contents)?;
+    fs::rename(&partial, path)
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    fn files<'a>(entries: &[(&str, &'a str)]) -> Vec<(PathBuf, &'a str)> {
+        entries
+            .iter()
+            .map(|(path, contents)| (PathBuf::from(path), *contents))
+            .collect()
+    }
+
+    #[test]
+    fn only_changed_files_are_rewritten() {
+        let dir = std::env::temp_dir().join(format!("vex-workspace-sync-{}", std::process::id()));
+        let workspace = Workspace::open(&dir).expect("workspace should open");
+
+        let first = workspace
+            .sync(files(&[("main.go", "package main"), ("math/math.go", "package math")]))
+            .expect("sync should succeed");
+        let second = workspace
+            .sync(files(&[("main.go", "package main // edited"), ("math/math.go", "package math")]))
+            .expect("sync should succeed");
+        let main = fs::read_to_string(dir.join("main.go")).ok();
+        fs::remove_dir_all(&dir).ok();
+
+        assert_eq!(
+            first,
+            SyncStats {
+                written: 2,
+                unchanged: 0,
+                removed: 0,
+            }
+        );
+        assert_eq!(
+            second,
+            SyncStats {
+                written: 1,
+                unchanged: 1,
+                removed: 0,
+            }
+        );
+        assert_eq!(main.as_deref(), Some("package main // edited"));
+    }
+
+    #[test]
+    fn files_dropped_from_the_build_are_removed() {
+        let dir = std::env::temp_dir().join(format!("vex-workspace-stale-{}", std::process::id()));
+        let workspace = Workspace::open(&dir).expect("workspace should open");
+
+        workspace
+            .sync(files(&[("main.go", "package main"), ("old/old.go", "package old")]))
+            .expect("sync should succeed");
+        let stats = workspace
+            .sync(files(&[("main.go", "package main")]))
+            .expect("sync should succeed");
+        let old_exists = dir.join("old/old.go").exists();
+        fs::remove_dir_all(&dir).ok();
+
+        assert_eq!(stats.removed, 1);
+        assert!(!old_exists);
+    }
+}